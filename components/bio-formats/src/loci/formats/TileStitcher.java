@@ -169,6 +169,13 @@ public class TileStitcher extends ReaderWrapper {
     return buf;
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  @Override
+  public boolean isThreadSafe() {
+    // stitching changes the series of the underlying reader for each tile
+    return tileX == 1 && tileY == 1 && reader.isThreadSafe();
+  }
+
   /* @see IFormatReader#setId(String) */
   public void setId(String id) throws FormatException, IOException {
     super.setId(id);
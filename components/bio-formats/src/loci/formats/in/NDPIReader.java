@@ -26,12 +26,15 @@
 package loci.formats.in;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import loci.common.DateTools;
 import loci.common.RandomAccessInputStream;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
+import loci.formats.codec.JPEGRestartIndex;
 import loci.formats.codec.JPEGTileDecoder;
 import loci.formats.meta.MetadataStore;
 import loci.formats.tiff.IFD;
@@ -66,6 +69,16 @@ public class NDPIReader extends BaseTiffReader {
   private int sizeZ = 1;
   private int pyramidHeight = 1;
 
+  /** Series containing each resolution level of the first series. */
+  private int[] resolutionSeries;
+
+  /**
+   * Restart marker indexes of the large JPEG planes, keyed by IFD index.
+   * Planes that cannot be decoded by region are mapped to null.
+   */
+  private Map<Integer, JPEGRestartIndex> restartIndexes =
+    new HashMap<Integer, JPEGRestartIndex>();
+
   // -- Constructor --
 
   /** Constructs a new NDPI reader. */
@@ -93,88 +106,29 @@ public class NDPIReader extends BaseTiffReader {
     if (x == 0 && y == 0 && w == 1 && h == 1) {
       return buf;
     }
-    else if (getSizeX() <= MAX_SIZE && getSizeY() <= MAX_SIZE) {
-      int ifdIndex = getIFDIndex(getSeries(), no);
-      in = new RandomAccessInputStream(currentId);
-      tiffParser = new TiffParser(in);
-      tiffParser.setUse64BitOffsets(true);
-      return tiffParser.getSamples(ifds.get(ifdIndex), buf, x, y, w, h);
-    }
 
-    if (initializedSeries != getSeries() || initializedPlane != no) {
-      if (x == 0 && y == 0 && w == getOptimalTileWidth() &&
-        h == getOptimalTileHeight())
-      {
-        // it looks like we'll be reading lots of tiles
-        setupService(0, 0, no);
-      }
-      else {
-        // it looks like we'll only read one tile
-        setupService(y, h, no);
+    int ifdIndex = getIFDIndex(getSeries(), no);
+    JPEGRestartIndex index = null;
+    if (getSizeX() > MAX_SIZE || getSizeY() > MAX_SIZE) {
+      index = getRestartIndex(ifdIndex);
+      if (index == null) {
+        return readScanlines(no, buf, x, y, w, h);
       }
-      initializedSeries = getSeries();
-      initializedPlane = no;
-    }
-    else if (decoder.getScanline(y) == null) {
-      setupService(y, h, no);
     }
 
-    int c = getRGBChannelCount();
-    int bytes = FormatTools.getBytesPerPixel(getPixelType());
-    int row = w * c * bytes;
-
-    for (int yy=y; yy<y + h; yy++) {
-      byte[] scanline = decoder.getScanline(yy);
-      if (scanline != null) {
-        int copy = (int) Math.min(row, buf.length - (yy - y) * row - 1);
-        if (copy < 0) break;
-        System.arraycopy(scanline, x * c * bytes, buf, (yy - y) * row, copy);
+    // each call uses its own stream, so that planes can be read concurrently
+    RandomAccessInputStream s = new RandomAccessInputStream(currentId);
+    try {
+      if (index != null) {
+        return index.openRegion(s, buf, x, y, w, h);
       }
+      TiffParser parser = new TiffParser(s);
+      parser.setUse64BitOffsets(true);
+      return parser.getSamples(ifds.get(ifdIndex), buf, x, y, w, h);
     }
-
-    return buf;
-  }
-
-  /* @see loci.formats.IFormatReader#openThumbBytes(int) */
-  public byte[] openThumbBytes(int no) throws FormatException, IOException {
-    FormatTools.assertId(currentId, true, 1);
-
-    int currentSeries = getSeries();
-    if (currentSeries >= pyramidHeight) {
-      return super.openThumbBytes(no);
-    }
-
-    int thumbX = getThumbSizeX();
-    int thumbY = getThumbSizeY();
-    int rgbCount = getRGBChannelCount();
-
-    setSeries(pyramidHeight - 1);
-
-    byte[] thumb = null;
-
-    if (thumbX == getThumbSizeX() && thumbY == getThumbSizeY() &&
-      rgbCount == getRGBChannelCount())
-    {
-      thumb = FormatTools.openThumbBytes(this, no);
-      setSeries(currentSeries);
-    }
-    else {
-      // find the smallest series with the same aspect ratio
-      for (int s=getSeriesCount()-1; s>=0; s--) {
-        setSeries(s);
-        if (thumbX == getThumbSizeX() && thumbY == getThumbSizeY() &&
-          s != currentSeries && rgbCount == getRGBChannelCount())
-        {
-          thumb = FormatTools.openThumbBytes(this, no);
-          break;
-        }
-      }
-      setSeries(currentSeries);
-      if (thumb == null) {
-        thumb = FormatTools.openThumbBytes(this, no);
-      }
+    finally {
+      s.close();
     }
-    return thumb;
   }
 
   /* @see loci.formats.IFormatReader#close(boolean) */
@@ -189,6 +143,8 @@ public class NDPIReader extends BaseTiffReader {
       initializedPlane = -1;
       sizeZ = 1;
       pyramidHeight = 1;
+      resolutionSeries = null;
+      restartIndexes.clear();
     }
   }
 
@@ -200,6 +156,12 @@ public class NDPIReader extends BaseTiffReader {
     return (int) Math.min(maxHeight, getSizeY());
   }
 
+  /* @see loci.formats.IFormatReader#isThreadSafe() */
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
+
   // -- Internal FormatReader API methods --
 
   /* @see loci.formats.FormatReader#initFile(String) */
@@ -210,6 +172,14 @@ public class NDPIReader extends BaseTiffReader {
     super.initFile(id);
   }
 
+  /* @see loci.formats.FormatReader#getResolutionSeries(int, int) */
+  protected int getResolutionSeries(int fullResolution, int resolution) {
+    if (fullResolution == 0 && resolutionSeries != null) {
+      return resolutionSeries[resolution];
+    }
+    return super.getResolutionSeries(fullResolution, resolution);
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see loci.formats.BaseTiffReader#initStandardMetadata() */
@@ -299,6 +269,11 @@ public class NDPIReader extends BaseTiffReader {
     }
 
     setSeries(0);
+
+    // the pyramid levels may be followed by a macro image with a different
+    // aspect ratio
+    resolutionSeries = findResolutionSeries(0, 1, pyramidHeight - 1);
+    core[0].resolutionCount = resolutionSeries.length;
   }
 
   /* @see loci.formats.BaseTiffReader#initMetadataStore() */
@@ -341,6 +316,78 @@ public class NDPIReader extends BaseTiffReader {
 
   // -- Helper methods --
 
+  /**
+   * Returns the restart marker index of the JPEG stream in the given IFD,
+   * indexing the stream the first time that it is needed.  Returns null if
+   * the stream cannot be decoded by region.
+   */
+  private JPEGRestartIndex getRestartIndex(int ifdIndex) throws IOException {
+    synchronized (restartIndexes) {
+      if (restartIndexes.containsKey(ifdIndex)) {
+        return restartIndexes.get(ifdIndex);
+      }
+      JPEGRestartIndex index = null;
+      RandomAccessInputStream s = new RandomAccessInputStream(currentId);
+      try {
+        // NDPI byte counts are only 32 bits wide, so they are wrong for
+        // streams larger than 4 GB; the index stops at the EOI marker instead
+        IFD ifd = ifds.get(ifdIndex);
+        s.seek(ifd.getStripOffsets()[0]);
+        index = new JPEGRestartIndex(s, getSizeX(), getSizeY());
+      }
+      catch (FormatException e) {
+        LOGGER.debug("Could not index restart markers; decoding scanlines", e);
+      }
+      finally {
+        s.close();
+      }
+      restartIndexes.put(ifdIndex, index);
+      return index;
+    }
+  }
+
+  /**
+   * Reads the requested region from the scanlines decoded by the
+   * JPEG decoding service.  The service holds the decoding state for
+   * a single plane, so calls are serialized.
+   */
+  private synchronized byte[] readScanlines(int no, byte[] buf, int x, int y,
+    int w, int h) throws FormatException, IOException
+  {
+    if (initializedSeries != getSeries() || initializedPlane != no) {
+      if (x == 0 && y == 0 && w == getOptimalTileWidth() &&
+        h == getOptimalTileHeight())
+      {
+        // it looks like we'll be reading lots of tiles
+        setupService(0, 0, no);
+      }
+      else {
+        // it looks like we'll only read one tile
+        setupService(y, h, no);
+      }
+      initializedSeries = getSeries();
+      initializedPlane = no;
+    }
+    else if (decoder.getScanline(y) == null) {
+      setupService(y, h, no);
+    }
+
+    int c = getRGBChannelCount();
+    int bytes = FormatTools.getBytesPerPixel(getPixelType());
+    int row = w * c * bytes;
+
+    for (int yy=y; yy<y + h; yy++) {
+      byte[] scanline = decoder.getScanline(yy);
+      if (scanline != null) {
+        int copy = Math.min(row, buf.length - (yy - y) * row - 1);
+        if (copy < 0) break;
+        System.arraycopy(scanline, x * c * bytes, buf, (yy - y) * row, copy);
+      }
+    }
+
+    return buf;
+  }
+
   private void setupService(int y, int h, int z)
     throws FormatException, IOException
   {
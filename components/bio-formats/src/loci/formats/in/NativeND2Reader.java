@@ -25,8 +25,16 @@
 
 package loci.formats.in;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import loci.common.ByteArrayHandle;
@@ -71,6 +79,22 @@ public class NativeND2Reader extends FormatReader {
   public static final long ND2_MAGIC_BYTES_1 = 0xdacebe0aL;
   public static final long ND2_MAGIC_BYTES_2 = 0x6a502020L;
 
+  /** Suffix appended to the file name to form the name of the index file. */
+  public static final String INDEX_SUFFIX = ".idx";
+
+  /** Little-endian value of the signature that starts each block. */
+  private static final int CHUNK_MAGIC = 0x0abeceda;
+
+  /** Signature that precedes the chunk map offset at the end of the file. */
+  private static final String CHUNK_MAP_SIGNATURE =
+    "ND2 CHUNK MAP SIGNATURE 0000001!";
+
+  /** Signature that identifies an index file. */
+  private static final String INDEX_SIGNATURE = "ND2 BLOCK INDEX";
+
+  /** Version of the index file layout. */
+  private static final int INDEX_VERSION = 1;
+
   // -- Fields --
 
   /** Array of image offsets. */
@@ -104,6 +128,9 @@ public class NativeND2Reader extends FormatReader {
 
   private ND2Handler backupHandler;
 
+  /** Whether or not block offsets are read from and saved to index files. */
+  private boolean useIndexFile = false;
+
   // -- Constructor --
 
   /** Constructs a new ND2 reader. */
@@ -113,6 +140,25 @@ public class NativeND2Reader extends FormatReader {
     domains = new String[] {FormatTools.LM_DOMAIN};
   }
 
+  // -- NativeND2Reader API methods --
+
+  /**
+   * Sets whether or not block offsets are saved to an index file.
+   * When enabled, the offsets found when searching a file that has no
+   * chunk map are written next to the file (with the suffix
+   * {@link #INDEX_SUFFIX}) and reused when the same, unmodified file is
+   * opened again.
+   */
+  public void setUseIndexFile(boolean use) {
+    FormatTools.assertId(currentId, false, 1);
+    useIndexFile = use;
+  }
+
+  /** Gets whether or not block offsets are saved to an index file. */
+  public boolean isUsingIndexFile() {
+    return useIndexFile;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -342,30 +388,58 @@ public class NativeND2Reader extends FormatReader {
       ByteArrayHandle xml = new ByteArrayHandle();
       StringBuffer name = new StringBuffer();
 
-      // search for blocks
+      // use the chunk map or a previously saved index to find each block,
+      // falling back to a search of the whole file
+
+      long[] blockOffsets = readChunkMap();
+      if (blockOffsets == null && useIndexFile) {
+        blockOffsets = readIndexFile(id);
+      }
+      ArrayList<Long> foundOffsets = null;
+      if (blockOffsets == null) {
+        foundOffsets = new ArrayList<Long>();
+        in.seek(0);
+      }
+      int nextBlock = 0;
+
       byte[] sigBytes = {-38, -50, -66, 10}; // 0xDACEBE0A
-      while (in.getFilePointer() < in.length() - 1 && in.getFilePointer() >= 0)
+      while (blockOffsets != null ? nextBlock < blockOffsets.length :
+        in.getFilePointer() < in.length() - 1 && in.getFilePointer() >= 0)
       {
-        byte[] buf = new byte[1024];
-        int foundIndex = -1;
-        in.read(buf, 0, sigBytes.length);
-        while (foundIndex == -1 && in.getFilePointer() < in.length()) {
-          int n = in.read(buf, sigBytes.length, buf.length - sigBytes.length);
-          for (int i=0; i<buf.length-sigBytes.length; i++) {
-            for (int j=0; j<sigBytes.length; j++) {
-              if (buf[i + j] != sigBytes[j]) break;
-              if (j == sigBytes.length - 1) foundIndex = i;
+        if (blockOffsets != null) {
+          long offset = blockOffsets[nextBlock++];
+          if (offset < 0 || offset > in.length() - 24) continue;
+          in.seek(offset);
+          if (in.readInt() != CHUNK_MAGIC) {
+            LOGGER.debug("No block found at offset {}", offset);
+            continue;
+          }
+        }
+        else {
+          // search for the next block
+          byte[] buf = new byte[1024];
+          int foundIndex = -1;
+          in.read(buf, 0, sigBytes.length);
+          while (foundIndex == -1 && in.getFilePointer() < in.length()) {
+            int n = in.read(buf, sigBytes.length, buf.length - sigBytes.length);
+            for (int i=0; i<buf.length-sigBytes.length; i++) {
+              for (int j=0; j<sigBytes.length; j++) {
+                if (buf[i + j] != sigBytes[j]) break;
+                if (j == sigBytes.length - 1) foundIndex = i;
+              }
+              if (foundIndex != -1) break;
+            }
+            if (foundIndex == -1) {
+              System.arraycopy(buf, buf.length - sigBytes.length - 1,
+                buf, 0, sigBytes.length);
             }
-            if (foundIndex != -1) break;
+            else in.seek(in.getFilePointer() - n + foundIndex);
           }
-          if (foundIndex == -1) {
-            System.arraycopy(buf, buf.length - sigBytes.length - 1,
-              buf, 0, sigBytes.length);
+          if (in.getFilePointer() >= in.length() || foundIndex == -1) {
+            break;
           }
-          else in.seek(in.getFilePointer() - n + foundIndex);
-        }
-        if (in.getFilePointer() >= in.length() || foundIndex == -1) {
-          break;
+
+          foundOffsets.add(new Long(in.getFilePointer() - sigBytes.length));
         }
 
         if (in.getFilePointer() > in.length() - 24) break;
@@ -623,6 +697,10 @@ public class NativeND2Reader extends FormatReader {
         }
       }
 
+      if (foundOffsets != null && useIndexFile) {
+        writeIndexFile(id, foundOffsets);
+      }
+
       // parse XML blocks
 
       String xmlString =
@@ -1270,6 +1348,141 @@ public class NativeND2Reader extends FormatReader {
 
   // -- Helper methods --
 
+  /**
+   * Reads the offset of each block from the chunk map at the end of the file.
+   * @return the block offsets in ascending order, or null if the file does
+   *   not have a valid chunk map
+   */
+  private long[] readChunkMap() throws IOException {
+    int sigLength = CHUNK_MAP_SIGNATURE.length();
+    if (in.length() < sigLength + 8) return null;
+    in.seek(in.length() - sigLength - 8);
+    if (!in.readString(sigLength).equals(CHUNK_MAP_SIGNATURE)) return null;
+
+    long mapOffset = in.readLong();
+    if (mapOffset < 0 || mapOffset > in.length() - 16) return null;
+    in.seek(mapOffset);
+    if (in.readInt() != CHUNK_MAGIC) return null;
+    int nameLength = in.readInt();
+    long dataLength = in.readLong();
+    in.skipBytes(nameLength);
+    long end = Math.min(in.getFilePointer() + dataLength, in.length());
+
+    LOGGER.info("Reading chunk map");
+    ArrayList<Long> blocks = new ArrayList<Long>();
+    StringBuilder blockName = new StringBuilder();
+    while (in.getFilePointer() < end - 16) {
+      blockName.setLength(0);
+      char c = (char) in.readByte();
+      while (c != '!' && in.getFilePointer() < end) {
+        blockName.append(c);
+        c = (char) in.readByte();
+      }
+      blockName.append(c);
+      if (blockName.toString().equals(CHUNK_MAP_SIGNATURE)) break;
+      long offset = in.readLong();
+      in.skipBytes(8);
+      if (offset < 0 || offset >= in.length()) return null;
+      blocks.add(new Long(offset));
+    }
+    if (blocks.size() == 0) return null;
+
+    long[] offsets = new long[blocks.size()];
+    for (int i=0; i<offsets.length; i++) {
+      offsets[i] = blocks.get(i).longValue();
+    }
+    Arrays.sort(offsets);
+    return offsets;
+  }
+
+  /**
+   * Reads block offsets from the index file for the given ND2 file.
+   * @return the block offsets, or null if there is no index file or it
+   *   does not match the current state of the ND2 file
+   */
+  private long[] readIndexFile(String id) {
+    File file = new File(id);
+    File indexFile = new File(id + INDEX_SUFFIX);
+    if (!file.exists() || !indexFile.exists()) return null;
+
+    DataInputStream s = null;
+    try {
+      s = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+      if (!s.readUTF().equals(INDEX_SIGNATURE) ||
+        s.readInt() != INDEX_VERSION || s.readLong() != file.length() ||
+        s.readLong() != file.lastModified())
+      {
+        return null;
+      }
+      // each block is at least 16 bytes long, which bounds the block count
+      int count = s.readInt();
+      if (count < 0 || count > file.length() / 16) return null;
+      long[] offsets = new long[count];
+      for (int i=0; i<offsets.length; i++) {
+        offsets[i] = s.readLong();
+      }
+      LOGGER.info("Read block offsets from {}", indexFile);
+      return offsets;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read index file " + indexFile, e);
+      return null;
+    }
+    finally {
+      if (s != null) {
+        try {
+          s.close();
+        }
+        catch (IOException e) { }
+      }
+    }
+  }
+
+  /**
+   * Saves the given block offsets to the index file for the ND2 file.
+   * The offsets are written to a temporary file first, so that other
+   * processes never see a partially written index file.
+   */
+  private void writeIndexFile(String id, ArrayList<Long> offsets) {
+    File file = new File(id);
+    if (!file.exists()) return;
+    File indexFile = new File(id + INDEX_SUFFIX);
+
+    try {
+      File tmp = File.createTempFile(indexFile.getName(), ".tmp",
+        indexFile.getAbsoluteFile().getParentFile());
+      boolean success = false;
+      try {
+        DataOutputStream s = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+          s.writeUTF(INDEX_SIGNATURE);
+          s.writeInt(INDEX_VERSION);
+          s.writeLong(file.length());
+          s.writeLong(file.lastModified());
+          s.writeInt(offsets.size());
+          for (Long offset : offsets) {
+            s.writeLong(offset.longValue());
+          }
+        }
+        finally {
+          s.close();
+        }
+        // renaming onto an existing file fails on some platforms
+        indexFile.delete();
+        success = tmp.renameTo(indexFile);
+      }
+      finally {
+        if (!success) tmp.delete();
+      }
+      if (!success) LOGGER.debug("Could not rename " + tmp);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not save index file " + indexFile, e);
+    }
+  }
+
   private void populateMetadataStore(ND2Handler handler) throws FormatException
   {
     MetadataStore store = makeFilterMetadata();
@@ -62,6 +62,9 @@ public class SVSReader extends BaseTiffReader {
   private float[] pixelSize;
   private String[] comments;
 
+  /** Series containing each resolution level of the first series. */
+  private int[] resolutionSeries;
+
   // -- Constructor --
 
   /** Constructs a new SVS reader. */
@@ -126,29 +129,13 @@ public class SVSReader extends BaseTiffReader {
     return buf;
   }
 
-  /* @see loci.formats.IFormatReader#openThumbBytes(int) */
-  public byte[] openThumbBytes(int no) throws FormatException, IOException {
-    if (getSeriesCount() == 1 || getSeries() >= getSeriesCount() - 2) {
-      return super.openThumbBytes(no);
-    }
-
-    int smallestSeries = getSeriesCount() - 3;
-    if (smallestSeries >= 0) {
-      int thisSeries = getSeries();
-      setSeries(smallestSeries);
-      byte[] thumb = FormatTools.openThumbBytes(this, no);
-      setSeries(thisSeries);
-      return thumb;
-    }
-    return super.openThumbBytes(no);
-  }
-
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
     if (!fileOnly) {
       pixelSize = null;
       comments = null;
+      resolutionSeries = null;
     }
   }
 
@@ -176,6 +163,16 @@ public class SVSReader extends BaseTiffReader {
     return super.getOptimalTileHeight();
   }
 
+  // -- Internal FormatReader API methods --
+
+  /* @see loci.formats.FormatReader#getResolutionSeries(int, int) */
+  protected int getResolutionSeries(int fullResolution, int resolution) {
+    if (fullResolution == 0 && resolutionSeries != null) {
+      return resolutionSeries[resolution];
+    }
+    return super.getResolutionSeries(fullResolution, resolution);
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see loci.formats.BaseTiffReader#initStandardMetadata() */
@@ -241,6 +238,12 @@ public class SVSReader extends BaseTiffReader {
       core[s].dimensionOrder = "XYCZT";
       core[s].thumbnail = s != 0;
     }
+
+    // the full resolution image is followed by a small thumbnail image and
+    // then by the remaining pyramid levels; the label and macro images
+    // that may follow have a different aspect ratio
+    resolutionSeries = findResolutionSeries(0, 1, core.length - 1);
+    core[0].resolutionCount = resolutionSeries.length;
   }
 
   /* @see loci.formats.BaseTiffReader#initMetadataStore() */
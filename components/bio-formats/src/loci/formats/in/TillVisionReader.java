@@ -314,8 +314,10 @@ public class TillVisionReader extends FormatReader {
             }
           }
 
+          // the POI service is closed before the pixels are read,
+          // so the document must be copied
           if (in != null) in.close();
-          in = poi.getDocumentStream(name);
+          in = new RandomAccessInputStream(poi.getDocumentBytes(name));
           s.close();
           break;
         }
@@ -28,7 +28,9 @@ package loci.formats.in;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Stack;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -103,6 +105,7 @@ public class ZeissCZIReader extends FormatReader {
   private MetadataStore store;
 
   private ArrayList<SubBlock> planes;
+  private SubBlockIndex[][] subBlockIndex; // dimensioned [series][plane]
   private int rotations = 1;
   private int positions = 1;
   private int illuminations = 1;
@@ -247,65 +250,52 @@ public class ZeissCZIReader extends FormatReader {
 
     Region image = new Region(x, y, w, h);
 
-    int currentX = 0;
-    int currentY = 0;
-
     int pixel =
       getRGBChannelCount() * FormatTools.getBytesPerPixel(getPixelType());
     int outputRowLen = w * pixel;
     int outputRow = h, outputCol = 0;
 
-    for (SubBlock plane : planes) {
-      if (plane.seriesIndex == currentSeries && plane.planeIndex == no) {
-        byte[] rawData = plane.readPixelData();
-
-        if (prestitched != null && prestitched) {
-          int realX = plane.x;
-          int realY = plane.y;
-
-          Region tile =
-            new Region(currentX, getSizeY() - currentY - realY, realX, realY);
+    SubBlockIndex index = subBlockIndex[currentSeries][no];
 
-          if (tile.intersects(image)) {
-            Region intersection = tile.intersection(image);
-            int intersectionX = 0;
+    if (prestitched != null && prestitched) {
+      // only decode the SubBlocks that overlap the requested region,
+      // in the same order in which they are stored in the file
+      for (int block : index.getIntersecting(image)) {
+        SubBlock plane = index.blocks[block];
+        Region tile = index.bounds[block];
+        byte[] rawData = plane.readPixelData();
 
-            if (tile.x < image.x) {
-              intersectionX = image.x - tile.x;
-            }
+        int realX = plane.x;
+        Region intersection = tile.intersection(image);
+        int intersectionX = 0;
 
-            int rowLen = pixel * (int) Math.min(intersection.width, realX);
-            int outputOffset =
-              (outputRow - intersection.height) * outputRowLen + outputCol;
-            for (int trow=0; trow<intersection.height; trow++) {
-              int realRow = trow + intersection.y - tile.y;
-              int inputOffset = pixel * (realRow * realX + intersectionX);
-              System.arraycopy(
-                rawData, inputOffset, buf, outputOffset, rowLen);
-              outputOffset += outputRowLen;
-            }
-
-            outputCol += rowLen;
-            if (outputCol >= w * pixel) {
-              outputCol = 0;
-              outputRow -= intersection.height;
-            }
-          }
+        if (tile.x < image.x) {
+          intersectionX = image.x - tile.x;
+        }
 
-          currentX += realX;
-          if (currentX >= getSizeX()) {
-            currentX = 0;
-            currentY += realY;
-          }
+        int rowLen = pixel * Math.min(intersection.width, realX);
+        int outputOffset =
+          (outputRow - intersection.height) * outputRowLen + outputCol;
+        for (int trow=0; trow<intersection.height; trow++) {
+          int realRow = trow + intersection.y - tile.y;
+          int inputOffset = pixel * (realRow * realX + intersectionX);
+          System.arraycopy(rawData, inputOffset, buf, outputOffset, rowLen);
+          outputOffset += outputRowLen;
         }
-        else {
-          RandomAccessInputStream s = new RandomAccessInputStream(rawData);
-          readPlane(s, x, y, w, h, buf);
-          s.close();
-          break;
+
+        outputCol += rowLen;
+        if (outputCol >= w * pixel) {
+          outputCol = 0;
+          outputRow -= intersection.height;
         }
       }
     }
+    else if (index.blocks.length > 0) {
+      byte[] rawData = index.blocks[0].readPixelData();
+      RandomAccessInputStream s = new RandomAccessInputStream(rawData);
+      readPlane(s, x, y, w, h, buf);
+      s.close();
+    }
     return buf;
   }
 
@@ -314,6 +304,7 @@ public class ZeissCZIReader extends FormatReader {
     super.close(fileOnly);
     if (!fileOnly) {
       planes = null;
+      subBlockIndex = null;
       rotations = 1;
       positions = 1;
       illuminations = 1;
@@ -355,6 +346,12 @@ public class ZeissCZIReader extends FormatReader {
     }
   }
 
+  /* @see loci.formats.IFormatReader#isThreadSafe() */
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
+
   // -- Internal FormatReader API methods --
 
   /* @see loci.formats.FormatReader#initFile(String) */
@@ -431,6 +428,7 @@ public class ZeissCZIReader extends FormatReader {
     core[0].dimensionOrder = "XYCZT";
 
     assignPlaneIndices();
+    buildSubBlockIndex();
 
     // populate the OME metadata
 
@@ -503,36 +501,34 @@ public class ZeissCZIReader extends FormatReader {
           DateTools.getTime(acquiredDate, DateTools.ISO8601_FORMAT) / 1000d;
       }
       for (int plane=0; plane<getImageCount(); plane++) {
-        for (SubBlock p : planes) {
-          if (p.seriesIndex == i && p.planeIndex == plane) {
-            if (startTime == null) {
-              startTime = p.timestamp;
-            }
+        for (SubBlock p : subBlockIndex[i][plane].blocks) {
+          if (startTime == null) {
+            startTime = p.timestamp;
+          }
 
-            if (p.stageX != null) {
-              store.setPlanePositionX(p.stageX, i, plane);
-            }
-            else if (positionsX != null && i < positionsX.length) {
-              store.setPlanePositionX(positionsX[i], i, plane);
-            }
+          if (p.stageX != null) {
+            store.setPlanePositionX(p.stageX, i, plane);
+          }
+          else if (positionsX != null && i < positionsX.length) {
+            store.setPlanePositionX(positionsX[i], i, plane);
+          }
 
-            if (p.stageY != null) {
-              store.setPlanePositionY(p.stageY, i, plane);
-            }
-            else if (positionsY != null && i < positionsY.length) {
-              store.setPlanePositionY(positionsY[i], i, plane);
-            }
+          if (p.stageY != null) {
+            store.setPlanePositionY(p.stageY, i, plane);
+          }
+          else if (positionsY != null && i < positionsY.length) {
+            store.setPlanePositionY(positionsY[i], i, plane);
+          }
 
-            if (positionsZ != null && i < positionsZ.length) {
-              store.setPlanePositionZ(positionsZ[i], i, plane);
-            }
+          if (positionsZ != null && i < positionsZ.length) {
+            store.setPlanePositionZ(positionsZ[i], i, plane);
+          }
 
-            if (p.timestamp != null) {
-              store.setPlaneDeltaT(p.timestamp - startTime, i, plane);
-            }
-            if (p.exposureTime != null) {
-              store.setPlaneExposureTime(p.exposureTime, i, plane);
-            }
+          if (p.timestamp != null) {
+            store.setPlaneDeltaT(p.timestamp - startTime, i, plane);
+          }
+          if (p.exposureTime != null) {
+            store.setPlaneExposureTime(p.exposureTime, i, plane);
           }
         }
       }
@@ -724,6 +720,38 @@ public class ZeissCZIReader extends FormatReader {
     }
   }
 
+  /**
+   * Group the SubBlocks by series and plane index, so that openBytes does
+   * not need to scan the full list of SubBlocks.
+   */
+  private void buildSubBlockIndex() {
+    int seriesCount = getSeriesCount();
+    int imageCount = getImageCount();
+
+    ArrayList<ArrayList<SubBlock>> groups =
+      new ArrayList<ArrayList<SubBlock>>(seriesCount * imageCount);
+    for (int i=0; i<seriesCount * imageCount; i++) {
+      groups.add(new ArrayList<SubBlock>());
+    }
+    for (SubBlock plane : planes) {
+      if (plane.seriesIndex >= 0 && plane.seriesIndex < seriesCount &&
+        plane.planeIndex >= 0 && plane.planeIndex < imageCount)
+      {
+        int group = plane.seriesIndex * imageCount + plane.planeIndex;
+        groups.get(group).add(plane);
+      }
+    }
+
+    boolean stitched = prestitched != null && prestitched;
+    subBlockIndex = new SubBlockIndex[seriesCount][imageCount];
+    for (int s=0; s<seriesCount; s++) {
+      for (int p=0; p<imageCount; p++) {
+        subBlockIndex[s][p] = new SubBlockIndex(
+          groups.get(s * imageCount + p), stitched, getSizeX(), getSizeY());
+      }
+    }
+  }
+
   private void translateMetadata(String xml) throws FormatException, IOException
   {
     Element root = null;
@@ -1801,9 +1829,9 @@ public class ZeissCZIReader extends FormatReader {
     // -- SubBlock API methods --
 
     public byte[] readPixelData() throws FormatException, IOException {
-      in.seek(dataOffset);
+      // use a positional read, so that planes can be read concurrently
       byte[] data = new byte[(int) dataSize];
-      in.read(data);
+      in.read(dataOffset, data, 0, data.length);
 
       CodecOptions options = new CodecOptions();
       options.interleaved = isInterleaved();
@@ -1972,4 +2000,127 @@ public class ZeissCZIReader extends FormatReader {
     }
   }
 
+
+  /**
+   * SubBlocks that make up a single plane, with a grid index over their
+   * bounds so that a tile request only touches the intersecting SubBlocks.
+   */
+  class SubBlockIndex {
+    /** SubBlocks belonging to this plane, in file order. */
+    public SubBlock[] blocks;
+    /** Bounds of each SubBlock within the plane; null unless prestitched. */
+    public Region[] bounds;
+
+    private int cellWidth, cellHeight;
+    private int gridColumns, gridRows;
+    /** Indices into blocks of the SubBlocks overlapping each grid cell. */
+    private int[][] cells;
+
+    public SubBlockIndex(List<SubBlock> list, boolean stitched,
+      int sizeX, int sizeY)
+    {
+      blocks = list.toArray(new SubBlock[list.size()]);
+      if (!stitched || blocks.length == 0) return;
+
+      // SubBlocks are laid out left to right, then bottom to top
+      bounds = new Region[blocks.length];
+      int currentX = 0;
+      int currentY = 0;
+      for (int i=0; i<blocks.length; i++) {
+        int realX = blocks[i].x;
+        int realY = blocks[i].y;
+        bounds[i] =
+          new Region(currentX, sizeY - currentY - realY, realX, realY);
+        currentX += realX;
+        if (currentX >= sizeX) {
+          currentX = 0;
+          currentY += realY;
+        }
+      }
+
+      cellWidth = Math.max(blocks[0].x, 1);
+      cellHeight = Math.max(blocks[0].y, 1);
+      gridColumns = Math.max((sizeX + cellWidth - 1) / cellWidth, 1);
+      gridRows = Math.max((sizeY + cellHeight - 1) / cellHeight, 1);
+
+      int[] counts = new int[gridColumns * gridRows];
+      for (int pass=0; pass<2; pass++) {
+        if (pass == 1) {
+          cells = new int[counts.length][];
+          for (int c=0; c<counts.length; c++) {
+            cells[c] = new int[counts[c]];
+            counts[c] = 0;
+          }
+        }
+        for (int i=0; i<bounds.length; i++) {
+          Region r = bounds[i];
+          if (r.width <= 0 || r.height <= 0) continue;
+          int firstCol = Math.max(floorDiv(r.x, cellWidth), 0);
+          int lastCol = Math.min(
+            floorDiv(r.x + r.width - 1, cellWidth), gridColumns - 1);
+          int firstRow = Math.max(floorDiv(r.y, cellHeight), 0);
+          int lastRow = Math.min(
+            floorDiv(r.y + r.height - 1, cellHeight), gridRows - 1);
+          for (int row=firstRow; row<=lastRow; row++) {
+            for (int col=firstCol; col<=lastCol; col++) {
+              int cell = row * gridColumns + col;
+              if (pass == 1) cells[cell][counts[cell]] = i;
+              counts[cell]++;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the indices of the SubBlocks that intersect the given region,
+     * in file order.
+     */
+    public int[] getIntersecting(Region image) {
+      if (bounds == null || image.width <= 0 || image.height <= 0) {
+        return new int[0];
+      }
+      int firstCol = Math.max(floorDiv(image.x, cellWidth), 0);
+      int lastCol = Math.min(
+        floorDiv(image.x + image.width - 1, cellWidth), gridColumns - 1);
+      int firstRow = Math.max(floorDiv(image.y, cellHeight), 0);
+      int lastRow = Math.min(
+        floorDiv(image.y + image.height - 1, cellHeight), gridRows - 1);
+
+      int total = 0;
+      for (int row=firstRow; row<=lastRow; row++) {
+        for (int col=firstCol; col<=lastCol; col++) {
+          total += cells[row * gridColumns + col].length;
+        }
+      }
+      int[] candidates = new int[total];
+      int n = 0;
+      for (int row=firstRow; row<=lastRow; row++) {
+        for (int col=firstCol; col<=lastCol; col++) {
+          for (int i : cells[row * gridColumns + col]) {
+            if (bounds[i].intersects(image)) candidates[n++] = i;
+          }
+        }
+      }
+
+      // a SubBlock spanning several cells is listed once per cell
+      Arrays.sort(candidates, 0, n);
+      int unique = 0;
+      for (int i=0; i<n; i++) {
+        if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+          candidates[unique++] = candidates[i];
+        }
+      }
+      int[] result = new int[unique];
+      System.arraycopy(candidates, 0, result, 0, unique);
+      return result;
+    }
+
+    private int floorDiv(int value, int divisor) {
+      int q = value / divisor;
+      if (value % divisor != 0 && value < 0) q--;
+      return q;
+    }
+  }
+
 }
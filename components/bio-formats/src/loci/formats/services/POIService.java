@@ -69,6 +69,8 @@ public interface POIService extends Service {
   /**
    * Retrieve a RandomAccessInputStream corresponding to the given file name.
    * Either of the 'initialize' methods must be called before this method.
+   * The stream reads from the underlying file as needed, and so cannot be
+   * used after {@link #close()} has been called.
    *
    * @param file The name of the embedded file for which to
    *   retrieve a RandomAccessInputStream.
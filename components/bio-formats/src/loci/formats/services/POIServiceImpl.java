@@ -36,6 +36,7 @@ import loci.common.RandomAccessInputStream;
 import loci.common.services.AbstractService;
 import loci.poi.poifs.filesystem.DirectoryEntry;
 import loci.poi.poifs.filesystem.DocumentEntry;
+import loci.poi.poifs.filesystem.DocumentHandle;
 import loci.poi.poifs.filesystem.DocumentInputStream;
 import loci.poi.poifs.filesystem.Entry;
 import loci.poi.poifs.filesystem.POIFSFileSystem;
@@ -103,7 +104,9 @@ public class POIServiceImpl extends AbstractService implements POIService {
   public RandomAccessInputStream getDocumentStream(String file)
     throws IOException
   {
-    return new RandomAccessInputStream(getDocumentBytes(file));
+    // read directly from the document's blocks instead of copying it
+    return new RandomAccessInputStream(
+      new DocumentHandle(files.get(file), stream));
   }
 
   /* @see POIService#getDocumentBytes(String) */
@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.in.NativeND2Reader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests how {@link NativeND2Reader} finds the blocks in an ND2 file, using
+ * synthetic files that contain only image data blocks.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/NativeND2ReaderIndexTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/NativeND2ReaderIndexTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class NativeND2ReaderIndexTest {
+
+  private static final int CHUNK_MAGIC = 0x0abeceda;
+
+  private static final String CHUNK_MAP_SIGNATURE =
+    "ND2 CHUNK MAP SIGNATURE 0000001!";
+
+  private static final String INDEX_SIGNATURE = "ND2 BLOCK INDEX";
+
+  private static final int IMAGE_COUNT = 4;
+
+  private static final int PLANE_SIZE = 32 * 32 * 2;
+
+  private File dir;
+
+  private File file;
+
+  private NativeND2Reader reader;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    dir = File.createTempFile("nd2index", "");
+    dir.delete();
+    dir.mkdir();
+    file = new File(dir, "test.nd2");
+    reader = new NativeND2Reader();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    File[] files = dir.listFiles();
+    for (File f : files) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testChunkMap() throws FormatException, IOException {
+    // the block after the last mapped image is only found by a search
+    writeFile(IMAGE_COUNT + 1, IMAGE_COUNT);
+
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT, reader.getImageCount());
+    byte[] plane = reader.openBytes(IMAGE_COUNT - 1);
+    reader.close();
+
+    writeFile(IMAGE_COUNT + 1, -1);
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT + 1, reader.getImageCount());
+    assertTrue(Arrays.equals(plane, reader.openBytes(IMAGE_COUNT - 1)));
+  }
+
+  @Test
+  public void testIndexFile() throws FormatException, IOException {
+    long[] offsets = writeFile(IMAGE_COUNT, -1);
+    File indexFile = new File(file.getAbsolutePath() + ".idx");
+
+    reader.setUseIndexFile(true);
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT, reader.getImageCount());
+    reader.close();
+
+    assertTrue(indexFile.exists());
+    assertEquals(2, dir.listFiles().length);
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      assertEquals(INDEX_SIGNATURE, in.readUTF());
+      assertEquals(1, in.readInt());
+      assertEquals(file.length(), in.readLong());
+      assertEquals(file.lastModified(), in.readLong());
+      assertEquals(offsets.length, in.readInt());
+      for (int i=0; i<offsets.length; i++) {
+        assertEquals(offsets[i], in.readLong());
+      }
+      assertEquals(-1, in.read());
+    }
+    finally {
+      in.close();
+    }
+
+    // a saved index replaces the search, so dropping a block from the
+    // index hides the corresponding image
+    writeIndexFile(indexFile, offsets, offsets.length - 1);
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT - 1, reader.getImageCount());
+    reader.close();
+
+    // the index is ignored once the ND2 file has changed
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT, reader.getImageCount());
+    reader.close();
+
+    reader.setUseIndexFile(false);
+    writeIndexFile(indexFile, offsets, offsets.length - 1);
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT, reader.getImageCount());
+  }
+
+  @Test
+  public void testCorruptIndexFile() throws FormatException, IOException {
+    long[] offsets = writeFile(IMAGE_COUNT, -1);
+    File indexFile = new File(file.getAbsolutePath() + ".idx");
+    writeIndexFile(indexFile, offsets, Integer.MAX_VALUE);
+
+    reader.setUseIndexFile(true);
+    reader.setId(file.getAbsolutePath());
+    assertEquals(IMAGE_COUNT, reader.getImageCount());
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Writes an ND2 file containing the given number of image blocks.
+   * If mapped is not negative, a chunk map listing the first mapped blocks
+   * is appended to the file.
+   * @return the offset of each block in the file
+   */
+  private long[] writeFile(int images, int mapped) throws IOException {
+    file.delete();
+    Random random = new Random(17);
+    long[] offsets = new long[images];
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(file.getAbsolutePath());
+    try {
+      out.order(true);
+      for (int i=0; i<images; i++) {
+        offsets[i] = out.getFilePointer();
+        byte[] pixels = new byte[PLANE_SIZE];
+        for (int p=0; p<pixels.length; p++) {
+          // keep the block signature out of the pixel data
+          pixels[p] = (byte) random.nextInt(0xda);
+        }
+        byte[] data = new byte[8 + pixels.length];
+        System.arraycopy(pixels, 0, data, 8, pixels.length);
+        writeBlock(out, "ImageDataSeq|" + i + "!", data);
+      }
+
+      if (mapped >= 0) {
+        ByteArrayHandle map = new ByteArrayHandle();
+        map.setOrder(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<mapped; i++) {
+          map.writeBytes("ImageDataSeq|" + i + "!");
+          map.writeLong(offsets[i]);
+          map.writeLong(8 + PLANE_SIZE);
+        }
+        map.writeBytes(CHUNK_MAP_SIGNATURE);
+        map.writeLong(0);
+        map.writeLong(0);
+        byte[] data = new byte[(int) map.length()];
+        System.arraycopy(map.getBytes(), 0, data, 0, data.length);
+
+        long mapOffset = out.getFilePointer();
+        writeBlock(out, "ND2 FILEMAP SIGNATURE NAME 0001!", data);
+        out.writeBytes(CHUNK_MAP_SIGNATURE);
+        out.writeLong(mapOffset);
+      }
+    }
+    finally {
+      out.close();
+    }
+    return offsets;
+  }
+
+  private void writeBlock(RandomAccessOutputStream out, String name,
+    byte[] data) throws IOException
+  {
+    out.writeInt(CHUNK_MAGIC);
+    out.writeInt(name.length());
+    out.writeLong(data.length);
+    out.writeBytes(name);
+    out.write(data);
+  }
+
+  /**
+   * Writes an index file for the current ND2 file, recording the given
+   * block count and the first count block offsets.
+   */
+  private void writeIndexFile(File indexFile, long[] offsets, int count)
+    throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(indexFile)));
+    try {
+      out.writeUTF(INDEX_SIGNATURE);
+      out.writeInt(1);
+      out.writeLong(file.length());
+      out.writeLong(file.lastModified());
+      out.writeInt(count);
+      for (int i=0; i<Math.min(count, offsets.length); i++) {
+        out.writeLong(offsets[i]);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}
@@ -27,12 +27,15 @@ package loci.formats.utests;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Vector;
 
+import loci.common.DataTools;
 import loci.common.RandomAccessInputStream;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceFactory;
@@ -85,6 +88,31 @@ public class POIServiceTest {
     assertEquals(WORKBOOK_LENGTH, stream.length());
   }
 
+  @Test
+  public void testWorkbookDocumentStreamContents() throws IOException {
+    byte[] bytes = service.getDocumentBytes(WORKBOOK_DOCUMENT);
+    RandomAccessInputStream stream =
+      service.getDocumentStream(WORKBOOK_DOCUMENT);
+    byte[] streamBytes = new byte[WORKBOOK_LENGTH];
+    stream.readFully(streamBytes);
+    assertTrue(Arrays.equals(bytes, streamBytes));
+
+    // reads that start and end within different blocks
+    int[] offsets = {0, 511, 512, 4000, 5000, WORKBOOK_LENGTH - 7};
+    for (int offset : offsets) {
+      byte[] b = new byte[Math.min(1500, WORKBOOK_LENGTH - offset)];
+      stream.seek(offset);
+      stream.readFully(b);
+      for (int i=0; i<b.length; i++) {
+        assertEquals(bytes[offset + i], b[i]);
+      }
+    }
+    stream.order(true);
+    stream.seek(4094);
+    assertEquals(DataTools.bytesToInt(bytes, 4094, 4, true), stream.readInt());
+    stream.close();
+  }
+
   @Test
   public void testWorkbookDocumentBytes() throws IOException {
     byte[] bytes = service.getDocumentBytes(WORKBOOK_DOCUMENT); 
@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.in.ZeissCZIReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link ZeissCZIReader} finds the right SubBlocks for each
+ * series, plane and region, using a synthetic prestitched file in which
+ * each plane is split into a different number of tiles.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/ZeissCZISubBlockIndexTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/ZeissCZISubBlockIndexTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ZeissCZISubBlockIndexTest {
+
+  private static final int ALIGNMENT = 32;
+
+  private static final int SIZE = 4;
+
+  private static final int SERIES = 2;
+
+  private static final String XML =
+    "<ImageDocument><Metadata><Information><Instrument><Objectives>" +
+    "<Objective Id=\"Objective:0\"/>" +
+    "</Objectives></Instrument></Information></Metadata></ImageDocument>";
+
+  /**
+   * Tile width and height for each channel; tiles are stored left to right,
+   * then bottom to top.
+   */
+  private static final int[][] TILES = {{4, 4}, {2, 4}, {2, 2}};
+
+  private File file;
+
+  private ZeissCZIReader reader;
+
+  /** Expected pixels, dimensioned [series][channel][y * SIZE + x]. */
+  private byte[][][] pixels;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    file = File.createTempFile("subblocks", ".czi");
+    reader = new ZeissCZIReader();
+
+    Random random = new Random(29);
+    pixels = new byte[SERIES][TILES.length][SIZE * SIZE];
+    for (int s=0; s<SERIES; s++) {
+      for (int c=0; c<TILES.length; c++) {
+        random.nextBytes(pixels[s][c]);
+      }
+    }
+    writeFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  @Test
+  public void testDimensions() throws FormatException, IOException {
+    reader.setId(file.getAbsolutePath());
+    assertEquals(SERIES, reader.getSeriesCount());
+    assertEquals(SIZE, reader.getSizeX());
+    assertEquals(SIZE, reader.getSizeY());
+    assertEquals(TILES.length, reader.getImageCount());
+  }
+
+  @Test
+  public void testRegions() throws FormatException, IOException {
+    reader.setId(file.getAbsolutePath());
+    for (int s=0; s<SERIES; s++) {
+      reader.setSeries(s);
+      for (int c=0; c<TILES.length; c++) {
+        for (int y=0; y<SIZE; y++) {
+          for (int x=0; x<SIZE; x++) {
+            for (int h=1; y+h<=SIZE; h++) {
+              for (int w=1; x+w<=SIZE; w++) {
+                byte[] region = reader.openBytes(c, x, y, w, h);
+                String msg = "series " + s + ", plane " + c + ", region " +
+                  x + "," + y + " " + w + "x" + h;
+                for (int row=0; row<h; row++) {
+                  for (int col=0; col<w; col++) {
+                    int index = (y + row) * SIZE + x + col;
+                    assertEquals(msg, pixels[s][c][index], region[row*w + col]);
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Writes a CZI file with a metadata segment and one SubBlock per tile. */
+  private void writeFile() throws IOException {
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(file.getAbsolutePath());
+    try {
+      out.order(true);
+
+      writeSegmentHeader(out, "ZISRAWFILE", 512);
+      out.write(new byte[512]);
+
+      byte[] xml = XML.getBytes("UTF-8");
+      writeSegmentHeader(out, "ZISRAWMETADATA", 256 + xml.length);
+      out.writeInt(xml.length);
+      out.writeInt(0);
+      out.write(new byte[248]);
+      out.write(xml);
+
+      for (int s=0; s<SERIES; s++) {
+        for (int c=0; c<TILES.length; c++) {
+          int tileWidth = TILES[c][0];
+          int tileHeight = TILES[c][1];
+          for (int ty=SIZE-tileHeight; ty>=0; ty-=tileHeight) {
+            for (int tx=0; tx<SIZE; tx+=tileWidth) {
+              byte[] tile = new byte[tileWidth * tileHeight];
+              for (int row=0; row<tileHeight; row++) {
+                System.arraycopy(pixels[s][c], (ty + row) * SIZE + tx,
+                  tile, row * tileWidth, tileWidth);
+              }
+              writeSubBlock(out, s, c, tileWidth, tileHeight, tile);
+            }
+          }
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private void writeSubBlock(RandomAccessOutputStream out, int series,
+    int channel, int width, int height, byte[] tile) throws IOException
+  {
+    writeSegmentHeader(out, "ZISRAWSUBBLOCK", 256 + tile.length);
+    long start = out.getFilePointer();
+    out.writeInt(0); // metadata size
+    out.writeInt(0); // attachment size
+    out.writeLong(tile.length);
+
+    // directory entry
+    out.writeBytes("DV");
+    out.writeInt(0); // GRAY8
+    out.writeLong(0);
+    out.writeInt(0);
+    out.writeInt(0); // uncompressed
+    out.writeByte(0);
+    out.write(new byte[5]);
+    out.writeInt(4);
+    writeDimension(out, "X", 0, width);
+    writeDimension(out, "Y", 0, height);
+    writeDimension(out, "C", channel, 1);
+    writeDimension(out, "S", series, 1);
+
+    out.write(new byte[(int) (256 - (out.getFilePointer() - start))]);
+    out.write(tile);
+  }
+
+  private void writeDimension(RandomAccessOutputStream out, String dimension,
+    int start, int size) throws IOException
+  {
+    out.writeBytes(dimension + "   ");
+    out.writeInt(start);
+    out.writeInt(size);
+    out.writeFloat(0f);
+    out.writeInt(size);
+  }
+
+  /**
+   * Pads the file to the next segment boundary, then writes the segment ID
+   * and allocated size.
+   */
+  private void writeSegmentHeader(RandomAccessOutputStream out, String id,
+    long size) throws IOException
+  {
+    long pad = (ALIGNMENT - out.getFilePointer() % ALIGNMENT) % ALIGNMENT;
+    out.write(new byte[(int) pad]);
+    byte[] name = new byte[16];
+    System.arraycopy(id.getBytes("UTF-8"), 0, name, 0, id.length());
+    out.write(name);
+    out.writeLong(size);
+    out.writeLong(size);
+  }
+
+}
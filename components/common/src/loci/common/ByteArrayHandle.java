@@ -175,6 +175,26 @@ public class ByteArrayHandle extends AbstractNIOHandle {
     return len;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  public int read(long pos, byte[] b, int off, int len) {
+    return read(pos, ByteBuffer.wrap(b), off, len);
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer, int, int) */
+  public int read(long pos, ByteBuffer buf, int off, int len) {
+    // read through duplicates, so that the position of neither buffer moves
+    ByteBuffer src = buffer.duplicate();
+    if (pos >= src.limit()) return 0;
+    len = (int) Math.min(len, src.limit() - pos);
+    src.limit((int) pos + len);
+    src.position((int) pos);
+    ByteBuffer dst = buf.duplicate();
+    dst.limit(off + len);
+    dst.position(off);
+    dst.put(src);
+    return len;
+  }
+
   /* @see IRandomAccess.seek(long) */
   public void seek(long pos) throws IOException {
     if (pos > length()) setLength(pos);
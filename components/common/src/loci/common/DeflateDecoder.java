@@ -0,0 +1,636 @@
+/*
+ * #%L
+ * LOCI Common package: utilities for I/O, reflection and miscellaneous tasks.
+ * %%
+ * Copyright (C) 2008 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pure Java decoder for gzip streams that can stop at, and later resume
+ * from, any deflate block boundary.
+ *
+ * {@link java.util.zip.Inflater} cannot be started in the middle of a
+ * compressed stream, which is what random access into gzip data requires.
+ * This decoder keeps the last 32 KB of output and tracks its position in
+ * bits, so that a {@link GZipIndex} can record access points as it goes.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/DeflateDecoder.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/DeflateDecoder.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see GZipIndex
+ */
+class DeflateDecoder {
+
+  // -- Constants --
+
+  /** Size of the deflate history window. */
+  static final int WINDOW_SIZE = 32768;
+
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+  /** Number of bits resolved by a single Huffman table lookup. */
+  private static final int FAST_BITS = 10;
+
+  /** Maximum number of zero bytes supplied past the end of the input. */
+  private static final int MAX_OVERRUN = 8;
+
+  private static final int MEMBER_HEADER = 0;
+  private static final int BLOCK_HEADER = 1;
+  private static final int STORED = 2;
+  private static final int HUFFMAN = 3;
+  private static final int TRAILER = 4;
+  private static final int DONE = 5;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+    35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+  };
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+    3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+  };
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+    257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+    8193, 12289, 16385, 24577
+  };
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+    7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+  };
+
+  /** Order in which code length code lengths are stored. */
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+
+  private static final Huffman FIXED_LITERALS = new Huffman(288);
+  private static final Huffman FIXED_DISTANCES = new Huffman(30);
+
+  static {
+    int[] lengths = new int[288];
+    Arrays.fill(lengths, 0, 144, 8);
+    Arrays.fill(lengths, 144, 256, 9);
+    Arrays.fill(lengths, 256, 280, 7);
+    Arrays.fill(lengths, 280, 288, 8);
+    try {
+      FIXED_LITERALS.build(lengths, 0, 288);
+      Arrays.fill(lengths, 0, 30, 5);
+      FIXED_DISTANCES.build(lengths, 0, 30);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  // -- Fields --
+
+  /** Source of compressed data. */
+  private IRandomAccess in;
+  private byte[] inBuffer = new byte[65536];
+  private int inPos, inLength;
+  /** Offset within the source of inBuffer[0]. */
+  private long inBufferStart;
+  private int overrun;
+
+  /** Bits read but not yet consumed, least significant bit first. */
+  private long bitBuffer;
+  private int bitCount;
+
+  private byte[] window = new byte[WINDOW_SIZE];
+  private int windowPos;
+  private int windowFill;
+
+  /** Number of bytes decoded since the start of the gzip data. */
+  private long totalOut;
+
+  private int state;
+  private boolean firstMember;
+  private boolean lastBlock;
+  private int storedRemaining;
+  private int copyLength, copyDistance;
+
+  private Huffman literals, distances;
+  private Huffman dynamicLiterals = new Huffman(288);
+  private Huffman dynamicDistances = new Huffman(30);
+  private Huffman codeLengths = new Huffman(19);
+  private int[] lengths = new int[288 + 32];
+
+  /** Checksum of the current member; null if decoding began mid-member. */
+  private CRC32 crc;
+  private long memberStart;
+
+  /** Index to which access points are added, if one is being built. */
+  private GZipIndex index;
+
+  // -- Constructors --
+
+  /** Constructs a decoder for gzip data starting at the given offset. */
+  DeflateDecoder(IRandomAccess in, long start) throws IOException {
+    this.in = in;
+    setInputPosition(start);
+    state = MEMBER_HEADER;
+    firstMember = true;
+  }
+
+  /** Constructs a decoder that resumes from the given access point. */
+  DeflateDecoder(IRandomAccess in, long bitPosition, long out, byte[] history)
+    throws IOException
+  {
+    this.in = in;
+    setInputPosition(bitPosition >> 3);
+    int skip = (int) (bitPosition & 7);
+    if (skip > 0) bits(skip);
+    totalOut = out;
+    System.arraycopy(history, 0, window, 0, history.length);
+    windowFill = history.length;
+    windowPos = history.length & WINDOW_MASK;
+    state = BLOCK_HEADER;
+  }
+
+  // -- DeflateDecoder API methods --
+
+  /** Records an access point in the given index at every block boundary. */
+  void setIndex(GZipIndex index) {
+    this.index = index;
+  }
+
+  /** Returns the number of bytes decoded since the start of the gzip data. */
+  long getTotalOut() {
+    return totalOut;
+  }
+
+  /** Returns true once the end of the gzip data has been reached. */
+  boolean isFinished() {
+    return state == DONE;
+  }
+
+  /**
+   * Decodes up to len bytes into the given buffer.
+   * @return the number of bytes decoded, or -1 at the end of the data
+   */
+  int read(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len && state != DONE) {
+      switch (state) {
+        case MEMBER_HEADER:
+          readMemberHeader();
+          break;
+        case BLOCK_HEADER:
+          if (index != null && index.needsAccessPoint(totalOut)) {
+            index.addAccessPoint(getBitPosition(), totalOut, getHistory());
+          }
+          readBlockHeader();
+          break;
+        case STORED:
+          n += updateChecksum(b, off + n, inflateStored(b, off + n, len - n));
+          break;
+        case HUFFMAN:
+          n += updateChecksum(b, off + n, inflateHuffman(b, off + n, len - n));
+          break;
+        case TRAILER:
+          readTrailer();
+          break;
+      }
+    }
+    return n == 0 && state == DONE ? -1 : n;
+  }
+
+  /** Closes the underlying source. */
+  void close() throws IOException {
+    in.close();
+  }
+
+  // -- Helper methods --
+
+  private int updateChecksum(byte[] b, int off, int len) {
+    if (crc != null && len > 0) crc.update(b, off, len);
+    return len;
+  }
+
+  /** Returns the position of the next unread bit, relative to the source. */
+  private long getBitPosition() {
+    return (inBufferStart + inPos) * 8 - bitCount;
+  }
+
+  /** Returns a copy of the decoding history, oldest byte first. */
+  private byte[] getHistory() {
+    byte[] history = new byte[windowFill];
+    int start = (windowPos - windowFill) & WINDOW_MASK;
+    int first = Math.min(windowFill, WINDOW_SIZE - start);
+    System.arraycopy(window, start, history, 0, first);
+    System.arraycopy(window, 0, history, first, windowFill - first);
+    return history;
+  }
+
+  private void setInputPosition(long pos) {
+    inBufferStart = pos;
+    inPos = inLength = 0;
+    bitBuffer = 0;
+    bitCount = 0;
+  }
+
+  /** Refills the input buffer; returns false at the end of the source. */
+  private boolean fill() throws IOException {
+    inBufferStart += inLength;
+    inPos = inLength = 0;
+    long available = in.length() - inBufferStart;
+    if (available <= 0) return false;
+    in.seek(inBufferStart);
+    int toRead = (int) Math.min(available, inBuffer.length);
+    inLength = in.read(inBuffer, 0, toRead);
+    if (inLength < 0) inLength = 0;
+    return inLength > 0;
+  }
+
+  /** Ensures that at least n bits are available in the bit buffer. */
+  private void need(int n) throws IOException {
+    if (bitCount >= n) return;
+    if (inLength - inPos >= 4) {
+      // fast path: load four bytes at once
+      long v = (inBuffer[inPos] & 0xff) | ((inBuffer[inPos + 1] & 0xff) << 8) |
+        ((inBuffer[inPos + 2] & 0xff) << 16) |
+        ((long) (inBuffer[inPos + 3] & 0xff) << 24);
+      inPos += 4;
+      bitBuffer |= v << bitCount;
+      bitCount += 32;
+      if (bitCount >= n) return;
+    }
+    while (bitCount < n) {
+      int v;
+      if (inPos < inLength || fill()) v = inBuffer[inPos++] & 0xff;
+      else {
+        // pad with zeros so that Huffman lookups can peek past the end
+        if (++overrun > MAX_OVERRUN) {
+          throw new EOFException("Unexpected end of gzip data");
+        }
+        v = 0;
+      }
+      bitBuffer |= (long) v << bitCount;
+      bitCount += 8;
+    }
+  }
+
+  private int bits(int n) throws IOException {
+    need(n);
+    int v = (int) (bitBuffer & ((1L << n) - 1));
+    bitBuffer >>>= n;
+    bitCount -= n;
+    return v;
+  }
+
+  /** Discards any bits remaining in the current byte. */
+  private void alignToByte() {
+    int drop = bitCount & 7;
+    bitBuffer >>>= drop;
+    bitCount -= drop;
+  }
+
+  /** Returns true if no further input is available at a byte boundary. */
+  private boolean atEndOfInput() throws IOException {
+    return bitCount == 0 && inPos >= inLength && !fill();
+  }
+
+  private void readMemberHeader() throws IOException {
+    alignToByte();
+    if (!firstMember && atEndOfInput()) {
+      state = DONE;
+      return;
+    }
+    int magic = bits(16);
+    if (magic != GZIPInputStream.GZIP_MAGIC) {
+      if (firstMember) throw new IOException("Not in gzip format");
+      // trailing garbage is ignored, as by GZIPInputStream
+      state = DONE;
+      return;
+    }
+    if (bits(8) != 8) throw new IOException("Unsupported compression method");
+    int flags = bits(8);
+    // skip modification time, extra flags and operating system
+    for (int i=0; i<3; i++) bits(16);
+    if ((flags & 4) != 0) {
+      int extra = bits(16);
+      for (int i=0; i<extra; i++) bits(8);
+    }
+    if ((flags & 8) != 0) {
+      while (bits(8) != 0);
+    }
+    if ((flags & 16) != 0) {
+      while (bits(8) != 0);
+    }
+    if ((flags & 2) != 0) bits(16);
+
+    firstMember = false;
+    windowFill = 0;
+    windowPos = 0;
+    crc = new CRC32();
+    memberStart = totalOut;
+    state = BLOCK_HEADER;
+  }
+
+  private void readTrailer() throws IOException {
+    alignToByte();
+    long checksum = bits(16) | ((long) bits(16) << 16);
+    long size = bits(16) | ((long) bits(16) << 16);
+    if (overrun > 0) throw new EOFException("Unexpected end of gzip data");
+    if (crc != null) {
+      if (checksum != crc.getValue() ||
+        size != ((totalOut - memberStart) & 0xffffffffL))
+      {
+        throw new IOException("Corrupt gzip trailer");
+      }
+    }
+    crc = null;
+    state = MEMBER_HEADER;
+  }
+
+  private void readBlockHeader() throws IOException {
+    lastBlock = bits(1) == 1;
+    int type = bits(2);
+    switch (type) {
+      case 0:
+        alignToByte();
+        int length = bits(16);
+        int check = bits(16);
+        if (length != (~check & 0xffff)) {
+          throw new IOException("Invalid stored block length");
+        }
+        storedRemaining = length;
+        state = STORED;
+        break;
+      case 1:
+        literals = FIXED_LITERALS;
+        distances = FIXED_DISTANCES;
+        state = HUFFMAN;
+        break;
+      case 2:
+        readDynamicTables();
+        literals = dynamicLiterals;
+        distances = dynamicDistances;
+        state = HUFFMAN;
+        break;
+      default:
+        throw new IOException("Invalid deflate block type");
+    }
+  }
+
+  private void readDynamicTables() throws IOException {
+    int nLiterals = bits(5) + 257;
+    int nDistances = bits(5) + 1;
+    int nCodes = bits(4) + 4;
+    if (nLiterals > 286 || nDistances > 30) {
+      throw new IOException("Invalid deflate code counts");
+    }
+
+    Arrays.fill(lengths, 0, 19, 0);
+    for (int i=0; i<nCodes; i++) {
+      lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+    }
+    codeLengths.build(lengths, 0, 19);
+
+    int total = nLiterals + nDistances;
+    int i = 0;
+    while (i < total) {
+      int symbol = decode(codeLengths);
+      if (symbol < 16) {
+        lengths[i++] = symbol;
+        continue;
+      }
+      int value = 0;
+      int repeat;
+      if (symbol == 16) {
+        if (i == 0) throw new IOException("Invalid code length repeat");
+        value = lengths[i - 1];
+        repeat = 3 + bits(2);
+      }
+      else if (symbol == 17) repeat = 3 + bits(3);
+      else repeat = 11 + bits(7);
+      if (i + repeat > total) {
+        throw new IOException("Invalid code length repeat");
+      }
+      while (repeat-- > 0) lengths[i++] = value;
+    }
+    if (lengths[256] == 0) throw new IOException("Missing end-of-block code");
+
+    dynamicLiterals.build(lengths, 0, nLiterals);
+    dynamicDistances.build(lengths, nLiterals, nDistances);
+  }
+
+  private int inflateStored(byte[] b, int off, int len) throws IOException {
+    int n = Math.min(len, storedRemaining);
+    int done = 0;
+    // bytes already pulled into the bit buffer come first
+    while (done < n && bitCount >= 8) {
+      b[off + done++] = (byte) bits(8);
+    }
+    while (done < n) {
+      if (inPos >= inLength && !fill()) {
+        throw new EOFException("Unexpected end of gzip data");
+      }
+      int count = Math.min(n - done, inLength - inPos);
+      System.arraycopy(inBuffer, inPos, b, off + done, count);
+      inPos += count;
+      done += count;
+    }
+    putHistory(b, off, n);
+    storedRemaining -= n;
+    if (storedRemaining == 0) endBlock();
+    return n;
+  }
+
+  private int inflateHuffman(byte[] b, int off, int len) throws IOException {
+    int n = 0;
+    while (n < len) {
+      if (copyLength > 0) {
+        int count = Math.min(copyLength, len - n);
+        int src = (windowPos - copyDistance) & WINDOW_MASK;
+        if (copyDistance >= count && src + count <= WINDOW_SIZE &&
+          windowPos + count <= WINDOW_SIZE)
+        {
+          // non-overlapping and contiguous, so copy in bulk
+          System.arraycopy(window, src, window, windowPos, count);
+          System.arraycopy(window, src, b, off + n, count);
+          windowPos = (windowPos + count) & WINDOW_MASK;
+          n += count;
+        }
+        else {
+          for (int i=0; i<count; i++) {
+            byte v = window[src];
+            src = (src + 1) & WINDOW_MASK;
+            window[windowPos] = v;
+            windowPos = (windowPos + 1) & WINDOW_MASK;
+            b[off + n++] = v;
+          }
+        }
+        copyLength -= count;
+        if (windowFill < WINDOW_SIZE) {
+          windowFill = Math.min(windowFill + count, WINDOW_SIZE);
+        }
+        continue;
+      }
+
+      int symbol = decode(literals);
+      if (symbol < 256) {
+        byte v = (byte) symbol;
+        window[windowPos] = v;
+        windowPos = (windowPos + 1) & WINDOW_MASK;
+        if (windowFill < WINDOW_SIZE) windowFill++;
+        b[off + n++] = v;
+      }
+      else if (symbol == 256) {
+        endBlock();
+        break;
+      }
+      else {
+        symbol -= 257;
+        if (symbol >= 29) throw new IOException("Invalid length code");
+        copyLength = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+        symbol = decode(distances);
+        if (symbol >= 30) throw new IOException("Invalid distance code");
+        copyDistance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+        if (copyDistance > windowFill) {
+          throw new IOException("Invalid distance too far back");
+        }
+      }
+    }
+    totalOut += n;
+    return n;
+  }
+
+  private void endBlock() {
+    state = lastBlock ? TRAILER : BLOCK_HEADER;
+  }
+
+  /** Appends decoded bytes that did not pass through the window. */
+  private void putHistory(byte[] b, int off, int len) {
+    totalOut += len;
+    if (len >= WINDOW_SIZE) {
+      System.arraycopy(b, off + len - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+      windowPos = 0;
+      windowFill = WINDOW_SIZE;
+      return;
+    }
+    int first = Math.min(len, WINDOW_SIZE - windowPos);
+    System.arraycopy(b, off, window, windowPos, first);
+    System.arraycopy(b, off + first, window, 0, len - first);
+    windowPos = (windowPos + len) & WINDOW_MASK;
+    windowFill = Math.min(windowFill + len, WINDOW_SIZE);
+  }
+
+  /** Decodes one symbol using the given Huffman code. */
+  private int decode(Huffman h) throws IOException {
+    need(FAST_BITS);
+    int entry = h.table[(int) bitBuffer & ((1 << FAST_BITS) - 1)];
+    if (entry != 0) {
+      int length = entry & 15;
+      bitBuffer >>>= length;
+      bitCount -= length;
+      return entry >> 4;
+    }
+
+    // codes longer than FAST_BITS are decoded one bit at a time
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    for (int len=1; len<=15; len++) {
+      code |= bits(1);
+      int count = h.count[len];
+      if (code - count < first) return h.symbol[index + code - first];
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw new IOException("Invalid Huffman code");
+  }
+
+  // -- Helper classes --
+
+  /** Canonical Huffman code, with a lookup table for short codes. */
+  private static class Huffman {
+    final int[] count = new int[16];
+    final int[] symbol;
+    final int[] table = new int[1 << FAST_BITS];
+    private final int[] offsets = new int[16];
+    private final int[] nextCode = new int[16];
+
+    Huffman(int maxSymbols) {
+      symbol = new int[maxSymbols];
+    }
+
+    void build(int[] lengths, int off, int n) throws IOException {
+      Arrays.fill(count, 0);
+      for (int i=0; i<n; i++) count[lengths[off + i]]++;
+      count[0] = 0;
+
+      int left = 1;
+      for (int len=1; len<=15; len++) {
+        left <<= 1;
+        left -= count[len];
+        if (left < 0) throw new IOException("Over-subscribed Huffman code");
+      }
+
+      offsets[1] = 0;
+      for (int len=1; len<15; len++) {
+        offsets[len + 1] = offsets[len] + count[len];
+      }
+      int code = 0;
+      for (int len=1; len<=15; len++) {
+        code = (code + count[len - 1]) << 1;
+        nextCode[len] = code;
+      }
+
+      Arrays.fill(table, 0);
+      for (int i=0; i<n; i++) {
+        int len = lengths[off + i];
+        if (len == 0) continue;
+        symbol[offsets[len]++] = i;
+        int c = nextCode[len]++;
+        if (len <= FAST_BITS) {
+          int reversed = Integer.reverse(c) >>> (32 - len);
+          int entry = (i << 4) | len;
+          for (int k=reversed; k<table.length; k+=1<<len) table[k] = entry;
+        }
+      }
+    }
+  }
+
+}
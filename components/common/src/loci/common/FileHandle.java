@@ -125,6 +125,27 @@ public class FileHandle implements IRandomAccess {
     return n;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b), off, len);
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer, int, int) */
+  public int read(long pos, ByteBuffer buf, int off, int len)
+    throws IOException
+  {
+    ByteBuffer dst = buf.duplicate();
+    dst.limit(off + len);
+    dst.position(off);
+    int total = 0;
+    while (dst.hasRemaining()) {
+      int n = raf.getChannel().read(dst, pos + total);
+      if (n < 0) break;
+      total += n;
+    }
+    return total;
+  }
+
   /* @see IRandomAccess.seek(long) */
   public void seek(long pos) throws IOException {
     raf.seek(pos);
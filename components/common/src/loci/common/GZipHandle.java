@@ -38,10 +38,14 @@ package loci.common;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.zip.GZIPInputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * StreamHandle implementation for reading from gzip-compressed files
  * or byte arrays.  Instances of GZipHandle are read-only.
@@ -56,6 +60,30 @@ import java.util.zip.GZIPInputStream;
  */
 public class GZipHandle extends StreamHandle {
 
+  // -- Constants --
+
+  /** Suffix appended to the file name to form the index file name. */
+  public static final String INDEX_SUFFIX = ".gzidx";
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(GZipHandle.class);
+
+  // -- Static fields --
+
+  /** Minimum number of uncompressed bytes between index access points. */
+  private static long indexSpan = GZipIndex.DEFAULT_SPAN;
+
+  /** Whether or not indexes are read from and saved to sidecar files. */
+  private static boolean useIndexFiles = false;
+
+  // -- Fields --
+
+  /**
+   * Access points used to resume decompression when seeking; null until
+   * the first backward seek, unless loaded from a sidecar file.
+   */
+  private GZipIndex index;
+
   // -- Constructor --
 
   /**
@@ -70,20 +98,58 @@ public class GZipHandle extends StreamHandle {
       throw new HandleException(file + " is not a gzip file.");
     }
 
-    resetStream();
-
-    length = 0;
-    while (true) {
-      int skip = stream.skipBytes(1024);
-      if (skip <= 0) break;
-      length += skip;
+    if (useIndexFiles) {
+      File f = new File(file);
+      index = GZipIndex.load(file + INDEX_SUFFIX, f.length(),
+        f.lastModified());
     }
 
     resetStream();
+
+    if (index != null) length = index.getLength();
+    else {
+      length = 0;
+      while (true) {
+        int skip = stream.skipBytes(1024);
+        if (skip <= 0) break;
+        length += skip;
+      }
+      resetStream();
+    }
   }
 
   // -- GZipHandle API methods --
 
+  /**
+   * Sets the minimum number of uncompressed bytes between the access points
+   * recorded for subsequently opened files.  Access points are recorded the
+   * first time that a file is seeked backwards.  Smaller values make seeks
+   * cheaper at the cost of roughly 32 KB of memory per access point.
+   */
+  public static void setIndexSpan(long span) {
+    if (span <= 0) throw new IllegalArgumentException("Invalid span: " + span);
+    indexSpan = span;
+  }
+
+  /** Gets the minimum number of uncompressed bytes between access points. */
+  public static long getIndexSpan() {
+    return indexSpan;
+  }
+
+  /**
+   * Sets whether or not access point indexes are saved next to the gzip
+   * file (with the suffix {@link #INDEX_SUFFIX}) and reused when the same,
+   * unmodified file is opened again.
+   */
+  public static void setUseIndexFiles(boolean use) {
+    useIndexFiles = use;
+  }
+
+  /** Gets whether or not access point indexes are saved to sidecar files. */
+  public static boolean isUsingIndexFiles() {
+    return useIndexFiles;
+  }
+
   /** Returns true if the given filename is a gzip file. */
   public static boolean isGZipFile(String file) throws IOException {
     if (!file.toLowerCase().endsWith(".gz")) return false;
@@ -95,6 +161,29 @@ public class GZipHandle extends StreamHandle {
     return DataTools.bytesToInt(b, true) == GZIPInputStream.GZIP_MAGIC;
   }
 
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#seek(long) */
+  public void seek(long pos) throws IOException {
+    // files that are only read forwards never need access points
+    if (index == null && pos < fp) buildIndex();
+    long resume = index == null ? 0 : index.getResumeOffset(pos);
+    if (pos >= fp && fp >= resume) {
+      // already at or past the nearest access point; keep reading forward
+      skipFully(pos - fp);
+    }
+    else if (resume == 0) {
+      resetStream();
+      skipFully(pos);
+    }
+    else {
+      if (stream != null) stream.close();
+      IRandomAccess source = new NIOFileHandle(new File(file), "r");
+      stream = new DataInputStream(index.open(source, pos));
+    }
+    fp = pos;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
@@ -105,4 +194,38 @@ public class GZipHandle extends StreamHandle {
     stream = new DataInputStream(new GZIPInputStream(bis));
   }
 
+  // -- Helper methods --
+
+  /**
+   * Decompresses the whole file once, recording access points, and saves
+   * them to a sidecar file if requested.
+   */
+  private void buildIndex() throws IOException {
+    File f = new File(file);
+    IRandomAccess source = new NIOFileHandle(f, "r");
+    try {
+      index = GZipIndex.build(source, 0, indexSpan);
+    }
+    finally {
+      source.close();
+    }
+    if (useIndexFiles) {
+      String indexFile = file + INDEX_SUFFIX;
+      try {
+        index.save(indexFile, f.length(), f.lastModified());
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not save gzip index " + indexFile, e);
+      }
+    }
+  }
+
+  private void skipFully(long n) throws IOException {
+    while (n > 0) {
+      long skipped = stream.skip(n);
+      if (skipped <= 0) break;
+      n -= skipped;
+    }
+  }
+
 }
@@ -0,0 +1,447 @@
+/*
+ * #%L
+ * LOCI Common package: utilities for I/O, reflection and miscellaneous tasks.
+ * %%
+ * Copyright (C) 2008 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Index of access points into gzip-compressed data, allowing decompression
+ * to start near an arbitrary uncompressed offset rather than at the
+ * beginning of the data.
+ *
+ * Each access point records a deflate block boundary and the 32 KB of
+ * uncompressed data preceding it, in the manner of zlib's zran example.
+ * Indexes can be built in one pass, or filled in lazily as data is read,
+ * and can be saved to and loaded from a sidecar file.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/src/loci/common/GZipIndex.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/src/loci/common/GZipIndex.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see GZipHandle
+ */
+public class GZipIndex {
+
+  // -- Constants --
+
+  /** Default spacing between access points, in uncompressed bytes. */
+  public static final long DEFAULT_SPAN = 1048576;
+
+  private static final String MAGIC = "LOCIGZIDX";
+  private static final int VERSION = 1;
+
+  // -- Fields --
+
+  /** Offset of the gzip data within the compressed source. */
+  private long start;
+
+  /** Minimum spacing between access points, in uncompressed bytes. */
+  private long span;
+
+  /** Total number of uncompressed bytes, or -1 if not yet known. */
+  private long length;
+
+  private List<AccessPoint> points = new ArrayList<AccessPoint>();
+
+  // -- Constructor --
+
+  private GZipIndex(long start, long span) {
+    this.start = start;
+    this.span = span;
+  }
+
+  // -- GZipIndex API methods --
+
+  /**
+   * Decompresses all of the gzip data in the given source, recording an
+   * access point roughly every span uncompressed bytes.
+   * The source is not closed.
+   *
+   * @param source the compressed data
+   * @param start offset of the first gzip member within the source
+   * @param span minimum number of uncompressed bytes between access points
+   */
+  public static GZipIndex build(IRandomAccess source, long start, long span)
+    throws IOException
+  {
+    if (span <= 0) throw new IllegalArgumentException("Invalid span: " + span);
+    GZipIndex index = new GZipIndex(start, span);
+    DeflateDecoder decoder = new DeflateDecoder(source, start);
+    decoder.setIndex(index);
+    byte[] buf = new byte[65536];
+    while (decoder.read(buf, 0, buf.length) >= 0);
+    index.length = decoder.getTotalOut();
+    return index;
+  }
+
+  /**
+   * Creates an empty index that is filled in as data is read through it.
+   * Streams returned by {@link #open(IRandomAccess, long)} record access
+   * points whenever they decompress data beyond the last recorded one, so
+   * the data is never decompressed solely to build the index.
+   *
+   * @param start offset of the first gzip member within the source
+   * @param span minimum number of uncompressed bytes between access points
+   */
+  public static GZipIndex create(long start, long span) {
+    if (span <= 0) throw new IllegalArgumentException("Invalid span: " + span);
+    GZipIndex index = new GZipIndex(start, span);
+    index.length = -1;
+    return index;
+  }
+
+  /**
+   * Reads an index from the given file.
+   *
+   * @param sourceLength length of the compressed file the index describes
+   * @param sourceModified modification time of the compressed file
+   * @return the index, or null if the file does not exist, cannot be read,
+   *   or was written for a different version of the compressed file
+   */
+  public static GZipIndex load(String file, long sourceLength,
+    long sourceModified)
+  {
+    if (!new File(file).exists()) return null;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+      if (!in.readUTF().equals(MAGIC) || in.readInt() != VERSION ||
+        in.readLong() != sourceLength || in.readLong() != sourceModified)
+      {
+        return null;
+      }
+      GZipIndex index = new GZipIndex(in.readLong(), in.readLong());
+      index.length = in.readLong();
+      int count = in.readInt();
+      for (int i=0; i<count; i++) {
+        AccessPoint p = new AccessPoint();
+        p.out = in.readLong();
+        p.bits = in.readLong();
+        p.windowLength = in.readInt();
+        p.window = new byte[in.readInt()];
+        in.readFully(p.window);
+        index.points.add(p);
+      }
+      return index;
+    }
+    catch (IOException e) {
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (IOException e) { }
+      }
+    }
+  }
+
+  /**
+   * Writes this index to the given file.  The index is written to a
+   * temporary file first, so that other processes never see a partially
+   * written index.
+   *
+   * @param sourceLength length of the compressed file the index describes
+   * @param sourceModified modification time of the compressed file
+   */
+  public void save(String file, long sourceLength, long sourceModified)
+    throws IOException
+  {
+    File dest = new File(file);
+    File tmp = File.createTempFile(dest.getName(), ".tmp",
+      dest.getAbsoluteFile().getParentFile());
+    boolean success = false;
+    try {
+      write(tmp, sourceLength, sourceModified);
+      // renaming onto an existing file fails on some platforms
+      dest.delete();
+      success = tmp.renameTo(dest);
+    }
+    finally {
+      if (!success) tmp.delete();
+    }
+    if (!success) throw new IOException("Could not rename " + tmp);
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes, or -1 if the index was
+   * created with {@link #create(long, long)} and the end of the data has
+   * not yet been read.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /** Returns the minimum spacing between access points. */
+  public long getSpan() {
+    return span;
+  }
+
+  /** Returns the number of access points in this index. */
+  public int getAccessPointCount() {
+    return points.size();
+  }
+
+  /**
+   * Returns the uncompressed offset from which decompression would resume
+   * in order to reach the given offset; 0 if it must start from the
+   * beginning.
+   */
+  public long getResumeOffset(long pos) {
+    AccessPoint p = findAccessPoint(pos);
+    return p == null ? 0 : p.out;
+  }
+
+  /**
+   * Returns a stream of uncompressed data, positioned at the given offset.
+   * Decompression starts from the nearest preceding access point.
+   * The source is closed when the returned stream is closed.
+   * If this index is not yet complete, the stream adds access points to it.
+   */
+  public InputStream open(IRandomAccess source, long pos) throws IOException {
+    AccessPoint p = findAccessPoint(pos);
+    DeflateDecoder decoder;
+    if (p == null) decoder = new DeflateDecoder(source, start);
+    else {
+      decoder = new DeflateDecoder(source, p.bits, p.out, p.getHistory());
+    }
+    // access points are only ever appended, so every stream may extend an
+    // incomplete index once it passes the last recorded access point
+    if (length < 0) decoder.setIndex(this);
+    InputStream stream =
+      new DecoderInputStream(decoder, length < 0 ? this : null);
+    long skip = pos - decoder.getTotalOut();
+    while (skip > 0) {
+      long n = stream.skip(skip);
+      if (n <= 0) break;
+      skip -= n;
+    }
+    return stream;
+  }
+
+  // -- Package-private methods --
+
+  /** Returns true if an access point should be added at the given offset. */
+  boolean needsAccessPoint(long out) {
+    long last = points.size() == 0 ? 0 : points.get(points.size() - 1).out;
+    return out - last >= span;
+  }
+
+  /** Adds an access point at the given deflate block boundary. */
+  void addAccessPoint(long bits, long out, byte[] history) {
+    AccessPoint p = new AccessPoint();
+    p.out = out;
+    p.bits = bits;
+    p.windowLength = history.length;
+
+    // the history is stored compressed to reduce the size of the index
+    Deflater deflater = new Deflater();
+    deflater.setInput(history);
+    deflater.finish();
+    byte[] buf = new byte[history.length + 64];
+    int n = 0;
+    while (!deflater.finished()) {
+      if (n == buf.length) {
+        byte[] tmp = new byte[buf.length * 2];
+        System.arraycopy(buf, 0, tmp, 0, n);
+        buf = tmp;
+      }
+      n += deflater.deflate(buf, n, buf.length - n);
+    }
+    deflater.end();
+    p.window = new byte[n];
+    System.arraycopy(buf, 0, p.window, 0, n);
+    points.add(p);
+  }
+
+  // -- Helper methods --
+
+  /** Writes this index to the given file. */
+  private void write(File file, long sourceLength, long sourceModified)
+    throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(sourceLength);
+      out.writeLong(sourceModified);
+      out.writeLong(start);
+      out.writeLong(span);
+      out.writeLong(length);
+      out.writeInt(points.size());
+      for (AccessPoint p : points) {
+        out.writeLong(p.out);
+        out.writeLong(p.bits);
+        out.writeInt(p.windowLength);
+        out.writeInt(p.window.length);
+        out.write(p.window);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /** Returns the last access point at or before the given offset. */
+  private AccessPoint findAccessPoint(long pos) {
+    int low = 0;
+    int high = points.size() - 1;
+    AccessPoint found = null;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      AccessPoint p = points.get(mid);
+      if (p.out <= pos) {
+        found = p;
+        low = mid + 1;
+      }
+      else high = mid - 1;
+    }
+    return found;
+  }
+
+  // -- Helper classes --
+
+  private static class AccessPoint {
+    /** Uncompressed offset. */
+    public long out;
+    /** Compressed offset of the deflate block, in bits. */
+    public long bits;
+    /** Number of bytes of history preceding the block. */
+    public int windowLength;
+    /** Compressed history. */
+    public byte[] window;
+
+    public byte[] getHistory() throws IOException {
+      byte[] history = new byte[windowLength];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(window);
+        int n = 0;
+        while (n < windowLength && !inflater.finished()) {
+          int count = inflater.inflate(history, n, windowLength - n);
+          if (count == 0 && inflater.needsInput()) break;
+          n += count;
+        }
+        if (n < windowLength) throw new IOException("Corrupt gzip index");
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Corrupt gzip index");
+      }
+      finally {
+        inflater.end();
+      }
+      return history;
+    }
+  }
+
+  /** InputStream view of a DeflateDecoder. */
+  private static class DecoderInputStream extends InputStream {
+    private DeflateDecoder decoder;
+    /** Incomplete index whose length is recorded at the end of the data. */
+    private GZipIndex index;
+    private byte[] single = new byte[1];
+    private byte[] scratch;
+
+    public DecoderInputStream(DeflateDecoder decoder, GZipIndex index) {
+      this.decoder = decoder;
+      this.index = index;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int n;
+      do {
+        n = decoder.read(single, 0, 1);
+      }
+      while (n == 0);
+      checkFinished();
+      return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      int n = decoder.read(b, off, len);
+      checkFinished();
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (scratch == null) scratch = new byte[8192];
+      long skipped = 0;
+      while (skipped < n) {
+        int count = decoder.read(scratch, 0,
+          (int) Math.min(scratch.length, n - skipped));
+        if (count < 0) break;
+        skipped += count;
+      }
+      checkFinished();
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      decoder.close();
+    }
+
+    private void checkFinished() {
+      if (index != null && decoder.isFinished()) {
+        if (index.length < 0) index.length = decoder.getTotalOut();
+        index = null;
+      }
+    }
+  }
+
+}
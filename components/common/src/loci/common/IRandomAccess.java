@@ -105,6 +105,32 @@ public interface IRandomAccess extends DataInput, DataOutput {
    */
   int read(ByteBuffer buffer, int offset, int len) throws IOException;
 
+  /**
+   * Reads up to len bytes of data, starting at the given offset in this
+   * stream, into an array of bytes. The stream pointer is not changed.
+   *
+   * Handles that are backed by a file or an array do not use the stream
+   * pointer at all, so positional reads may be issued from several threads
+   * at once. Handles that can only read sequentially (e.g. compressed
+   * streams) move the stream pointer while holding a lock and restore it
+   * afterwards; concurrent positional reads are still safe, but must not
+   * be mixed with reads through the stream pointer from other threads.
+   *
+   * @return the total number of bytes read into the array, which is less
+   *   than len only if the end of the stream is reached.
+   */
+  int read(long pos, byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Reads up to len bytes of data, starting at the given offset in this
+   * stream, into a ByteBuffer at the given index. Neither the stream
+   * pointer nor the position of the ByteBuffer is changed.
+   *
+   * @return the total number of bytes read into the buffer.
+   * @see #read(long, byte[], int, int)
+   */
+  int read(long pos, ByteBuffer buffer, int off, int len) throws IOException;
+
   /**
    * Sets the stream pointer offset, measured from the beginning
    * of this stream, at which the next read or write occurs.
@@ -44,6 +44,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,6 +69,12 @@ public class NIOFileHandle extends AbstractNIOHandle {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(RandomAccessInputStream.class);
 
+  /**
+   * Number of bytes by which consecutive memory mapped segments overlap;
+   * this is the size of the largest primitive value.
+   */
+  private static final int SEGMENT_OVERLAP = 8;
+
   //-- Static fields --
 
   /** Default NIO buffer size to facilitate buffered I/O. */
@@ -78,6 +85,15 @@ public class NIOFileHandle extends AbstractNIOHandle {
    */
   protected static int defaultRWBufferSize = 8192;
 
+  /** Whether or not read-only files are memory mapped in segments. */
+  protected static boolean useMappedSegments = false;
+
+  /** Default size of each memory mapped segment. */
+  protected static int defaultSegmentSize = 64 * 1024 * 1024;
+
+  /** Default maximum number of memory mapped segments per file. */
+  protected static int defaultMaxSegments = 16;
+
   // -- Fields --
 
   /** The random access file object backing this FileHandle. */
@@ -110,6 +126,18 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /** Provider class for NIO byte buffers, allocated or memory mapped. */
   protected NIOByteBufferProvider byteBufferProvider;
 
+  /** Size of each memory mapped segment, or 0 if segments are not used. */
+  protected int segmentSize;
+
+  /** Maximum number of memory mapped segments to keep. */
+  protected int maxSegments;
+
+  /**
+   * Memory mapped segments, keyed by segment index, in order from least to
+   * most recently used; null if segments are not used.
+   */
+  protected LinkedHashMap<Long, ByteBuffer> segments;
+
   // -- Constructors --
 
   /**
@@ -127,7 +155,12 @@ public class NIOFileHandle extends AbstractNIOHandle {
     raf = new RandomAccessFile(file, mode);
     channel = raf.getChannel();
     byteBufferProvider = new NIOByteBufferProvider(channel, mapMode);
-    buffer(position, 0);
+    if (useMappedSegments && !isReadWrite) {
+      useMappedSegments(defaultSegmentSize, defaultMaxSegments);
+    }
+    else {
+      buffer(position, 0);
+    }
   }
 
   /**
@@ -169,6 +202,69 @@ public class NIOFileHandle extends AbstractNIOHandle {
     defaultRWBufferSize = size;
   }
 
+  /**
+   * Sets whether or not read-only files are memory mapped in segments.
+   *
+   * Subsequent uses of the NIOFileHandle constructors will call
+   * {@link #useMappedSegments(int, int)} with the default segment size and
+   * count for files opened in "r" mode.
+   */
+  public static void setUseMappedSegments(boolean use) {
+    useMappedSegments = use;
+  }
+
+  /** Gets whether or not read-only files are memory mapped in segments. */
+  public static boolean isUsingMappedSegments() {
+    return useMappedSegments;
+  }
+
+  /** Set the default size of each memory mapped segment. */
+  public static void setDefaultSegmentSize(int size) {
+    defaultSegmentSize = size;
+  }
+
+  /** Set the default maximum number of memory mapped segments per file. */
+  public static void setDefaultMaxSegments(int count) {
+    defaultMaxSegments = count;
+  }
+
+  /**
+   * Reads this file through memory mapped segments instead of a buffer.
+   * Each segment maps segmentSize bytes of the file (plus a few bytes of
+   * the next segment, so that no primitive value is split between two
+   * segments), and reads are copied directly from the mapped segments.
+   * The maxSegments most recently used segments are kept mapped.
+   *
+   * @throws IllegalStateException if the file is opened read/write.
+   * @throws IllegalArgumentException if either argument is less than 1.
+   */
+  public void useMappedSegments(int segmentSize, int maxSegments)
+    throws IOException
+  {
+    if (isReadWrite) {
+      throw new IllegalStateException("Cannot map a read/write file");
+    }
+    if (segmentSize < 1 || maxSegments < 1) {
+      throw new IllegalArgumentException("Invalid segment size or count: " +
+        segmentSize + ", " + maxSegments);
+    }
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+    segments = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true);
+    ByteOrder byteOrder = getOrder();
+    buffer = null;
+    order = byteOrder;
+    buffer(position, 0);
+  }
+
+  /**
+   * Gets the size of each memory mapped segment, or 0 if this file is not
+   * read through memory mapped segments.
+   */
+  public int getSegmentSize() {
+    return segments == null ? 0 : segmentSize;
+  }
+
   // -- FileHandle and Channel API methods --
 
   /** Gets the random access file object backing this FileHandle. */
@@ -193,6 +289,11 @@ public class NIOFileHandle extends AbstractNIOHandle {
 
   /* @see IRandomAccess.close() */
   public void close() throws IOException {
+    if (segments != null) {
+      // mapped segments are released when they are garbage collected
+      segments.clear();
+      buffer = null;
+    }
     raf.close();
   }
 
@@ -221,12 +322,26 @@ public class NIOFileHandle extends AbstractNIOHandle {
 
   /* @see IRandomAccess.read(byte[]) */
   public int read(byte[] b) throws IOException {
-    return read(ByteBuffer.wrap(b));
+    return read(b, 0, b.length);
   }
 
   /* @see IRandomAccess.read(byte[], int, int) */
   public int read(byte[] b, int off, int len) throws IOException {
-    return read(ByteBuffer.wrap(b), off, len);
+    if (segments == null) {
+      return read(ByteBuffer.wrap(b), off, len);
+    }
+    long length = length();
+    int total = 0;
+    while (total < len && position < length) {
+      ByteBuffer segment = getSegment(position / segmentSize);
+      segment.position((int) (position % segmentSize));
+      int n = Math.min(len - total, segment.remaining());
+      segment.get(b, off + total, n);
+      total += n;
+      position += n;
+    }
+    buffer(position, 0);
+    return total;
   }
 
   /* @see IRandomAccess.read(ByteBuffer) */
@@ -238,6 +353,21 @@ public class NIOFileHandle extends AbstractNIOHandle {
   public int read(ByteBuffer buf, int off, int len) throws IOException {
     buf.position(off);
     buf.limit(off + len);
+    if (segments != null) {
+      long length = length();
+      int total = 0;
+      while (total < len && position < length) {
+        ByteBuffer segment = getSegment(position / segmentSize).duplicate();
+        segment.position((int) (position % segmentSize));
+        int n = Math.min(len - total, segment.remaining());
+        segment.limit(segment.position() + n);
+        buf.put(segment);
+        total += n;
+        position += n;
+      }
+      buffer(position, 0);
+      return total;
+    }
     channel.position(position);
     int readLength = channel.read(buf);
     buffer(position + readLength, 0);
@@ -246,6 +376,27 @@ public class NIOFileHandle extends AbstractNIOHandle {
     return readLength == -1? 0 : readLength;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b), off, len);
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer, int, int) */
+  public int read(long pos, ByteBuffer buf, int off, int len)
+    throws IOException
+  {
+    ByteBuffer dst = buf.duplicate();
+    dst.limit(off + len);
+    dst.position(off);
+    int total = 0;
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, pos + total);
+      if (n < 0) break;
+      total += n;
+    }
+    return total;
+  }
+
   /* @see IRandomAccess.seek(long) */
   public void seek(long pos) throws IOException {
     if (mapMode == FileChannel.MapMode.READ_WRITE && pos > length()) {
@@ -515,6 +666,10 @@ public class NIOFileHandle extends AbstractNIOHandle {
   private void buffer(long offset, int size) throws IOException {
     LOGGER.trace("buffer({}, {})", offset, size);
     position = offset;
+    if (segments != null) {
+      bufferSegment(offset, size);
+      return;
+    }
     long newPosition = offset + size;
     if (newPosition < bufferStartPosition ||
       newPosition > bufferStartPosition + bufferSize || buffer == null)
@@ -541,6 +696,51 @@ public class NIOFileHandle extends AbstractNIOHandle {
     }
   }
 
+  /**
+   * Makes the memory mapped segment containing the given range the current
+   * buffer, and positions it at the start of the range.
+   * @param offset The location within the file to read from.
+   * @param size The requested read length, at most {@link #SEGMENT_OVERLAP}.
+   * @throws IOException If there is an issue mapping the segment.
+   */
+  private void bufferSegment(long offset, int size) throws IOException {
+    if (buffer == null || offset < bufferStartPosition ||
+      offset + size > bufferStartPosition + buffer.limit())
+    {
+      long length = length();
+      long index = Math.min(offset, Math.max(length - 1, 0)) / segmentSize;
+      ByteOrder byteOrder = buffer == null ? order : getOrder();
+      buffer = getSegment(index);
+      bufferStartPosition = index * segmentSize;
+      if (byteOrder != null) setOrder(byteOrder);
+    }
+    buffer.position((int) Math.min(offset - bufferStartPosition,
+      buffer.limit()));
+  }
+
+  /**
+   * Gets the memory mapped segment with the given index, mapping it if
+   * necessary and unmapping the least recently used segment if there are
+   * too many.
+   */
+  private ByteBuffer getSegment(long index) throws IOException {
+    Long key = Long.valueOf(index);
+    ByteBuffer segment = segments.get(key);
+    if (segment == null) {
+      long start = index * segmentSize;
+      long size = Math.min((long) segmentSize + SEGMENT_OVERLAP,
+        length() - start);
+      segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+        Math.max(size, 0));
+      segments.put(key, segment);
+      if (segments.size() > maxSegments) {
+        Long eldest = segments.keySet().iterator().next();
+        segments.remove(eldest);
+      }
+    }
+    return segment;
+  }
+
   private void writeSetup(int length) throws IOException {
     validateLength(length);
     buffer(position, length);
@@ -441,6 +441,32 @@ public class RandomAccessInputStream extends InputStream implements DataInput {
     return raf.read(buf, offset, n);
   }
 
+  /**
+   * Read n bytes, starting at the given offset within the stream, into the
+   * given array at the specified offset. The file pointer is not changed.
+   *
+   * @return the number of bytes read
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  public int read(long pos, byte[] array, int offset, int n)
+    throws IOException
+  {
+    return raf.read(pos, array, offset, n);
+  }
+
+  /**
+   * Read n bytes, starting at the given offset within the stream, into the
+   * given buffer at the specified offset. The file pointer is not changed.
+   *
+   * @return the number of bytes read
+   * @see IRandomAccess#read(long, ByteBuffer, int, int)
+   */
+  public int read(long pos, ByteBuffer buf, int offset, int n)
+    throws IOException
+  {
+    return raf.read(pos, buf, offset, n);
+  }
+
   /** Read bytes from the stream into the given array. */
   public void readFully(byte[] array) throws IOException {
     raf.readFully(array);
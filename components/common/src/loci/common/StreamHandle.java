@@ -150,6 +150,38 @@ public abstract class StreamHandle implements IRandomAccess {
     return n;
   }
 
+  /**
+   * Reads from the given offset by seeking within the stream, then restores
+   * the stream pointer. Calls are synchronized on this handle.
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  public synchronized int read(long pos, byte[] b, int off, int len)
+    throws IOException
+  {
+    if (pos >= length()) return 0;
+    len = (int) Math.min(len, length() - pos);
+    long fp = getFilePointer();
+    try {
+      seek(pos);
+      return read(b, off, len);
+    }
+    finally {
+      seek(fp);
+    }
+  }
+
+  /* @see IRandomAccess#read(long, ByteBuffer, int, int) */
+  public int read(long pos, ByteBuffer buf, int off, int len)
+    throws IOException
+  {
+    byte[] b = new byte[len];
+    int n = read(pos, b, 0, len);
+    ByteBuffer dst = buf.duplicate();
+    dst.position(off);
+    dst.put(b, 0, n);
+    return n;
+  }
+
   /* @see IRandomAccess#seek(long) */
   public void seek(long pos) throws IOException {
     long diff = pos - fp;
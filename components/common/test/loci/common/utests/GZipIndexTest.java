@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * LOCI Common package: utilities for I/O, reflection and miscellaneous tasks.
+ * %%
+ * Copyright (C) 2008 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.ByteArrayHandle;
+import loci.common.GZipHandle;
+import loci.common.GZipIndex;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests random access to gzip data through {@link GZipIndex} access points.
+ */
+public class GZipIndexTest {
+
+  private static final int SPAN = 65536;
+
+  private byte[] data;
+
+  private byte[] compressed;
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    // compressible data, split across two gzip members, one of which
+    // is written with stored blocks only
+    Random random = new Random(42);
+    data = new byte[1500000];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i % 251 < 200 ? i / 1000 : random.nextInt());
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+    gzip.write(data, 0, 1000000);
+    gzip.close();
+    StoredGZIPOutputStream stored = new StoredGZIPOutputStream(bytes);
+    stored.write(data, 1000000, data.length - 1000000);
+    stored.close();
+    compressed = bytes.toByteArray();
+
+    file = File.createTempFile("gzipindex", ".gz");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(compressed);
+    out.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    GZipHandle.setUseIndexFiles(false);
+    GZipHandle.setIndexSpan(GZipIndex.DEFAULT_SPAN);
+    new File(file.getAbsolutePath() + GZipHandle.INDEX_SUFFIX).delete();
+    file.delete();
+  }
+
+  @Test
+  public void testBuild() throws IOException {
+    GZipIndex index =
+      GZipIndex.build(new ByteArrayHandle(compressed), 0, SPAN);
+    assertEquals(data.length, index.getLength());
+    assertTrue(index.getAccessPointCount() >= data.length / SPAN - 2);
+  }
+
+  @Test
+  public void testOpen() throws IOException {
+    GZipIndex index =
+      GZipIndex.build(new ByteArrayHandle(compressed), 0, SPAN);
+    long[] offsets = {0, 1, 70000, 999999, 1000000, 1234567, data.length - 3};
+    for (long offset : offsets) {
+      InputStream in = index.open(new ByteArrayHandle(compressed), offset);
+      byte[] b = new byte[(int) Math.min(100000, data.length - offset)];
+      int n = 0;
+      while (n < b.length) {
+        int count = in.read(b, n, b.length - n);
+        if (count < 0) break;
+        n += count;
+      }
+      in.close();
+      assertEquals(b.length, n);
+      for (int i=0; i<b.length; i++) {
+        assertEquals(data[(int) offset + i], b[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testCreate() throws IOException {
+    GZipIndex index = GZipIndex.create(0, SPAN);
+    assertEquals(-1, index.getLength());
+    assertEquals(0, index.getAccessPointCount());
+
+    // reading forward records access points up to the furthest offset read
+    InputStream in = index.open(new ByteArrayHandle(compressed), 700000);
+    assertEquals(data[700000], (byte) in.read());
+    in.close();
+    int count = index.getAccessPointCount();
+    assertTrue(count > 0);
+    assertTrue(index.getResumeOffset(700000) > 0);
+    assertEquals(-1, index.getLength());
+
+    // earlier offsets resume from the recorded access points
+    in = index.open(new ByteArrayHandle(compressed), 300000);
+    assertEquals(data[300000], (byte) in.read());
+    in.close();
+    assertEquals(count, index.getAccessPointCount());
+
+    in = index.open(new ByteArrayHandle(compressed), data.length - 1);
+    assertEquals(data[data.length - 1], (byte) in.read());
+    assertEquals(-1, in.read());
+    in.close();
+    assertEquals(data.length, index.getLength());
+    assertTrue(index.getAccessPointCount() > count);
+  }
+
+  @Test
+  public void testHandleSeek() throws IOException {
+    GZipHandle.setIndexSpan(SPAN);
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    assertEquals(data.length, handle.length());
+    Random random = new Random(7);
+    byte[] b = new byte[64];
+    for (int i=0; i<50; i++) {
+      int offset = random.nextInt(data.length - b.length);
+      handle.seek(offset);
+      handle.readFully(b);
+      assertEquals(offset + b.length, handle.getFilePointer());
+      for (int j=0; j<b.length; j++) {
+        assertEquals(data[offset + j], b[j]);
+      }
+    }
+    handle.close();
+  }
+
+  @Test
+  public void testIndexFile() throws IOException {
+    String path = file.getAbsolutePath();
+    String indexFile = path + GZipHandle.INDEX_SUFFIX;
+    GZipHandle.setIndexSpan(SPAN);
+    GZipHandle.setUseIndexFiles(true);
+
+    // the index is only built once the file is seeked backwards
+    GZipHandle handle = new GZipHandle(path);
+    assertEquals(data.length, handle.length());
+    handle.seek(1000);
+    handle.readByte();
+    assertFalse(new File(indexFile).exists());
+    handle.seek(10);
+    assertEquals(data[10], handle.readByte());
+    handle.close();
+    assertTrue(new File(indexFile).exists());
+
+    GZipIndex index =
+      GZipIndex.load(indexFile, file.length(), file.lastModified());
+    assertNotNull(index);
+    assertEquals(data.length, index.getLength());
+    assertNull(
+      GZipIndex.load(indexFile, file.length() + 1, file.lastModified()));
+
+    handle = new GZipHandle(path);
+    handle.seek(1400000);
+    assertEquals(data[1400000], handle.readByte());
+    handle.close();
+  }
+
+  // -- Helper classes --
+
+  /** Writes a gzip member using only uncompressed deflate blocks. */
+  private static class StoredGZIPOutputStream extends GZIPOutputStream {
+    public StoredGZIPOutputStream(ByteArrayOutputStream out)
+      throws IOException
+    {
+      super(out);
+      def.setLevel(Deflater.NO_COMPRESSION);
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * LOCI Common package: utilities for I/O, reflection and miscellaneous tasks.
+ * %%
+ * Copyright (C) 2008 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.IRandomAccess;
+import loci.common.utests.providers.IRandomAccessProvider;
+import loci.common.utests.providers.IRandomAccessProviderFactory;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for positional reads from a loci.common.IRandomAccess.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/common/test/loci/common/utests/ReadPositionalTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/common/test/loci/common/utests/ReadPositionalTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ *
+ * @see loci.common.IRandomAccess
+ */
+@Test(groups="readTests")
+public class ReadPositionalTest {
+
+  private static final byte[] PAGE = new byte[256];
+
+  static {
+    for (int i=0; i<PAGE.length; i++) {
+      PAGE[i] = (byte) (i * 7);
+    }
+  }
+
+  private static final String MODE = "r";
+
+  private static final int BUFFER_SIZE = 16;
+
+  private IRandomAccess fileHandle;
+
+  @Parameters({"provider"})
+  @BeforeMethod
+  public void setUp(String provider) throws IOException {
+    IRandomAccessProviderFactory factory = new IRandomAccessProviderFactory();
+    IRandomAccessProvider instance = factory.getInstance(provider);
+    fileHandle = instance.createMock(PAGE, MODE, BUFFER_SIZE);
+  }
+
+  @Test
+  public void testReadDoesNotMovePointer() throws IOException {
+    fileHandle.seek(10);
+    byte[] b = new byte[8];
+    assertEquals(6, fileHandle.read(100, b, 2, 6));
+    assertEquals(10, fileHandle.getFilePointer());
+    assertEquals(0, b[0]);
+    assertEquals(0, b[1]);
+    for (int i=2; i<8; i++) {
+      assertEquals(PAGE[98 + i], b[i]);
+    }
+    assertEquals(PAGE[10], fileHandle.readByte());
+  }
+
+  @Test
+  public void testReadByteBuffer() throws IOException {
+    fileHandle.seek(3);
+    ByteBuffer buf = ByteBuffer.allocate(8);
+    assertEquals(4, fileHandle.read(200, buf, 4, 4));
+    assertEquals(0, buf.position());
+    assertEquals(3, fileHandle.getFilePointer());
+    for (int i=0; i<4; i++) {
+      assertEquals(0, buf.get(i));
+      assertEquals(PAGE[200 + i], buf.get(4 + i));
+    }
+  }
+
+  @Test
+  public void testReadPastEnd() throws IOException {
+    byte[] b = new byte[16];
+    assertEquals(6, fileHandle.read(250, b, 0, 16));
+    for (int i=0; i<6; i++) {
+      assertEquals(PAGE[250 + i], b[i]);
+    }
+    assertEquals(0, fileHandle.read(256, b, 0, 16));
+    assertEquals(0, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t=0; t<16; t++) {
+        final int start = (t * 37) % 200;
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws IOException {
+            byte[] b = new byte[48];
+            for (int i=0; i<50; i++) {
+              if (fileHandle.read(start, b, 0, b.length) != b.length) {
+                return false;
+              }
+              for (int j=0; j<b.length; j++) {
+                if (b[j] != PAGE[start + j]) return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertEquals(Boolean.TRUE, result.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+}
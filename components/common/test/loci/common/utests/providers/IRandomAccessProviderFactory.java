@@ -61,6 +61,7 @@ public class IRandomAccessProviderFactory {
     providers.put("BZip2Handle", new BZip2HandleProvider());
     providers.put("GZipHandle", new GZipHandleProvider());
     providers.put("NIOFileHandle", new NIOFileHandleProvider());
+    providers.put("MappedNIOFileHandle", new MappedNIOFileHandleProvider());
     providers.put("URLHandle", new URLHandleProvider());
     providers.put("ZipHandle", new ZipHandleProvider());
   }
@@ -0,0 +1,457 @@
+/*
+ * #%L
+ * Fork of Apache Jakarta POI.
+ * %%
+ * Copyright (C) 2008 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package loci.poi.poifs.filesystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import loci.common.Constants;
+import loci.common.DataTools;
+import loci.common.HandleException;
+import loci.common.IRandomAccess;
+import loci.common.RandomAccessInputStream;
+import loci.poi.poifs.storage.DocumentBlock;
+
+/**
+ * Read-only random access to a DocumentEntry.  Logical offsets within the
+ * document are mapped onto the big blocks that hold its data, so that only
+ * the blocks covering a read are fetched from the underlying stream.
+ * Documents kept in small blocks are read into memory, as they are smaller
+ * than a single big block.
+ *
+ * The underlying stream is shared with the file system, and is not closed
+ * when this handle is closed.
+ */
+
+public class DocumentHandle
+    implements IRandomAccess
+{
+
+    // the file system's stream
+    private RandomAccessInputStream stream;
+
+    // offset within the stream of each big block, in document order
+    private long[] _block_offsets;
+
+    private int _block_size;
+
+    // document contents, for documents stored in small blocks
+    private byte[] _small_data;
+
+    private long _length;
+
+    private long _position;
+
+    private ByteOrder _order = ByteOrder.BIG_ENDIAN;
+
+    // buffer used to read primitive values
+    private byte[] _value_buffer = new byte[ 8 ];
+
+    public DocumentHandle(final DocumentEntry document,
+      RandomAccessInputStream stream) throws IOException
+    {
+        if (!(document instanceof DocumentNode))
+        {
+            throw new IOException("Cannot open internal document storage");
+        }
+        POIFSDocument doc = (( DocumentNode ) document).getDocument();
+        this.stream = stream;
+        _length = document.getSize();
+
+        DocumentBlock[] blocks = doc.getBigBlocks();
+        if (blocks.length == 0)
+        {
+            _small_data = new byte[ ( int ) _length ];
+            if (_length > 0)
+            {
+                doc.read(_small_data, 0, stream);
+            }
+        }
+        else
+        {
+            _block_size = blocks[ 0 ].getBigBlockSize();
+            _block_offsets = new long[ blocks.length ];
+            for (int i = 0; i < blocks.length; i++)
+            {
+                _block_offsets[ i ] = blocks[ i ].getOffset();
+            }
+        }
+    }
+
+    // -- IRandomAccess API methods --
+
+    public void close()
+    {
+        stream = null;
+        _block_offsets = null;
+        _small_data = null;
+    }
+
+    public long getFilePointer()
+    {
+        return _position;
+    }
+
+    public long length()
+    {
+        return _length;
+    }
+
+    public ByteOrder getOrder()
+    {
+        return _order;
+    }
+
+    public void setOrder(ByteOrder order)
+    {
+        _order = order;
+    }
+
+    public int read(byte[] b)
+        throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        int n = read(_position, b, off, len);
+        _position += n;
+        return n;
+    }
+
+    public int read(long pos, byte[] b, int off, int len)
+        throws IOException
+    {
+        if (pos + len > _length)
+        {
+            len = ( int ) Math.max(_length - pos, 0);
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (_small_data != null)
+        {
+            System.arraycopy(_small_data, ( int ) pos, b, off, len);
+        }
+        else
+        {
+            readBlocks(pos, b, off, len);
+        }
+        return len;
+    }
+
+    public int read(long pos, ByteBuffer buffer, int off, int len)
+        throws IOException
+    {
+        if (buffer.hasArray())
+        {
+            return read(pos, buffer.array(), buffer.arrayOffset() + off, len);
+        }
+        byte[] b = new byte[ len ];
+        int n = read(pos, b, 0, len);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(off);
+        dst.put(b, 0, n);
+        return n;
+    }
+
+    public int read(ByteBuffer buffer)
+        throws IOException
+    {
+        return read(buffer, 0, buffer.capacity());
+    }
+
+    public int read(ByteBuffer buffer, int off, int len)
+        throws IOException
+    {
+        if (buffer.hasArray())
+        {
+            return read(buffer.array(), buffer.arrayOffset() + off, len);
+        }
+        byte[] b = new byte[ len ];
+        int n = read(b, 0, len);
+        buffer.position(off);
+        buffer.put(b, 0, n);
+        return n;
+    }
+
+    public void seek(long pos)
+    {
+        _position = pos;
+    }
+
+    public void write(ByteBuffer buf)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void write(ByteBuffer buf, int off, int len)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    // -- DataInput API methods --
+
+    public boolean readBoolean()
+        throws IOException
+    {
+        return readByte() != 0;
+    }
+
+    public byte readByte()
+        throws IOException
+    {
+        readFully(_value_buffer, 0, 1);
+        return _value_buffer[ 0 ];
+    }
+
+    public char readChar()
+        throws IOException
+    {
+        return ( char ) readShort();
+    }
+
+    public double readDouble()
+        throws IOException
+    {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public float readFloat()
+        throws IOException
+    {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public void readFully(byte[] b)
+        throws IOException
+    {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (read(b, off, len) < len)
+        {
+            throw new EOFException("Attempting to read beyond end of file.");
+        }
+    }
+
+    public int readInt()
+        throws IOException
+    {
+        readFully(_value_buffer, 0, 4);
+        return DataTools.bytesToInt(_value_buffer, 0, 4, isLittleEndian());
+    }
+
+    public String readLine()
+        throws IOException
+    {
+        throw new IOException("Unimplemented");
+    }
+
+    public long readLong()
+        throws IOException
+    {
+        readFully(_value_buffer, 0, 8);
+        return DataTools.bytesToLong(_value_buffer, 0, 8, isLittleEndian());
+    }
+
+    public short readShort()
+        throws IOException
+    {
+        readFully(_value_buffer, 0, 2);
+        return DataTools.bytesToShort(_value_buffer, 0, 2, isLittleEndian());
+    }
+
+    public int readUnsignedByte()
+        throws IOException
+    {
+        return readByte() & 0xff;
+    }
+
+    public int readUnsignedShort()
+        throws IOException
+    {
+        return readShort() & 0xffff;
+    }
+
+    public String readUTF()
+        throws IOException
+    {
+        int length = readUnsignedShort();
+        byte[] b = new byte[ length ];
+        readFully(b);
+        return new String(b, Constants.ENCODING);
+    }
+
+    public int skipBytes(int n)
+    {
+        int skipped = ( int ) Math.min(n, _length - _position);
+        if (skipped < 0)
+        {
+            return 0;
+        }
+        _position += skipped;
+        return skipped;
+    }
+
+    // -- DataOutput API methods --
+
+    public void write(byte[] b)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeBoolean(boolean v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeByte(int v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeBytes(String s)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeChar(int v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeChars(String s)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeDouble(double v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeFloat(float v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeInt(int v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeLong(long v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeShort(int v)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    public void writeUTF(String str)
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+    // -- Helper methods --
+
+    /**
+     * Read len bytes starting at the given position, coalescing runs of
+     * physically contiguous blocks into single reads.
+     */
+
+    private void readBlocks(long pos, byte[] b, int off, int len)
+        throws IOException
+    {
+        int block = ( int ) (pos / _block_size);
+        int blockOffset = ( int ) (pos % _block_size);
+        int done = 0;
+
+        while (done < len)
+        {
+            long start = _block_offsets[ block ] + blockOffset;
+            int count = Math.min(_block_size - blockOffset, len - done);
+            block++;
+            while (done + count < len && block < _block_offsets.length &&
+                   _block_offsets[ block ] == start + count)
+            {
+                count += Math.min(_block_size, len - done - count);
+                block++;
+            }
+            if (stream.read(start, b, off + done, count) < count)
+            {
+                throw new EOFException();
+            }
+            done += count;
+            blockOffset = 0;
+        }
+    }
+
+    private boolean isLittleEndian()
+    {
+        return _order.equals(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static HandleException readOnly()
+    {
+        return new HandleException("This stream is read-only.");
+    }
+}   // end public class DocumentHandle
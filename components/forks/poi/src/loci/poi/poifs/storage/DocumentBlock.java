@@ -121,6 +121,12 @@ public class DocumentBlock
 
     public int getBigBlockSize() { return blockSize; }
 
+    /**
+     * @return offset of this block's data within the underlying file
+     */
+
+    public long getOffset() { return offset; }
+
     /**
      * Was this a partially read block?
      *
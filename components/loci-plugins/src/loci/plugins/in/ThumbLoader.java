@@ -39,6 +39,7 @@ import javax.swing.JLabel;
 import loci.common.DebugTools;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
+import loci.formats.ThumbnailCache;
 import loci.formats.gui.AWTImageTools;
 import loci.formats.gui.BufferedImageReader;
 import loci.plugins.BF;
@@ -70,7 +71,9 @@ public class ThumbLoader implements Runnable {
    * @param dialog the dialog containing the panels
    */
   public ThumbLoader(IFormatReader ir, Panel[] p, Dialog dialog) {
-    this.ir = BufferedImageReader.makeBufferedImageReader(ir);
+    // reuse thumbnails saved the last time this dataset was opened
+    this.ir = BufferedImageReader.makeBufferedImageReader(
+      new ThumbnailCache(ir));
     this.p = p;
     this.dialog = dialog;
     loader = new Thread(this, "BioFormats-ThumbLoader");
@@ -42,7 +42,7 @@ import loci.formats.IFormatReader;
 import loci.formats.cache.Cache;
 import loci.formats.cache.CacheException;
 import loci.formats.cache.CacheStrategy;
-import loci.formats.cache.CrosshairStrategy;
+import loci.formats.cache.VelocityStrategy;
 import loci.plugins.util.RecordedImageProcessor.MethodEntry;
 
 /**
@@ -118,7 +118,7 @@ public class BFVirtualStack extends VirtualStack {
     System.arraycopy(subC, 0, len, 0, subC.length);
     len[len.length - 2] = r.getSizeZ();
     len[len.length - 1] = r.getSizeT();
-    CacheStrategy strategy = new CrosshairStrategy(len);
+    CacheStrategy strategy = new VelocityStrategy(len);
 
     cache = new Cache(strategy, new ImageProcessorSource(r), true);
 
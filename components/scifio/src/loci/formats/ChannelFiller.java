@@ -250,6 +250,13 @@ public class ChannelFiller extends ReaderWrapper {
     return buf;
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  @Override
+  public boolean isThreadSafe() {
+    // the lookup table is retrieved from the most recently opened plane
+    return !isFilled() && reader.isThreadSafe();
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#getNativeDataType() */
@@ -37,6 +37,8 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import loci.common.DataTools;
 
@@ -57,28 +59,25 @@ public class ChannelSeparator extends ReaderWrapper {
     return new ChannelSeparator(r);
   }
 
-  // -- Fields --
-
-  /** Last image opened. */
-  private byte[] lastImage;
-
-  /** Index of last image opened. */
-  private int lastImageIndex = -1;
+  // -- Constants --
 
-  /** Series of last image opened. */
-  private int lastImageSeries = -1;
+  /** Default maximum size of the source image cache, in bytes. */
+  public static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
 
-  /** X index of last image opened. */
-  private int lastImageX = -1;
+  // -- Fields --
 
-  /** Y index of last image opened. */
-  private int lastImageY = -1;
+  /**
+   * Recently opened source images, keyed by series, image number and region,
+   * in order from least to most recently used.
+   */
+  private LinkedHashMap<SourceKey, byte[]> sourceCache =
+    new LinkedHashMap<SourceKey, byte[]>(16, 0.75f, true);
 
-  /** Width of last image opened. */
-  private int lastImageWidth = -1;
+  /** Total number of bytes in the source image cache. */
+  private long sourceCacheBytes;
 
-  /** Height of last image opened. */
-  private int lastImageHeight = -1;
+  /** Maximum number of bytes to keep in the source image cache. */
+  private long maxCacheBytes = DEFAULT_CACHE_SIZE;
 
   // -- Constructors --
 
@@ -109,6 +108,26 @@ public class ChannelSeparator extends ReaderWrapper {
     return reader.getIndex(coords[0], coords[1], coords[2]);
   }
 
+  /**
+   * Sets the maximum number of bytes used to cache source images.
+   * Each channel of a source image is split from the cached copy, so a
+   * source image is decoded once regardless of the order in which its
+   * channels are requested. The most recently opened source image is
+   * always kept, even if it is larger than the cache.
+   */
+  public void setCacheSize(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Invalid cache size: " + bytes);
+    }
+    maxCacheBytes = bytes;
+    trimCache();
+  }
+
+  /** Gets the maximum number of bytes used to cache source images. */
+  public long getCacheSize() {
+    return maxCacheBytes;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see IFormatReader#getImageCount() */
@@ -173,10 +192,9 @@ public class ChannelSeparator extends ReaderWrapper {
       int series = getSeries();
       int bpp = FormatTools.getBytesPerPixel(getPixelType());
 
-      if (source != lastImageIndex || series != lastImageSeries ||
-        x != lastImageX || y != lastImageY || w != lastImageWidth ||
-        h != lastImageHeight)
-      {
+      SourceKey key = new SourceKey(series, source, x, y, w, h);
+      byte[] sourceImage = sourceCache.get(key);
+      if (sourceImage == null) {
         int strips = 1;
 
         // check how big the original image is; if it's larger than the
@@ -190,36 +208,37 @@ public class ChannelSeparator extends ReaderWrapper {
           strips = (int) Math.sqrt(h);
         }
 
-        int stripHeight = h / strips;
-        int lastStripHeight = stripHeight + (h - (stripHeight * strips));
-        byte[] strip = strips == 1 ? buf : new byte[stripHeight * w * bpp];
-        for (int i=0; i<strips; i++) {
-          lastImage = reader.openBytes(source, x, y + i * stripHeight, w,
-            i == strips - 1 ? lastStripHeight : stripHeight);
-          lastImageIndex = source;
-          lastImageSeries = series;
-          lastImageX = x;
-          lastImageY = y + i * stripHeight;
-          lastImageWidth = w;
-          lastImageHeight = i == strips - 1 ? lastStripHeight : stripHeight;
-
-          if (strips != 1 && lastStripHeight != stripHeight && i == strips - 1)
-          {
-            strip = new byte[lastStripHeight * w * bpp];
-          }
-
-          ImageTools.splitChannels(lastImage, strip, channel, c, bpp,
-            false, isInterleaved(), strips == 1 ? w * h * bpp : strip.length);
-          if (strips != 1) {
+        if (strips == 1) {
+          sourceImage = reader.openBytes(source, x, y, w, h);
+          cacheSource(key, sourceImage);
+        }
+        else {
+          // too large to cache; split each strip as it is read, after
+          // releasing any cached images
+          clearCache();
+          int stripHeight = h / strips;
+          int lastStripHeight = stripHeight + (h - (stripHeight * strips));
+          byte[] strip = new byte[stripHeight * w * bpp];
+          for (int i=0; i<strips; i++) {
+            byte[] stripImage = reader.openBytes(source, x,
+              y + i * stripHeight, w,
+              i == strips - 1 ? lastStripHeight : stripHeight);
+
+            if (lastStripHeight != stripHeight && i == strips - 1) {
+              strip = new byte[lastStripHeight * w * bpp];
+            }
+
+            ImageTools.splitChannels(stripImage, strip, channel, c, bpp,
+              false, isInterleaved(), strip.length);
             System.arraycopy(strip, 0, buf, i * stripHeight * w * bpp,
               strip.length);
           }
+          return buf;
         }
       }
-      else {
-        ImageTools.splitChannels(lastImage, buf, channel, c, bpp,
-          false, isInterleaved(), w * h * bpp);
-      }
+
+      ImageTools.splitChannels(sourceImage, buf, channel, c, bpp,
+        false, isInterleaved(), w * h * bpp);
 
       return buf;
     }
@@ -244,16 +263,21 @@ public class ChannelSeparator extends ReaderWrapper {
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
     if (!fileOnly) {
-      lastImage = null;
-      lastImageIndex = -1;
-      lastImageSeries = -1;
-      lastImageX = -1;
-      lastImageY = -1;
-      lastImageWidth = -1;
-      lastImageHeight = -1;
+      clearCache();
     }
   }
 
+  /**
+   * Returns false, as the cache of source images is shared by all calls
+   * to openBytes.
+   *
+   * @see IFormatReader#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   public int getIndex(int z, int c, int t) {
     return FormatTools.getIndex(this, z, c, t);
   }
@@ -273,14 +297,71 @@ public class ChannelSeparator extends ReaderWrapper {
   public void setId(String id) throws FormatException, IOException {
     super.setId(id);
 
-    // clear last image cache
-    lastImage = null;
-    lastImageIndex = -1;
-    lastImageSeries = -1;
-    lastImageX = -1;
-    lastImageY = -1;
-    lastImageWidth = -1;
-    lastImageHeight = -1;
+    // clear source image cache
+    clearCache();
+  }
+
+  // -- Helper methods --
+
+  /** Adds a source image to the cache, evicting older images as needed. */
+  private void cacheSource(SourceKey key, byte[] image) {
+    byte[] previous = sourceCache.put(key, image);
+    if (previous != null) sourceCacheBytes -= previous.length;
+    sourceCacheBytes += image.length;
+    trimCache();
+  }
+
+  /**
+   * Removes the least recently used source images until the cache fits
+   * within its size limit, always keeping the most recently used image.
+   */
+  private void trimCache() {
+    Iterator<byte[]> images = sourceCache.values().iterator();
+    int remaining = sourceCache.size();
+    while (sourceCacheBytes > maxCacheBytes && remaining > 1) {
+      sourceCacheBytes -= images.next().length;
+      images.remove();
+      remaining--;
+    }
+  }
+
+  /** Removes all source images from the cache. */
+  private void clearCache() {
+    sourceCache.clear();
+    sourceCacheBytes = 0;
+  }
+
+  // -- Helper classes --
+
+  /** Identifies a region of a source image. */
+  private static class SourceKey {
+    private int series, no, x, y, w, h;
+
+    public SourceKey(int series, int no, int x, int y, int w, int h) {
+      this.series = series;
+      this.no = no;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof SourceKey)) return false;
+      SourceKey k = (SourceKey) o;
+      return series == k.series && no == k.no && x == k.x && y == k.y &&
+        w == k.w && h == k.h;
+    }
+
+    public int hashCode() {
+      int hash = series;
+      hash = 31 * hash + no;
+      hash = 31 * hash + x;
+      hash = 31 * hash + y;
+      hash = 31 * hash + w;
+      hash = 31 * hash + h;
+      return hash;
+    }
   }
 
 }
@@ -36,6 +36,7 @@
 
 package loci.formats;
 
+import java.io.Serializable;
 import java.util.Hashtable;
 
 /**
@@ -45,7 +46,15 @@ import java.util.Hashtable;
  * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/src/loci/formats/CoreMetadata.java">Trac</a>,
  * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/src/loci/formats/CoreMetadata.java;hb=HEAD">Gitweb</a></dd></dl>
  */
-public class CoreMetadata {
+public class CoreMetadata implements Serializable {
+
+  // -- Constants --
+
+  /**
+   * Must be changed whenever the fields change, along with
+   * {@link Memoizer}'s format version.
+   */
+  private static final long serialVersionUID = 1108709791367097416L;
 
   // -- Fields --
 
@@ -148,6 +157,13 @@ public class CoreMetadata {
    */
   public boolean thumbnail;
 
+  /**
+   * Number of resolution levels of this series, including the full
+   * resolution image.  The reader determines which series contain the lower
+   * resolution levels; see {@link IFormatReader#setResolution(int)}.
+   */
+  public int resolutionCount = 1;
+
   // -- Constructors --
 
   public CoreMetadata() {
@@ -179,6 +195,7 @@ public class CoreMetadata {
     metadataComplete = r.isMetadataComplete();
     seriesMetadata = r.getSeriesMetadata();
     thumbnail = r.isThumbnailSeries();
+    resolutionCount = r.getResolution() == 0 ? r.getResolutionCount() : 1;
     r.setSeries(series);
   }
 
@@ -213,6 +230,7 @@ public class CoreMetadata {
     sb.append("\n\tmetadataComplete = " + metadataComplete);
     sb.append("\n\tseriesMetadata = " + seriesMetadata.size() + " keys");
     sb.append("\n\tthumbnail = " + thumbnail);
+    sb.append("\n\tresolutionCount = " + resolutionCount);
     return sb.toString();
   }
 
@@ -37,6 +37,8 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Set;
 
 import loci.common.RandomAccessInputStream;
@@ -223,6 +225,31 @@ public abstract class DelegateReader extends FormatReader {
     return nativeReader.getOptimalTileHeight();
   }
 
+  // -- Internal FormatReader API methods --
+
+  /**
+   * Writes the state of the native reader.  Returns false if the legacy
+   * reader is in use, or if the native reader's state cannot be saved.
+   *
+   * @see FormatReader#saveState(ObjectOutputStream)
+   */
+  protected boolean saveState(ObjectOutputStream out) throws IOException {
+    if (!nativeReaderInitialized || legacyReaderInitialized ||
+      !(nativeReader instanceof FormatReader))
+    {
+      return false;
+    }
+    return ((FormatReader) nativeReader).saveState(out);
+  }
+
+  /* @see FormatReader#restoreState(ObjectInputStream) */
+  protected void restoreState(ObjectInputStream s)
+    throws FormatException, IOException, ClassNotFoundException
+  {
+    ((FormatReader) nativeReader).restoreMemo(currentId, core, metadata, s);
+    nativeReaderInitialized = true;
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#setId(String) */
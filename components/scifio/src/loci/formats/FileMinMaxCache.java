@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import loci.common.Location;
+
+/**
+ * {@link IMinMaxCache} implementation that saves statistics to a sidecar
+ * file. Each sidecar records the path, length and modification time of
+ * the file it describes, and is ignored once the file changes.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/FileMinMaxCache.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/FileMinMaxCache.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class FileMinMaxCache implements IMinMaxCache {
+
+  // -- Constants --
+
+  /** Suffix of each sidecar file. */
+  public static final String SUFFIX = ".minmax";
+
+  private static final String SIGNATURE = "LOCI MINMAX";
+  private static final int VERSION = 1;
+
+  // -- Fields --
+
+  /** Directory containing the sidecar files, or null. */
+  private String directory;
+
+  // -- Constructors --
+
+  /** Constructs a cache that saves statistics next to each file. */
+  public FileMinMaxCache() {
+    this(null);
+  }
+
+  /**
+   * Constructs a cache that saves statistics in the given directory.
+   * If the directory is null, statistics are saved next to each file.
+   */
+  public FileMinMaxCache(String directory) {
+    this.directory = directory;
+  }
+
+  // -- FileMinMaxCache API methods --
+
+  /** Gets the sidecar file used to store statistics for the given file. */
+  public File getCacheFile(String id) {
+    Location file = new Location(id);
+    if (directory == null) {
+      return new File(file.getAbsolutePath() + SUFFIX);
+    }
+    // include a hash of the full path, so that files with the same name in
+    // different directories do not share a sidecar
+    String hash = Integer.toHexString(file.getAbsolutePath().hashCode());
+    return new File(directory, file.getName() + "-" + hash + SUFFIX);
+  }
+
+  // -- IMinMaxCache API methods --
+
+  /* @see IMinMaxCache#load(String, IFormatReader) */
+  public MinMaxStatistics load(String id, IFormatReader reader)
+    throws IOException
+  {
+    File cacheFile = getCacheFile(id);
+    if (!cacheFile.exists()) return null;
+
+    Location file = new Location(id);
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(cacheFile)));
+    int oldSeries = reader.getSeries();
+    try {
+      if (!in.readUTF().equals(SIGNATURE) || in.readInt() != VERSION ||
+        !in.readUTF().equals(file.getAbsolutePath()) ||
+        in.readLong() != file.length() || in.readLong() != file.lastModified())
+      {
+        return null;
+      }
+
+      // every length is checked before anything is allocated, so that a
+      // corrupt sidecar is treated like a stale one
+      int seriesCount = in.readInt();
+      if (seriesCount != reader.getSeriesCount()) return null;
+      MinMaxStatistics stats = new MinMaxStatistics();
+      stats.minMaxDone = new int[seriesCount];
+      stats.chanMin = new double[seriesCount][];
+      stats.chanMax = new double[seriesCount][];
+      stats.planeMin = new double[seriesCount][];
+      stats.planeMax = new double[seriesCount][];
+      stats.chanHistogram = new long[seriesCount][][];
+      for (int s=0; s<seriesCount; s++) {
+        reader.setSeries(s);
+        int sizeC = reader.getSizeC();
+        int planes = reader.getImageCount() * reader.getRGBChannelCount();
+        stats.minMaxDone[s] = in.readInt();
+        stats.chanMin[s] = readDoubles(in, sizeC);
+        stats.chanMax[s] = readDoubles(in, sizeC);
+        stats.planeMin[s] = readDoubles(in, planes);
+        stats.planeMax[s] = readDoubles(in, planes);
+        if (stats.minMaxDone[s] < 0 ||
+          stats.minMaxDone[s] > reader.getImageCount() ||
+          stats.chanMin[s] == null || stats.chanMax[s] == null ||
+          stats.planeMin[s] == null || stats.planeMax[s] == null)
+        {
+          return null;
+        }
+        int channels = in.readInt();
+        if (channels >= 0) {
+          if (channels != sizeC) return null;
+          stats.chanHistogram[s] = new long[channels][];
+          for (int c=0; c<channels; c++) {
+            if (in.readInt() != MinMaxCalculator.HISTOGRAM_BINS) return null;
+            long[] histogram = new long[MinMaxCalculator.HISTOGRAM_BINS];
+            for (int i=0; i<histogram.length; i++) {
+              histogram[i] = in.readLong();
+            }
+            stats.chanHistogram[s][c] = histogram;
+          }
+        }
+      }
+      return stats;
+    }
+    finally {
+      reader.setSeries(oldSeries);
+      in.close();
+    }
+  }
+
+  /*
+   * @see IMinMaxCache#save(String, MinMaxStatistics)
+   *
+   * The statistics are written to a temporary file first, so that other
+   * processes never see a partially written sidecar.
+   */
+  public void save(String id, MinMaxStatistics stats) throws IOException {
+    File cacheFile = getCacheFile(id);
+    File tmp = File.createTempFile(cacheFile.getName(), ".tmp",
+      cacheFile.getAbsoluteFile().getParentFile());
+    boolean success = false;
+    try {
+      write(tmp, id, stats);
+      // renaming onto an existing file fails on some platforms
+      cacheFile.delete();
+      success = tmp.renameTo(cacheFile);
+    }
+    finally {
+      if (!success) tmp.delete();
+    }
+    if (!success) throw new IOException("Could not rename " + tmp);
+  }
+
+  // -- Helper methods --
+
+  /** Writes the statistics for the given file to a sidecar file. */
+  private void write(File cacheFile, String id, MinMaxStatistics stats)
+    throws IOException
+  {
+    Location file = new Location(id);
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(cacheFile)));
+    try {
+      out.writeUTF(SIGNATURE);
+      out.writeInt(VERSION);
+      out.writeUTF(file.getAbsolutePath());
+      out.writeLong(file.length());
+      out.writeLong(file.lastModified());
+
+      int seriesCount = stats.minMaxDone.length;
+      out.writeInt(seriesCount);
+      for (int s=0; s<seriesCount; s++) {
+        out.writeInt(stats.minMaxDone[s]);
+        writeDoubles(out, stats.chanMin[s]);
+        writeDoubles(out, stats.chanMax[s]);
+        writeDoubles(out, stats.planeMin[s]);
+        writeDoubles(out, stats.planeMax[s]);
+        long[][] histograms =
+          stats.chanHistogram == null ? null : stats.chanHistogram[s];
+        out.writeInt(histograms == null ? -1 : histograms.length);
+        if (histograms != null) {
+          for (long[] histogram : histograms) {
+            out.writeInt(histogram.length);
+            for (long count : histogram) {
+              out.writeLong(count);
+            }
+          }
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads an array of doubles, or returns null if the array does not have
+   * the expected length.
+   */
+  private static double[] readDoubles(DataInputStream in, int length)
+    throws IOException
+  {
+    if (in.readInt() != length) return null;
+    double[] values = new double[length];
+    for (int i=0; i<values.length; i++) {
+      values[i] = in.readDouble();
+    }
+    return values;
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] values)
+    throws IOException
+  {
+    out.writeInt(values.length);
+    for (double v : values) {
+      out.writeDouble(v);
+    }
+  }
+
+}
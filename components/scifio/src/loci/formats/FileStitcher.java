@@ -503,6 +503,17 @@ public class FileStitcher extends ReaderWrapper {
     return externals[getExternalSeries()].getBlankThumbBytes();
   }
 
+  /**
+   * Returns false, as the file containing a plane may need to be opened
+   * from within openBytes.
+   *
+   * @see IFormatReader#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   /* @see IFormatReader#close() */
   public void close() throws IOException {
     close(false);
@@ -551,6 +562,24 @@ public class FileStitcher extends ReaderWrapper {
     return reader.getSeries() > 0 ? reader.getSeries() : series;
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return reader.getResolutionCount();
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    reader.setResolution(no);
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    return reader.getResolution();
+  }
+
   /* @see IFormatReader#setGroupFiles(boolean) */
   public void setGroupFiles(boolean group) {
     this.group = group;
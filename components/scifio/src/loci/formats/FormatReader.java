@@ -37,10 +37,18 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.DataTools;
 import loci.common.Location;
@@ -187,6 +195,9 @@ public abstract class FormatReader extends FormatHandler
   /** Metadata parsing options. */
   protected MetadataOptions metadataOptions = new DefaultMetadataOptions();
 
+  /** Executor for asynchronous reads; null if the shared one is used. */
+  private ExecutorService readExecutor;
+
   private ServiceFactory factory;
   private OMEXMLService service;
 
@@ -473,6 +484,83 @@ public abstract class FormatReader extends FormatHandler
     return new FilterMetadata(getMetadataStore(), isMetadataFiltered());
   }
 
+  /**
+   * Gets the series containing the given resolution level of the given full
+   * resolution series.  The default implementation assumes that the
+   * resolution levels of a series are stored in the series that follow it,
+   * from largest to smallest; readers that store them in another order
+   * must override this method.
+   */
+  protected int getResolutionSeries(int fullResolution, int resolution) {
+    return fullResolution + resolution;
+  }
+
+  /**
+   * Finds the series in the given range (inclusive) that are lower
+   * resolution copies of the given full resolution series.  The full
+   * resolution series is returned first, followed by the lower resolution
+   * levels from largest to smallest.
+   */
+  protected int[] findResolutionSeries(int fullResolution, int first,
+    int last)
+  {
+    List<Integer> levels = new ArrayList<Integer>();
+    for (int s=first; s<=last; s++) {
+      if (isResolutionOf(s, fullResolution)) levels.add(s);
+    }
+    Collections.sort(levels, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return core[b].sizeX - core[a].sizeX;
+      }
+    });
+    int[] resolutions = new int[levels.size() + 1];
+    resolutions[0] = fullResolution;
+    for (int i=0; i<levels.size(); i++) {
+      resolutions[i + 1] = levels.get(i);
+    }
+    return resolutions;
+  }
+
+  /**
+   * Writes any state built by {@link #initFile(String)} that is needed in
+   * addition to the core metadata, the original metadata and the metadata
+   * store, so that {@link Memoizer} can restore the reader without parsing
+   * the file again.
+   *
+   * @return true if the reader can be restored from the written state;
+   *   the default implementation writes nothing and returns false
+   */
+  protected boolean saveState(ObjectOutputStream out) throws IOException {
+    return false;
+  }
+
+  /**
+   * Restores the state written by {@link #saveState(ObjectOutputStream)}.
+   * The current file, core metadata and original metadata have already
+   * been restored when this method is called.
+   */
+  protected void restoreState(ObjectInputStream s)
+    throws FormatException, IOException, ClassNotFoundException
+  {
+  }
+
+  /**
+   * Initializes the given file from state saved by {@link Memoizer}: the
+   * same steps as {@link #initFile(String)}, without parsing the file.
+   */
+  void restoreMemo(String id, CoreMetadata[] core,
+    Hashtable<String, Object> metadata, ObjectInputStream s)
+    throws FormatException, IOException, ClassNotFoundException
+  {
+    close();
+    series = 0;
+    currentId = id;
+    this.core = core;
+    this.metadata = metadata;
+    getMetadataStore().createRoot();
+    restoreState(s);
+  }
+
   // -- IMetadataConfigurable API methods --
 
   /* (non-Javadoc)
@@ -771,6 +859,18 @@ public abstract class FormatReader extends FormatHandler
   public abstract byte[] openBytes(int no, byte[] buf, int x, int y,
     int w, int h) throws FormatException, IOException;
 
+  /* @see IFormatReader#openBytesAsync(int, int, int, int, int) */
+  public Future<byte[]> openBytesAsync(int no, int x, int y, int w, int h) {
+    return FormatTools.openBytesAsync(this, readExecutor, no, null, x, y, w, h);
+  }
+
+  /* @see IFormatReader#openBytesAsync(int, byte[], int, int, int, int) */
+  public Future<byte[]> openBytesAsync(int no, byte[] buf, int x, int y,
+    int w, int h)
+  {
+    return FormatTools.openBytesAsync(this, readExecutor, no, buf, x, y, w, h);
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int int) */
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
@@ -813,6 +913,30 @@ public abstract class FormatReader extends FormatHandler
     return series;
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    FormatTools.assertId(currentId, true, 1);
+    return core[getFullResolutionSeries()].resolutionCount;
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    if (no < 0 || no >= getResolutionCount()) {
+      throw new IllegalArgumentException("Invalid resolution: " + no);
+    }
+    setSeries(getResolutionSeries(getFullResolutionSeries(), no));
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    FormatTools.assertId(currentId, true, 1);
+    int fullResolution = getFullResolutionSeries();
+    for (int r=1; r<core[fullResolution].resolutionCount; r++) {
+      if (getResolutionSeries(fullResolution, r) == series) return r;
+    }
+    return 0;
+  }
+
   /* @see IFormatReader#setGroupFiles(boolean) */
   public void setGroupFiles(boolean groupFiles) {
     FormatTools.assertId(currentId, false, 1);
@@ -1090,6 +1214,26 @@ public abstract class FormatReader extends FormatHandler
      return (int) Math.min(maxHeight, getSizeY());
   }
 
+  /**
+   * Returns false; readers whose openBytes does not depend on shared mutable
+   * state should override this method.
+   *
+   * @see IFormatReader#isThreadSafe()
+   */
+  public boolean isThreadSafe() {
+    return false;
+  }
+
+  /* @see IFormatReader#setReadExecutor(ExecutorService) */
+  public void setReadExecutor(ExecutorService executor) {
+    readExecutor = executor;
+  }
+
+  /* @see IFormatReader#getReadExecutor() */
+  public ExecutorService getReadExecutor() {
+    return readExecutor;
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#isThisType(String) */
@@ -1596,4 +1740,39 @@ public abstract class FormatReader extends FormatHandler
     return transform;
   }
 
+  // -- Helper methods --
+
+  /**
+   * Gets whether the given series looks like a lower resolution copy of the
+   * given full resolution series: the pixel type and channels are the same,
+   * the image is smaller, and the aspect ratio is the same to within one
+   * pixel.
+   */
+  private boolean isResolutionOf(int s, int fullResolution) {
+    CoreMetadata full = core[fullResolution];
+    CoreMetadata level = core[s];
+    if (level.pixelType != full.pixelType || level.sizeC != full.sizeC ||
+      level.rgb != full.rgb || level.imageCount != full.imageCount ||
+      level.sizeX >= full.sizeX || level.sizeY >= full.sizeY)
+    {
+      return false;
+    }
+    double scale = (double) full.sizeX / level.sizeX;
+    return Math.abs(full.sizeY / scale - level.sizeY) <= 1;
+  }
+
+  /**
+   * Gets the full resolution series of which the current series is a
+   * resolution level, or the current series if it is not a lower resolution
+   * level of another series.
+   */
+  private int getFullResolutionSeries() {
+    for (int s=0; s<core.length; s++) {
+      for (int r=1; r<core[s].resolutionCount; r++) {
+        if (getResolutionSeries(s, r) == series) return s;
+      }
+    }
+    return series;
+  }
+
 }
@@ -38,11 +38,15 @@ package loci.formats;
 
 import java.io.IOException;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.common.DateTools;
 import loci.common.RandomAccessInputStream;
-import loci.common.ReflectException;
-import loci.common.ReflectedUniverse;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
@@ -259,6 +263,11 @@ public final class FormatTools {
   public static final String URL_OME_TIFF =
     "http://ome-xml.org/wiki/OmeTiff";
 
+  // -- Static fields --
+
+  /** Executor for asynchronous reads by readers without their own executor. */
+  private static ExecutorService sharedReadExecutor;
+
   // -- Constructor --
 
   private FormatTools() { }
@@ -900,59 +909,109 @@ public final class FormatTools {
   /**
    * Default implementation for {@link IFormatReader#openThumbBytes}.
    *
-   * At the moment, it uses {@link java.awt.image.BufferedImage} objects
-   * to resize thumbnails, so it is not safe for use in headless contexts.
-   * In the future, we may reimplement the image scaling logic purely with
-   * byte arrays, but handling every case would be substantial effort, so
-   * doing so is currently a low priority item.
+   * The thumbnail is downsampled from the image plane one tile at a time,
+   * so that the full plane is never held in memory; see
+   * {@link ThumbnailScaler}.  If lower resolution levels of the current
+   * series are available, the smallest level that is at least as large as
+   * the thumbnail is downsampled instead.  Planes much larger than the
+   * thumbnail are sampled rather than averaged; see
+   * {@link ThumbnailScaler#getDefaultMethod(IFormatReader, int, int)}.
    */
   public static byte[] openThumbBytes(IFormatReader reader, int no)
     throws FormatException, IOException
   {
-    // NB: Dependency on AWT here is unfortunate, but very difficult to
-    // eliminate in general. We use reflection to limit class loading
-    // problems with AWT on Mac OS X.
-    ReflectedUniverse r = new ReflectedUniverse();
-    byte[][] bytes = null;
-    try {
-      r.exec("import loci.formats.gui.AWTImageTools");
-
-      int planeSize = getPlaneSize(reader);
-      byte[] plane = null;
-      if (planeSize < 0) {
-        int width = reader.getThumbSizeX() * 4;
-        int height = reader.getThumbSizeY() * 4;
-        int x = (reader.getSizeX() - width) / 2;
-        int y = (reader.getSizeY() - height) / 2;
-        plane = reader.openBytes(no, x, y, width, height);
-      }
-      else {
-        plane = reader.openBytes(no);
+    int thumbSizeX = reader.getThumbSizeX();
+    int thumbSizeY = reader.getThumbSizeY();
+
+    int resolution = reader.getResolution();
+    int level = resolution;
+    if (resolution == 0 && reader.getResolutionCount() > 1) {
+      for (int r=reader.getResolutionCount()-1; r>0; r--) {
+        reader.setResolution(r);
+        if (reader.getSizeX() >= thumbSizeX &&
+          reader.getSizeY() >= thumbSizeY)
+        {
+          level = r;
+          break;
+        }
       }
+      reader.setResolution(resolution);
+    }
+    if (level == resolution) {
+      return ThumbnailScaler.openThumbBytes(reader, no, thumbSizeX,
+        thumbSizeY,
+        ThumbnailScaler.getDefaultMethod(reader, thumbSizeX, thumbSizeY));
+    }
 
-      r.setVar("plane", plane);
-      r.setVar("reader", reader);
-      r.setVar("sizeX", reader.getSizeX());
-      r.setVar("sizeY", reader.getSizeY());
-      r.setVar("thumbSizeX", reader.getThumbSizeX());
-      r.setVar("thumbSizeY", reader.getThumbSizeY());
-      r.setVar("little", reader.isLittleEndian());
-      r.exec("img = AWTImageTools.openImage(plane, reader, sizeX, sizeY)");
-      r.exec("img = AWTImageTools.makeUnsigned(img)");
-      r.exec("thumb = AWTImageTools.scale(img, thumbSizeX, thumbSizeY, false)");
-      bytes = (byte[][]) r.exec("AWTImageTools.getPixelBytes(thumb, little)");
+    reader.setResolution(level);
+    try {
+      return ThumbnailScaler.openThumbBytes(reader, no, thumbSizeX,
+        thumbSizeY,
+        ThumbnailScaler.getDefaultMethod(reader, thumbSizeX, thumbSizeY));
     }
-    catch (ReflectException exc) {
-      throw new FormatException(exc);
+    finally {
+      reader.setResolution(resolution);
     }
+  }
+
+  /**
+   * Default implementation for {@link IFormatReader#openBytesAsync}.
+   *
+   * Submits a call to openBytes on the given reader to the given executor,
+   * or to a shared executor if the given executor is null.  Calls are
+   * synchronized on the reader unless it reports that it is thread safe;
+   * synchronous calls are not, so callers must not use a reader that is not
+   * thread safe until the returned Future is done, unless they synchronize
+   * on the reader themselves.
+   *
+   * @param buf a pre-allocated buffer, or null to allocate a new buffer.
+   */
+  public static Future<byte[]> openBytesAsync(final IFormatReader reader,
+    ExecutorService executor, final int no, final byte[] buf,
+    final int x, final int y, final int w, final int h)
+  {
+    final int series = reader.getSeries();
+    Callable<byte[]> read = new Callable<byte[]>() {
+      public byte[] call() throws FormatException, IOException {
+        if (reader.isThreadSafe()) return openBytes();
+        synchronized (reader) {
+          return openBytes();
+        }
+      }
 
-    if (bytes.length == 1) return bytes[0];
-    int rgbChannelCount = reader.getRGBChannelCount();
-    byte[] rtn = new byte[rgbChannelCount * bytes[0].length];
-    for (int i=0; i<rgbChannelCount; i++) {
-      System.arraycopy(bytes[i], 0, rtn, bytes[0].length * i, bytes[i].length);
+      private byte[] openBytes() throws FormatException, IOException {
+        if (reader.getSeries() != series) {
+          throw new FormatException("Series changed from " + series +
+            " to " + reader.getSeries() + " before plane " + no +
+            " was read");
+        }
+        if (buf == null) return reader.openBytes(no, x, y, w, h);
+        return reader.openBytes(no, buf, x, y, w, h);
+      }
+    };
+    if (executor == null) executor = getSharedReadExecutor();
+    return executor.submit(read);
+  }
+
+  /**
+   * Gets the executor used for {@link IFormatReader#openBytesAsync} when no
+   * executor has been set.  The executor has one daemon thread per available
+   * processor, and is shared by all readers.
+   */
+  public static synchronized ExecutorService getSharedReadExecutor() {
+    if (sharedReadExecutor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      sharedReadExecutor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Bio-Formats-Read-" +
+              count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
     }
-    return rtn;
+    return sharedReadExecutor;
   }
 
   // -- Conversion convenience methods --
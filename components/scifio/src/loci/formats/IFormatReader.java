@@ -38,6 +38,8 @@ package loci.formats;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.RandomAccessInputStream;
 import loci.formats.meta.MetadataStore;
@@ -286,6 +288,51 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
   byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
     throws FormatException, IOException;
 
+  /**
+   * Starts obtaining a sub-image of the specified image plane, and returns
+   * without waiting for the pixels to be read.
+   *
+   * The read is performed on the executor returned by
+   * {@link #getReadExecutor()}, with the series that is current when this
+   * method is called; the series must not be changed until the returned
+   * Future is done.  Reads are only performed concurrently if
+   * {@link #isThreadSafe()} returns true; otherwise they are performed one
+   * at a time, synchronized on the reader.  The reader's other methods do
+   * not take that lock, so no other call may be made on a reader that is
+   * not thread safe until all of the returned Futures are done, unless the
+   * caller also synchronizes on the reader.
+   *
+   * @param no the image index within the file.
+   * @param x X coordinate of the upper-left corner of the sub-image
+   * @param y Y coordinate of the upper-left corner of the sub-image
+   * @param w width of the sub-image
+   * @param h height of the sub-image
+   * @return a Future whose result is a newly allocated buffer containing the
+   *   sub-image.  A FormatException or IOException thrown while reading is
+   *   reported as the cause of the ExecutionException thrown by
+   *   {@link Future#get()}.
+   */
+  Future<byte[]> openBytesAsync(int no, int x, int y, int w, int h);
+
+  /**
+   * Starts obtaining a sub-image of the specified image plane into a
+   * pre-allocated byte array, and returns without waiting for the pixels
+   * to be read.  The buffer must not be used until the returned Future is
+   * done.
+   *
+   * @param no the image index within the file.
+   * @param buf a pre-allocated buffer.
+   * @param x X coordinate of the upper-left corner of the sub-image
+   * @param y Y coordinate of the upper-left corner of the sub-image
+   * @param w width of the sub-image
+   * @param h height of the sub-image
+   * @return a Future whose result is the pre-allocated buffer
+   *   <code>buf</code>.
+   * @see #openBytesAsync(int, int, int, int, int)
+   */
+  Future<byte[]> openBytesAsync(int no, byte[] buf, int x, int y, int w,
+    int h);
+
   /**
    * Obtains the specified image plane (or sub-image thereof) in the reader's
    * native data structure. For most readers this is a byte array; however,
@@ -322,6 +369,31 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
   /** Gets the currently active series. */
   int getSeries();
 
+  /**
+   * Gets the number of resolution levels of the current series, including
+   * the full resolution image, or 1 if no lower resolution copies of the
+   * current series are available.  If the current series is itself a lower
+   * resolution level, the number of levels of its full resolution series is
+   * returned.
+   */
+  int getResolutionCount();
+
+  /**
+   * Activates the specified resolution level of the current series, where 0
+   * is the full resolution image and {@link #getResolutionCount()} - 1 is the
+   * smallest image.  Each resolution level is stored in its own series, so
+   * this changes the active series to the one containing the requested
+   * level; {@link #getSizeX()}, {@link #getSizeY()} and the openBytes
+   * methods then refer to that level.
+   */
+  void setResolution(int resolution);
+
+  /**
+   * Gets the currently active resolution level, where 0 is the full
+   * resolution image.
+   */
+  int getResolution();
+
   /** Specifies whether or not to normalize float data. */
   void setNormalized(boolean normalize);
 
@@ -499,6 +571,27 @@ public interface IFormatReader extends IFormatHandler, IMetadataConfigurable {
   /** Returns the optimal sub-image height for use with openBytes. */
   int getOptimalTileHeight();
 
+  /**
+   * Returns true if openBytes may be called concurrently from several threads
+   * on this reader, provided that each call uses its own buffer.  The series,
+   * resolution and any other reader state must not be changed while such
+   * calls are in progress.
+   */
+  boolean isThreadSafe();
+
+  /**
+   * Sets the executor on which {@link #openBytesAsync} reads are performed.
+   * If null, a shared executor with one thread per available processor is
+   * used.
+   */
+  void setReadExecutor(ExecutorService executor);
+
+  /**
+   * Gets the executor on which {@link #openBytesAsync} reads are performed,
+   * or null if the shared executor is used.
+   */
+  ExecutorService getReadExecutor();
+
   // -- Deprecated methods --
 
   /**
@@ -43,6 +43,8 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
@@ -414,6 +416,20 @@ public class ImageReader implements IFormatReader {
     return getReader().openBytes(no, buf, x, y, w, h);
   }
 
+  /* @see IFormatReader#openBytesAsync(int, int, int, int, int) */
+  public Future<byte[]> openBytesAsync(int no, int x, int y, int w, int h) {
+    return FormatTools.openBytesAsync(this, getReadExecutor(), no, null,
+      x, y, w, h);
+  }
+
+  /* @see IFormatReader#openBytesAsync(int, byte[], int, int, int, int) */
+  public Future<byte[]> openBytesAsync(int no, byte[] buf, int x, int y,
+    int w, int h)
+  {
+    return FormatTools.openBytesAsync(this, getReadExecutor(), no, buf,
+      x, y, w, h);
+  }
+
   /* @see IFormatReader#openPlane(int, int, int, int, int) */
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
@@ -441,6 +457,21 @@ public class ImageReader implements IFormatReader {
     return getReader().getSeries();
   }
 
+  /* @see IFormatReader#getResolutionCount() */
+  public int getResolutionCount() {
+    return getReader().getResolutionCount();
+  }
+
+  /* @see IFormatReader#setResolution(int) */
+  public void setResolution(int no) {
+    getReader().setResolution(no);
+  }
+
+  /* @see IFormatReader#getResolution() */
+  public int getResolution() {
+    return getReader().getResolution();
+  }
+
   /* @see IFormatReader#getUsedFiles() */
   public String[] getUsedFiles() {
     return getReader().getUsedFiles();
@@ -658,6 +689,22 @@ public class ImageReader implements IFormatReader {
     return getReader().getOptimalTileHeight();
   }
 
+  /* @see IFormatReader#isThreadSafe() */
+  public boolean isThreadSafe() {
+    return getReader().isThreadSafe();
+  }
+
+  /* @see IFormatReader#setReadExecutor(ExecutorService) */
+  public void setReadExecutor(ExecutorService executor) {
+    for (int i=0; i<readers.length; i++) readers[i].setReadExecutor(executor);
+  }
+
+  /* @see IFormatReader#getReadExecutor() */
+  public ExecutorService getReadExecutor() {
+    // NB: all readers should have the same read executor
+    return readers[0].getReadExecutor();
+  }
+
   // -- IFormatHandler API methods --
 
   /* @see IFormatHandler#isThisType(String) */
@@ -0,0 +1,418 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+import loci.common.Location;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.meta.MetadataStore;
+import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.IFDType;
+import loci.formats.tiff.TiffIFDEntry;
+import loci.formats.tiff.TiffRational;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader wrapper that saves the state of an initialized reader to a memo
+ * file, and restores that state the next time the same file is opened
+ * instead of parsing the file again.
+ *
+ * A memo records the core metadata, the original metadata, the contents of
+ * the metadata store (as OME-XML) and any reader-specific state written by
+ * {@link FormatReader#saveState}.  Memos are keyed by the path, length and
+ * modification time of every file used by the dataset, and by the reader
+ * settings that affect parsing; a stale memo is replaced after a full parse.
+ *
+ * Only readers that implement {@link FormatReader#saveState} are memoized;
+ * for any other reader, or if the wrapped reader is not a
+ * {@link FormatReader} or an {@link ImageReader}, setId behaves as usual.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/Memoizer.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/Memoizer.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class Memoizer extends ReaderWrapper {
+
+  // -- Constants --
+
+  /** Suffix of each memo file. */
+  public static final String SUFFIX = ".bfmemo";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Memoizer.class);
+
+  private static final String SIGNATURE = "LOCI MEMO";
+
+  /**
+   * Version of the memo file format.  This must be incremented whenever
+   * the state saved by any reader changes.
+   */
+  private static final int VERSION = 2;
+
+  /**
+   * Classes that may be deserialized from a memo.  Memos are stored next to
+   * the data by default, so any other class is rejected rather than
+   * instantiated.  Arrays of these classes and of primitives are allowed.
+   */
+  private static final Set<String> ALLOWED_CLASSES =
+    new HashSet<String>(Arrays.asList(new String[] {
+      CoreMetadata.class.getName(), IFD.class.getName(),
+      IFDList.class.getName(), IFDType.class.getName(),
+      TiffIFDEntry.class.getName(), TiffRational.class.getName(),
+      "java.lang.Boolean", "java.lang.Byte", "java.lang.Character",
+      "java.lang.Double", "java.lang.Enum", "java.lang.Float",
+      "java.lang.Integer", "java.lang.Long", "java.lang.Number",
+      "java.lang.Short", "java.lang.String", "java.util.ArrayList",
+      "java.util.HashMap", "java.util.Hashtable"
+    }));
+
+  // -- Fields --
+
+  /** Directory containing the memo files, or null. */
+  private String directory;
+
+  /** Whether the current file was restored from a memo. */
+  private boolean loadedFromMemo;
+
+  /** Whether a memo was saved for the current file. */
+  private boolean savedToMemo;
+
+  private OMEXMLService service;
+
+  // -- Constructors --
+
+  /** Constructs a memoizer around a new image reader. */
+  public Memoizer() { this(new ImageReader()); }
+
+  /** Constructs a memoizer that saves memos next to each file. */
+  public Memoizer(IFormatReader r) { this(r, null); }
+
+  /**
+   * Constructs a memoizer that saves memos in the given directory.
+   * If the directory is null, memos are saved next to each file.
+   */
+  public Memoizer(IFormatReader r, String directory) {
+    super(r);
+    this.directory = directory;
+  }
+
+  // -- Memoizer API methods --
+
+  /** Gets the memo file used to store the state for the given file. */
+  public File getMemoFile(String id) {
+    Location file = new Location(id);
+    if (directory == null) {
+      return new File(file.getAbsolutePath() + SUFFIX);
+    }
+    // include a hash of the full path, so that files with the same name in
+    // different directories do not share a memo
+    String hash = Integer.toHexString(file.getAbsolutePath().hashCode());
+    return new File(directory, file.getName() + "-" + hash + SUFFIX);
+  }
+
+  /** Returns true if the current file was restored from a memo. */
+  public boolean isLoadedFromMemo() {
+    return loadedFromMemo;
+  }
+
+  /** Returns true if a memo was saved when the current file was opened. */
+  public boolean isSavedToMemo() {
+    return savedToMemo;
+  }
+
+  // -- IFormatHandler API methods --
+
+  /* @see IFormatHandler#setId(String) */
+  public void setId(String id) throws FormatException, IOException {
+    if (id.equals(getCurrentFile())) return;
+    loadedFromMemo = false;
+    savedToMemo = false;
+
+    Location file = new Location(id);
+    if (!file.exists() || file.isDirectory()) {
+      reader.setId(id);
+      return;
+    }
+
+    File memo = getMemoFile(id);
+    if (memo.exists()) {
+      try {
+        loadedFromMemo = loadMemo(id, memo);
+      }
+      catch (ClassNotFoundException e) {
+        LOGGER.debug("Could not load memo for " + id, e);
+      }
+      catch (FormatException e) {
+        LOGGER.debug("Could not load memo for " + id, e);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not load memo for " + id, e);
+      }
+      if (!loadedFromMemo) {
+        // discard any partially restored state
+        reader.close();
+      }
+    }
+
+    if (!loadedFromMemo) {
+      reader.setId(id);
+      try {
+        savedToMemo = saveMemo(id, memo);
+      }
+      catch (FormatException e) {
+        LOGGER.debug("Could not save memo for " + id, e);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not save memo for " + id, e);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Gets the reader that does the parsing for the given file, if any. */
+  private FormatReader getFormatReader(String id)
+    throws FormatException, IOException
+  {
+    IFormatReader r = reader;
+    if (r instanceof ImageReader) {
+      r = id == null ?
+        ((ImageReader) r).getReader() : ((ImageReader) r).getReader(id);
+    }
+    return r instanceof FormatReader ? (FormatReader) r : null;
+  }
+
+  /**
+   * Restores the state of the reader from the given memo.
+   *
+   * @return true if the memo matched the file and the reader settings
+   */
+  private boolean loadMemo(String id, File memo)
+    throws ClassNotFoundException, FormatException, IOException
+  {
+    FormatReader r = getFormatReader(id);
+    if (r == null) return false;
+
+    ObjectInputStream in = new MemoInputStream(
+      new BufferedInputStream(new FileInputStream(memo)));
+    try {
+      if (!in.readUTF().equals(SIGNATURE) || in.readInt() != VERSION ||
+        !in.readUTF().equals(r.getClass().getName()) ||
+        !in.readUTF().equals(getSettings(r)))
+      {
+        return false;
+      }
+      int fileCount = in.readInt();
+      for (int i=0; i<fileCount; i++) {
+        Location file = new Location(in.readUTF());
+        if (in.readLong() != file.length() ||
+          in.readLong() != file.lastModified())
+        {
+          return false;
+        }
+      }
+
+      String xml = (String) in.readObject();
+      MetadataStore store = r.getMetadataStore();
+      if (xml == null && !(store instanceof DummyMetadata)) return false;
+
+      CoreMetadata[] core = (CoreMetadata[]) in.readObject();
+      @SuppressWarnings("unchecked")
+      Hashtable<String, Object> metadata =
+        (Hashtable<String, Object>) in.readObject();
+
+      r.restoreMemo(id, core, metadata, in);
+
+      if (xml != null && !(store instanceof DummyMetadata)) {
+        getService().convertMetadata(xml, store);
+      }
+      return true;
+    }
+    catch (ServiceException e) {
+      throw new FormatException(e);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Saves the state of the reader to the given memo.  The memo is written
+   * to a temporary file first, so that other processes never see a
+   * partially written memo.
+   *
+   * @return true if the reader's state could be saved
+   */
+  private boolean saveMemo(String id, File memo)
+    throws FormatException, IOException
+  {
+    FormatReader r = getFormatReader(null);
+    if (r == null) return false;
+
+    String xml = null;
+    MetadataStore store = r.getMetadataStore();
+    if (!(store instanceof DummyMetadata)) {
+      if (!(store instanceof MetadataRetrieve)) return false;
+      try {
+        xml = getService().getOMEXML((MetadataRetrieve) store);
+      }
+      catch (ServiceException e) {
+        LOGGER.debug("Could not convert metadata for " + id, e);
+        return false;
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeUTF(SIGNATURE);
+    out.writeInt(VERSION);
+    out.writeUTF(r.getClass().getName());
+    out.writeUTF(getSettings(r));
+
+    String[] usedFiles = r.getUsedFiles();
+    out.writeInt(usedFiles.length);
+    for (String used : usedFiles) {
+      Location file = new Location(used);
+      out.writeUTF(file.getAbsolutePath());
+      out.writeLong(file.length());
+      out.writeLong(file.lastModified());
+    }
+
+    out.writeObject(xml);
+    out.writeObject(r.core);
+    out.writeObject(r.metadata);
+    if (!r.saveState(out)) return false;
+    out.close();
+
+    File tmp = File.createTempFile(memo.getName(), ".tmp",
+      memo.getAbsoluteFile().getParentFile());
+    boolean success = false;
+    try {
+      FileOutputStream file = new FileOutputStream(tmp);
+      try {
+        bytes.writeTo(file);
+      }
+      finally {
+        file.close();
+      }
+      // renaming onto an existing file fails on some platforms
+      memo.delete();
+      success = tmp.renameTo(memo);
+    }
+    finally {
+      if (!success) tmp.delete();
+    }
+    return success;
+  }
+
+  /** Describes the reader settings that affect the parsed state. */
+  private String getSettings(FormatReader r) {
+    return r.getMetadataOptions().getMetadataLevel() + "," +
+      r.isGroupFiles() + "," + r.isMetadataFiltered() + "," +
+      r.isOriginalMetadataPopulated();
+  }
+
+  private OMEXMLService getService() throws FormatException {
+    if (service == null) {
+      try {
+        service = new ServiceFactory().getInstance(OMEXMLService.class);
+      }
+      catch (DependencyException e) {
+        throw new FormatException("OMEXMLService not available", e);
+      }
+    }
+    return service;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Object input stream that only resolves the classes listed in
+   * {@link #ALLOWED_CLASSES}, so that a memo cannot be used to instantiate
+   * arbitrary serializable classes.
+   */
+  private static class MemoInputStream extends ObjectInputStream {
+
+    public MemoInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws ClassNotFoundException, IOException
+    {
+      String name = desc.getName();
+      int dims = 0;
+      while (dims < name.length() && name.charAt(dims) == '[') dims++;
+      String component = name.substring(dims);
+      boolean allowed;
+      if (dims == 0) allowed = ALLOWED_CLASSES.contains(name);
+      else if (component.startsWith("L") && component.endsWith(";")) {
+        allowed = ALLOWED_CLASSES.contains(
+          component.substring(1, component.length() - 1));
+      }
+      else allowed = component.length() == 1;
+      if (!allowed) {
+        throw new InvalidClassException(name, "Class not allowed in memo");
+      }
+      return super.resolveClass(desc);
+    }
+
+  }
+
+}
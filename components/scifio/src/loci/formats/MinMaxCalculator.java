@@ -39,9 +39,11 @@ package loci.formats;
 import java.io.IOException;
 import java.util.Arrays;
 
-import loci.common.DataTools;
 import loci.formats.meta.IMinMaxStore;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Logic to compute minimum and maximum values for each channel.
  *
@@ -59,6 +61,14 @@ public class MinMaxCalculator extends ReaderWrapper {
     return new MinMaxCalculator(r);
   }
 
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(MinMaxCalculator.class);
+
+  /** Number of bins in each channel histogram. */
+  public static final int HISTOGRAM_BINS = PixelStatistics.HISTOGRAM_BINS;
+
   // -- Fields --
 
   /** Min values for each channel. */
@@ -67,18 +77,33 @@ public class MinMaxCalculator extends ReaderWrapper {
   /** Max values for each channel. */
   protected double[][] chanMax;
 
-  /** Min values for each plane. */
+  /** Min values for each plane; NaN for planes that have not been read. */
   protected double[][] planeMin;
 
   /** Max values for each plane. */
   protected double[][] planeMax;
 
-  /** Number of planes for which min/max computations have been completed. */
+  /**
+   * Histogram of each channel, built from the planes that have been read in
+   * full; null for series with floating point pixels.
+   */
+  protected long[][][] chanHistogram;
+
+  /** Whether each plane has been read in full. */
+  protected boolean[][] planeRead;
+
+  /** Number of planes that have been read in full. */
   protected int[] minMaxDone;
 
   /** Consumer of channel global minima and maxima */
   protected IMinMaxStore minMaxStore;
 
+  /** Persistent storage for computed minima, maxima and histograms. */
+  protected IMinMaxCache minMaxCache;
+
+  /** Whether or not any statistics have changed since they were saved. */
+  private boolean statisticsChanged;
+
   // -- Constructors --
 
   /** Constructs a MinMaxCalculator around a new image reader. */
@@ -105,11 +130,31 @@ public class MinMaxCalculator extends ReaderWrapper {
     return minMaxStore;
   }
 
+  /**
+   * Sets the persistent cache for computed statistics. When a file is
+   * opened, any statistics saved for it are loaded from the cache, so that
+   * planes that have already been read need not be read again; new
+   * statistics are saved when a series is complete and when the file is
+   * closed.
+   * @param cache See above.
+   */
+  public void setMinMaxCache(IMinMaxCache cache) {
+    minMaxCache = cache;
+  }
+
+  /**
+   * Retrieves the persistent cache for computed statistics.
+   * @return See above.
+   */
+  public IMinMaxCache getMinMaxCache() {
+    return minMaxCache;
+  }
+
   // -- MinMaxCalculator API methods --
 
   /**
    * Retrieves a specified channel's global minimum.
-   * Returns null if some of the image planes have not been read.
+   * Returns null if some of the image planes have not been read in full.
    *
    * @throws IOException Not actually thrown.
    */
@@ -132,7 +177,7 @@ public class MinMaxCalculator extends ReaderWrapper {
 
   /**
    * Retrieves a specified channel's global maximum.
-   * Returns null if some of the image planes have not been read.
+   * Returns null if some of the image planes have not been read in full.
    * @throws IOException Not actually thrown.
    */
   public Double getChannelGlobalMaximum(int theC)
@@ -230,6 +275,29 @@ public class MinMaxCalculator extends ReaderWrapper {
     return max;
   }
 
+  /**
+   * Retrieves the histogram of the specified channel, counted from the image
+   * planes that have been read in full. The {@value #HISTOGRAM_BINS} bins
+   * evenly divide the range of the pixel type; for example, each bin of a
+   * uint16 histogram covers 256 values. Returns null if no image planes have
+   * been read yet, or if the pixel type is floating point.
+   *
+   * @throws FormatException Not actually thrown.
+   * @throws IOException Not actually thrown.
+   */
+  public long[] getChannelHistogram(int theC)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(getCurrentFile(), true, 2);
+    if (chanHistogram == null || chanHistogram[getSeries()] == null) {
+      return null;
+    }
+    long[] histogram = chanHistogram[getSeries()][theC];
+    long[] copy = new long[histogram.length];
+    System.arraycopy(histogram, 0, copy, 0, histogram.length);
+    return copy;
+  }
+
   /**
    * Returns true if the values returned by
    * getChannelGlobalMinimum/Maximum can be trusted.
@@ -272,20 +340,26 @@ public class MinMaxCalculator extends ReaderWrapper {
     FormatTools.assertId(getCurrentFile(), true, 2);
     super.openBytes(no, buf, x, y, w, h);
     
-    updateMinMax(no, buf, FormatTools.getBytesPerPixel(getPixelType()) * w * h);
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    updateMinMax(no, buf, bpp * w * h * getRGBChannelCount());
     return buf;
   }
 
   /* @see IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
+    if (!fileOnly) saveStatistics();
     reader.close(fileOnly);
-    if (!fileOnly) {
-      chanMin = null;
-      chanMax = null;
-      planeMin = null;
-      planeMax = null;
-      minMaxDone = null;
-    }
+    if (!fileOnly) clearStatistics();
+  }
+
+  /**
+   * Returns false, as every call to openBytes updates the statistics.
+   *
+   * @see IFormatReader#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return false;
   }
 
   // -- IFormatHandler API methods --
@@ -295,6 +369,21 @@ public class MinMaxCalculator extends ReaderWrapper {
     return byte[].class;
   }
 
+  /* @see IFormatHandler#setId(String) */
+  public void setId(String id) throws FormatException, IOException {
+    if (!id.equals(getCurrentFile())) {
+      saveStatistics();
+      clearStatistics();
+    }
+    super.setId(id);
+    loadStatistics();
+  }
+
+  /* @see IFormatHandler#close() */
+  public void close() throws IOException {
+    close(false);
+  }
+
   // -- Helper methods --
 
   /**
@@ -314,16 +403,16 @@ public class MinMaxCalculator extends ReaderWrapper {
     int series = getSeries();
     int pixelType = getPixelType();
     int bpp = FormatTools.getBytesPerPixel(pixelType);
-    int planeSize = getSizeX() * getSizeY() * bpp;
-    // check whether min/max values have already been computed for this plane
-    // and that the buffer requested is actually the entire plane
-    if (len == planeSize
-        && !Double.isNaN(planeMin[series][no * numRGB])) return;
+    int planeSize = getSizeX() * getSizeY() * bpp * numRGB;
+    // check whether min/max values have already been computed for the
+    // entire plane, in which case no sub-image can change them
+    if (planeRead[series][no]) return;
 
     boolean little = isLittleEndian();
     
     int pixels = len / (bpp * numRGB);
     boolean interleaved = isInterleaved();
+    int step = interleaved ? bpp * numRGB : bpp;
 
     int[] coords = getZCTCoords(no);
     int cBase = coords[1] * numRGB;
@@ -333,31 +422,19 @@ public class MinMaxCalculator extends ReaderWrapper {
       planeMax[series][pBase + c] = Double.NEGATIVE_INFINITY;
     }
 
-    boolean signed = FormatTools.isSigned(pixelType);
+    // histograms only include planes that are read in full, so that
+    // no pixel is counted twice
+    boolean histogram = len == planeSize && chanHistogram[series] != null;
 
-    long threshold = (long) Math.pow(2, bpp * 8 - 1);
-    for (int i=0; i<pixels; i++) {
-      for (int c=0; c<numRGB; c++) {
-        int idx = bpp * (interleaved ? i * numRGB + c : c * pixels + i);
-        long bits = DataTools.bytesToLong(buf, idx, bpp, little);
-        if (signed) {
-          if (bits >= threshold) bits -= 2*threshold;
-        }
-        double v = bits;
-        if (pixelType == FormatTools.FLOAT) {
-          v = Float.intBitsToFloat((int) bits);
-        }
-        else if (pixelType == FormatTools.DOUBLE) {
-          v = Double.longBitsToDouble(bits);
-        }
-
-        if (v > chanMax[series][cBase + c]) {
-          chanMax[series][cBase + c] = v;
-        }
-        if (v < chanMin[series][cBase + c]) {
-          chanMin[series][cBase + c] = v;
-        }
-      }
+    double[] minMax = new double[2];
+    for (int c=0; c<numRGB; c++) {
+      int offset = bpp * (interleaved ? c : c * pixels);
+      minMax[0] = chanMin[series][cBase + c];
+      minMax[1] = chanMax[series][cBase + c];
+      PixelStatistics.accumulate(buf, offset, pixels, step, pixelType, little,
+        minMax, histogram ? chanHistogram[series][cBase + c] : null);
+      chanMin[series][cBase + c] = minMax[0];
+      chanMax[series][cBase + c] = minMax[1];
     }
 
     for (int c=0; c<numRGB; c++) {
@@ -368,16 +445,202 @@ public class MinMaxCalculator extends ReaderWrapper {
         planeMax[series][pBase + c] = chanMax[series][cBase + c];
       }
     }
-    minMaxDone[series] = Math.max(minMaxDone[series], no + 1);
+    statisticsChanged = true;
+
+    // only planes that are read in full count towards the global values
+    if (len != planeSize) return;
+    planeRead[series][no] = true;
+    minMaxDone[series]++;
+
+    if (minMaxDone[getSeries()] == getImageCount()) {
+      if (minMaxStore != null) {
+        for (int c=0; c<getSizeC(); c++) {
+          minMaxStore.setChannelGlobalMinMax(c, chanMin[getSeries()][c],
+            chanMax[getSeries()][c], getSeries());
+        }
+      }
+      saveStatistics();
+    }
+  }
 
-    if (minMaxDone[getSeries()] == getImageCount() && minMaxStore != null) {
-      for (int c=0; c<getSizeC(); c++) {
-        minMaxStore.setChannelGlobalMinMax(c, chanMin[getSeries()][c],
-          chanMax[getSeries()][c], getSeries());
+  /**
+   * Replaces any statistics computed so far with those saved for the
+   * current file, if the cache contains statistics that match the file's
+   * dimensions.
+   *
+   * @throws FormatException Not actually thrown.
+   * @throws IOException Not actually thrown.
+   */
+  protected void loadStatistics() throws FormatException, IOException {
+    if (minMaxCache == null) return;
+    String id = getCurrentFile();
+    MinMaxStatistics stats = null;
+    try {
+      stats = minMaxCache.load(id, this);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not load statistics for " + id, e);
+    }
+    if (stats == null || !isCompatible(stats)) return;
+
+    chanMin = stats.chanMin;
+    chanMax = stats.chanMax;
+    planeMin = stats.planeMin;
+    planeMax = stats.planeMax;
+    chanHistogram = stats.chanHistogram;
+    planeRead = findReadPlanes(planeMin);
+    minMaxDone = new int[planeRead.length];
+    for (int s=0; s<planeRead.length; s++) {
+      for (boolean read : planeRead[s]) {
+        if (read) minMaxDone[s]++;
+      }
+    }
+    statisticsChanged = false;
+
+    // histograms are optional; start new ones if they were not saved
+    int oldSeries = getSeries();
+    for (int s=0; s<getSeriesCount() && chanHistogram != null; s++) {
+      setSeries(s);
+      long[][] histograms = chanHistogram[s];
+      if ((histograms != null) !=
+        PixelStatistics.hasHistogram(getPixelType()))
+      {
+        chanHistogram = null;
       }
+      else if (histograms != null) {
+        boolean valid = histograms.length == getSizeC();
+        for (int c=0; c<histograms.length && valid; c++) {
+          valid = histograms[c].length == HISTOGRAM_BINS;
+        }
+        if (!valid) chanHistogram = null;
+      }
+    }
+    setSeries(oldSeries);
+    initMinMax();
+
+    if (minMaxStore != null) {
+      for (int s=0; s<getSeriesCount(); s++) {
+        setSeries(s);
+        if (minMaxDone[s] == getImageCount()) {
+          for (int c=0; c<getSizeC(); c++) {
+            minMaxStore.setChannelGlobalMinMax(c, chanMin[s][c],
+              chanMax[s][c], s);
+          }
+        }
+      }
+      setSeries(oldSeries);
     }
   }
 
+  /** Saves any new statistics for the current file to the cache. */
+  protected void saveStatistics() {
+    String id = getCurrentFile();
+    if (minMaxCache == null || !statisticsChanged || id == null ||
+      minMaxDone == null)
+    {
+      return;
+    }
+    MinMaxStatistics stats = new MinMaxStatistics();
+    stats.chanMin = chanMin;
+    stats.chanMax = chanMax;
+    stats.planeMin = getReadPlaneValues(planeMin);
+    stats.planeMax = getReadPlaneValues(planeMax);
+    stats.chanHistogram = chanHistogram;
+    stats.minMaxDone = minMaxDone;
+    try {
+      minMaxCache.save(id, stats);
+      statisticsChanged = false;
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not save statistics for " + id, e);
+    }
+  }
+
+  /** Returns true if the given statistics match the current dimensions. */
+  private boolean isCompatible(MinMaxStatistics stats) {
+    int seriesCount = getSeriesCount();
+    if (stats.chanMin == null || stats.chanMin.length != seriesCount ||
+      stats.chanMax == null || stats.chanMax.length != seriesCount ||
+      stats.planeMin == null || stats.planeMin.length != seriesCount ||
+      stats.planeMax == null || stats.planeMax.length != seriesCount ||
+      stats.minMaxDone == null || stats.minMaxDone.length != seriesCount ||
+      (stats.chanHistogram != null &&
+      stats.chanHistogram.length != seriesCount))
+    {
+      return false;
+    }
+    int oldSeries = getSeries();
+    try {
+      for (int s=0; s<seriesCount; s++) {
+        setSeries(s);
+        int planes = getImageCount() * getRGBChannelCount();
+        if (stats.chanMin[s].length != getSizeC() ||
+          stats.chanMax[s].length != getSizeC() ||
+          stats.planeMin[s].length != planes ||
+          stats.planeMax[s].length != planes ||
+          stats.minMaxDone[s] > getImageCount())
+        {
+          return false;
+        }
+      }
+    }
+    finally {
+      setSeries(oldSeries);
+    }
+    return true;
+  }
+
+  /**
+   * Finds the planes of each series whose values were saved.  Only planes
+   * that were read in full are saved, so those are the planes whose
+   * minimum is not NaN.
+   */
+  private boolean[][] findReadPlanes(double[][] mins) {
+    boolean[][] read = new boolean[mins.length][];
+    int oldSeries = getSeries();
+    for (int s=0; s<mins.length; s++) {
+      setSeries(s);
+      int numRGB = getRGBChannelCount();
+      read[s] = new boolean[getImageCount()];
+      for (int no=0; no<read[s].length; no++) {
+        read[s][no] = !Double.isNaN(mins[s][no * numRGB]);
+      }
+    }
+    setSeries(oldSeries);
+    return read;
+  }
+
+  /**
+   * Copies the given plane values, replacing those of planes that have not
+   * been read in full with NaN.
+   */
+  private double[][] getReadPlaneValues(double[][] values) {
+    double[][] copy = new double[values.length][];
+    for (int s=0; s<values.length; s++) {
+      copy[s] = values[s].clone();
+      if (planeRead[s].length == 0) continue;
+      int numRGB = copy[s].length / planeRead[s].length;
+      for (int no=0; no<planeRead[s].length; no++) {
+        if (!planeRead[s][no]) {
+          Arrays.fill(copy[s], no * numRGB, (no + 1) * numRGB, Double.NaN);
+        }
+      }
+    }
+    return copy;
+  }
+
+  /** Discards all statistics. */
+  private void clearStatistics() {
+    chanMin = null;
+    chanMax = null;
+    planeMin = null;
+    planeMax = null;
+    chanHistogram = null;
+    planeRead = null;
+    minMaxDone = null;
+    statisticsChanged = false;
+  }
+
   /**
    * Ensures internal min/max variables are initialized properly. 
    *
@@ -426,6 +689,25 @@ public class MinMaxCalculator extends ReaderWrapper {
       }
       setSeries(oldSeries);
     }
+    if (chanHistogram == null) {
+      chanHistogram = new long[seriesCount][][];
+      for (int i=0; i<seriesCount; i++) {
+        setSeries(i);
+        if (PixelStatistics.hasHistogram(getPixelType())) {
+          chanHistogram[i] =
+            new long[getSizeC()][PixelStatistics.HISTOGRAM_BINS];
+        }
+      }
+      setSeries(oldSeries);
+    }
+    if (planeRead == null) {
+      planeRead = new boolean[seriesCount][];
+      for (int i=0; i<seriesCount; i++) {
+        setSeries(i);
+        planeRead[i] = new boolean[getImageCount()];
+      }
+      setSeries(oldSeries);
+    }
     if (minMaxDone == null) minMaxDone = new int[seriesCount];
   }
 
@@ -0,0 +1,216 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats;
+
+/**
+ * Type-specific loops for accumulating the range and histogram of one
+ * channel of pixel data. Each pixel type and byte order has its own loop,
+ * so that samples are decoded with shifts and masks rather than through
+ * the general purpose {@link loci.common.DataTools} conversions.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/PixelStatistics.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/PixelStatistics.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+final class PixelStatistics {
+
+  // -- Constants --
+
+  /** Number of bins in each histogram. */
+  static final int HISTOGRAM_BINS = 256;
+
+  // -- Constructor --
+
+  private PixelStatistics() { }
+
+  // -- Utility methods --
+
+  /**
+   * Returns true if histograms can be computed for the given pixel type,
+   * i.e. if it is an integer type. Histogram bins evenly divide the full
+   * range of the pixel type.
+   */
+  static boolean hasHistogram(int pixelType) {
+    return pixelType != FormatTools.FLOAT && pixelType != FormatTools.DOUBLE;
+  }
+
+  /**
+   * Updates the range and histogram of one channel from a buffer of pixels.
+   *
+   * @param buf the pixel data
+   * @param offset the index of the first byte of the first sample
+   * @param count the number of samples in the channel
+   * @param step the number of bytes from the start of one sample to the
+   *   start of the next; this is the number of bytes per pixel multiplied
+   *   by the channel count for interleaved data
+   * @param pixelType the pixel type, as defined in {@link FormatTools}
+   * @param little true if the samples are little-endian
+   * @param minMax the minimum and maximum, updated in place
+   * @param histogram {@link #HISTOGRAM_BINS} counts updated in place,
+   *   or null if the histogram is not needed
+   */
+  static void accumulate(byte[] buf, int offset, int count, int step,
+    int pixelType, boolean little, double[] minMax, long[] histogram)
+  {
+    if (count <= 0) return;
+    int end = offset + count * step;
+    switch (pixelType) {
+      case FormatTools.INT8:
+      case FormatTools.UINT8:
+        accumulate8(buf, offset, end, step, pixelType == FormatTools.INT8,
+          minMax, histogram);
+        break;
+      case FormatTools.INT16:
+      case FormatTools.UINT16:
+        accumulate16(buf, offset, end, step, pixelType == FormatTools.INT16,
+          little, minMax, histogram);
+        break;
+      case FormatTools.INT32:
+      case FormatTools.UINT32:
+        accumulate32(buf, offset, end, step, pixelType == FormatTools.INT32,
+          little, minMax, histogram);
+        break;
+      case FormatTools.FLOAT:
+        accumulateFloat(buf, offset, end, step, little, minMax);
+        break;
+      case FormatTools.DOUBLE:
+        accumulateDouble(buf, offset, end, step, little, minMax);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown pixel type: " +
+          pixelType);
+    }
+  }
+
+  // -- Helper methods --
+
+  private static void accumulate8(byte[] buf, int offset, int end, int step,
+    boolean signed, double[] minMax, long[] histogram)
+  {
+    // sign extension is kept for signed data and masked off otherwise
+    int mask = signed ? -1 : 0xff;
+    int bias = signed ? 128 : 0;
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    for (int p=offset; p<end; p+=step) {
+      int v = buf[p] & mask;
+      if (v < min) min = v;
+      if (v > max) max = v;
+      if (histogram != null) histogram[v + bias]++;
+    }
+    update(minMax, min, max);
+  }
+
+  private static void accumulate16(byte[] buf, int offset, int end, int step,
+    boolean signed, boolean little, double[] minMax, long[] histogram)
+  {
+    int hi = little ? 1 : 0;
+    int lo = little ? 0 : 1;
+    int mask = signed ? -1 : 0xffff;
+    int bias = signed ? 32768 : 0;
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    for (int p=offset; p<end; p+=step) {
+      int v = ((buf[p + hi] << 8) | (buf[p + lo] & 0xff)) & mask;
+      if (v < min) min = v;
+      if (v > max) max = v;
+      if (histogram != null) histogram[(v + bias) >> 8]++;
+    }
+    update(minMax, min, max);
+  }
+
+  private static void accumulate32(byte[] buf, int offset, int end, int step,
+    boolean signed, boolean little, double[] minMax, long[] histogram)
+  {
+    int b0 = little ? 3 : 0;
+    int b1 = little ? 2 : 1;
+    int b2 = little ? 1 : 2;
+    int b3 = little ? 0 : 3;
+    long mask = signed ? -1L : 0xffffffffL;
+    long bias = signed ? 0x80000000L : 0;
+    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+    for (int p=offset; p<end; p+=step) {
+      long v = ((buf[p + b0] << 24) | ((buf[p + b1] & 0xff) << 16) |
+        ((buf[p + b2] & 0xff) << 8) | (buf[p + b3] & 0xff)) & mask;
+      if (v < min) min = v;
+      if (v > max) max = v;
+      if (histogram != null) histogram[(int) ((v + bias) >> 24)]++;
+    }
+    update(minMax, min, max);
+  }
+
+  private static void accumulateFloat(byte[] buf, int offset, int end,
+    int step, boolean little, double[] minMax)
+  {
+    int b0 = little ? 3 : 0;
+    int b1 = little ? 2 : 1;
+    int b2 = little ? 1 : 2;
+    int b3 = little ? 0 : 3;
+    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+    for (int p=offset; p<end; p+=step) {
+      float v = Float.intBitsToFloat((buf[p + b0] << 24) |
+        ((buf[p + b1] & 0xff) << 16) | ((buf[p + b2] & 0xff) << 8) |
+        (buf[p + b3] & 0xff));
+      // NaN samples fail both comparisons and are ignored
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    update(minMax, min, max);
+  }
+
+  private static void accumulateDouble(byte[] buf, int offset, int end,
+    int step, boolean little, double[] minMax)
+  {
+    int first = little ? 7 : 0;
+    int dir = little ? -1 : 1;
+    double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    for (int p=offset; p<end; p+=step) {
+      long bits = 0;
+      for (int i=0, q=p+first; i<8; i++, q+=dir) {
+        bits = (bits << 8) | (buf[q] & 0xff);
+      }
+      double v = Double.longBitsToDouble(bits);
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    update(minMax, min, max);
+  }
+
+  private static void update(double[] minMax, double min, double max) {
+    if (min < minMax[0]) minMax[0] = min;
+    if (max > minMax[1]) minMax[1] = max;
+  }
+
+}
@@ -40,6 +40,8 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.RandomAccessInputStream;
 import loci.formats.in.MetadataLevel;
@@ -317,6 +319,18 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.openBytes(no, buf, x, y, w, h);
   }
 
+  public Future<byte[]> openBytesAsync(int no, int x, int y, int w, int h) {
+    return FormatTools.openBytesAsync(this, getReadExecutor(), no, null,
+      x, y, w, h);
+  }
+
+  public Future<byte[]> openBytesAsync(int no, byte[] buf, int x, int y,
+    int w, int h)
+  {
+    return FormatTools.openBytesAsync(this, getReadExecutor(), no, buf,
+      x, y, w, h);
+  }
+
   public Object openPlane(int no, int x, int y, int w, int h)
     throws FormatException, IOException
   {
@@ -343,6 +357,18 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.getSeries();
   }
 
+  public int getResolutionCount() {
+    return reader.getResolutionCount();
+  }
+
+  public void setResolution(int no) {
+    reader.setResolution(no);
+  }
+
+  public int getResolution() {
+    return reader.getResolution();
+  }
+
   public void setGroupFiles(boolean group) {
     reader.setGroupFiles(group);
   }
@@ -483,6 +509,18 @@ public abstract class ReaderWrapper implements IFormatReader {
     return reader.getOptimalTileHeight();
   }
 
+  public boolean isThreadSafe() {
+    return reader.isThreadSafe();
+  }
+
+  public void setReadExecutor(ExecutorService executor) {
+    reader.setReadExecutor(executor);
+  }
+
+  public ExecutorService getReadExecutor() {
+    return reader.getReadExecutor();
+  }
+
   // -- IFormatHandler API methods --
 
   public boolean isThisType(String name) {
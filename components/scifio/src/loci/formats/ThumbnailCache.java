@@ -0,0 +1,424 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import loci.common.Location;
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader wrapper that saves thumbnails to a cache directory, and returns
+ * the saved thumbnail the next time the same thumbnail is requested
+ * instead of computing it again.
+ *
+ * Each thumbnail is stored in its own file, named after a digest of the
+ * path, length and modification time of every file in the dataset, the
+ * series, the image index, the thumbnail size and the wrapped reader's
+ * class and normalization setting; a thumbnail is therefore never returned
+ * once any file in the dataset has changed.  Thumbnail files are written
+ * to a temporary file and renamed, so several readers and processes can
+ * share the same cache directory.  When the cache grows beyond its size
+ * limit, the least recently used thumbnails are deleted.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/ThumbnailCache.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/ThumbnailCache.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ThumbnailCache extends ReaderWrapper {
+
+  // -- Constants --
+
+  /** Suffix of each cached thumbnail file. */
+  public static final String SUFFIX = ".bfthumb";
+
+  /** Default maximum size in bytes of the cache directory (64 MB). */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ThumbnailCache.class);
+
+  private static final String SIGNATURE = "LOCI THUMB";
+  private static final int VERSION = 1;
+
+  /** Lock held while scanning or evicting from any cache directory. */
+  private static final Object EVICTION_LOCK = new Object();
+
+  // -- Fields --
+
+  /** Directory containing the cached thumbnails. */
+  private File directory;
+
+  /** Maximum size in bytes of the cache directory. */
+  private long maxBytes;
+
+  /** Estimated size in bytes of the cache directory, or -1 if unknown. */
+  private long cacheBytes = -1;
+
+  /** File for which the dataset fingerprint was computed. */
+  private String fingerprintId;
+
+  /** Digest of the paths, lengths and modification times of used files. */
+  private String fingerprint;
+
+  // -- Constructors --
+
+  /** Constructs a thumbnail cache around a new image reader. */
+  public ThumbnailCache() { this(new ImageReader()); }
+
+  /**
+   * Constructs a thumbnail cache that saves thumbnails in the default
+   * directory, "bioformats-thumbnails" within the temporary directory.
+   */
+  public ThumbnailCache(IFormatReader r) {
+    this(r, new File(System.getProperty("java.io.tmpdir"),
+      "bioformats-thumbnails").getPath());
+  }
+
+  /**
+   * Constructs a thumbnail cache that saves thumbnails in the given
+   * directory.
+   */
+  public ThumbnailCache(IFormatReader r, String directory) {
+    this(r, directory, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs a thumbnail cache that saves thumbnails in the given
+   * directory, and keeps the directory below the given size.
+   */
+  public ThumbnailCache(IFormatReader r, String directory, long maxBytes) {
+    super(r);
+    this.directory = new File(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  // -- ThumbnailCache API methods --
+
+  /** Gets the directory containing the cached thumbnails. */
+  public String getDirectory() { return directory.getPath(); }
+
+  /** Gets the maximum size in bytes of the cache directory. */
+  public long getMaxBytes() { return maxBytes; }
+
+  /**
+   * Gets the file used to store the thumbnail for the given image index
+   * within the current series.
+   */
+  public File getThumbnailFile(int no) throws IOException {
+    return new File(directory, digest(getKey(no)) + SUFFIX);
+  }
+
+  /**
+   * Computes and caches the thumbnail of the middle Z section and time point
+   * of the first channel, for every series of every dataset in the given
+   * directory.  Files that cannot be read are skipped.  The files are read
+   * with a new reader of the same type as the wrapped reader, so this
+   * method may be called while a file is open.
+   *
+   * @return the number of thumbnails that were computed and cached.
+   */
+  public int prefetch(String dir) throws FormatException, IOException {
+    ThumbnailCache cache =
+      new ThumbnailCache(duplicateReader(), getDirectory(), maxBytes);
+    cache.setNormalized(isNormalized());
+    if (getCurrentFile() != null) cache.setGroupFiles(isGroupFiles());
+    cache.setMetadataOptions(
+      new DefaultMetadataOptions(MetadataLevel.MINIMUM));
+
+    String[] files = new Location(dir).list(true);
+    if (files == null) return 0;
+    Arrays.sort(files);
+    Set<String> seen = new HashSet<String>();
+    int count = 0;
+    for (String name : files) {
+      Location file = new Location(dir, name);
+      String path = file.getAbsolutePath();
+      if (file.isDirectory() || seen.contains(path)) continue;
+      try {
+        cache.setId(path);
+        for (String used : cache.getUsedFiles()) {
+          seen.add(new Location(used).getAbsolutePath());
+        }
+        for (int s=0; s<cache.getSeriesCount(); s++) {
+          cache.setSeries(s);
+          int no = cache.getIndex(cache.getSizeZ() / 2, 0,
+            cache.getSizeT() / 2);
+          if (!cache.getThumbnailFile(no).exists()) {
+            cache.openThumbBytes(no);
+            count++;
+          }
+        }
+      }
+      catch (FormatException e) {
+        LOGGER.debug("Could not prefetch thumbnails for " + path, e);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not prefetch thumbnails for " + path, e);
+      }
+      finally {
+        cache.close();
+      }
+    }
+    return count;
+  }
+
+  // -- IFormatReader API methods --
+
+  /* @see IFormatReader#openThumbBytes(int) */
+  public byte[] openThumbBytes(int no) throws FormatException, IOException {
+    String key = getKey(no);
+    File file = new File(directory, digest(key) + SUFFIX);
+    byte[] thumb = null;
+    if (file.exists()) {
+      try {
+        thumb = load(file, key);
+      }
+      catch (IOException e) {
+        // the file may have been evicted or replaced while being read
+        LOGGER.debug("Could not load thumbnail from " + file, e);
+      }
+    }
+    if (thumb != null) {
+      // record the access for least recently used eviction
+      file.setLastModified(System.currentTimeMillis());
+      return thumb;
+    }
+
+    thumb = reader.openThumbBytes(no);
+    try {
+      save(file, key, thumb);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not save thumbnail to " + file, e);
+    }
+    return thumb;
+  }
+
+  /* @see IFormatReader#close(boolean) */
+  public void close(boolean fileOnly) throws IOException {
+    super.close(fileOnly);
+    fingerprintId = null;
+    fingerprint = null;
+  }
+
+  // -- IFormatHandler API methods --
+
+  /* @see IFormatHandler#setId(String) */
+  public void setId(String id) throws FormatException, IOException {
+    fingerprintId = null;
+    fingerprint = null;
+    super.setId(id);
+  }
+
+  /* @see IFormatHandler#close() */
+  public void close() throws IOException {
+    super.close();
+    fingerprintId = null;
+    fingerprint = null;
+  }
+
+  // -- Helper methods --
+
+  /** Describes the thumbnail for the given image index. */
+  private String getKey(int no) throws IOException {
+    String id = getCurrentFile();
+    FormatTools.assertId(id, true, 2);
+    if (!id.equals(fingerprintId)) {
+      StringBuffer files = new StringBuffer();
+      for (String used : getUsedFiles()) {
+        Location file = new Location(used);
+        files.append(file.getAbsolutePath());
+        files.append(":");
+        files.append(file.length());
+        files.append(":");
+        files.append(file.lastModified());
+        files.append("\n");
+      }
+      fingerprint = digest(files.toString());
+      fingerprintId = id;
+    }
+    return fingerprint + "," + reader.getClass().getName() + "," +
+      isNormalized() + "," + getSeries() + "," + no + "," +
+      getThumbSizeX() + "x" + getThumbSizeY();
+  }
+
+  /** Loads a thumbnail, returning null if it was saved for another key. */
+  private byte[] load(File file, String key) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (!in.readUTF().equals(SIGNATURE) || in.readInt() != VERSION ||
+        !in.readUTF().equals(key))
+      {
+        return null;
+      }
+      byte[] thumb = new byte[in.readInt()];
+      in.readFully(thumb);
+      return thumb;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Saves a thumbnail.  The thumbnail is written to a temporary file first,
+   * so that other readers never see a partially written thumbnail.
+   */
+  private void save(File file, String key, byte[] thumb) throws IOException {
+    if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+    boolean success = false;
+    try {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeUTF(SIGNATURE);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.writeInt(thumb.length);
+        out.write(thumb);
+      }
+      finally {
+        out.close();
+      }
+      long size = tmp.length();
+      // renaming onto an existing file fails on some platforms
+      file.delete();
+      success = tmp.renameTo(file);
+      if (success) evict(file, size);
+    }
+    finally {
+      if (!success) tmp.delete();
+    }
+  }
+
+  /**
+   * Records that the given thumbnail was added, and deletes the least
+   * recently used thumbnails other than the new one if the directory has
+   * grown too large.
+   */
+  private void evict(File added, long size) {
+    synchronized (EVICTION_LOCK) {
+      if (cacheBytes >= 0) {
+        cacheBytes += size;
+        if (cacheBytes <= maxBytes) return;
+      }
+
+      // rescan, as other readers may have added or removed thumbnails
+      File[] files = directory.listFiles(new FileFilter() {
+        public boolean accept(File f) {
+          return f.getName().endsWith(SUFFIX);
+        }
+      });
+      if (files == null) return;
+      final long[] modified = new long[files.length];
+      Integer[] order = new Integer[files.length];
+      cacheBytes = 0;
+      for (int i=0; i<files.length; i++) {
+        modified[i] = files[i].lastModified();
+        order[i] = i;
+        cacheBytes += files[i].length();
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          long diff = modified[a] - modified[b];
+          return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+      });
+      for (int i=0; i<order.length && cacheBytes>maxBytes; i++) {
+        File f = files[order[i]];
+        if (f.equals(added)) continue;
+        long length = f.length();
+        if (f.delete()) cacheBytes -= length;
+      }
+    }
+  }
+
+  /** Creates an uninitialized reader of the same type as the wrapped one. */
+  private IFormatReader duplicateReader() throws FormatException {
+    if (reader instanceof ReaderWrapper) {
+      return ((ReaderWrapper) reader).duplicate(null);
+    }
+    try {
+      return reader.getClass().newInstance();
+    }
+    catch (IllegalAccessException e) { throw new FormatException(e); }
+    catch (InstantiationException e) { throw new FormatException(e); }
+  }
+
+  /** Computes the hexadecimal MD5 digest of the given string. */
+  private static String digest(String s) {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      byte[] hash = md5.digest(s.getBytes("UTF-8"));
+      StringBuffer hex = new StringBuffer();
+      for (byte b : hash) {
+        hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
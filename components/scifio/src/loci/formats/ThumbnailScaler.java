@@ -0,0 +1,420 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+
+import loci.common.DataTools;
+
+/**
+ * Utility methods for generating thumbnails from pixel data, without any
+ * dependency on AWT.
+ *
+ * Thumbnails are built incrementally from tiles of at most
+ * {@link #MAX_TILE_BYTES} bytes, so that the full image plane never needs
+ * to be held in memory.  Two downsampling methods are supported: area
+ * averaging, which reads every pixel and averages each pixel type in its
+ * own numeric domain, and nearest neighbor, which only reads the rows
+ * that are sampled.  Nearest neighbor is used for indexed color data, as
+ * averaging color table indices is meaningless, and for planes more than
+ * {@link #MAX_AVERAGING_SCALE} times larger than the thumbnail, as reading
+ * every pixel of such planes takes too long.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/ThumbnailScaler.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/ThumbnailScaler.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public final class ThumbnailScaler {
+
+  // -- Constants --
+
+  /** Downsampling method that averages all pixels within each area. */
+  public static final int AREA_AVERAGING = 0;
+
+  /** Downsampling method that picks the pixel nearest each area center. */
+  public static final int NEAREST_NEIGHBOR = 1;
+
+  /** Maximum number of bytes read by a single call to openBytes. */
+  public static final int MAX_TILE_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * Largest ratio of plane size to thumbnail size, along either axis, for
+   * which area averaging is the default method.
+   */
+  public static final int MAX_AVERAGING_SCALE = 4;
+
+  // -- Constructor --
+
+  private ThumbnailScaler() { }
+
+  // -- Utility methods --
+
+  /**
+   * Gets the downsampling method best suited to the current series of the
+   * given reader, for a thumbnail of the reader's thumbnail size.
+   */
+  public static int getDefaultMethod(IFormatReader reader) {
+    return getDefaultMethod(reader, reader.getThumbSizeX(),
+      reader.getThumbSizeY());
+  }
+
+  /**
+   * Gets the downsampling method best suited to the current series of the
+   * given reader, for a thumbnail of the given size.
+   */
+  public static int getDefaultMethod(IFormatReader reader, int thumbSizeX,
+    int thumbSizeY)
+  {
+    if (reader.isIndexed()) return NEAREST_NEIGHBOR;
+    if (reader.getSizeX() > (long) thumbSizeX * MAX_AVERAGING_SCALE ||
+      reader.getSizeY() > (long) thumbSizeY * MAX_AVERAGING_SCALE)
+    {
+      return NEAREST_NEIGHBOR;
+    }
+    return AREA_AVERAGING;
+  }
+
+  /**
+   * Creates a thumbnail of the given size from the specified image plane.
+   * The thumbnail has the same pixel type, channel count, endianness and
+   * interleaving as the planes returned by the reader's openBytes.
+   *
+   * @param reader the reader from which to read the image plane.
+   * @param no the image index within the current series.
+   * @param thumbSizeX the width of the thumbnail.
+   * @param thumbSizeY the height of the thumbnail.
+   * @param method one of {@link #AREA_AVERAGING} or {@link #NEAREST_NEIGHBOR}.
+   */
+  public static byte[] openThumbBytes(IFormatReader reader, int no,
+    int thumbSizeX, int thumbSizeY, int method)
+    throws FormatException, IOException
+  {
+    if (thumbSizeX <= 0 || thumbSizeY <= 0) {
+      throw new FormatException("Invalid thumbnail size: " + thumbSizeX +
+        "x" + thumbSizeY);
+    }
+    Plane plane = new Plane(reader, thumbSizeX, thumbSizeY);
+    byte[] thumb;
+    switch (method) {
+      case AREA_AVERAGING:
+        thumb = averageArea(reader, no, plane);
+        break;
+      case NEAREST_NEIGHBOR:
+        thumb = pickNearest(reader, no, plane);
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid method: " + method);
+    }
+
+    if (reader.isNormalized()) {
+      if (plane.pixelType == FormatTools.FLOAT) {
+        float[] f =
+          (float[]) DataTools.makeDataArray(thumb, 4, true, plane.little);
+        thumb = DataTools.floatsToBytes(DataTools.normalizeFloats(f),
+          plane.little);
+      }
+      else if (plane.pixelType == FormatTools.DOUBLE) {
+        double[] d =
+          (double[]) DataTools.makeDataArray(thumb, 8, true, plane.little);
+        thumb = DataTools.doublesToBytes(DataTools.normalizeDoubles(d),
+          plane.little);
+      }
+    }
+    return thumb;
+  }
+
+  /**
+   * Halves the width and height of an image, rounding up.  Each pixel of the
+   * result is either the average of a 2x2 block of pixels, or the top left
+   * pixel of the block if the method is {@link #NEAREST_NEIGHBOR}.  The
+   * result has the same pixel type, channel count, endianness and
+   * interleaving as the given image.
+   *
+   * @param buf the image, sizeX * sizeY pixels of the given pixel type.
+   * @param channels the number of samples per pixel.
+   * @param method one of {@link #AREA_AVERAGING} or {@link #NEAREST_NEIGHBOR}.
+   */
+  public static byte[] halve(byte[] buf, int sizeX, int sizeY, int channels,
+    int pixelType, boolean little, boolean interleaved, int method)
+  {
+    if (method != AREA_AVERAGING && method != NEAREST_NEIGHBOR) {
+      throw new IllegalArgumentException("Invalid method: " + method);
+    }
+    Plane p = new Plane(sizeX, sizeY, (sizeX + 1) / 2, (sizeY + 1) / 2,
+      pixelType, channels, little, interleaved);
+    byte[] half = new byte[p.thumbSizeX * p.thumbSizeY * p.pixelBytes];
+    for (int oy=0; oy<p.thumbSizeY; oy++) {
+      int y0 = oy * 2;
+      int y1 = method == NEAREST_NEIGHBOR ? y0 + 1 : Math.min(y0 + 2, sizeY);
+      for (int ox=0; ox<p.thumbSizeX; ox++) {
+        int x0 = ox * 2;
+        int x1 =
+          method == NEAREST_NEIGHBOR ? x0 + 1 : Math.min(x0 + 2, sizeX);
+        for (int ch=0; ch<channels; ch++) {
+          double sum = 0;
+          for (int y=y0; y<y1; y++) {
+            for (int x=x0; x<x1; x++) {
+              sum += p.getValue(buf, p.index(x, y, ch, sizeX, sizeY));
+            }
+          }
+          int dest = p.index(ox, oy, ch, p.thumbSizeX, p.thumbSizeY);
+          p.setValue(half, dest, sum / ((y1 - y0) * (x1 - x0)));
+        }
+      }
+    }
+    return half;
+  }
+
+  // -- Helper methods --
+
+  /** Builds a thumbnail by averaging tiles of the image plane. */
+  private static byte[] averageArea(IFormatReader reader, int no, Plane p)
+    throws FormatException, IOException
+  {
+    int c = p.channels;
+    double[] sums = new double[p.thumbSizeX * p.thumbSizeY * c];
+    int[] counts = new int[p.thumbSizeX * p.thumbSizeY];
+
+    int tileWidth = p.sizeX;
+    int tileHeight = reader.getOptimalTileHeight();
+    if (reader.getOptimalTileWidth() < p.sizeX) {
+      tileWidth = reader.getOptimalTileWidth();
+    }
+    tileWidth = Math.max(1, Math.min(tileWidth, MAX_TILE_BYTES / p.pixelBytes));
+    tileHeight = (int) Math.max(1, Math.min(Math.min(tileHeight, p.sizeY),
+      MAX_TILE_BYTES / ((long) tileWidth * p.pixelBytes)));
+    byte[] buf = new byte[tileWidth * tileHeight * p.pixelBytes];
+
+    for (int y0=0; y0<p.sizeY; y0+=tileHeight) {
+      int h = Math.min(tileHeight, p.sizeY - y0);
+      for (int x0=0; x0<p.sizeX; x0+=tileWidth) {
+        int w = Math.min(tileWidth, p.sizeX - x0);
+        reader.openBytes(no, buf, x0, y0, w, h);
+
+        for (int oy=p.firstArea(y0, p.y1, p.thumbSizeY, p.sizeY);
+          oy<p.thumbSizeY && p.y0[oy]<y0+h; oy++)
+        {
+          int yStart = Math.max(p.y0[oy], y0);
+          int yEnd = Math.min(p.y1[oy], y0 + h);
+          for (int ox=p.firstArea(x0, p.x1, p.thumbSizeX, p.sizeX);
+            ox<p.thumbSizeX && p.x0[ox]<x0+w; ox++)
+          {
+            int xStart = Math.max(p.x0[ox], x0);
+            int xEnd = Math.min(p.x1[ox], x0 + w);
+            int area = oy * p.thumbSizeX + ox;
+            for (int y=yStart; y<yEnd; y++) {
+              for (int x=xStart; x<xEnd; x++) {
+                for (int ch=0; ch<c; ch++) {
+                  int src = p.index(x - x0, y - y0, ch, w, h);
+                  sums[area * c + ch] += p.getValue(buf, src);
+                }
+              }
+            }
+            counts[area] += (yEnd - yStart) * (xEnd - xStart);
+          }
+        }
+      }
+    }
+
+    byte[] thumb = new byte[sums.length * p.bpp];
+    for (int oy=0; oy<p.thumbSizeY; oy++) {
+      for (int ox=0; ox<p.thumbSizeX; ox++) {
+        int area = oy * p.thumbSizeX + ox;
+        for (int ch=0; ch<c; ch++) {
+          int dest = p.index(ox, oy, ch, p.thumbSizeX, p.thumbSizeY);
+          p.setValue(thumb, dest, sums[area * c + ch] / counts[area]);
+        }
+      }
+    }
+    return thumb;
+  }
+
+  /** Builds a thumbnail by reading only the rows nearest each area. */
+  private static byte[] pickNearest(IFormatReader reader, int no, Plane p)
+    throws FormatException, IOException
+  {
+    int c = p.channels;
+    int tileWidth =
+      Math.max(1, Math.min(p.sizeX, MAX_TILE_BYTES / p.pixelBytes));
+    byte[] buf = new byte[tileWidth * p.pixelBytes];
+    byte[] thumb = new byte[p.thumbSizeX * p.thumbSizeY * p.pixelBytes];
+
+    int lastRow = -1;
+    for (int oy=0; oy<p.thumbSizeY; oy++) {
+      int y = (p.y0[oy] + p.y1[oy] - 1) / 2;
+      if (y == lastRow) {
+        // the same row is sampled again when upscaling
+        for (int ch=0; ch<c; ch++) {
+          int src = p.index(0, oy - 1, ch, p.thumbSizeX, p.thumbSizeY);
+          int dest = p.index(0, oy, ch, p.thumbSizeX, p.thumbSizeY);
+          int len = p.interleaved ? p.thumbSizeX * p.pixelBytes :
+            p.thumbSizeX * p.bpp;
+          System.arraycopy(thumb, src, thumb, dest, len);
+          if (p.interleaved) break;
+        }
+        continue;
+      }
+      lastRow = y;
+
+      int ox = 0;
+      for (int x0=0; x0<p.sizeX && ox<p.thumbSizeX; x0+=tileWidth) {
+        int w = Math.min(tileWidth, p.sizeX - x0);
+        reader.openBytes(no, buf, x0, y, w, 1);
+        for (; ox<p.thumbSizeX; ox++) {
+          int x = (p.x0[ox] + p.x1[ox] - 1) / 2;
+          if (x >= x0 + w) break;
+          for (int ch=0; ch<c; ch++) {
+            int src = p.index(x - x0, 0, ch, w, 1);
+            int dest = p.index(ox, oy, ch, p.thumbSizeX, p.thumbSizeY);
+            System.arraycopy(buf, src, thumb, dest, p.bpp);
+          }
+        }
+      }
+    }
+    return thumb;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Layout of an image plane, and the area of the plane covered by each
+   * thumbnail row and column.
+   */
+  private static class Plane {
+    int sizeX, sizeY, thumbSizeX, thumbSizeY;
+    int pixelType, bpp, channels, pixelBytes;
+    boolean little, interleaved;
+
+    /** First and last (exclusive) plane column covered by each column. */
+    int[] x0, x1;
+
+    /** First and last (exclusive) plane row covered by each row. */
+    int[] y0, y1;
+
+    Plane(IFormatReader reader, int thumbSizeX, int thumbSizeY) {
+      this(reader.getSizeX(), reader.getSizeY(), thumbSizeX, thumbSizeY,
+        reader.getPixelType(), reader.getRGBChannelCount(),
+        reader.isLittleEndian(), reader.isInterleaved());
+    }
+
+    Plane(int sizeX, int sizeY, int thumbSizeX, int thumbSizeY,
+      int pixelType, int channels, boolean little, boolean interleaved)
+    {
+      this.sizeX = sizeX;
+      this.sizeY = sizeY;
+      this.thumbSizeX = thumbSizeX;
+      this.thumbSizeY = thumbSizeY;
+      this.pixelType = pixelType;
+      bpp = FormatTools.getBytesPerPixel(pixelType);
+      this.channels = channels;
+      pixelBytes = bpp * channels;
+      this.little = little;
+      this.interleaved = interleaved;
+
+      x0 = new int[thumbSizeX];
+      x1 = new int[thumbSizeX];
+      computeAreas(x0, x1, sizeX);
+      y0 = new int[thumbSizeY];
+      y1 = new int[thumbSizeY];
+      computeAreas(y0, y1, sizeY);
+    }
+
+    /**
+     * Divides an axis of the given length into one area per thumbnail
+     * pixel.  Each area covers at least one pixel, so areas overlap when
+     * the thumbnail is larger than the plane.
+     */
+    private static void computeAreas(int[] start, int[] end, int length) {
+      for (int i=0; i<start.length; i++) {
+        start[i] = (int) ((long) i * length / start.length);
+        end[i] = (int) ((long) (i + 1) * length / start.length);
+        if (end[i] <= start[i]) end[i] = start[i] + 1;
+      }
+    }
+
+    /** Gets the first area along an axis that may cover the given pixel. */
+    int firstArea(int pos, int[] end, int thumbSize, int size) {
+        int area = (int) ((long) pos * thumbSize / size);
+      while (area > 0 && end[area - 1] > pos) area--;
+      while (area < thumbSize - 1 && end[area] <= pos) area++;
+      return area;
+    }
+
+    /** Gets the byte offset of a sample within a w x h image. */
+    int index(int x, int y, int ch, int w, int h) {
+      if (interleaved) return ((y * w + x) * channels + ch) * bpp;
+      return ((ch * h + y) * w + x) * bpp;
+    }
+
+    /** Reads the sample at the given byte offset. */
+    double getValue(byte[] b, int off) {
+      switch (pixelType) {
+        case FormatTools.INT8:
+          return b[off];
+        case FormatTools.UINT8:
+          return b[off] & 0xff;
+        case FormatTools.INT16:
+          return DataTools.bytesToShort(b, off, 2, little);
+        case FormatTools.UINT16:
+          return DataTools.bytesToShort(b, off, 2, little) & 0xffff;
+        case FormatTools.INT32:
+          return DataTools.bytesToInt(b, off, 4, little);
+        case FormatTools.UINT32:
+          return DataTools.bytesToInt(b, off, 4, little) & 0xffffffffL;
+        case FormatTools.FLOAT:
+          return DataTools.bytesToFloat(b, off, 4, little);
+        case FormatTools.DOUBLE:
+          return DataTools.bytesToDouble(b, off, 8, little);
+      }
+      throw new IllegalStateException("Unknown pixel type: " + pixelType);
+    }
+
+    /** Writes the sample at the given byte offset. */
+    void setValue(byte[] b, int off, double value) {
+      if (pixelType == FormatTools.FLOAT) {
+        int bits = Float.floatToIntBits((float) value);
+        DataTools.unpackBytes(bits, b, off, 4, little);
+      }
+      else if (pixelType == FormatTools.DOUBLE) {
+        long bits = Double.doubleToLongBits(value);
+        DataTools.unpackBytes(bits, b, off, 8, little);
+      }
+      else DataTools.unpackBytes(Math.round(value), b, off, bpp, little);
+    }
+  }
+
+}
@@ -73,6 +73,24 @@ public class CacheEvent {
   /** Event type indicating an object has been removed from the cache. */
   public static final int OBJECT_DROPPED = 8;
 
+  /**
+   * Event type indicating the new current position had already been
+   * scheduled for caching.
+   */
+  public static final int PREFETCH_HIT = 9;
+
+  /**
+   * Event type indicating the new current position had not been
+   * scheduled for caching.
+   */
+  public static final int PREFETCH_MISS = 10;
+
+  /**
+   * Event type indicating a predicted position was abandoned without
+   * having been visited.
+   */
+  public static final int PREFETCH_WASTED = 11;
+
   // -- Fields --
 
   /** Source of the cache update. */
@@ -107,7 +125,8 @@ public class CacheEvent {
   /**
    * Gets the index relevant to the cache update, if any.
    * This parameter is only set for events POSITION_CHANGED,
-   * OBJECT_LOADED and OBJECT_DROPPED.
+   * OBJECT_LOADED, OBJECT_DROPPED, PREFETCH_HIT, PREFETCH_MISS
+   * and PREFETCH_WASTED.
    */
   public int getIndex() { return index; }
 
@@ -0,0 +1,496 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.cache;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import loci.formats.FormatTools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConcurrentCache is an alternative to {@link Cache} for large datasets.
+ * Like Cache, it has a source, a strategy and a current position; unlike
+ * Cache, it only holds as many objects as fit within a byte budget, and may
+ * be used from several threads at once.
+ *
+ * Objects are kept in a concurrent hash map keyed by rasterized index, and
+ * are evicted using the CLOCK algorithm (an approximation of least recently
+ * used) once the budget is exceeded. Each time the position changes, the
+ * objects on the strategy's load list are prefetched on the given executor,
+ * in load list order; pending prefetches that are no longer on the load
+ * list are cancelled.
+ *
+ * Objects are loaded concurrently only if the source is a
+ * {@link CacheSource} whose reader is thread safe
+ * (see {@link loci.formats.IFormatReader#isThreadSafe()}); otherwise loads
+ * are serialized on the source.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/cache/ConcurrentCache.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/cache/ConcurrentCache.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ConcurrentCache implements CacheReporter {
+
+  // -- Constants --
+
+  /** Default maximum number of bytes held by the cache (256 MB). */
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ConcurrentCache.class);
+
+  // -- Fields --
+
+  /** Current cache strategy. */
+  protected ICacheStrategy strategy;
+
+  /** Current cache source. */
+  protected ICacheSource source;
+
+  /** Current dimensional position. */
+  protected int[] currentPos;
+
+  /** List of cache event listeners. */
+  protected Vector<CacheListener> listeners;
+
+  /** Executor on which objects are prefetched, or null. */
+  private Executor executor;
+
+  /** Cached objects, keyed by rasterized index. */
+  private ConcurrentHashMap<Integer, Entry> entries =
+    new ConcurrentHashMap<Integer, Entry>();
+
+  /** Indices of the cached objects, in the order visited by the clock. */
+  private ConcurrentLinkedQueue<Integer> clock =
+    new ConcurrentLinkedQueue<Integer>();
+
+  /** Prefetches that have been scheduled but have not yet completed. */
+  private ConcurrentHashMap<Integer, LoadTask> pending =
+    new ConcurrentHashMap<Integer, LoadTask>();
+
+  /** Total size in bytes of the cached objects. */
+  private AtomicLong byteCount = new AtomicLong();
+
+  private volatile long maxBytes;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a cache with the given strategy and source, and the default
+   * byte budget.
+   *
+   * @param executor Executor on which to prefetch objects; if null, objects
+   *   are prefetched on the thread that changes the position.
+   */
+  public ConcurrentCache(ICacheStrategy strategy, ICacheSource source,
+    Executor executor) throws CacheException
+  {
+    this(strategy, source, executor, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs a cache with the given strategy, source and byte budget.
+   *
+   * @param executor Executor on which to prefetch objects; if null, objects
+   *   are prefetched on the thread that changes the position.
+   * @param maxBytes Maximum number of bytes held by the cache.
+   */
+  public ConcurrentCache(ICacheStrategy strategy, ICacheSource source,
+    Executor executor, long maxBytes) throws CacheException
+  {
+    if (strategy == null) throw new CacheException("strategy is null");
+    if (source == null) throw new CacheException("source is null");
+    this.strategy = strategy;
+    this.source = source;
+    this.executor = executor;
+    this.maxBytes = maxBytes;
+    listeners = new Vector<CacheListener>();
+    currentPos = new int[strategy.getLengths().length];
+  }
+
+  // -- ConcurrentCache API methods --
+
+  /**
+   * Gets the object at the given dimensional position, loading it if it is
+   * not in the cache.
+   */
+  public Object getObject(int[] pos) throws CacheException {
+    if (pos.length != strategy.getLengths().length) {
+      throw new CacheException("Invalid number of axes; got " + pos.length +
+        "; expected " + strategy.getLengths().length);
+    }
+    return getObject(FormatTools.positionToRaster(strategy.getLengths(), pos));
+  }
+
+  /**
+   * Gets the object at the given index, loading it if it is not in the
+   * cache. If the object is being prefetched, waits for the prefetch to
+   * complete.
+   */
+  public Object getObject(int index) throws CacheException {
+    Entry entry = entries.get(index);
+    if (entry != null) {
+      entry.referenced = true;
+      return entry.value;
+    }
+
+    LoadTask task = pending.get(index);
+    if (task != null) {
+      try {
+        return task.get();
+      }
+      catch (CancellationException e) {
+        // the prefetch was cancelled before it started; load directly
+      }
+      catch (InterruptedException e) {
+        throw new CacheException(e);
+      }
+      catch (ExecutionException e) {
+        throw new CacheException(e.getCause());
+      }
+    }
+    return load(index);
+  }
+
+  /**
+   * Returns true if the object at the given dimensional position is
+   * in the cache.
+   */
+  public boolean isInCache(int[] pos) throws CacheException {
+    return isInCache(FormatTools.positionToRaster(strategy.getLengths(), pos));
+  }
+
+  /** Returns true if the object at the given index is in the cache. */
+  public boolean isInCache(int index) {
+    return entries.containsKey(index);
+  }
+
+  /** Gets the cache's caching strategy. */
+  public ICacheStrategy getStrategy() { return strategy; }
+
+  /** Gets the cache's caching source. */
+  public ICacheSource getSource() { return source; }
+
+  /** Gets the current dimensional position. */
+  public int[] getCurrentPos() { return currentPos; }
+
+  /** Gets the maximum number of bytes held by the cache. */
+  public long getMaxBytes() { return maxBytes; }
+
+  /** Sets the maximum number of bytes held by the cache. */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /** Gets the total size in bytes of the cached objects. */
+  public long getByteCount() { return byteCount.get(); }
+
+  /** Gets the number of cached objects. */
+  public int getObjectCount() { return entries.size(); }
+
+  /** Sets the cache's caching strategy, and empties the cache. */
+  public void setStrategy(ICacheStrategy strategy) throws CacheException {
+    if (strategy == null) throw new CacheException("strategy is null");
+    synchronized (listeners) {
+      for (int i=0; i<listeners.size(); i++) {
+        CacheListener l = listeners.elementAt(i);
+        this.strategy.removeCacheListener(l);
+        strategy.addCacheListener(l);
+      }
+    }
+    this.strategy = strategy;
+    notifyListeners(new CacheEvent(this, CacheEvent.STRATEGY_CHANGED));
+    currentPos = new int[strategy.getLengths().length];
+    clear();
+  }
+
+  /** Sets the cache's caching source, and empties the cache. */
+  public void setSource(ICacheSource source) throws CacheException {
+    if (source == null) throw new CacheException("source is null");
+    this.source = source;
+    notifyListeners(new CacheEvent(this, CacheEvent.SOURCE_CHANGED));
+    clear();
+  }
+
+  /**
+   * Sets the current dimensional position, cancels any pending prefetches
+   * that are no longer on the load list, and prefetches the objects on the
+   * new load list.
+   */
+  public void setCurrentPos(int[] pos) throws CacheException {
+    if (pos == null) throw new CacheException("pos is null");
+    if (pos.length != currentPos.length) {
+      throw new CacheException("pos length mismatch (is " +
+        pos.length + ", expected " + currentPos.length + ")");
+    }
+    int[] len = strategy.getLengths();
+    for (int i=0; i<pos.length; i++) {
+      if (pos[i] < 0 || pos[i] >= len[i]) {
+        throw new CacheException("invalid pos[" + i + "] (is " +
+          pos[i] + ", expected [0, " + (len[i] - 1) + "])");
+      }
+    }
+    int[] newPos = new int[pos.length];
+    System.arraycopy(pos, 0, newPos, 0, pos.length);
+    currentPos = newPos;
+    int ndx = FormatTools.positionToRaster(len, pos);
+    notifyListeners(new CacheEvent(this, CacheEvent.POSITION_CHANGED, ndx));
+    prefetch(newPos);
+  }
+
+  /** Cancels all pending prefetches and removes every cached object. */
+  public void clear() {
+    for (LoadTask task : pending.values()) {
+      task.cancel(false);
+    }
+    pending.clear();
+    for (Integer index : entries.keySet()) {
+      drop(index, entries.get(index));
+    }
+    clock.clear();
+  }
+
+  // -- CacheReporter API methods --
+
+  /* @see CacheReporter#addCacheListener(CacheListener) */
+  public void addCacheListener(CacheListener l) {
+    synchronized (listeners) {
+      listeners.add(l);
+      strategy.addCacheListener(l);
+    }
+  }
+
+  /* @see CacheReporter#removeCacheListener(CacheListener) */
+  public void removeCacheListener(CacheListener l) {
+    synchronized (listeners) {
+      listeners.remove(l);
+      strategy.removeCacheListener(l);
+    }
+  }
+
+  /* @see CacheReporter#getCacheListeners() */
+  public CacheListener[] getCacheListeners() {
+    CacheListener[] l;
+    synchronized (listeners) {
+      l = new CacheListener[listeners.size()];
+      listeners.copyInto(l);
+    }
+    return l;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets the number of bytes used by the given object. Arrays of primitive
+   * types (and arrays of such arrays) are measured; other objects count as
+   * zero bytes, so subclasses that cache other object types should override
+   * this method.
+   */
+  protected long sizeOf(Object o) {
+    if (o == null || !o.getClass().isArray()) return 0;
+    Class<?> type = o.getClass().getComponentType();
+    int length = Array.getLength(o);
+    if (type == byte.class || type == boolean.class) return length;
+    if (type == short.class || type == char.class) return length * 2L;
+    if (type == int.class || type == float.class) return length * 4L;
+    if (type == long.class || type == double.class) return length * 8L;
+    long size = 0;
+    for (int i=0; i<length; i++) {
+      size += sizeOf(Array.get(o, i));
+    }
+    return size;
+  }
+
+  /** Informs listeners of a cache update. */
+  protected void notifyListeners(CacheEvent e) {
+    synchronized (listeners) {
+      for (int i=0; i<listeners.size(); i++) {
+        CacheListener l = listeners.elementAt(i);
+        l.cacheUpdated(e);
+      }
+    }
+  }
+
+  /** Schedules the objects on the load list for the given position. */
+  private void prefetch(int[] pos) throws CacheException {
+    int[][] loadList = strategy.getLoadList(pos);
+    int[] len = strategy.getLengths();
+    Set<Integer> wanted = new LinkedHashSet<Integer>();
+    for (int i=0; i<loadList.length; i++) {
+      wanted.add(FormatTools.positionToRaster(len, loadList[i]));
+    }
+
+    // cancel prefetches that are no longer needed; prefetches that have
+    // already started are allowed to finish, as interrupting a reader can
+    // leave its file handle closed
+    Iterator<Map.Entry<Integer, LoadTask>> tasks =
+      pending.entrySet().iterator();
+    while (tasks.hasNext()) {
+      Map.Entry<Integer, LoadTask> task = tasks.next();
+      if (!wanted.contains(task.getKey())) {
+        task.getValue().cancel(false);
+        tasks.remove();
+      }
+    }
+
+    for (Integer index : wanted) {
+      if (entries.containsKey(index)) continue;
+      LoadTask task = new LoadTask(index);
+      if (pending.putIfAbsent(index, task) != null) continue;
+      if (executor == null) task.run();
+      else executor.execute(task);
+    }
+  }
+
+  /** Loads the object at the given index from the source, and caches it. */
+  private Object load(int index) throws CacheException {
+    Object value;
+    if (isSourceThreadSafe()) {
+      value = source.getObject(index);
+    }
+    else {
+      synchronized (source) {
+        value = source.getObject(index);
+      }
+    }
+
+    Entry entry = new Entry(value, sizeOf(value));
+    Entry previous = entries.put(index, entry);
+    if (previous == null) clock.offer(index);
+    else byteCount.addAndGet(-previous.size);
+    byteCount.addAndGet(entry.size);
+    notifyListeners(new CacheEvent(this, CacheEvent.OBJECT_LOADED, index));
+    evict();
+    return value;
+  }
+
+  /**
+   * Removes objects until the cache is within its byte budget. Each
+   * object that has been used since the clock last passed it is given a
+   * second chance.
+   */
+  private void evict() {
+    int chances = clock.size();
+    while (byteCount.get() > maxBytes) {
+      Integer index = clock.poll();
+      if (index == null) break;
+      Entry entry = entries.get(index);
+      if (entry == null) continue;
+      if (entry.referenced && chances-- > 0) {
+        entry.referenced = false;
+        clock.offer(index);
+      }
+      else if (!drop(index, entry)) {
+        // the object was replaced concurrently; keep it on the clock
+        clock.offer(index);
+      }
+    }
+  }
+
+  /** Removes the given object from the cache, if it is still cached. */
+  private boolean drop(Integer index, Entry entry) {
+    if (entry == null || !entries.remove(index, entry)) return false;
+    byteCount.addAndGet(-entry.size);
+    notifyListeners(new CacheEvent(this, CacheEvent.OBJECT_DROPPED, index));
+    return true;
+  }
+
+  /** Returns true if objects may be loaded from the source concurrently. */
+  private boolean isSourceThreadSafe() {
+    return source instanceof CacheSource &&
+      ((CacheSource) source).reader.isThreadSafe();
+  }
+
+  // -- Helper classes --
+
+  /** A cached object. */
+  private static class Entry {
+    final Object value;
+    final long size;
+
+    /** Whether the object has been used since the clock last passed it. */
+    volatile boolean referenced = true;
+
+    Entry(Object value, long size) {
+      this.value = value;
+      this.size = size;
+    }
+  }
+
+  /** Prefetch of a single object. */
+  private class LoadTask extends FutureTask<Object> {
+    private final Integer index;
+
+    LoadTask(final Integer index) {
+      super(new Callable<Object>() {
+        public Object call() throws CacheException {
+          return load(index);
+        }
+      });
+      this.index = index;
+    }
+
+    protected void done() {
+      pending.remove(index, this);
+      if (isCancelled()) return;
+      try {
+        get();
+      }
+      catch (InterruptedException e) { }
+      catch (ExecutionException e) {
+        LOGGER.debug("Could not prefetch object " + index, e.getCause());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * A velocity strategy extends the {@link CrosshairStrategy} by learning
+ * the direction and speed of recent position changes. When consecutive
+ * changes of the current position move along a single axis in the same
+ * direction, as when playing back or scrubbing through Z or T, planes
+ * further ahead along that axis are loaded first.
+ * <p>
+ * The number of planes predicted ahead grows by one with each consecutive
+ * move in the same direction, up to the maximum lookahead; the predicted
+ * planes are spaced by the size of the last move, so faster movement reaches
+ * further ahead. Moving along a different axis, reversing direction or
+ * jumping by more than the maximum lookahead resets the prediction.
+ * <p>
+ * The strategy keeps count of prefetch hits (the new position was on the
+ * previous load list), misses (it was not), and waste (a predicted
+ * position was abandoned without being visited), and reports each of
+ * them to listeners as a {@link CacheEvent#PREFETCH_HIT},
+ * {@link CacheEvent#PREFETCH_MISS} or {@link CacheEvent#PREFETCH_WASTED}
+ * event.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/cache/VelocityStrategy.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/cache/VelocityStrategy.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class VelocityStrategy extends CrosshairStrategy {
+
+  // -- Constants --
+
+  /** Default maximum number of planes to predict ahead. */
+  public static final int DEFAULT_MAX_LOOKAHEAD = 16;
+
+  // -- Fields --
+
+  /** Maximum number of planes to predict ahead. */
+  private int maxLookahead = DEFAULT_MAX_LOOKAHEAD;
+
+  /** Position passed to the previous call to getLoadList. */
+  private int[] lastPos;
+
+  /** Load list returned by the previous call to getLoadList. */
+  private int[][] lastLoadList;
+
+  /** Rasterized positions of the previous load list. */
+  private Set<Integer> lastLoaded = new HashSet<Integer>();
+
+  /** Rasterized positions that were predicted but not yet visited. */
+  private Set<Integer> predicted = new HashSet<Integer>();
+
+  /** Axis along which the position is moving, or -1. */
+  private int activeAxis = -1;
+
+  /** Size and direction of the last move along the active axis. */
+  private int step;
+
+  /** Number of consecutive moves in the same direction along the axis. */
+  private int streak;
+
+  private long hitCount, missCount, wasteCount;
+
+  // -- Constructor --
+
+  /** Constructs a velocity strategy. */
+  public VelocityStrategy(int[] lengths) { super(lengths); }
+
+  // -- VelocityStrategy API methods --
+
+  /** Gets the maximum number of planes to predict ahead. */
+  public synchronized int getMaxLookahead() { return maxLookahead; }
+
+  /** Sets the maximum number of planes to predict ahead. */
+  public synchronized void setMaxLookahead(int maxLookahead) {
+    if (maxLookahead < 0) {
+      throw new IllegalArgumentException(
+        "Invalid maximum lookahead: " + maxLookahead);
+    }
+    this.maxLookahead = maxLookahead;
+  }
+
+  /**
+   * Gets the axis along which the position is currently moving,
+   * or -1 if no consistent movement has been detected.
+   */
+  public synchronized int getActiveAxis() {
+    return streak > 0 ? activeAxis : -1;
+  }
+
+  /**
+   * Gets the size and direction of the last move along the active axis,
+   * or 0 if no consistent movement has been detected.
+   */
+  public synchronized int getStep() { return streak > 0 ? step : 0; }
+
+  /** Gets the number of position changes that were prefetch hits. */
+  public synchronized long getHitCount() { return hitCount; }
+
+  /** Gets the number of position changes that were prefetch misses. */
+  public synchronized long getMissCount() { return missCount; }
+
+  /** Gets the number of predicted positions that were never visited. */
+  public synchronized long getWasteCount() { return wasteCount; }
+
+  /** Resets the hit, miss and waste counters. */
+  public synchronized void resetCounters() {
+    hitCount = 0;
+    missCount = 0;
+    wasteCount = 0;
+  }
+
+  // -- ICacheStrategy API methods --
+
+  /* @see ICacheStrategy#getLoadList(int[]) */
+  public synchronized int[][] getLoadList(int[] pos) throws CacheException {
+    // the load list may be requested several times for the same position
+    if (lastPos != null && Arrays.equals(pos, lastPos)) return lastLoadList;
+
+    int index = raster(pos);
+    if (lastPos != null) {
+      updateVelocity(pos);
+      if (lastLoaded.contains(index)) {
+        hitCount++;
+        notifyListeners(
+          new CacheEvent(this, CacheEvent.PREFETCH_HIT, index));
+      }
+      else {
+        missCount++;
+        notifyListeners(
+          new CacheEvent(this, CacheEvent.PREFETCH_MISS, index));
+      }
+    }
+    predicted.remove(index);
+
+    // current position first, then predicted positions, then the crosshair
+    LinkedHashMap<Integer, int[]> loadList =
+      new LinkedHashMap<Integer, int[]>();
+    loadList.put(index, pos.clone());
+    int ahead = streak > 0 ? Math.min(streak, maxLookahead) : 0;
+    for (int i=1; i<=ahead; i++) {
+      int[] p = pos.clone();
+      int len = lengths[activeAxis];
+      p[activeAxis] = ((pos[activeAxis] + i * step) % len + len) % len;
+      Integer ndx = raster(p);
+      if (!loadList.containsKey(ndx)) {
+        loadList.put(ndx, p);
+        predicted.add(ndx);
+      }
+    }
+    int[][] neighbors = super.getLoadList(pos);
+    for (int i=0; i<neighbors.length; i++) {
+      Integer ndx = raster(neighbors[i]);
+      if (!loadList.containsKey(ndx)) loadList.put(ndx, neighbors[i]);
+    }
+
+    // predicted positions that fell off the load list were wasted
+    Iterator<Integer> iter = predicted.iterator();
+    while (iter.hasNext()) {
+      Integer ndx = iter.next();
+      if (!loadList.containsKey(ndx)) {
+        iter.remove();
+        wasteCount++;
+        notifyListeners(
+          new CacheEvent(this, CacheEvent.PREFETCH_WASTED, ndx));
+      }
+    }
+
+    lastPos = pos.clone();
+    lastLoaded = loadList.keySet();
+    lastLoadList = loadList.values().toArray(new int[loadList.size()][]);
+    return lastLoadList;
+  }
+
+  // -- Helper methods --
+
+  /** Updates the active axis, step and streak for a move to pos. */
+  private void updateVelocity(int[] pos) {
+    int axis = -1, delta = 0;
+    for (int i=0; i<pos.length; i++) {
+      if (pos[i] == lastPos[i]) continue;
+      if (axis >= 0) {
+        // moves along several axes at once are not predictable
+        axis = -1;
+        break;
+      }
+      axis = i;
+      delta = pos[i] - lastPos[i];
+
+      // movement wraps around the ends of the axis, as in looped playback
+      int len = lengths[i];
+      if (delta > len / 2) delta -= len;
+      else if (delta < -len / 2) delta += len;
+    }
+
+    if (axis < 0 || Math.abs(delta) > maxLookahead) {
+      streak = 0;
+    }
+    else if (axis == activeAxis && (delta > 0) == (step > 0)) streak++;
+    else streak = 1;
+    activeAxis = axis;
+    step = delta;
+  }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.codec;
+
+import java.io.IOException;
+
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+
+/**
+ * Index of the restart markers in a baseline JPEG stream, used to decode
+ * any region of the image without decoding the rows above it.
+ * Restart intervals are decoded independently of each other, so when the
+ * restart interval evenly divides each row of MCUs, a region is decoded by
+ * copying the intervals that it covers into a smaller JPEG stream that
+ * shares the original stream's tables.  The stream is scanned once to build
+ * the index; after that, the time taken to decode a region depends on the
+ * size of the region but not on its position in the image.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/codec/JPEGRestartIndex.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/codec/JPEGRestartIndex.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class JPEGRestartIndex {
+
+  // -- Constants --
+
+  /** Largest width or height that a JPEG frame header can record. */
+  private static final int MAX_SIZE = 65535;
+
+  /** Number of bytes read at a time while scanning for restart markers. */
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private static final int SOI = 0xffd8;
+  private static final int EOI = 0xffd9;
+  private static final int SOS = 0xffda;
+  private static final int DRI = 0xffdd;
+  private static final int SOF0 = 0xffc0;
+  private static final int SOF1 = 0xffc1;
+  private static final int DHT = 0xffc4;
+  private static final int JPG = 0xffc8;
+  private static final int DAC = 0xffcc;
+
+  // -- Fields --
+
+  private int width, height, channels;
+  private int mcuWidth, mcuHeight;
+
+  /** Number of MCUs in each restart interval. */
+  private int restartInterval;
+
+  /** Number of restart intervals in each row of MCUs. */
+  private int intervalsPerRow;
+
+  /** Every marker segment from SOI to the end of the SOS header. */
+  private byte[] header;
+
+  /** Offset of the image height within the frame header. */
+  private int frameOffset;
+
+  /** Offsets of the first byte of each restart interval. */
+  private long[] starts;
+
+  /** Offset of the end of the last restart interval. */
+  private long end;
+
+  // -- Constructor --
+
+  /**
+   * Indexes the JPEG stream that starts at the current file pointer of the
+   * given stream, and ends at the EOI marker or at the end of the stream.
+   * The stream is not closed.
+   *
+   * @param imageWidth the width of the image, used if the frame header
+   *   records a width of 0
+   * @param imageHeight the height of the image, used if the frame header
+   *   records a height of 0
+   * @throws FormatException if the stream is not a single scan baseline
+   *   JPEG, or if its restart interval does not evenly divide each row of
+   *   MCUs or is wider than a JPEG frame can be
+   */
+  public JPEGRestartIndex(RandomAccessInputStream in, int imageWidth,
+    int imageHeight) throws FormatException, IOException
+  {
+    long start = in.getFilePointer();
+    boolean little = in.isLittleEndian();
+    in.order(false);
+    try {
+      readHeader(in, start, imageWidth, imageHeight);
+      scan(in);
+    }
+    finally {
+      in.order(little);
+    }
+  }
+
+  // -- JPEGRestartIndex API methods --
+
+  /** Returns the width of the image. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** Returns the height of the image. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the number of samples in each pixel. */
+  public int getChannelCount() {
+    return channels;
+  }
+
+  /** Returns the width in pixels of each restart interval. */
+  public int getIntervalWidth() {
+    return restartInterval * mcuWidth;
+  }
+
+  /** Returns the height in pixels of each restart interval. */
+  public int getIntervalHeight() {
+    return mcuHeight;
+  }
+
+  /**
+   * Decodes a region of the image into the given buffer, as interleaved
+   * 8-bit samples.
+   *
+   * @param in a stream containing the indexed JPEG stream at the same
+   *   offsets as the stream that was indexed
+   */
+  public byte[] openRegion(RandomAccessInputStream in, byte[] buf, int x,
+    int y, int w, int h) throws FormatException, IOException
+  {
+    if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width ||
+      y + h > height)
+    {
+      throw new FormatException("Invalid region: x=" + x + ", y=" + y +
+        ", w=" + w + ", h=" + h);
+    }
+    if (buf.length < w * h * channels) {
+      throw new FormatException("Buffer too small: " + buf.length);
+    }
+
+    int intervalWidth = getIntervalWidth();
+    int firstColumn = x / intervalWidth;
+    int lastColumn = (x + w - 1) / intervalWidth;
+    int firstRow = y / mcuHeight;
+    int lastRow = (y + h - 1) / mcuHeight;
+
+    // the frame header of each decoded block must be able to record its size
+    int maxColumns = Math.max(1, MAX_SIZE / intervalWidth);
+    int maxRows = Math.max(1, MAX_SIZE / mcuHeight);
+
+    for (int row=firstRow; row<=lastRow; row+=maxRows) {
+      int rows = Math.min(maxRows, lastRow - row + 1);
+      int blockY = row * mcuHeight;
+      int y0 = Math.max(y, blockY);
+      int y1 = Math.min(y + h, blockY + rows * mcuHeight);
+
+      for (int col=firstColumn; col<=lastColumn; col+=maxColumns) {
+        int columns = Math.min(maxColumns, lastColumn - col + 1);
+        byte[] block = decode(in, col, row, columns, rows);
+
+        int blockX = col * intervalWidth;
+        int blockWidth = columns * intervalWidth;
+        int x0 = Math.max(x, blockX);
+        int x1 = Math.min(x + w, blockX + blockWidth);
+        for (int yy=y0; yy<y1; yy++) {
+          int src = ((yy - blockY) * blockWidth + x0 - blockX) * channels;
+          int dest = ((yy - y) * w + x0 - x) * channels;
+          System.arraycopy(block, src, buf, dest, (x1 - x0) * channels);
+        }
+      }
+    }
+    return buf;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Reads the marker segments up to the end of the SOS header, and records
+   * the image dimensions, MCU size and restart interval.
+   */
+  private void readHeader(RandomAccessInputStream in, long start,
+    int imageWidth, int imageHeight) throws FormatException, IOException
+  {
+    if ((in.readShort() & 0xffff) != SOI) {
+      throw new FormatException("Not a JPEG stream");
+    }
+
+    frameOffset = -1;
+    int maxH = 1, maxV = 1;
+    while (true) {
+      int marker = in.readShort() & 0xffff;
+      int length = in.readShort() & 0xffff;
+      long segment = in.getFilePointer();
+
+      if (marker == SOF0 || marker == SOF1) {
+        frameOffset = (int) (segment - start) + 1;
+        in.skipBytes(1);
+        height = in.readShort() & 0xffff;
+        width = in.readShort() & 0xffff;
+        channels = in.readUnsignedByte();
+        for (int c=0; c<channels; c++) {
+          in.skipBytes(1);
+          int sampling = in.readUnsignedByte();
+          maxH = Math.max(maxH, sampling >> 4);
+          maxV = Math.max(maxV, sampling & 0xf);
+          in.skipBytes(1);
+        }
+      }
+      else if (marker > SOF1 && marker <= 0xffcf && marker != DHT &&
+        marker != JPG && marker != DAC)
+      {
+        throw new FormatException("Unsupported JPEG frame type: " +
+          Integer.toHexString(marker));
+      }
+      else if (marker == DRI) {
+        restartInterval = in.readShort() & 0xffff;
+      }
+      else if (marker < 0xff00) {
+        throw new FormatException("Invalid JPEG marker: " +
+          Integer.toHexString(marker));
+      }
+
+      in.seek(segment + length - 2);
+      if (marker == SOS) break;
+    }
+
+    if (frameOffset < 0) {
+      throw new FormatException("JPEG stream has no frame header");
+    }
+    if (restartInterval == 0) {
+      throw new FormatException("JPEG stream has no restart markers");
+    }
+
+    // the frame header records 0 if the image is too large to record
+    if (width == 0) width = imageWidth;
+    if (height == 0) height = imageHeight;
+
+    // a single component scan is not interleaved, so each MCU is one block
+    mcuWidth = channels == 1 ? 8 : maxH * 8;
+    mcuHeight = channels == 1 ? 8 : maxV * 8;
+
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    if (mcusPerRow % restartInterval != 0) {
+      throw new FormatException("Restart interval (" + restartInterval +
+        ") does not divide the number of MCUs per row (" + mcusPerRow + ")");
+    }
+    intervalsPerRow = mcusPerRow / restartInterval;
+
+    // intervals are decoded as standalone frames, which cannot be any wider
+    if (getIntervalWidth() > MAX_SIZE) {
+      throw new FormatException("Restart interval is too wide to decode (" +
+        getIntervalWidth() + " pixels)");
+    }
+
+    long fp = in.getFilePointer();
+    header = new byte[(int) (fp - start)];
+    in.seek(start);
+    in.readFully(header);
+  }
+
+  /**
+   * Scans the entropy coded data that follows the header for restart
+   * markers, and records the start of each restart interval.
+   */
+  private void scan(RandomAccessInputStream in)
+    throws FormatException, IOException
+  {
+    int rows = (height + mcuHeight - 1) / mcuHeight;
+    long count = (long) rows * intervalsPerRow;
+    if (count > Integer.MAX_VALUE) {
+      throw new FormatException("Too many restart intervals: " + count);
+    }
+    starts = new long[(int) count];
+    int next = 0;
+    starts[next++] = in.getFilePointer();
+
+    byte[] buf = new byte[BUFFER_SIZE];
+    long pos = in.getFilePointer();
+    long length = in.length();
+    boolean marker = false;
+    end = -1;
+
+    while (pos < length && end < 0) {
+      int n = in.read(buf, 0, (int) Math.min(buf.length, length - pos));
+      if (n <= 0) break;
+      for (int i=0; i<n; i++) {
+        if (!marker) {
+          marker = buf[i] == (byte) 0xff;
+          continue;
+        }
+        int code = (buf[i] & 0xff) | 0xff00;
+        // 0xff00 is a stuffed 0xff byte, and 0xffff is a fill byte
+        marker = code == 0xffff;
+        if (code >= 0xffd0 && code <= 0xffd7) {
+          if (next == starts.length) {
+            throw new FormatException("Found more than " + starts.length +
+              " restart intervals");
+          }
+          starts[next++] = pos + i + 1;
+        }
+        else if (code == EOI) {
+          end = pos + i - 1;
+          break;
+        }
+        else if (code != 0xff00 && code != 0xffff) {
+          throw new FormatException("Unexpected JPEG marker: " +
+            Integer.toHexString(code));
+        }
+      }
+      pos += n;
+    }
+    if (end < 0) end = length;
+
+    if (next != starts.length) {
+      throw new FormatException("Expected " + starts.length +
+        " restart intervals; found " + next);
+    }
+  }
+
+  /** Returns the number of bytes of entropy coded data in an interval. */
+  private int getIntervalLength(int interval) {
+    long next = interval < starts.length - 1 ? starts[interval + 1] - 2 : end;
+    return (int) (next - starts[interval]);
+  }
+
+  /**
+   * Builds and decodes a JPEG stream containing the given rows and columns
+   * of restart intervals.
+   */
+  private byte[] decode(RandomAccessInputStream in, int column, int row,
+    int columns, int rows) throws FormatException, IOException
+  {
+    int length = header.length;
+    for (int r=row; r<row+rows; r++) {
+      for (int c=column; c<column+columns; c++) {
+        length += getIntervalLength(r * intervalsPerRow + c) + 2;
+      }
+    }
+
+    byte[] jpeg = new byte[length];
+    System.arraycopy(header, 0, jpeg, 0, header.length);
+    DataTools.unpackBytes(rows * mcuHeight, jpeg, frameOffset, 2, false);
+    DataTools.unpackBytes(columns * getIntervalWidth(), jpeg,
+      frameOffset + 2, 2, false);
+
+    // restart markers are numbered from 0 to 7 in each stream
+    int next = header.length;
+    int restart = 0;
+    for (int r=row; r<row+rows; r++) {
+      for (int c=column; c<column+columns; c++) {
+        if (next > header.length) {
+          jpeg[next++] = (byte) 0xff;
+          jpeg[next++] = (byte) (0xd0 + restart);
+          restart = (restart + 1) % 8;
+        }
+        int interval = r * intervalsPerRow + c;
+        int n = getIntervalLength(interval);
+        in.seek(starts[interval]);
+        in.readFully(jpeg, next, n);
+        next += n;
+      }
+    }
+    jpeg[next++] = (byte) 0xff;
+    jpeg[next++] = (byte) 0xd9;
+
+    CodecOptions options = new CodecOptions();
+    options.interleaved = true;
+    options.littleEndian = false;
+    return new JPEGCodec().decompress(jpeg, options);
+  }
+
+}
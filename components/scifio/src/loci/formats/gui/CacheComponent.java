@@ -60,6 +60,7 @@ import loci.formats.cache.CrosshairStrategy;
 import loci.formats.cache.ICacheSource;
 import loci.formats.cache.ICacheStrategy;
 import loci.formats.cache.RectangleStrategy;
+import loci.formats.cache.VelocityStrategy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -89,10 +90,12 @@ public class CacheComponent extends JPanel
     BufferedImageSource.class
   };
   protected static final Class[] SOURCE_PARAMS = {String.class};
-  protected static final String[] STRATEGIES = {"Crosshair", "Rectangle"};
+  protected static final String[] STRATEGIES =
+    {"Crosshair", "Rectangle", "Velocity"};
   protected static final Class[] STRATEGY_VALUES = {
     CrosshairStrategy.class,
-    RectangleStrategy.class
+    RectangleStrategy.class,
+    VelocityStrategy.class
   };
   protected static final Class[] STRATEGY_PARAMS = {int[].class};
 
@@ -36,8 +36,8 @@
 
 package loci.formats.in;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
@@ -47,6 +47,8 @@ import java.util.Vector;
 import java.util.zip.GZIPInputStream;
 
 import loci.common.DateTools;
+import loci.common.GZipIndex;
+import loci.common.IRandomAccess;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
@@ -79,6 +81,9 @@ public class ICSReader extends FormatReader {
   /** Newline characters. */
   public static final String NL = "\r\n";
 
+  /** Minimum spacing between access points into gzip-compressed pixels. */
+  private static final int MIN_GZIP_INDEX_SPAN = 65536;
+
   public static final String[] DATE_FORMATS = {
     "EEEE, MMMM dd, yyyy HH:mm:ss",
     "EEE dd MMMM yyyy HH:mm:ss",
@@ -527,7 +532,22 @@ public class ICSReader extends FormatReader {
   /** Whether or not the pixels are GZIP-compressed. */
   private boolean gzip;
 
-  private GZIPInputStream gzipStream;
+  /** Stream of uncompressed pixels, and its position within them. */
+  private InputStream gzipStream;
+  private long gzipPosition;
+
+  /**
+   * Access points into the compressed pixels, spaced roughly one plane
+   * apart and recorded as the pixels are first read, so that planes can be
+   * reread without inflating those before them.
+   */
+  private GZipIndex gzipIndex;
+
+  /** File containing the compressed pixels. */
+  private String gzipFile;
+
+  /** Offset of the first plane within the uncompressed data. */
+  private long gzipBase;
 
   /** Whether or not the image is inverted along the Y axis. */
   private boolean invertY;
@@ -631,40 +651,33 @@ public class ICSReader extends FormatReader {
       in.seek(offset + no * (long) len);
     }
     else {
-      long toSkip = (no - prevImage - 1) * (long) len;
-      if (gzipStream == null || no <= prevImage) {
-        FileInputStream fis = null;
-        toSkip = no * (long) len;
-        if (versionTwo) {
-          fis = new FileInputStream(currentIcsId);
-          fis.skip(offset);
+      if (gzipIndex == null) setupGZipIndex(len);
+      if (gzip) {
+        // planes are located relative to the start of the uncompressed data
+        long pos = gzipBase + no * (long) len;
+        if (gzipStream == null || pos < gzipPosition ||
+          gzipIndex.getResumeOffset(pos) > gzipPosition)
+        {
+          if (gzipStream != null) gzipStream.close();
+          gzipStream = gzipIndex.open(Location.getHandle(gzipFile), pos);
+          gzipPosition = pos;
         }
-        else {
-          fis = new FileInputStream(currentIdsId);
-          toSkip += offset;
-        }
-        try {
-          gzipStream = new GZIPInputStream(fis);
-        }
-        catch (IOException e) {
-          // the 'gzip' flag is set erroneously
-          gzip = false;
-          in.seek(offset + no * (long) len);
-          gzipStream = null;
-        }
-      }
-
-      if (gzipStream != null) {
-        while (toSkip > 0) {
-          toSkip -= gzipStream.skip(toSkip);
+        while (gzipPosition < pos) {
+          long skipped = gzipStream.skip(pos - gzipPosition);
+          if (skipped <= 0) break;
+          gzipPosition += skipped;
         }
 
         data = new byte[len * (storedRGB ? getSizeC() : 1)];
         int toRead = data.length;
         while (toRead > 0) {
-          toRead -= gzipStream.read(data, data.length - toRead, toRead);
+          int n = gzipStream.read(data, data.length - toRead, toRead);
+          if (n < 0) break;
+          toRead -= n;
         }
+        gzipPosition += data.length - toRead;
       }
+      else in.seek(offset + no * (long) len);
     }
 
     int sizeC = lifetime ? 1 : getSizeC();
@@ -744,6 +757,10 @@ public class ICSReader extends FormatReader {
         gzipStream.close();
       }
       gzipStream = null;
+      gzipPosition = 0;
+      gzipIndex = null;
+      gzipFile = null;
+      gzipBase = 0;
     }
   }
 
@@ -1712,6 +1729,41 @@ public class ICSReader extends FormatReader {
 
   // -- Helper methods --
 
+  /**
+   * Creates an empty index into the pixel data, which records an access
+   * point about every plane as planes are read.  If the data is not
+   * actually gzip-compressed, the gzip flag is cleared instead.
+   */
+  private void setupGZipIndex(int planeSize) throws IOException {
+    long start = 0;
+    if (versionTwo) {
+      gzipFile = currentIcsId;
+      start = offset;
+      gzipBase = 0;
+    }
+    else {
+      gzipFile = currentIdsId;
+      gzipBase = offset;
+    }
+
+    IRandomAccess source = Location.getHandle(gzipFile);
+    try {
+      source.seek(start);
+      if (source.length() - start < 2 || (source.readUnsignedByte() |
+        (source.readUnsignedByte() << 8)) != GZIPInputStream.GZIP_MAGIC)
+      {
+        // the 'gzip' flag is set erroneously
+        gzip = false;
+        return;
+      }
+      gzipIndex = GZipIndex.create(start,
+        Math.max(planeSize, MIN_GZIP_INDEX_SPAN));
+    }
+    finally {
+      source.close();
+    }
+  }
+
   /*
    * String tokenizer for parsing metadata. Splits on any white-space
    * characters. Tabs and spaces are often used interchangeably in real-life ICS
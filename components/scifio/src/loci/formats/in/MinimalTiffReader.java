@@ -37,6 +37,8 @@
 package loci.formats.in;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -352,6 +354,20 @@ public class MinimalTiffReader extends FormatReader {
     }
   }
 
+  /**
+   * Returns true for MinimalTiffReader itself, unless the pixels are
+   * JPEG-2000 compressed; the JPEG-2000 codec options are then shared by
+   * every openBytes call.  Subclasses frequently keep per-plane state in
+   * openBytes, so they must override this method to declare that they are
+   * thread safe.
+   *
+   * @see loci.formats.IFormatReader#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return getClass() == MinimalTiffReader.class && !isJPEG2000();
+  }
+
   /* @see loci.formats.IFormatReader#getOptimalTileWidth() */
   public int getOptimalTileWidth() {
     FormatTools.assertId(currentId, true, 1);
@@ -532,6 +548,7 @@ public class MinimalTiffReader extends FormatReader {
         newCore[i].thumbnail = true;
         i++;
       }
+      newCore[0].resolutionCount = newCore.length;
       core = newCore;
     }
 
@@ -539,6 +556,58 @@ public class MinimalTiffReader extends FormatReader {
     MetadataTools.populatePixels(store, this);
   }
 
+  /**
+   * Writes the IFDs found by {@link #initFile(String)}.  Returns true only
+   * for MinimalTiffReader itself; subclasses that keep additional state must
+   * override this method to save it.
+   *
+   * @see loci.formats.FormatReader#saveState(ObjectOutputStream)
+   */
+  protected boolean saveState(ObjectOutputStream out) throws IOException {
+    out.writeObject(ifds);
+    out.writeObject(thumbnailIFDs);
+    out.writeObject(subResolutionIFDs);
+    out.writeBoolean(use64Bit);
+    out.writeObject(resolutionLevels);
+    return getClass() == MinimalTiffReader.class;
+  }
+
+  /* @see loci.formats.FormatReader#restoreState(ObjectInputStream) */
+  @SuppressWarnings("unchecked")
+  protected void restoreState(ObjectInputStream s)
+    throws FormatException, IOException, ClassNotFoundException
+  {
+    ifds = (IFDList) s.readObject();
+    thumbnailIFDs = (IFDList) s.readObject();
+    subResolutionIFDs = (List<IFDList>) s.readObject();
+    use64Bit = s.readBoolean();
+    resolutionLevels = (Integer) s.readObject();
+
+    in = new RandomAccessInputStream(currentId);
+    tiffParser = new TiffParser(in);
+    tiffParser.setDoCaching(false);
+    tiffParser.setUse64BitOffsets(use64Bit);
+    if (tiffParser.checkHeader() == null) {
+      throw new FormatException("Invalid TIFF file");
+    }
+    in.order(ifds.get(0).isLittleEndian());
+  }
+
+  /** Returns true if the pixels are JPEG-2000 compressed. */
+  private boolean isJPEG2000() {
+    if (ifds == null || ifds.size() == 0) return false;
+    try {
+      TiffCompression compression = ifds.get(0).getCompression();
+      return compression == TiffCompression.JPEG_2000 ||
+        compression == TiffCompression.JPEG_2000_LOSSY ||
+        compression == TiffCompression.ALT_JPEG2000;
+    }
+    catch (FormatException e) {
+      LOGGER.debug("Could not retrieve compression", e);
+    }
+    return false;
+  }
+
   /**
    * Sets the resolution level when we have JPEG 2000 compressed data.
    * @param ifd The active IFD that is being used in our current
@@ -66,6 +66,7 @@ import loci.formats.tiff.IFD;
 import loci.formats.tiff.IFDList;
 import loci.formats.tiff.PhotoInterp;
 import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffParserPool;
 
 import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
@@ -97,6 +98,9 @@ public class OMETiffReader extends FormatReader {
 
   private OMEXMLService service;
 
+  /** Open parsers for the constituent files, reused across openBytes calls. */
+  private TiffParserPool parserPool = new TiffParserPool();
+
   // -- Constructor --
 
   /** Constructs a new OME-TIFF reader. */
@@ -109,6 +113,21 @@ public class OMETiffReader extends FormatReader {
     datasetDescription = "One or more .ome.tiff files";
   }
 
+  // -- OMETiffReader API methods --
+
+  /**
+   * Sets the maximum number of constituent files that are kept open between
+   * calls to openBytes.  A value of 0 closes each file after it is read.
+   */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    parserPool.setMaxOpenFiles(maxOpenFiles);
+  }
+
+  /** Gets the maximum number of constituent files kept open. */
+  public int getMaxOpenFiles() {
+    return parserPool.getMaxOpenFiles();
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isSingleFile(String) */
@@ -223,8 +242,10 @@ public class OMETiffReader extends FormatReader {
     lastPlane = no;
     int i = info[series][no].ifd;
     MinimalTiffReader r = (MinimalTiffReader) info[series][no].reader;
-    if (r.getCurrentFile() == null) {
-      r.setId(info[series][no].id);
+    synchronized (r) {
+      if (r.getCurrentFile() == null) {
+        r.setId(info[series][no].id);
+      }
     }
     IFDList ifdList = r.getIFDs();
     if (i >= ifdList.size()) {
@@ -232,11 +253,18 @@ public class OMETiffReader extends FormatReader {
       return buf;
     }
     IFD ifd = ifdList.get(i);
-    RandomAccessInputStream s =
-      new RandomAccessInputStream(info[series][no].id);
-    TiffParser p = new TiffParser(s);
-    p.getSamples(ifd, buf, x, y, w, h);
-    s.close();
+    String file = info[series][no].id;
+    TiffParser p = parserPool.acquire(file);
+    boolean success = false;
+    try {
+      p.getSamples(ifd, buf, x, y, w, h);
+      success = true;
+    }
+    finally {
+      // a failed read may leave the stream in an unknown state
+      if (success) parserPool.release(file, p);
+      else parserPool.discard(p);
+    }
     return buf;
   }
 
@@ -271,6 +299,7 @@ public class OMETiffReader extends FormatReader {
   /* @see loci.formats.IFormatReader#close(boolean) */
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
+    parserPool.closeAll();
     if (info != null) {
       for (OMETiffPlane[] dimension : info) {
         for (OMETiffPlane plane : dimension) {
@@ -306,6 +335,17 @@ public class OMETiffReader extends FormatReader {
     return tileHeight[getSeries()];
   }
 
+  /**
+   * Returns true, as each call to openBytes decodes pixels using a parser
+   * taken exclusively from the parser pool.
+   *
+   * @see loci.formats.IFormatReader#isThreadSafe()
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
+
   // -- Internal FormatReader API methods --
 
   /* @see loci.formats.FormatReader#initFile(String) */
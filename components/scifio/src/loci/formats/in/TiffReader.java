@@ -37,6 +37,8 @@
 package loci.formats.in;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 
@@ -121,6 +123,28 @@ public class TiffReader extends BaseTiffReader {
     }
   }
 
+  // -- Internal FormatReader API methods --
+
+  /**
+   * Writes the IFDs and the name of the companion file, if any.  Returns
+   * true only for TiffReader itself.
+   *
+   * @see loci.formats.FormatReader#saveState(ObjectOutputStream)
+   */
+  protected boolean saveState(ObjectOutputStream out) throws IOException {
+    super.saveState(out);
+    out.writeObject(companionFile);
+    return getClass() == TiffReader.class;
+  }
+
+  /* @see loci.formats.FormatReader#restoreState(ObjectInputStream) */
+  protected void restoreState(ObjectInputStream s)
+    throws FormatException, IOException, ClassNotFoundException
+  {
+    super.restoreState(s);
+    companionFile = (String) s.readObject();
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see BaseTiffReader#initStandardMetadata() */
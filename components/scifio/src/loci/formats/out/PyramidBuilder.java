@@ -0,0 +1,252 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.out;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.formats.FormatTools;
+import loci.formats.ThumbnailScaler;
+import loci.formats.tiff.IFD;
+
+/**
+ * Builds the reduced resolution levels of one plane while the full
+ * resolution plane is written.  Each level is half the width and height of
+ * the level above it, and is built one band of tiles at a time: the rows
+ * of a level are kept only until the band of the next level that they
+ * cover is complete.  A plane that is written in rows of tiles therefore
+ * needs only a few bands of each level in memory, however large it is.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/out/PyramidBuilder.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/out/PyramidBuilder.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+class PyramidBuilder {
+
+  // -- Constants --
+
+  /** Width and height of the tiles of each reduced resolution level. */
+  static final int TILE_SIZE = 256;
+
+  // -- Fields --
+
+  private int[] sizeX, sizeY;
+  private int channels, pixelType, method;
+  private boolean little, interleaved;
+
+  /** Bytes per pixel within each channel plane of a band. */
+  private int pixelBytes;
+
+  /** Incomplete bands of each level, keyed by band index. */
+  private List<Map<Integer, Band>> bands = new ArrayList<Map<Integer, Band>>();
+
+  /** IFD of each reduced resolution level, or null if not yet written. */
+  private IFD[] ifds;
+
+  /** Offsets of the reduced resolution IFDs; 0 if not yet written. */
+  private long[] subIFDs;
+
+  /** Number of rows of each level that have been built. */
+  private int[] rowsBuilt;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a pyramid builder for a plane with the given dimensions.
+   *
+   * @param levels the number of levels, including the full resolution plane
+   * @param method the method used to halve each level;
+   *   one of {@link ThumbnailScaler#AREA_AVERAGING} or
+   *   {@link ThumbnailScaler#NEAREST_NEIGHBOR}
+   */
+  PyramidBuilder(int sizeX, int sizeY, int levels, int channels,
+    int pixelType, boolean little, boolean interleaved, int method)
+  {
+    this.sizeX = new int[levels];
+    this.sizeY = new int[levels];
+    this.sizeX[0] = sizeX;
+    this.sizeY[0] = sizeY;
+    for (int i=1; i<levels; i++) {
+      this.sizeX[i] = (this.sizeX[i - 1] + 1) / 2;
+      this.sizeY[i] = (this.sizeY[i - 1] + 1) / 2;
+    }
+    for (int i=0; i<levels-1; i++) {
+      bands.add(new HashMap<Integer, Band>());
+    }
+    this.channels = channels;
+    this.pixelType = pixelType;
+    this.little = little;
+    this.interleaved = interleaved;
+    this.method = method;
+    pixelBytes = FormatTools.getBytesPerPixel(pixelType);
+    if (interleaved) pixelBytes *= channels;
+    ifds = new IFD[levels];
+    subIFDs = new long[levels - 1];
+    rowsBuilt = new int[levels];
+  }
+
+  // -- PyramidBuilder API methods --
+
+  /** Returns the number of levels, including the full resolution plane. */
+  int getLevelCount() {
+    return sizeX.length;
+  }
+
+  /** Returns the width of the given level. */
+  int getSizeX(int level) {
+    return sizeX[level];
+  }
+
+  /** Returns the height of the given level. */
+  int getSizeY(int level) {
+    return sizeY[level];
+  }
+
+  /**
+   * Returns the offsets of the reduced resolution IFDs, in level order.
+   * The array is updated in place by {@link #setOffset(int, long)}, so it
+   * can be stored as the value of the full resolution IFD's SubIFDs tag.
+   */
+  long[] getSubIFDOffsets() {
+    return subIFDs;
+  }
+
+  /** Returns the offset of the given level's IFD, or -1 if not written. */
+  long getOffset(int level) {
+    return subIFDs[level - 1] == 0 ? -1 : subIFDs[level - 1];
+  }
+
+  /** Records the offset of the given level's IFD. */
+  void setOffset(int level, long offset) {
+    subIFDs[level - 1] = offset;
+  }
+
+  /** Returns the IFD of the given level, or null if none has been set. */
+  IFD getIFD(int level) {
+    return ifds[level];
+  }
+
+  /** Sets the IFD of the given level. */
+  void setIFD(int level, IFD ifd) {
+    ifds[level] = ifd;
+  }
+
+  /** Returns true if every row of every level has been built. */
+  synchronized boolean isComplete() {
+    int last = sizeY.length - 1;
+    return rowsBuilt[last] >= sizeY[last];
+  }
+
+  /**
+   * Adds a rectangle of the full resolution plane.  Each pixel of the plane
+   * is expected to be added exactly once.
+   *
+   * @return the bands of the reduced resolution levels that were completed
+   *   by this rectangle, in the order in which they should be written
+   */
+  synchronized List<Band> add(byte[] buf, int x, int y, int w, int h) {
+    List<Band> done = new ArrayList<Band>();
+    if (sizeX.length > 1) add(0, buf, x, y, w, h, done);
+    return done;
+  }
+
+  // -- Helper methods --
+
+  private void add(int level, byte[] buf, int x, int y, int w, int h,
+    List<Band> done)
+  {
+    int bandRows = TILE_SIZE * 2;
+    int width = sizeX[level];
+    int planes = interleaved ? 1 : channels;
+    Map<Integer, Band> levelBands = bands.get(level);
+
+    for (int b=y / bandRows; b<=(y + h - 1) / bandRows; b++) {
+      Band band = levelBands.get(b);
+      if (band == null) {
+        int rows = Math.min(bandRows, sizeY[level] - b * bandRows);
+        band = new Band(level, b * bandRows, rows,
+          new byte[rows * width * pixelBytes * planes]);
+        levelBands.put(b, band);
+      }
+
+      int top = Math.max(y, band.y);
+      int bottom = Math.min(y + h, band.y + band.rows);
+      for (int c=0; c<planes; c++) {
+        for (int row=top; row<bottom; row++) {
+          int src = ((c * h + row - y) * w) * pixelBytes;
+          int dest = ((c * band.rows + row - band.y) * width + x) * pixelBytes;
+          System.arraycopy(buf, src, band.data, dest, w * pixelBytes);
+        }
+      }
+      band.filled += (long) (bottom - top) * w;
+
+      if (band.filled >= (long) band.rows * width) {
+        levelBands.remove(b);
+        byte[] half = ThumbnailScaler.halve(band.data, width, band.rows,
+          channels, pixelType, little, interleaved, method);
+        Band next =
+          new Band(level + 1, band.y / 2, (band.rows + 1) / 2, half);
+        done.add(next);
+        rowsBuilt[next.level] += next.rows;
+        if (level + 1 < bands.size()) {
+          add(level + 1, half, 0, next.y, sizeX[level + 1], next.rows, done);
+        }
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** A band of full width rows of one level. */
+  static class Band {
+    final int level;
+    final int y;
+    final int rows;
+    final byte[] data;
+    long filled;
+
+    Band(int level, int y, int rows, byte[] data) {
+      this.level = level;
+      this.y = y;
+      this.rows = rows;
+      this.data = data;
+    }
+  }
+
+}
@@ -37,6 +37,10 @@
 package loci.formats.out;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -44,12 +48,12 @@ import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.FormatWriter;
 import loci.formats.ImageTools;
+import loci.formats.ThumbnailScaler;
 import loci.formats.codec.CompressionType;
 import loci.formats.gui.AWTImageTools;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffCompression;
-import loci.formats.tiff.TiffParser;
 import loci.formats.tiff.TiffRational;
 import loci.formats.tiff.TiffSaver;
 
@@ -91,6 +95,16 @@ public class TiffWriter extends FormatWriter {
   /** Whether or not to check the parameters passed to saveBytes. */
   private boolean checkParams = true;
 
+  /** Executor used to compress strips in parallel; null if serial. */
+  private ExecutorService compressionExecutor;
+
+  /** Number of resolution levels to write for each plane. */
+  private int resolutionCount = 1;
+
+  /** Reduced resolution levels being built, keyed by IFD index. */
+  private Map<Integer, PyramidBuilder> pyramids =
+    new HashMap<Integer, PyramidBuilder>();
+
   /**
    * Sets the compression code for the specified IFD.
    * 
@@ -190,6 +204,10 @@ public class TiffWriter extends FormatWriter {
 
     tiffSaver.writeImage(buf, ifd, index, type, x, y, w, h,
       no == getPlaneCount() - 1 && getSeries() == retrieve.getImageCount() - 1);
+
+    if (resolutionCount > 1) {
+      writeResolutions(index, buf, ifd, type, x, y, w, h);
+    }
   }
 
   /**
@@ -320,9 +338,98 @@ public class TiffWriter extends FormatWriter {
       index += getPlaneCount();
     }
     setSeries(realSeries);
+
+    if (resolutionCount > 1) {
+      PyramidBuilder pyramid = pyramids.get(index);
+      if (pyramid == null) {
+        // indexed images are not averaged, so that the colors stay valid
+        int method = lut == null ?
+          ThumbnailScaler.AREA_AVERAGING : ThumbnailScaler.NEAREST_NEIGHBOR;
+        pyramid = new PyramidBuilder(width, height, resolutionCount, c, type,
+          littleEndian, ifd.getPlanarConfiguration() == 1, method);
+        pyramids.put(index, pyramid);
+      }
+      if (!ifd.containsKey(IFD.SUB_IFD)) {
+        // placeholder offsets; these are filled in as each level is written
+        ifd.putIFDValue(IFD.SUB_IFD, pyramid.getSubIFDOffsets());
+      }
+    }
     return index;
   }
 
+  /**
+   * Adds a rectangle of the full resolution plane to the plane's reduced
+   * resolution levels, and writes the bands of each level that are complete.
+   */
+  private void writeResolutions(int index, byte[] buf, IFD ifd, int type,
+    int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    PyramidBuilder pyramid;
+    synchronized (this) {
+      pyramid = pyramids.get(index);
+    }
+    if (pyramid == null) return;
+
+    List<PyramidBuilder.Band> bands = pyramid.add(buf, x, y, w, h);
+    synchronized (pyramid) {
+      for (PyramidBuilder.Band band : bands) {
+        int level = band.level;
+        IFD levelIFD = pyramid.getIFD(level);
+        if (levelIFD == null) {
+          levelIFD = makeResolutionIFD(ifd, pyramid, level);
+          pyramid.setIFD(level, levelIFD);
+        }
+        long offset = pyramid.getOffset(level);
+        long newOffset = tiffSaver.writeSubImage(band.data, levelIFD, offset,
+          type, 0, band.y, pyramid.getSizeX(level), band.rows);
+
+        if (offset < 0) {
+          // link the new level from the full resolution IFD
+          pyramid.setOffset(level, newOffset);
+          tiffSaver.overwriteSubIFDOffsets(index, pyramid.getSubIFDOffsets());
+        }
+      }
+    }
+
+    synchronized (this) {
+      if (pyramid.isComplete()) pyramids.remove(index);
+    }
+  }
+
+  /**
+   * Creates the IFD for a reduced resolution level, using the compression
+   * and sample layout of the given full resolution IFD.
+   */
+  private IFD makeResolutionIFD(IFD ifd, PyramidBuilder pyramid, int level) {
+    IFD levelIFD = new IFD();
+    levelIFD.put(IFD.NEW_SUBFILE_TYPE, 1L);
+    levelIFD.put(IFD.IMAGE_WIDTH, new Long(pyramid.getSizeX(level)));
+    levelIFD.put(IFD.IMAGE_LENGTH, new Long(pyramid.getSizeY(level)));
+    levelIFD.put(IFD.TILE_WIDTH, PyramidBuilder.TILE_SIZE);
+    levelIFD.put(IFD.TILE_LENGTH, PyramidBuilder.TILE_SIZE);
+
+    int[] tags = {IFD.LITTLE_ENDIAN, IFD.COMPRESSION, IFD.PREDICTOR,
+      IFD.PLANAR_CONFIGURATION, IFD.SAMPLE_FORMAT, IFD.COLOR_MAP,
+      IFD.RESOLUTION_UNIT};
+    for (int tag : tags) {
+      Object value = ifd.get(tag);
+      if (value != null) levelIFD.put(tag, value);
+    }
+
+    // each level covers the same physical area with fewer pixels
+    int[] resolutionTags = {IFD.X_RESOLUTION, IFD.Y_RESOLUTION};
+    for (int tag : resolutionTags) {
+      Object value = ifd.get(tag);
+      if (value instanceof TiffRational) {
+        TiffRational r = (TiffRational) value;
+        levelIFD.put(tag, new TiffRational(r.getNumerator(),
+          r.getDenominator() << level));
+      }
+    }
+    return levelIFD;
+  }
+
   // -- FormatWriter API methods --
 
   /* (non-Javadoc)
@@ -331,6 +438,7 @@ public class TiffWriter extends FormatWriter {
   @Override
   public void close() throws IOException {
     super.close();
+    pyramids.clear();
     if (in != null) {
       in.close();
     }
@@ -358,22 +466,11 @@ public class TiffWriter extends FormatWriter {
   public void saveBytes(int no, byte[] buf, int x, int y, int w, int h)
     throws FormatException, IOException
   {
-    IFD ifd = new IFD();
+    IFD ifd = null;
     if (!sequential) {
-      TiffParser parser = new TiffParser(currentId);
-      try {
-        long[] ifdOffsets = parser.getIFDOffsets();
-        if (no < ifdOffsets.length) {
-          ifd = parser.getIFD(ifdOffsets[no]);
-        }
-      }
-      finally {
-        RandomAccessInputStream tiffParserStream = parser.getStream();
-        if (tiffParserStream != null) {
-          tiffParserStream.close();
-        }
-      }
+      ifd = tiffSaver.getIFD(no);
     }
+    if (ifd == null) ifd = new IFD();
 
     saveBytes(no, buf, ifd, x, y, w, h);
   }
@@ -408,6 +505,55 @@ public class TiffWriter extends FormatWriter {
     isBigTiff = bigTiff;
   }
 
+  /**
+   * Sets the number of resolution levels to write for each plane, including
+   * the full resolution plane.  Each reduced resolution level is half the
+   * width and height of the level above it, and is written as a tiled SubIFD
+   * of the full resolution plane's IFD.  The levels are built as the full
+   * resolution plane is written, so only a few bands of tiles of each level
+   * are held in memory at any time.
+   * This setting is not reset when close() is called.
+   *
+   * @param count the number of resolution levels; 1 (the default) writes
+   *   only the full resolution planes
+   */
+  public void setResolutionCount(int count) {
+    FormatTools.assertId(currentId, false, 1);
+    if (count < 1) {
+      throw new IllegalArgumentException("Invalid resolution count: " + count);
+    }
+    resolutionCount = count;
+  }
+
+  /** Retrieves the number of resolution levels written for each plane. */
+  public int getResolutionCount() {
+    return resolutionCount;
+  }
+
+  /**
+   * Sets the executor used to compress strips and tiles in parallel.
+   * Compressed strips are still written to the file in order.
+   * This setting is not reset when close() is called.
+   *
+   * @param executor the executor to use, or null to compress strips on the
+   *   thread that calls saveBytes
+   * @see TiffSaver#setCompressionExecutor(ExecutorService)
+   */
+  public void setCompressionExecutor(ExecutorService executor) {
+    compressionExecutor = executor;
+    if (tiffSaver != null) {
+      tiffSaver.setCompressionExecutor(executor);
+    }
+  }
+
+  /**
+   * Retrieves the executor used to compress strips in parallel.
+   * @return See above; null if strips are compressed serially.
+   */
+  public ExecutorService getCompressionExecutor() {
+    return compressionExecutor;
+  }
+
   // -- Helper methods --
 
   private void setupTiffSaver() throws IOException {
@@ -424,6 +570,7 @@ public class TiffWriter extends FormatWriter {
     tiffSaver.setLittleEndian(littleEndian);
     tiffSaver.setBigTiff(isBigTiff);
     tiffSaver.setCodecOptions(options);
+    tiffSaver.setCompressionExecutor(compressionExecutor);
   }
 
 }
@@ -182,6 +182,15 @@ public enum TiffCompression implements CodedEnum {
   /** Name of the TIFF compression codec. */
   private String codecName;
 
+  /**
+   * Compression types whose codecs keep no state between calls, and so may
+   * decode several strips or tiles concurrently.
+   */
+  private static final EnumSet<TiffCompression> STATELESS = EnumSet.of(
+    DEFAULT_UNCOMPRESSED, UNCOMPRESSED, LZW, OLD_JPEG, JPEG, PACK_BITS,
+    PROPRIETARY_DEFLATE, DEFLATE, JPEG_2000, JPEG_2000_LOSSY, ALT_JPEG2000,
+    ALT_JPEG, NIKON);
+
   /** Reverse lookup of code to TIFF compression enumerate value. */
   private static final Map<Integer, TiffCompression> lookup =
     getCompressionMap();
@@ -230,6 +239,15 @@ public enum TiffCompression implements CodedEnum {
     return code;
   }
 
+  /**
+   * Returns true if the codec keeps no state between calls, so that strips
+   * or tiles may be decoded concurrently.  LuraWave, for instance, decodes
+   * through a single service instance and must be used serially.
+   */
+  public boolean isStateless() {
+    return STATELESS.contains(this);
+  }
+
   /**
    * Retrieves the name of the TIFF compression codec.
    * @return See above.
@@ -36,6 +36,8 @@
 
 package loci.formats.tiff;
 
+import java.io.Serializable;
+
 /**
  * This class represents a single raw TIFF IFD entry. It does not retrieve or
  * store the values from the entry's specific offset and is based on the TIFF
@@ -47,7 +49,9 @@ package loci.formats.tiff;
  *
  * @author Chris Allan callan at blackcat.ca
  */
-public class TiffIFDEntry implements Comparable<Object> {
+public class TiffIFDEntry implements Comparable<Object>, Serializable {
+
+  private static final long serialVersionUID = -2386064491133633059L;
 
   /** The <i>Tag</i> that identifies the field. */
   private int tag;
@@ -37,9 +37,15 @@
 package loci.formats.tiff;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.DataTools;
 import loci.common.RandomAccessInputStream;
@@ -48,6 +54,7 @@ import loci.common.enumeration.EnumException;
 import loci.formats.FormatException;
 import loci.formats.codec.BitBuffer;
 import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEG2000CodecOptions;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -100,6 +107,12 @@ public class TiffParser {
 
   private HashMap<IFD, byte[]> cachedPixels = new HashMap<IFD, byte[]>();
 
+  /**
+   * Executor used to decode the tiles of a single {@link #getSamples} call
+   * concurrently; null if tiles are to be decoded on the calling thread.
+   */
+  private ExecutorService decodeExecutor;
+
   // -- Constructors --
 
   /** Constructs a new TIFF parser from the given file name. */
@@ -138,6 +151,30 @@ public class TiffParser {
     return codecOptions;
   }
 
+  /**
+   * Sets the executor used to decode tiles in parallel.  When set, each
+   * {@link #getSamples} call that spans more than one tile or strip submits
+   * one decoding task per tile to the executor, and every task writes
+   * directly into its own part of the output buffer.  Tiles whose codec is
+   * not known to be stateless (see {@link TiffCompression#isStateless()})
+   * are still decoded serially.  The executor is not shut down by this
+   * parser.
+   *
+   * @param executor the executor to use, or null (the default) to decode
+   *   tiles serially on the calling thread
+   */
+  public void setDecodeExecutor(ExecutorService executor) {
+    decodeExecutor = executor;
+  }
+
+  /**
+   * Retrieves the executor used to decode tiles in parallel.
+   * @return See above; null if tiles are decoded serially.
+   */
+  public ExecutorService getDecodeExecutor() {
+    return decodeExecutor;
+  }
+
   /** Sets whether or not IFD entries should be cached. */
   public void setDoCaching(boolean doCaching) {
     this.doCaching = doCaching;
@@ -224,6 +261,8 @@ public class TiffParser {
       catch (FormatException e) { }
       if (subOffsets != null) {
         for (long subOffset : subOffsets) {
+          // a SubIFD that has not been written yet has a zero offset
+          if (subOffset <= 0) continue;
           IFD sub = getIFD(subOffset);
           if (sub != null) {
             ifds.add(sub);
@@ -591,11 +630,23 @@ public class TiffParser {
 
   public byte[] getTile(IFD ifd, byte[] buf, int row, int col)
     throws FormatException, IOException
+  {
+    return getTile(ifd, buf, row, col, codecOptions);
+  }
+
+  /**
+   * Reads and decodes a single tile using the given codec options.  This
+   * method reads from the underlying stream without moving its file
+   * pointer, so it may be called concurrently as long as each caller
+   * supplies its own buffer and codec options.
+   */
+  private byte[] getTile(IFD ifd, byte[] buf, int row, int col,
+    CodecOptions options) throws FormatException, IOException
   {
     byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
 
-    codecOptions.interleaved = true;
-    codecOptions.littleEndian = ifd.isLittleEndian();
+    options.interleaved = true;
+    options.littleEndian = ifd.isLittleEndian();
 
     long tileWidth = ifd.getTileWidth();
     long tileLength = ifd.getTileLength();
@@ -622,7 +673,7 @@ public class TiffParser {
 
     if (buf == null) buf = new byte[size];
     if (stripByteCounts[tileNumber] == 0 ||
-      stripOffsets[tileNumber] >= in.length())
+      stripOffsets[tileNumber] >= streamLength())
     {
       return buf;
     }
@@ -630,18 +681,17 @@ public class TiffParser {
 
     LOGGER.debug("Reading tile Length {} Offset {}",
         tile.length, stripOffsets[tileNumber]);
-    in.seek(stripOffsets[tileNumber]);
-    in.read(tile);
+    readRawTile(stripOffsets[tileNumber], tile);
 
-    codecOptions.maxBytes = (int) Math.max(size, tile.length);
+    options.maxBytes = Math.max(size, tile.length);
 
     if (jpegTable != null) {
       byte[] q = new byte[jpegTable.length + tile.length - 4];
       System.arraycopy(jpegTable, 0, q, 0, jpegTable.length - 2);
       System.arraycopy(tile, 2, q, jpegTable.length - 2, tile.length - 2);
-      tile = compression.decompress(q, codecOptions);
+      tile = compression.decompress(q, options);
     }
-    else tile = compression.decompress(tile, codecOptions);
+    else tile = compression.decompress(tile, options);
     TiffCompression.undifference(tile, ifd);
     unpackBytes(buf, 0, tile, ifd);
 
@@ -684,6 +734,11 @@ public class TiffParser {
     return getSamples(ifd, buf, x, y, width, height, 0, 0);
   }
 
+  /**
+   * Reads and decodes the given region of an image.  This method may be
+   * called concurrently on the same parser, as long as each caller supplies
+   * its own buffer.
+   */
   public byte[] getSamples(IFD ifd, byte[] buf, int x, int y,
     long width, long height, int overlapX, int overlapY)
     throws FormatException, IOException
@@ -737,14 +792,18 @@ public class TiffParser {
 
     TiffCompression compression = ifd.getCompression();
 
+    // decode with options private to this call, so that concurrent calls
+    // do not overwrite each other's settings
+    CodecOptions options;
     if (compression == TiffCompression.JPEG_2000 ||
       compression == TiffCompression.JPEG_2000_LOSSY)
     {
-      codecOptions = compression.getCompressionCodecOptions(ifd, codecOptions);
+      options = compression.getCompressionCodecOptions(ifd, codecOptions);
     }
-    else codecOptions = compression.getCompressionCodecOptions(ifd);
-    codecOptions.interleaved = true;
-    codecOptions.littleEndian = ifd.isLittleEndian();
+    else options = compression.getCompressionCodecOptions(ifd);
+    options.interleaved = true;
+    options.littleEndian = ifd.isLittleEndian();
+    codecOptions = options;
     long imageLength = ifd.getImageLength();
 
     // special case: if we only need one tile, and that tile doesn't need
@@ -772,9 +831,8 @@ public class TiffParser {
             stripByteCounts[tile] *= pixel;
           }
 
-          in.seek(stripOffsets[tile]);
           int len = (int) Math.min(buf.length - offset, stripByteCounts[tile]);
-          in.read(buf, offset, len);
+          in.read(stripOffsets[tile], buf, offset, len);
           offset += len;
         }
       }
@@ -784,93 +842,261 @@ public class TiffParser {
     long nrows = numTileRows;
     if (planarConfig == 2) numTileRows *= samplesPerPixel;
 
-    Region imageBounds = new Region(x, y, (int) width,
-      (int) (height * (samplesPerPixel / effectiveChannels)));
-
-    int endX = (int) width + x;
-    int endY = (int) height + y;
-
-    long w = tileWidth;
-    long h = tileLength;
-    int rowLen = pixel * (int) w;//tileWidth;
-    int tileSize = (int) (rowLen * h);//tileLength);
-
-    int planeSize = (int) (width * height * pixel);
-    int outputRowLen = (int) (pixel * width);
-
     int bufferSizeSamplesPerPixel = samplesPerPixel;
     if (ifd.getPlanarConfiguration() == 2) bufferSizeSamplesPerPixel = 1;
     int bpp = ifd.getBytesPerSample()[0];
     int bufferSize = (int) tileWidth * (int) tileLength *
       bufferSizeSamplesPerPixel * bpp;
 
-    boolean usableCachedBuffer = true;
-    if (cachedTileBuffer == null || cachedTileBuffer.length != bufferSize) {
-      cachedTileBuffer = new byte[bufferSize];
-      usableCachedBuffer = false;
+    TileCopier copier = new TileCopier(buf, x, y, (int) width, (int) height,
+      (int) tileWidth, (int) tileLength, overlapX, overlapY, pixel,
+      samplesPerPixel, planarConfig, (int) nrows);
+
+    byte[] cachedTile;
+    synchronized (cachedPixels) {
+      cachedTile = cachedPixels.get(ifd);
     }
 
-    Region tileBounds = new Region(0, 0, (int) tileWidth, (int) tileLength);
+    if (decodeExecutor != null && overlapX == 0 && overlapY == 0 &&
+      numTileRows * numTileCols > 1 && cachedTile == null &&
+      ifd.getCompression().isStateless())
+    {
+      decodeParallel(ifd, copier, options, bufferSize, numTileRows,
+        numTileCols);
+      return buf;
+    }
 
+    byte[] tileBuffer = takeTileBuffer(bufferSize);
     for (int row=0; row<numTileRows; row++) {
       for (int col=0; col<numTileCols; col++) {
-        tileBounds.x = col * (int) (tileWidth - overlapX);
-        tileBounds.y = row * (int) (tileLength - overlapY);
-
-        if (planarConfig == 2) {
-          tileBounds.y = (int) ((row % nrows) * (tileLength - overlapY));
-        }
+        if (!copier.intersects(row, col)) continue;
 
-        if (!imageBounds.intersects(tileBounds)) continue;
-
-        if (!cachedPixels.containsKey(ifd)) {
-          getTile(ifd, cachedTileBuffer, row, col);
+        if (cachedTile == null) {
+          getTile(ifd, tileBuffer, row, col, options);
           if (numTileRows * numTileCols == 1) {
-            cachedPixels.clear();
-            cachedPixels.put(ifd, cachedTileBuffer);
+            // the cached tile must not be reused as a tile buffer
+            cachedTile = tileBuffer;
+            tileBuffer = null;
+            synchronized (cachedPixels) {
+              cachedPixels.clear();
+              cachedPixels.put(ifd, cachedTile);
+            }
+          }
+          else {
+            copier.copy(tileBuffer, row, col);
+            continue;
           }
-        }
-        else {
-          cachedTileBuffer = cachedPixels.get(ifd);
         }
 
-        // adjust tile bounds, if necessary
+        copier.copy(cachedTile, row, col);
+      }
+    }
+    if (tileBuffer != null) releaseTileBuffer(tileBuffer);
 
-        int tileX = (int) Math.max(tileBounds.x, x);
-        int tileY = (int) Math.max(tileBounds.y, y);
-        int realX = tileX % (int) (tileWidth - overlapX);
-        int realY = tileY % (int) (tileLength - overlapY);
+    return buf;
+  }
 
-        int twidth = (int) Math.min(endX - tileX, tileWidth - realX);
-        int theight = (int) Math.min(endY - tileY, tileLength - realY);
-        // copy appropriate portion of the tile to the output buffer
+  // -- Helper methods - tile buffers --
 
-        int copy = pixel * twidth;
+  /**
+   * Takes the cached tile buffer if it has the given size, so that no other
+   * thread can use it until it is released; otherwise allocates a new buffer.
+   */
+  private synchronized byte[] takeTileBuffer(int size) {
+    byte[] tileBuffer = cachedTileBuffer;
+    if (tileBuffer == null || tileBuffer.length != size) {
+      return new byte[size];
+    }
+    cachedTileBuffer = null;
+    return tileBuffer;
+  }
 
-        realX *= pixel;
-        realY *= rowLen;
+  /** Makes the given tile buffer available to the next getSamples call. */
+  private synchronized void releaseTileBuffer(byte[] tileBuffer) {
+    cachedTileBuffer = tileBuffer;
+  }
 
-        for (int q=0; q<effectiveChannels; q++) {
-          int src = (int) (q * tileSize) + realX + realY;
-          int dest = (int) (q * planeSize) + pixel * (tileX - x) +
-            outputRowLen * (tileY - y);
-          if (planarConfig == 2) dest += (planeSize * (row / nrows));
+  // -- Helper methods - parallel decoding --
 
-          if (rowLen == outputRowLen) {
-            System.arraycopy(cachedTileBuffer, src, buf, dest, copy * theight);
-          }
-          else {
-            for (int tileRow=0; tileRow<theight; tileRow++) {
-              System.arraycopy(cachedTileBuffer, src, buf, dest, copy);
-              src += rowLen;
-              dest += outputRowLen;
+  /**
+   * Decodes every tile that intersects the requested region on the decode
+   * executor, waiting until all of the tiles have been copied into the
+   * output buffer.
+   */
+  private void decodeParallel(final IFD ifd, final TileCopier copier,
+    CodecOptions tileOptions, final int bufferSize, long numTileRows,
+    long numTileCols)
+    throws FormatException, IOException
+  {
+    List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+    try {
+      for (int row=0; row<numTileRows; row++) {
+        for (int col=0; col<numTileCols; col++) {
+          if (!copier.intersects(row, col)) continue;
+          final int tileRow = row;
+          final int tileCol = col;
+          final CodecOptions options = copyCodecOptions(tileOptions);
+          tasks.add(decodeExecutor.submit(new Callable<Object>() {
+            public Object call() throws FormatException, IOException {
+              byte[] tile = new byte[bufferSize];
+              getTile(ifd, tile, tileRow, tileCol, options);
+              copier.copy(tile, tileRow, tileCol);
+              return null;
             }
-          }
+          }));
         }
       }
+
+      for (Future<Object> task : tasks) {
+        task.get();
+      }
     }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      IOException exc = new IOException("Interrupted while decoding tiles");
+      exc.initCause(e);
+      throw exc;
+    }
+    catch (ExecutionException e) {
+      rethrowCause(e);
+    }
+    finally {
+      // interrupting a worker would close the shared channel mid-read
+      for (Future<Object> task : tasks) {
+        task.cancel(false);
+      }
+    }
+  }
 
-    return buf;
+  /**
+   * Rethrows the exception that caused a decoding or compression task to
+   * fail, wrapping checked exceptions other than those of the TIFF API.
+   */
+  static void rethrowCause(ExecutionException e)
+    throws FormatException, IOException
+  {
+    Throwable cause = e.getCause();
+    if (cause instanceof FormatException) throw (FormatException) cause;
+    if (cause instanceof IOException) throw (IOException) cause;
+    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+    throw new FormatException(cause);
+  }
+
+  /**
+   * Reads the raw, undecoded bytes of a tile.  A positional read is used,
+   * so that decoding threads do not contend for the stream's file pointer.
+   */
+  private void readRawTile(long offset, byte[] tile) throws IOException {
+    in.read(offset, tile, 0, tile.length);
+  }
+
+  /** Retrieves the length of the stream, synchronized on the stream. */
+  private long streamLength() throws IOException {
+    synchronized (in) {
+      return in.length();
+    }
+  }
+
+  /** Creates a private copy of the given options for a decoding thread. */
+  private static CodecOptions copyCodecOptions(CodecOptions options) {
+    if (options instanceof JPEG2000CodecOptions) {
+      return new JPEG2000CodecOptions(options);
+    }
+    return new CodecOptions(options);
+  }
+
+  /**
+   * Copies decoded tiles into the appropriate part of the output buffer of a
+   * {@link TiffParser#getSamples} call.  Distinct tiles are always copied to
+   * disjoint parts of the buffer, so tiles may be copied concurrently.
+   */
+  private static class TileCopier {
+    private final byte[] buf;
+    private final int x, y, endX, endY;
+    private final int tileWidth, tileLength, overlapX, overlapY;
+    private final int pixel, effectiveChannels, planarConfig, nrows;
+    private final int rowLen, tileSize, planeSize, outputRowLen;
+    private final Region imageBounds;
+
+    TileCopier(byte[] buf, int x, int y, int width, int height,
+      int tileWidth, int tileLength, int overlapX, int overlapY, int pixel,
+      int samplesPerPixel, int planarConfig, int nrows)
+    {
+      this.buf = buf;
+      this.x = x;
+      this.y = y;
+      this.endX = width + x;
+      this.endY = height + y;
+      this.tileWidth = tileWidth;
+      this.tileLength = tileLength;
+      this.overlapX = overlapX;
+      this.overlapY = overlapY;
+      this.pixel = pixel;
+      this.effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
+      this.planarConfig = planarConfig;
+      this.nrows = nrows;
+      rowLen = pixel * tileWidth;
+      tileSize = rowLen * tileLength;
+      planeSize = width * height * pixel;
+      outputRowLen = pixel * width;
+      imageBounds = new Region(x, y, width,
+        height * (samplesPerPixel / effectiveChannels));
+    }
+
+    private Region getTileBounds(int row, int col) {
+      Region tileBounds = new Region(0, 0, tileWidth, tileLength);
+      tileBounds.x = col * (tileWidth - overlapX);
+      tileBounds.y = row * (tileLength - overlapY);
+
+      if (planarConfig == 2) {
+        tileBounds.y = (row % nrows) * (tileLength - overlapY);
+      }
+      return tileBounds;
+    }
+
+    /** Returns true if the given tile intersects the requested region. */
+    boolean intersects(int row, int col) {
+      return imageBounds.intersects(getTileBounds(row, col));
+    }
+
+    /** Copies the appropriate portion of the given tile to the buffer. */
+    void copy(byte[] tile, int row, int col) {
+      Region tileBounds = getTileBounds(row, col);
+
+      // adjust tile bounds, if necessary
+
+      int tileX = Math.max(tileBounds.x, x);
+      int tileY = Math.max(tileBounds.y, y);
+      int realX = tileX % (tileWidth - overlapX);
+      int realY = tileY % (tileLength - overlapY);
+
+      int twidth = Math.min(endX - tileX, tileWidth - realX);
+      int theight = Math.min(endY - tileY, tileLength - realY);
+      // copy appropriate portion of the tile to the output buffer
+
+      int copy = pixel * twidth;
+
+      realX *= pixel;
+      realY *= rowLen;
+
+      for (int q=0; q<effectiveChannels; q++) {
+        int src = q * tileSize + realX + realY;
+        int dest = q * planeSize + pixel * (tileX - x) +
+          outputRowLen * (tileY - y);
+        if (planarConfig == 2) dest += (planeSize * (row / nrows));
+
+        if (rowLen == outputRowLen) {
+          System.arraycopy(tile, src, buf, dest, copy * theight);
+        }
+        else {
+          for (int tileRow=0; tileRow<theight; tileRow++) {
+            System.arraycopy(tile, src, buf, dest, copy);
+            src += rowLen;
+            dest += outputRowLen;
+          }
+        }
+      }
+    }
   }
 
   // -- Utility methods - byte stream decoding --
@@ -0,0 +1,251 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.tiff;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import loci.common.RandomAccessInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of open {@link TiffParser}s, keyed by file name.
+ *
+ * Parsers are checked out with {@link #acquire(String)} and handed back with
+ * {@link #release(String, TiffParser)}; a parser is only ever used by one
+ * caller at a time.  Idle parsers are kept open so that repeated reads from
+ * the same file reuse a warm stream; several idle parsers may be kept for
+ * one file, so that concurrent readers of that file each find one.
+ * Checked out parsers count towards
+ * {@link #getMaxOpenFiles()} too: the least recently used idle parser is
+ * closed whenever more files than that would be open.  If that many parsers
+ * are already checked out, further parsers are opened anyway, and are closed
+ * as soon as they are released.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/src/loci/formats/tiff/TiffParserPool.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/src/loci/formats/tiff/TiffParserPool.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class TiffParserPool {
+
+  // -- Constants --
+
+  /** Default maximum number of parsers kept open. */
+  public static final int DEFAULT_MAX_OPEN_FILES = 16;
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TiffParserPool.class);
+
+  // -- Fields --
+
+  /**
+   * Idle parsers for each file, in least to most recently used order of
+   * file.  Each list is in least to most recently released order.
+   */
+  private final LinkedHashMap<String, List<TiffParser>> idle =
+    new LinkedHashMap<String, List<TiffParser>>(16, 0.75f, true);
+
+  /** Total number of idle parsers. */
+  private int idleCount;
+
+  private int maxOpenFiles;
+
+  /** Number of parsers that have been acquired but not yet released. */
+  private int checkedOut;
+
+  // -- Constructors --
+
+  /** Constructs a pool holding up to {@link #DEFAULT_MAX_OPEN_FILES}. */
+  public TiffParserPool() {
+    this(DEFAULT_MAX_OPEN_FILES);
+  }
+
+  /** Constructs a pool holding up to the given number of open parsers. */
+  public TiffParserPool(int maxOpenFiles) {
+    setMaxOpenFiles(maxOpenFiles);
+  }
+
+  // -- TiffParserPool API methods --
+
+  /**
+   * Sets the maximum number of open files, counting both idle and checked
+   * out parsers.  A value of 0 disables pooling; every released parser is
+   * closed.
+   */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    if (maxOpenFiles < 0) {
+      throw new IllegalArgumentException("Invalid maximum: " + maxOpenFiles);
+    }
+    List<TiffParser> closing;
+    synchronized (this) {
+      this.maxOpenFiles = maxOpenFiles;
+      closing = evict(maxOpenFiles - checkedOut);
+    }
+    for (TiffParser p : closing) close(p);
+  }
+
+  /** Gets the maximum number of open files. */
+  public synchronized int getMaxOpenFiles() {
+    return maxOpenFiles;
+  }
+
+  /** Gets the number of idle parsers currently held open. */
+  public synchronized int getOpenCount() {
+    return idleCount;
+  }
+
+  /**
+   * Checks out a parser for the given file, reusing an idle one if possible.
+   * The parser must be handed back with {@link #release(String, TiffParser)}.
+   */
+  public TiffParser acquire(String id) throws IOException {
+    List<TiffParser> closing;
+    synchronized (this) {
+      checkedOut++;
+      List<TiffParser> parsers = idle.get(id);
+      if (parsers != null) {
+        // the most recently released parser has the warmest stream
+        TiffParser parser = parsers.remove(parsers.size() - 1);
+        if (parsers.size() == 0) idle.remove(id);
+        idleCount--;
+        return parser;
+      }
+      // make room for the new parser
+      closing = evict(maxOpenFiles - checkedOut);
+    }
+    for (TiffParser p : closing) close(p);
+
+    boolean success = false;
+    try {
+      TiffParser parser = new TiffParser(new RandomAccessInputStream(id));
+      success = true;
+      return parser;
+    }
+    finally {
+      if (!success) checkIn();
+    }
+  }
+
+  /**
+   * Returns a parser obtained from {@link #acquire(String)} to the pool.
+   * The parser is closed if pooling is disabled, or if the maximum number
+   * of open files is reached.
+   */
+  public void release(String id, TiffParser parser) {
+    if (parser == null) return;
+    List<TiffParser> closing = new ArrayList<TiffParser>();
+    synchronized (this) {
+      checkIn();
+      if (maxOpenFiles == 0) closing.add(parser);
+      else {
+        List<TiffParser> parsers = idle.get(id);
+        if (parsers == null) {
+          parsers = new ArrayList<TiffParser>();
+          idle.put(id, parsers);
+        }
+        parsers.add(parser);
+        idleCount++;
+        closing.addAll(evict(maxOpenFiles - checkedOut));
+      }
+    }
+    for (TiffParser p : closing) close(p);
+  }
+
+  /**
+   * Closes a parser obtained from {@link #acquire(String)} instead of
+   * returning it to the pool.
+   */
+  public void discard(TiffParser parser) {
+    if (parser == null) return;
+    checkIn();
+    close(parser);
+  }
+
+  /** Closes all idle parsers. */
+  public void closeAll() {
+    List<TiffParser> closing;
+    synchronized (this) {
+      closing = new ArrayList<TiffParser>();
+      for (List<TiffParser> parsers : idle.values()) {
+        closing.addAll(parsers);
+      }
+      idle.clear();
+      idleCount = 0;
+    }
+    for (TiffParser p : closing) close(p);
+  }
+
+  // -- Helper methods --
+
+  /** Records that a checked out parser has been handed back. */
+  private synchronized void checkIn() {
+    if (checkedOut > 0) checkedOut--;
+  }
+
+  /**
+   * Removes idle parsers for the least recently used files, oldest first,
+   * until no more than the given number remain.
+   */
+  private List<TiffParser> evict(int maxIdle) {
+    List<TiffParser> evicted = new ArrayList<TiffParser>();
+    Iterator<List<TiffParser>> it = idle.values().iterator();
+    while (idleCount > Math.max(0, maxIdle) && it.hasNext()) {
+      List<TiffParser> parsers = it.next();
+      while (idleCount > Math.max(0, maxIdle) && parsers.size() > 0) {
+        evicted.add(parsers.remove(0));
+        idleCount--;
+      }
+      if (parsers.size() == 0) it.remove();
+    }
+    return evicted;
+  }
+
+  private static void close(TiffParser parser) {
+    try {
+      parser.getStream().close();
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not close pooled stream", e);
+    }
+  }
+
+}
@@ -36,13 +36,17 @@
 
 package loci.formats.tiff;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import loci.common.ByteArrayHandle;
 import loci.common.RandomAccessInputStream;
@@ -72,6 +76,9 @@ public class TiffSaver {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TiffSaver.class);
 
+  /** Maximum total size of the strip and tile buffers kept for reuse. */
+  private static final long MAX_STRIP_BUFFER_POOL_BYTES = 16 * 1024 * 1024;
+
   // -- Fields --
 
   /** Output stream to use when saving TIFF data. */
@@ -90,6 +97,46 @@ public class TiffSaver {
   /** The codec options if set. */
   private CodecOptions options;
 
+  /**
+   * Strip and tile buffers that have been written and may be reused by the
+   * next call to {@link #writeImage}.  All buffers are of the same size, and
+   * together hold no more than {@link #MAX_STRIP_BUFFER_POOL_BYTES}.
+   */
+  private final List<byte[]> stripBufferPool = new ArrayList<byte[]>();
+
+  /** Executor used to compress strips in parallel; null if serial. */
+  private ExecutorService compressionExecutor;
+
+  /**
+   * Offsets of the linked IFDs in the file being written, in chain order.
+   * The chain is read from the file once and then updated as each image is
+   * written, so that the file does not need to be rescanned for every image.
+   * Null if the chain has not yet been read.
+   */
+  private List<Long> ifdOffsets;
+
+  /**
+   * Value of the next-IFD pointer at the end of the IFD chain.  An IFD that
+   * is written at this offset is linked into the chain.
+   */
+  private long pendingIFDOffset;
+
+  /**
+   * Position of the next-IFD pointer of the last IFD in the chain, if that
+   * pointer refers to the end of the file; -1 otherwise.
+   */
+  private long danglingPointer = -1;
+
+  /** Position of the next-IFD pointer of the most recently written IFD. */
+  private long nextIFDPointer;
+
+  /**
+   * Offsets of the IFDs written by this saver since the header was written,
+   * keyed by image index.  Unlike the IFD chain index, this is kept when
+   * writing sequentially.
+   */
+  private Map<Integer, Long> imageIFDOffsets = new HashMap<Integer, Long>();
+
   // -- Constructors --
 
   /**
@@ -181,8 +228,49 @@ public class TiffSaver {
     this.options = options;
   }
 
+  /**
+   * Sets the executor used to compress strips and tiles in parallel.  When
+   * set, each strip or tile of an image is compressed by its own task on
+   * the executor; the compressed strips are then written to the file in
+   * order by the thread that called {@link #writeImage}.  The executor is
+   * not shut down by this saver.
+   *
+   * @param executor the executor to use, or null (the default) to compress
+   *   strips serially on the calling thread
+   */
+  public void setCompressionExecutor(ExecutorService executor) {
+    compressionExecutor = executor;
+  }
+
+  /**
+   * Retrieves the executor used to compress strips in parallel.
+   * @return See above; null if strips are compressed serially.
+   */
+  public ExecutorService getCompressionExecutor() {
+    return compressionExecutor;
+  }
+
+  /**
+   * Reads the IFD with the given index from the file being written.
+   * The IFD is located using the in-memory index of IFD offsets, so only
+   * the IFD itself is read from the file.
+   *
+   * @param no the index of the IFD within the file, starting from 0
+   * @return the IFD, or null if the file does not contain enough IFDs
+   */
+  public synchronized IFD getIFD(int no) throws IOException {
+    loadIFDIndex();
+    if (no < 0 || no >= ifdOffsets.size()) return null;
+    return readIFD(ifdOffsets.get(no));
+  }
+
   /** Writes the TIFF file header. */
   public void writeHeader() throws IOException {
+    // the IFD chain starts over
+    ifdOffsets = null;
+    danglingPointer = -1;
+    imageIFDOffsets.clear();
+
     // write endianness indicator
     out.seek(0);
     if (isLittleEndian()) {
@@ -269,6 +357,50 @@ public class TiffSaver {
       int y, int w, int h, boolean last, Integer nChannels,
       boolean copyDirectly)
   throws FormatException, IOException
+  {
+    if (no < 0) {
+      throw new FormatException("Invalid image index: " + no);
+    }
+    writeImage(buf, ifd, no, -1, pixelType, x, y, w, h, last, nChannels,
+      copyDirectly);
+  }
+
+  /**
+   * Writes to any rectangle of a reduced resolution image.  The image is
+   * stored outside of the IFD chain, so that it can be referenced from the
+   * SubIFDs tag of the full resolution image.
+   *
+   * @param buf The block that is to be written.
+   * @param ifd The IFD of the reduced resolution image.  The same IFD must be
+   *            passed each time that part of the image is written.
+   * @param offset The offset of the image's IFD, as returned by the first
+   *               call for this image, or -1 if nothing has been written.
+   * @param pixelType The type of pixels.
+   * @param x   The X-coordinate of the top-left corner.
+   * @param y   The Y-coordinate of the top-left corner.
+   * @param w   The width of the rectangle.
+   * @param h   The height of the rectangle.
+   * @return The offset of the image's IFD.
+   * @throws FormatException
+   * @throws IOException
+   */
+  public long writeSubImage(byte[] buf, IFD ifd, long offset, int pixelType,
+      int x, int y, int w, int h)
+  throws FormatException, IOException
+  {
+    return writeImage(buf, ifd, -1, offset, pixelType, x, y, w, h, true,
+      null, false);
+  }
+
+  /**
+   * Writes to any rectangle of either an image in the IFD chain (if no is
+   * non-negative) or a reduced resolution image at the given offset.
+   * @return The offset of the reduced resolution image's IFD.
+   */
+  private long writeImage(byte[] buf, IFD ifd, int no, long subIFDOffset,
+      int pixelType, int x, int y, int w, int h, boolean last,
+      Integer nChannels, boolean copyDirectly)
+  throws FormatException, IOException
   {
     LOGGER.debug("Attempting to write image.");
     //b/c method is public should check parameters again
@@ -283,7 +415,7 @@ public class TiffSaver {
     // These operations are synchronized
     TiffCompression compression;
     int tileWidth, tileHeight, nStrips;
-    ByteArrayOutputStream[] stripBuf;
+    byte[][] stripBuf;
     synchronized (this) {
       int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
       int blockSize = w * h * bytesPerPixel;
@@ -300,57 +432,46 @@ public class TiffSaver {
       tileWidth = (int) ifd.getTileWidth();
       tileHeight = (int) ifd.getTileLength();
       int tilesPerRow = (int) ifd.getTilesPerRow();
-      int rowsPerStrip = (int) ifd.getRowsPerStrip()[0];
-      int stripSize = rowsPerStrip * tileWidth * bytesPerPixel;
       nStrips =
         ((w + tileWidth - 1) / tileWidth) * ((h + tileHeight - 1) / tileHeight);
 
-      if (interleaved) stripSize *= nChannels;
-      else nStrips *= nChannels;
+      if (!interleaved) nStrips *= nChannels;
 
-      stripBuf = new ByteArrayOutputStream[nStrips];
-      DataOutputStream[] stripOut = new DataOutputStream[nStrips];
-      for (int strip=0; strip<nStrips; strip++) {
-        stripBuf[strip] = new ByteArrayOutputStream(stripSize);
-        stripOut[strip] = new DataOutputStream(stripBuf[strip]);
-      }
-      int[] bps = ifd.getBitsPerSample();
-      int off;
+      int pixelSize = interleaved ? bytesPerPixel * nChannels : bytesPerPixel;
+      int planes = interleaved ? 1 : nChannels;
+      int tileRowSize = tileWidth * pixelSize;
+      int stripSize = tileHeight * tileRowSize;
 
       // write pixel strips to output buffers
+      stripBuf = new byte[nStrips][];
       int effectiveStrips = !interleaved ? nStrips / nChannels : nStrips;
       if (effectiveStrips == 1 && copyDirectly) {
-        stripOut[0].write(buf);
+        stripBuf[0] = buf.length == stripSize ?
+          getStripBuffer(stripSize) : new byte[buf.length];
+        System.arraycopy(buf, 0, stripBuf[0], 0, buf.length);
       }
       else {
+        // each tile row is copied as a single run of bytes; the parts of
+        // the tile that lie outside of the image are filled with zeros
         for (int strip = 0; strip < effectiveStrips; strip++) {
           int xOffset = (strip % tilesPerRow) * tileWidth;
           int yOffset = (strip / tilesPerRow) * tileHeight;
-          for (int row=0; row<tileHeight; row++) {
-            for (int col=0; col<tileWidth; col++) {
-              int ndx = ((row+yOffset) * w + col + xOffset) * bytesPerPixel;
-              for (int c=0; c<nChannels; c++) {
-                for (int n=0; n<bps[c]/8; n++) {
-                  if (interleaved) {
-                    off = ndx * nChannels + c * bytesPerPixel + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else {
-                      stripOut[strip].writeByte(buf[off]);
-                    }
-                  }
-                  else {
-                    off = c * blockSize + ndx + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else {
-                      stripOut[c * (nStrips / nChannels) + strip].writeByte(
-                          buf[off]);
-                    }
-                  }
-                }
+          int rows = Math.max(0, Math.min(tileHeight, h - yOffset));
+          int rowSize = Math.max(0, Math.min(tileWidth, w - xOffset)) *
+            pixelSize;
+          for (int c=0; c<planes; c++) {
+            byte[] tile = getStripBuffer(stripSize);
+            stripBuf[c * effectiveStrips + strip] = tile;
+            int src = ((yOffset * w) + xOffset) * pixelSize + c * blockSize;
+            for (int row=0; row<rows; row++) {
+              int dest = row * tileRowSize;
+              System.arraycopy(buf, src, tile, dest, rowSize);
+              if (rowSize < tileRowSize) {
+                Arrays.fill(tile, dest + rowSize, dest + tileRowSize, (byte) 0);
               }
+              src += w * pixelSize;
             }
+            Arrays.fill(tile, rows * tileRowSize, tile.length, (byte) 0);
           }
         }
       }
@@ -361,23 +482,45 @@ public class TiffSaver {
     // TiffWriter.saveBytes() --> TiffSaver.writeImage() stack that is NOT
     // synchronized.
     byte[][] strips = new byte[nStrips][];
-    for (int strip=0; strip<nStrips; strip++) {
-      strips[strip] = stripBuf[strip].toByteArray();
-      TiffCompression.difference(strips[strip], ifd);
-      CodecOptions codecOptions = compression.getCompressionCodecOptions(
-          ifd, options);
-      codecOptions.height = tileHeight;
-      codecOptions.width = tileWidth;
-      strips[strip] = compression.compress(strips[strip], codecOptions);
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.debug(String.format("Compressed strip %d/%d length %d",
-            strip + 1, nStrips, strips[strip].length));
+    List<Future<byte[]>> tasks = null;
+    if (compressionExecutor != null && nStrips > 1) {
+      tasks = compressStripsParallel(stripBuf, ifd, compression, tileWidth,
+        tileHeight);
+    }
+    else {
+      for (int strip=0; strip<nStrips; strip++) {
+        strips[strip] = compressStrip(stripBuf[strip], ifd, compression,
+          tileWidth, tileHeight);
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug(String.format("Compressed strip %d/%d length %d",
+              strip + 1, nStrips, strips[strip].length));
+        }
       }
     }
 
-    // This operation is synchronized
-    synchronized (this) {
-      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+    // This operation is synchronized; strips that are compressed in
+    // parallel are written in order as each one becomes available
+    try {
+      synchronized (this) {
+        long offset = subIFDOffset;
+        if (no >= 0) {
+          writeImageIFD(ifd, no, strips, tasks, nChannels, last, x, y, w);
+        }
+        else {
+          offset = writeSubIFD(ifd, subIFDOffset, strips, tasks, nChannels,
+            x, y, w);
+        }
+        recycleStripBuffers(stripBuf);
+        return offset;
+      }
+    }
+    finally {
+      if (tasks != null) {
+        // interrupting a worker could leave a codec in an undefined state
+        for (Future<byte[]> task : tasks) {
+          task.cancel(false);
+        }
+      }
     }
   }
 
@@ -387,50 +530,94 @@ public class TiffSaver {
    * @param ifd The Image File Directories. Mustn't be <code>null</code>.
    * @param no The image index within the current file, starting from 0.
    * @param strips The strips to write to the file.
+   * @param tasks The tasks compressing the strips, or <code>null</code> if
+   * every strip has already been compressed.
    * @param last Pass <code>true</code> if it is the last image,
    * <code>false</code> otherwise.
    * @param x The initial X offset of the strips/tiles to write.
    * @param y The initial Y offset of the strips/tiles to write.
+   * @param w The width of the rectangle that the strips/tiles cover.
    * @throws FormatException
    * @throws IOException
    */
   private void writeImageIFD(IFD ifd, int no, byte[][] strips,
-      int nChannels, boolean last, int x, int y)
+      List<Future<byte[]>> tasks, int nChannels, boolean last, int x, int y,
+      int w)
   throws FormatException, IOException {
     LOGGER.debug("Attempting to write image IFD.");
-    int tilesPerRow = (int) ifd.getTilesPerRow();
-    int tilesPerColumn = (int) ifd.getTilesPerColumn();
-    boolean interleaved = ifd.getPlanarConfiguration() == 1;
-    boolean isTiled = ifd.isTiled();
 
+    boolean existingIFD = false;
     if (!sequentialWrite) {
-      RandomAccessInputStream in = null;
-      if (filename != null) {
-        in = new RandomAccessInputStream(filename);
-      }
-      else if (bytes != null) {
-        in = new RandomAccessInputStream(bytes);
-      }
-      else {
-        throw new IllegalArgumentException(
-            "Filename and bytes are null, cannot create new input stream!");
-      }
-      try {
-        TiffParser parser = new TiffParser(in);
-        long[] ifdOffsets = parser.getIFDOffsets();
-        LOGGER.debug("IFD offsets: {}", Arrays.toString(ifdOffsets));
-        if (no < ifdOffsets.length) {
-          out.seek(ifdOffsets[no]);
-          LOGGER.debug("Reading IFD from {} in non-sequential write.",
-              ifdOffsets[no]);
-          ifd = parser.getIFD(ifdOffsets[no]);
-        }
-      }
-      finally {
-        in.close();
+      loadIFDIndex();
+      if (no < ifdOffsets.size()) {
+        long offset = ifdOffsets.get(no);
+        LOGGER.debug("Reading IFD from {} in non-sequential write.", offset);
+        ifd = readIFD(offset);
+        // seek after reading, as the input and output may share a handle
+        out.seek(offset);
+        existingIFD = true;
       }
     }
 
+    long fp = out.getFilePointer();
+    long endFP = writeStrips(ifd, strips, tasks, nChannels, x, y, w);
+
+    long nextOffset = last ? 0 : endFP;
+    if (existingIFD && no < ifdOffsets.size() - 1) {
+      // keep the rewritten IFD linked to the IFD that follows it
+      nextOffset = ifdOffsets.get(no + 1);
+    }
+    writeIFD(ifd, nextOffset);
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Offset after IFD write: {}", out.getFilePointer());
+    }
+
+    imageIFDOffsets.put(no, fp);
+
+    if (nextOffset == endFP) danglingPointer = nextIFDPointer;
+    else if (nextOffset == 0) danglingPointer = -1;
+    else relinkIFDChain();
+
+    if (!sequentialWrite) {
+      updateIFDIndex(no, fp, nextOffset, existingIFD);
+    }
+  }
+
+  /**
+   * Writes the IFD of a reduced resolution image, which is not linked into
+   * the IFD chain, along with the given strips or tiles.
+   * @param offset The offset of the IFD, or -1 to append a new IFD.
+   * @return The offset of the IFD.
+   */
+  private long writeSubIFD(IFD ifd, long offset, byte[][] strips,
+      List<Future<byte[]>> tasks, int nChannels, int x, int y, int w)
+  throws FormatException, IOException {
+    LOGGER.debug("Attempting to write sub-IFD.");
+    if (offset < 0) offset = out.length();
+    out.seek(offset);
+    writeStrips(ifd, strips, tasks, nChannels, x, y, w);
+    writeIFD(ifd, 0);
+    relinkIFDChain();
+    return offset;
+  }
+
+  /**
+   * Writes the given IFD at the current file pointer, followed by the given
+   * strips or tiles at the end of the file, and records the strip offsets and
+   * byte counts in the IFD.  The file pointer is then moved back to the IFD,
+   * so that the IFD can be written again with its next-IFD pointer.
+   * If the strips are still being compressed, each one is written as soon as
+   * it and the strips before it are available.
+   * @return The end of the file, after the last strip or tile.
+   */
+  private long writeStrips(IFD ifd, byte[][] strips,
+      List<Future<byte[]>> tasks, int nChannels, int x, int y, int w)
+  throws FormatException, IOException {
+    int tilesPerRow = (int) ifd.getTilesPerRow();
+    int tilesPerColumn = (int) ifd.getTilesPerColumn();
+    boolean interleaved = ifd.getPlanarConfiguration() == 1;
+    boolean isTiled = ifd.isTiled();
+
     // record strip byte counts and offsets
 
     List<Long> byteCounts = new ArrayList<Long>();
@@ -455,9 +642,16 @@ public class TiffSaver {
         byteCounts.add(0L);
       }
     }
-    int tileOrStripOffsetX = x / (int) ifd.getTileWidth();
+    int tileWidth = (int) ifd.getTileWidth();
+    int tileOrStripOffsetX = x / tileWidth;
     int tileOrStripOffsetY = y / (int) ifd.getTileLength();
     int firstOffset = (tileOrStripOffsetY * tilesPerRow) + tileOrStripOffsetX;
+
+    // the strips are ordered by channel (if not interleaved), then by row
+    // and column within the rectangle being written
+    int stripsPerChannel =
+      interleaved ? strips.length : strips.length / nChannels;
+    int stripsPerRow = (w + tileWidth - 1) / tileWidth;
     if (ifd.containsKey(IFD.STRIP_OFFSETS)
         || ifd.containsKey(IFD.TILE_OFFSETS)) {
       long[] ifdOffsets = isTiled ?
@@ -485,8 +679,12 @@ public class TiffSaver {
     writeIFD(ifd, 0);
 
     for (int i=0; i<strips.length; i++) {
+      if (tasks != null) strips[i] = getCompressedStrip(tasks, i);
       out.seek(out.length());
-      int thisOffset = firstOffset + i;
+      int strip = i % stripsPerChannel;
+      int thisOffset = (i / stripsPerChannel) * tilesPerRow * tilesPerColumn +
+        firstOffset + (strip / stripsPerRow) * tilesPerRow +
+        strip % stripsPerRow;
       offsets.set(thisOffset, out.getFilePointer());
       byteCounts.set(thisOffset, new Long(strips[i].length));
       if (LOGGER.isDebugEnabled()) {
@@ -518,10 +716,7 @@ public class TiffSaver {
       LOGGER.debug("Writing tile/strip byte counts: {}",
           Arrays.toString(toPrimitiveArray(byteCounts)));
     }
-    writeIFD(ifd, last ? 0 : endFP);
-    if (LOGGER.isDebugEnabled()) {
-      LOGGER.debug("Offset after IFD write: {}", out.getFilePointer());
-    }
+    return endFP;
   }
 
   public void writeIFD(IFD ifd, long nextOffset)
@@ -553,6 +748,7 @@ public class TiffSaver {
       writeIFDValue(extraStream, ifdBytes + fp, key.intValue(), value);
     }
     if (bigTiff) out.seek(out.getFilePointer());
+    nextIFDPointer = out.getFilePointer();
     writeIntValue(out, nextOffset);
     out.write(extra.getBytes(), 0, (int) extra.length());
   }
@@ -841,7 +1037,7 @@ public class TiffSaver {
         writeIntValue(out, newOffset);
         if (extraBuf.length() > 0) {
           out.seek(newOffset);
-          out.write(extraBuf.getByteBuffer(), 0, newCount);
+          out.write(extraBuf.getByteBuffer(), 0, (int) extraBuf.length());
         }
         return;
       }
@@ -850,6 +1046,64 @@ public class TiffSaver {
     throw new FormatException("Tag not found (" + IFD.getIFDTagName(tag) + ")");
   }
 
+  /**
+   * Overwrites the SubIFDs value of an image's IFD in place.  The IFD must
+   * already have a SubIFDs entry with the same number of values.  Unlike
+   * {@link #overwriteIFDValue(RandomAccessInputStream, int, int, Object)},
+   * the IFD is located without scanning the IFD chain, so only the IFD
+   * itself is read.
+   *
+   * @param no the index of the image within the file, starting from 0
+   * @param subIFDs the offsets of the image's SubIFDs
+   */
+  public synchronized void overwriteSubIFDOffsets(int no, long[] subIFDs)
+    throws FormatException, IOException
+  {
+    Long offset = imageIFDOffsets.get(no);
+    if (offset == null) {
+      loadIFDIndex();
+      if (no < 0 || no >= ifdOffsets.size()) {
+        throw new FormatException("No such IFD (" + no + ")");
+      }
+      offset = ifdOffsets.get(no);
+    }
+
+    RandomAccessInputStream in = openInputStream();
+    try {
+      TiffParser parser = new TiffParser(in);
+      if (parser.checkHeader() == null) {
+        throw new FormatException("Invalid TIFF header");
+      }
+      int bytesPerEntry = bigTiff ?
+        TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
+      in.seek(offset);
+      long num = bigTiff ? in.readLong() : in.readUnsignedShort();
+      for (int i=0; i<num; i++) {
+        in.seek(offset + (bigTiff ? 8 : 2) + bytesPerEntry * i);
+        TiffIFDEntry entry = parser.readTiffIFDEntry();
+        if (entry.getTag() != IFD.SUB_IFD) continue;
+        if (entry.getValueCount() != subIFDs.length) {
+          throw new FormatException("Expected " + entry.getValueCount() +
+            " SubIFD offsets; got " + subIFDs.length);
+        }
+        long end = out.getFilePointer();
+        out.seek(entry.getValueOffset());
+        boolean longValues = entry.getType().getBytesPerElement() == 8;
+        for (long subIFD : subIFDs) {
+          if (longValues) out.writeLong(subIFD);
+          else out.writeInt((int) subIFD);
+        }
+        out.seek(end);
+        return;
+      }
+    }
+    finally {
+      in.close();
+    }
+    throw new FormatException("Tag not found (" +
+      IFD.getIFDTagName(IFD.SUB_IFD) + ")");
+  }
+
   /** Convenience method for overwriting a file's first ImageDescription. */
   public void overwriteComment(RandomAccessInputStream in, Object value)
     throws FormatException, IOException
@@ -859,6 +1113,197 @@ public class TiffSaver {
 
   // -- Helper methods --
 
+  /** Opens a new input stream for the file that is being written. */
+  private RandomAccessInputStream openInputStream() throws IOException {
+    if (filename != null) {
+      return new RandomAccessInputStream(filename);
+    }
+    else if (bytes != null) {
+      return new RandomAccessInputStream(bytes);
+    }
+    throw new IllegalArgumentException(
+        "Filename and bytes are null, cannot create new input stream!");
+  }
+
+  /**
+   * Reads the IFD chain of the file being written, if it has not yet been
+   * read.  This is the only time that the whole chain is scanned.
+   */
+  private synchronized void loadIFDIndex() throws IOException {
+    if (ifdOffsets != null) return;
+    RandomAccessInputStream in = openInputStream();
+    try {
+      TiffParser parser = new TiffParser(in);
+      long[] offsets = parser.getIFDOffsets();
+      LOGGER.debug("IFD offsets: {}", Arrays.toString(offsets));
+      ifdOffsets = new ArrayList<Long>();
+      for (long offset : offsets) {
+        ifdOffsets.add(offset);
+      }
+
+      if (offsets.length == 0) {
+        pendingIFDOffset = parser.getFirstOffset();
+      }
+      else {
+        // skip over the last IFD's entries to its next-IFD pointer
+        long last = offsets[offsets.length - 1];
+        boolean big = parser.isBigTiff();
+        in.seek(last);
+        long entries = big ? in.readLong() : in.readUnsignedShort();
+        in.skipBytes((int) entries * (big ?
+          TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
+          TiffConstants.BYTES_PER_ENTRY));
+        pendingIFDOffset = parser.getNextOffset(last);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Records that an IFD was written, without rescanning the file.
+   * @param no the index of the IFD that was written
+   * @param offset the offset of the IFD that was written
+   * @param nextOffset the value of the IFD's next-IFD pointer
+   * @param existing true if an IFD that is already in the chain was rewritten
+   */
+  private void updateIFDIndex(int no, long offset, long nextOffset,
+    boolean existing)
+  {
+    if (existing) {
+      if (no == ifdOffsets.size() - 1) pendingIFDOffset = nextOffset;
+    }
+    else if (offset == pendingIFDOffset) {
+      ifdOffsets.add(offset);
+      pendingIFDOffset = nextOffset;
+    }
+  }
+
+  /**
+   * Points the last IFD in the chain at the end of the file again, after
+   * data that does not belong to that IFD has been appended.  The next IFD
+   * that is appended to the file is then still linked into the chain.
+   */
+  private void relinkIFDChain() throws IOException {
+    if (danglingPointer < 0) return;
+    long end = out.length();
+    out.seek(danglingPointer);
+    writeIntValue(out, end);
+    out.seek(end);
+    if (ifdOffsets != null) pendingIFDOffset = end;
+  }
+
+  /** Reads the IFD at the given offset from the file being written. */
+  private IFD readIFD(long offset) throws IOException {
+    RandomAccessInputStream in = openInputStream();
+    try {
+      return new TiffParser(in).getIFD(offset);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Compresses a single strip or tile according to the differencing and
+   * compression schemes of the given IFD.  The strip is differenced in place.
+   */
+  private byte[] compressStrip(byte[] strip, IFD ifd,
+    TiffCompression compression, int tileWidth, int tileHeight)
+    throws FormatException, IOException
+  {
+    TiffCompression.difference(strip, ifd);
+    CodecOptions codecOptions = compression.getCompressionCodecOptions(
+        ifd, options);
+    codecOptions.height = tileHeight;
+    codecOptions.width = tileWidth;
+    return compression.compress(strip, codecOptions);
+  }
+
+  /**
+   * Submits each of the given strips to the compression executor.
+   * @return The tasks compressing the strips, in the order of the strips.
+   */
+  private List<Future<byte[]>> compressStripsParallel(byte[][] stripBuf,
+    final IFD ifd, final TiffCompression compression, final int tileWidth,
+    final int tileHeight)
+  {
+    List<Future<byte[]>> tasks = new ArrayList<Future<byte[]>>();
+    for (int strip=0; strip<stripBuf.length; strip++) {
+      final byte[] raw = stripBuf[strip];
+      tasks.add(compressionExecutor.submit(new Callable<byte[]>() {
+        public byte[] call() throws FormatException, IOException {
+          return compressStrip(raw, ifd, compression, tileWidth, tileHeight);
+        }
+      }));
+    }
+    return tasks;
+  }
+
+  /** Waits for the given strip to be compressed by its task. */
+  private byte[] getCompressedStrip(List<Future<byte[]>> tasks, int strip)
+    throws FormatException, IOException
+  {
+    byte[] compressed = null;
+    try {
+      compressed = tasks.get(strip).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      IOException exc = new IOException("Interrupted while compressing strips");
+      exc.initCause(e);
+      throw exc;
+    }
+    catch (ExecutionException e) {
+      TiffParser.rethrowCause(e);
+    }
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(String.format("Compressed strip %d/%d length %d",
+          strip + 1, tasks.size(), compressed.length));
+    }
+    return compressed;
+  }
+
+  /**
+   * Retrieves a strip or tile buffer of the given size, reusing a buffer
+   * from a previous call to {@link #writeImage} if one is available.
+   * The contents of the returned buffer are undefined.
+   */
+  private byte[] getStripBuffer(int size) {
+    synchronized (stripBufferPool) {
+      int last = stripBufferPool.size() - 1;
+      if (last >= 0) {
+        if (stripBufferPool.get(last).length == size) {
+          return stripBufferPool.remove(last);
+        }
+        stripBufferPool.clear();
+      }
+    }
+    return new byte[size];
+  }
+
+  /**
+   * Returns the given strip or tile buffers to the pool of buffers, so that
+   * they can be reused by the next call to {@link #writeImage}.  Buffers
+   * that do not fit within {@link #MAX_STRIP_BUFFER_POOL_BYTES} are dropped.
+   */
+  private void recycleStripBuffers(byte[][] buffers) {
+    synchronized (stripBufferPool) {
+      for (byte[] buffer : buffers) {
+        if (buffer == null) continue;
+        if (stripBufferPool.size() > 0 &&
+          stripBufferPool.get(0).length != buffer.length)
+        {
+          stripBufferPool.clear();
+        }
+        long pooled = (stripBufferPool.size() + 1) * (long) buffer.length;
+        if (pooled > MAX_STRIP_BUFFER_POOL_BYTES) break;
+        stripBufferPool.add(buffer);
+      }
+    }
+  }
+
   /**
    * Coverts a list to a primitive array.
    * @param l The list of <code>Long</code> to convert.
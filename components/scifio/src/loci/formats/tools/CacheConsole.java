@@ -55,6 +55,7 @@ import loci.formats.cache.CrosshairStrategy;
 import loci.formats.cache.ICacheSource;
 import loci.formats.cache.ICacheStrategy;
 import loci.formats.cache.RectangleStrategy;
+import loci.formats.cache.VelocityStrategy;
 import loci.formats.gui.BufferedImageSource;
 import loci.formats.gui.CacheComponent;
 
@@ -124,6 +125,21 @@ public final class CacheConsole {
             pos = FormatTools.rasterToPosition(len, ndx);
             printArray("dropped:", pos);
             break;
+          case CacheEvent.PREFETCH_HIT:
+            len = cache.getStrategy().getLengths();
+            pos = FormatTools.rasterToPosition(len, ndx);
+            printArray("prefetch hit:", pos);
+            break;
+          case CacheEvent.PREFETCH_MISS:
+            len = cache.getStrategy().getLengths();
+            pos = FormatTools.rasterToPosition(len, ndx);
+            printArray("prefetch miss:", pos);
+            break;
+          case CacheEvent.PREFETCH_WASTED:
+            len = cache.getStrategy().getLengths();
+            pos = FormatTools.rasterToPosition(len, ndx);
+            printArray("prefetch wasted:", pos);
+            break;
         }
       }
     };
@@ -262,6 +278,7 @@ public final class CacheConsole {
       else if (cmd.startsWith("st")) { // strategy
         System.out.println("0: crosshair");
         System.out.println("1: rectangle");
+        System.out.println("2: velocity");
         System.out.print("> ");
         int n = Integer.parseInt(r.readLine().trim());
         int[] zct = getLengths(reader);
@@ -273,6 +290,9 @@ public final class CacheConsole {
           case 1:
             strategy = new RectangleStrategy(zct);
             break;
+          case 2:
+            strategy = new VelocityStrategy(zct);
+            break;
           default:
             System.out.println("Unknown strategy: " + n);
         }
@@ -331,6 +351,9 @@ public final class CacheConsole {
     else if (strategyClass == RectangleStrategy.class) {
       System.out.println("rectangle");
     }
+    else if (strategyClass == VelocityStrategy.class) {
+      System.out.println("velocity");
+    }
     else System.out.println("unknown");
   }
 
@@ -107,6 +107,7 @@ public final class ImageConverter {
   private boolean autoscale = false;
   private Boolean overwrite = null;
   private int series = -1;
+  private int resolutions = 1;
   private int firstPlane = 0;
   private int lastPlane = Integer.MAX_VALUE;
   private int channel = -1, zSection = -1, timepoint = -1;
@@ -156,6 +157,9 @@ public final class ImageConverter {
           else if (args[i].equals("-timepoint")) {
             timepoint = Integer.parseInt(args[++i]);
           }
+          else if (args[i].equals("-pyramid-resolutions")) {
+            resolutions = Integer.parseInt(args[++i]);
+          }
           else if (args[i].equals("-series")) {
             try {
               series = Integer.parseInt(args[++i]);
@@ -209,6 +213,7 @@ public final class ImageConverter {
         "    [-bigtiff] [-compression codec] [-series series] [-map id]",
         "    [-range start end] [-crop x,y,w,h] [-channel channel] [-z Z]",
         "    [-timepoint timepoint] [-nogroup] [-autoscale] [-version]",
+        "    [-pyramid-resolutions count]",
         "    in_file out_file",
         "",
         "    -version: print the library version and exit",
@@ -233,6 +238,8 @@ public final class ImageConverter {
         "    -channel: only convert the specified channel (indexed from 0)",
         "          -z: only convert the specified Z section (indexed from 0)",
         "  -timepoint: only convert the specified timepoint (indexed from 0)",
+        "-pyramid-resolutions: number of resolution levels to write for each",
+        "              plane of a TIFF file, including full resolution",
         "",
         "If any of the following patterns are present in out_file, they will",
         "be replaced with the indicated metadata value from the input file.",
@@ -390,11 +397,13 @@ public final class ImageConverter {
 
     if (writer instanceof TiffWriter) {
       ((TiffWriter) writer).setBigTiff(bigtiff);
+      ((TiffWriter) writer).setResolutionCount(resolutions);
     }
     else if (writer instanceof ImageWriter) {
       IFormatWriter w = ((ImageWriter) writer).getWriter(out);
       if (w instanceof TiffWriter) {
         ((TiffWriter) w).setBigTiff(bigtiff);
+        ((TiffWriter) w).setResolutionCount(resolutions);
       }
     }
 
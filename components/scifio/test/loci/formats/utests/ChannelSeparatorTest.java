@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.Location;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.ImageTools;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the source image cache in {@link ChannelSeparator}.
+ */
+public class ChannelSeparatorTest {
+
+  private static final String TEST_FILE =
+    "test&pixelType=uint8&sizeX=64&sizeY=32&sizeC=3&rgb=3&sizeT=2.fake";
+
+  private CountingReader reader;
+
+  private ChannelSeparator separator;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Location.mapId(TEST_FILE, TEST_FILE);
+    reader = new CountingReader();
+    separator = new ChannelSeparator(reader);
+    separator.setId(TEST_FILE);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    separator.close();
+  }
+
+  @Test
+  public void testChannelsMatchSource() throws Exception {
+    byte[] source = reader.openBytes(1, 8, 4, 16, 8);
+    for (int c=0; c<3; c++) {
+      byte[] expected = ImageTools.splitChannels(source, c, 3, 1, false,
+        reader.isInterleaved());
+      assertTrue(Arrays.equals(expected,
+        separator.openBytes(separator.getIndex(0, c, 1), 8, 4, 16, 8)));
+    }
+  }
+
+  @Test
+  public void testSourceDecodedOnce() throws Exception {
+    int[] tiles = {0, 16, 32, 48};
+    for (int c : new int[] {2, 0, 1}) {
+      for (int x : tiles) {
+        separator.openBytes(separator.getIndex(0, c, 0), x, 0, 16, 16);
+      }
+    }
+    assertEquals(tiles.length, reader.openCount);
+  }
+
+  @Test
+  public void testCacheSizeLimit() throws Exception {
+    separator.setCacheSize(0);
+    separator.openBytes(separator.getIndex(0, 0, 0), 0, 0, 16, 16);
+    separator.openBytes(separator.getIndex(0, 1, 0), 0, 0, 16, 16);
+    assertEquals(1, reader.openCount);
+    separator.openBytes(separator.getIndex(0, 0, 0), 16, 0, 16, 16);
+    separator.openBytes(separator.getIndex(0, 1, 0), 0, 0, 16, 16);
+    assertEquals(3, reader.openCount);
+  }
+
+  @Test(expectedExceptions={ IllegalArgumentException.class })
+  public void testNegativeCacheSize() {
+    separator.setCacheSize(-1);
+  }
+
+  /** Fake reader that counts the number of calls to openBytes. */
+  class CountingReader extends FakeReader {
+
+    int openCount;
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException
+    {
+      openCount++;
+      return super.openBytes(no, buf, x, y, w, h);
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import loci.formats.cache.CacheException;
+import loci.formats.cache.ConcurrentCache;
+import loci.formats.cache.CrosshairStrategy;
+import loci.formats.cache.ICacheSource;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.cache.ConcurrentCache}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/ConcurrentCacheTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/ConcurrentCacheTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class ConcurrentCacheTest {
+
+  private static final int OBJECT_COUNT = 20;
+
+  private static final int OBJECT_SIZE = 100;
+
+  private RecordingSource source;
+
+  private CrosshairStrategy strategy;
+
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setUp() {
+    source = new RecordingSource();
+    strategy = new CrosshairStrategy(new int[] {OBJECT_COUNT});
+    strategy.setRange(2, 0);
+  }
+
+  @AfterMethod
+  public void tearDown() throws InterruptedException {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+      executor = null;
+    }
+  }
+
+  @Test
+  public void testObjectIsLoadedOnce() throws CacheException {
+    ConcurrentCache cache = new ConcurrentCache(strategy, source, null);
+    byte[] first = (byte[]) cache.getObject(new int[] {3});
+    byte[] second = (byte[]) cache.getObject(3);
+    assertTrue(first == second);
+    assertEquals(3, first[0]);
+    assertEquals(1, source.loaded.size());
+    assertEquals(OBJECT_SIZE, cache.getByteCount());
+  }
+
+  @Test
+  public void testByteBudget() throws CacheException {
+    ConcurrentCache cache =
+      new ConcurrentCache(strategy, source, null, 4 * OBJECT_SIZE);
+    for (int i=0; i<OBJECT_COUNT; i++) {
+      cache.getObject(i);
+      assertTrue(cache.getByteCount() <= cache.getMaxBytes());
+    }
+    assertEquals(4, cache.getObjectCount());
+    assertTrue(cache.isInCache(OBJECT_COUNT - 1));
+    assertFalse(cache.isInCache(0));
+
+    cache.setMaxBytes(OBJECT_SIZE);
+    assertEquals(1, cache.getObjectCount());
+    assertEquals(OBJECT_SIZE, cache.getByteCount());
+  }
+
+  @Test
+  public void testPrefetch() throws CacheException {
+    ConcurrentCache cache = new ConcurrentCache(strategy, source, null);
+    cache.setCurrentPos(new int[] {10});
+    for (int i=8; i<=12; i++) {
+      assertTrue(cache.isInCache(i));
+    }
+    assertEquals(5, cache.getObjectCount());
+
+    cache.getObject(10);
+    assertEquals(5, source.loaded.size());
+  }
+
+  @Test
+  public void testStalePrefetchIsCancelled()
+    throws CacheException, InterruptedException
+  {
+    executor = Executors.newSingleThreadExecutor();
+    source.block = new CountDownLatch(1);
+    ConcurrentCache cache = new ConcurrentCache(strategy, source, executor);
+
+    // the first prefetch blocks the executor until the position has moved
+    cache.setCurrentPos(new int[] {0});
+    cache.setCurrentPos(new int[] {10});
+    source.block.countDown();
+
+    byte[] plane = (byte[]) cache.getObject(10);
+    assertEquals(10, plane[0]);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    for (Integer index : source.loaded) {
+      assertTrue("stale object " + index + " was loaded",
+        index.intValue() == 0 || (index >= 8 && index <= 12));
+    }
+    for (int i=8; i<=12; i++) {
+      assertTrue(cache.isInCache(i));
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Source of byte arrays that records which indices were loaded. */
+  private static class RecordingSource implements ICacheSource {
+    List<Integer> loaded = new Vector<Integer>();
+    volatile CountDownLatch block;
+
+    public int getObjectCount() { return OBJECT_COUNT; }
+
+    public Object getObject(int index) throws CacheException {
+      CountDownLatch latch = block;
+      if (latch != null) {
+        try {
+          latch.await();
+        }
+        catch (InterruptedException e) {
+          throw new CacheException(e);
+        }
+      }
+      loaded.add(index);
+      byte[] b = new byte[OBJECT_SIZE];
+      b[0] = (byte) index;
+      return b;
+    }
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.ChannelSeparator;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.MinMaxCalculator;
+import loci.formats.in.FakeReader;
+import loci.formats.in.MinimalTiffReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for concurrent calls to openBytes on readers that declare
+ * themselves to be thread safe.
+ */
+public class ConcurrentOpenBytesTest {
+
+  private static final int SIZE_X = 96;
+  private static final int SIZE_Y = 64;
+  private static final int PLANES = 8;
+  private static final int THREADS = 4;
+
+  private File file;
+
+  private byte[][] expected;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("concurrent", ".tif");
+    file.delete();
+
+    IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+    MetadataTools.populateMetadata(metadata, 0, "concurrent", false, "XYZCT",
+      "uint8", SIZE_X, SIZE_Y, PLANES, 1, 1, 1);
+    TiffWriter writer = new TiffWriter();
+    writer.setMetadataRetrieve(metadata);
+    writer.setCompression(TiffWriter.COMPRESSION_LZW);
+    writer.setId(file.getAbsolutePath());
+
+    expected = new byte[PLANES][SIZE_X * SIZE_Y];
+    for (int p=0; p<PLANES; p++) {
+      for (int i=0; i<expected[p].length; i++) {
+        expected[p][i] = (byte) (i * (p + 1) + i / SIZE_X);
+      }
+      IFD ifd = new IFD();
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {8});
+      writer.saveBytes(p, expected[p], ifd);
+    }
+    writer.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testMinimalTiffReader() throws Exception {
+    IFormatReader reader = new MinimalTiffReader();
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertTrue(reader.isThreadSafe());
+      assertConcurrentReads(reader);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testImageReader() throws Exception {
+    ImageReader reader = new ImageReader();
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(reader.getReader().isThreadSafe(), reader.isThreadSafe());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testOpenBytesAsync() throws Exception {
+    IFormatReader reader = new MinimalTiffReader();
+    reader.setId(file.getAbsolutePath());
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      reader.setReadExecutor(executor);
+      assertTrue(reader.getReadExecutor() == executor);
+      assertAsyncReads(reader);
+    }
+    finally {
+      executor.shutdown();
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testOpenBytesAsyncSerialized() throws Exception {
+    IFormatReader reader = new ChannelSeparator(new MinimalTiffReader());
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertFalse(reader.isThreadSafe());
+      assertAsyncReads(reader);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testJPEG2000() throws Exception {
+    // only the compression tag matters, so the pixels are not re-encoded
+    String path = file.getAbsolutePath();
+    RandomAccessInputStream in = new RandomAccessInputStream(path);
+    RandomAccessOutputStream out = new RandomAccessOutputStream(path);
+    try {
+      new TiffSaver(out, path).overwriteIFDValue(in, 0, IFD.COMPRESSION,
+        TiffCompression.JPEG_2000.getCode());
+    }
+    finally {
+      in.close();
+      out.close();
+    }
+
+    IFormatReader reader = new MinimalTiffReader();
+    reader.setId(path);
+    try {
+      assertFalse(reader.isThreadSafe());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testStatefulWrappers() throws Exception {
+    assertFalse(new ChannelSeparator(new MinimalTiffReader()).isThreadSafe());
+    assertFalse(new MinMaxCalculator(new MinimalTiffReader()).isThreadSafe());
+    assertFalse(new FakeReader().isThreadSafe());
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Starts reading every plane several times with openBytesAsync, and
+   * compares the results against the pixels that were written.
+   */
+  private void assertAsyncReads(IFormatReader reader) throws Exception {
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i=0; i<PLANES * THREADS; i++) {
+      int no = i % PLANES;
+      if (i % 2 == 0) {
+        results.add(reader.openBytesAsync(no, 0, 0, SIZE_X, SIZE_Y));
+      }
+      else {
+        results.add(reader.openBytesAsync(no, new byte[SIZE_X * SIZE_Y],
+          0, 0, SIZE_X, SIZE_Y));
+      }
+    }
+    for (int i=0; i<results.size(); i++) {
+      assertTrue("plane " + (i % PLANES),
+        Arrays.equals(expected[i % PLANES], results.get(i).get()));
+    }
+  }
+
+  /**
+   * Reads every plane several times from a pool of threads, each with its
+   * own buffer, and compares the result against the pixels that were
+   * written.
+   */
+  private void assertConcurrentReads(final IFormatReader reader)
+    throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      for (int i=0; i<PLANES * THREADS; i++) {
+        final int no = i % PLANES;
+        results.add(executor.submit(new Callable<byte[]>() {
+          public byte[] call() throws Exception {
+            return reader.openBytes(no, new byte[SIZE_X * SIZE_Y]);
+          }
+        }));
+      }
+      for (int i=0; i<results.size(); i++) {
+        assertTrue("plane " + (i % PLANES),
+          Arrays.equals(expected[i % PLANES], results.get(i).get()));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import loci.formats.in.ICSReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests random access to the planes of an ICS file whose pixels are
+ * gzip-compressed.
+ */
+public class GZipICSReaderTest {
+
+  private static final int SIZE_X = 256;
+
+  private static final int SIZE_Y = 256;
+
+  private static final int SIZE_Z = 8;
+
+  private File file;
+
+  private byte[] pixels;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    file = File.createTempFile("gzipics", ".ics");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    String header = "\t\n" +
+      "ics_version\t2.0\n" +
+      "filename\t" + file.getName() + "\n" +
+      "layout\tparameters\t4\n" +
+      "layout\torder\tbits\tx\ty\tz\n" +
+      "layout\tsizes\t8\t" + SIZE_X + "\t" + SIZE_Y + "\t" + SIZE_Z + "\n" +
+      "layout\tsignificant_bits\t8\n" +
+      "representation\tformat\tinteger\n" +
+      "representation\tsign\tunsigned\n" +
+      "representation\tcompression\tgzip\n" +
+      "representation\tbyte_order\t1\n" +
+      "end\n";
+    out.write(header.getBytes("UTF-8"));
+
+    // partly random pixels, so that the data spans many deflate blocks
+    Random random = new Random(42);
+    pixels = new byte[SIZE_X * SIZE_Y * SIZE_Z];
+    for (int i=0; i<pixels.length; i++) {
+      pixels[i] = (byte) (i % 7 == 0 ? random.nextInt() : i / SIZE_X);
+    }
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(pixels);
+    gzip.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testRandomAccess() throws Exception {
+    ICSReader reader = new ICSReader();
+    reader.setId(file.getAbsolutePath());
+    assertEquals(SIZE_Z, reader.getImageCount());
+    int planeSize = SIZE_X * SIZE_Y;
+    byte[][] planes = new byte[SIZE_Z][];
+    for (int no=0; no<SIZE_Z; no++) {
+      planes[no] = reader.openBytes(no);
+      byte[] expected = new byte[planeSize];
+      System.arraycopy(pixels, no * planeSize, expected, 0, planeSize);
+      assertTrue("plane " + no, Arrays.equals(expected, planes[no]));
+    }
+    reader.close();
+
+    // reading the middle plane first, and then the last plane, must not
+    // depend upon the planes before them having been read
+    int[] order = {SIZE_Z / 2, SIZE_Z - 1, 1, SIZE_Z / 2, 0};
+    reader = new ICSReader();
+    reader.setId(file.getAbsolutePath());
+    for (int no : order) {
+      assertTrue("plane " + no,
+        Arrays.equals(planes[no], reader.openBytes(no)));
+    }
+    reader.close();
+  }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEGCodec;
+import loci.formats.codec.JPEGRestartIndex;
+
+import org.testng.annotations.Test;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests decoding regions of a JPEG stream with {@link JPEGRestartIndex}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/JPEGRestartIndexTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/JPEGRestartIndexTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class JPEGRestartIndexTest {
+
+  private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+  private static final int SIZE_X = 1001;
+  private static final int SIZE_Y = 601;
+
+  /** Number of bytes that precede the JPEG stream, as in a TIFF strip. */
+  private static final int PREFIX = 100;
+
+  @Test
+  public void testRegions() throws Exception {
+    byte[] jpeg = createJPEG(6);
+    byte[] expected = decode(jpeg);
+
+    RandomAccessInputStream in = openStream(jpeg);
+    try {
+      JPEGRestartIndex index = new JPEGRestartIndex(in, 0, 0);
+      assertEquals(SIZE_X, index.getWidth());
+      assertEquals(SIZE_Y, index.getHeight());
+      assertEquals(3, index.getChannelCount());
+      assertEquals(48, index.getIntervalWidth());
+      assertEquals(8, index.getIntervalHeight());
+
+      int[][] regions = {
+        {0, 0, SIZE_X, SIZE_Y},
+        {0, 0, 1, 1},
+        {SIZE_X - 1, SIZE_Y - 1, 1, 1},
+        {47, 7, 2, 2},
+        {500, 300, 256, 256},
+        {SIZE_X - 300, SIZE_Y - 200, 300, 200}
+      };
+      for (int[] r : regions) {
+        checkRegion(index, in, expected, r[0], r[1], r[2], r[3]);
+      }
+
+      Random random = new Random(1);
+      for (int i=0; i<20; i++) {
+        int w = random.nextInt(SIZE_X) + 1;
+        int h = random.nextInt(SIZE_Y) + 1;
+        checkRegion(index, in, expected, random.nextInt(SIZE_X - w + 1),
+          random.nextInt(SIZE_Y - h + 1), w, h);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testZeroFrameSize() throws Exception {
+    byte[] jpeg = createJPEG(6);
+    byte[] expected = decode(jpeg);
+
+    // images that are too large for the frame header record a size of 0
+    for (int i=0; i<jpeg.length-1; i++) {
+      if (jpeg[i] == (byte) 0xff && jpeg[i + 1] == (byte) 0xc0) {
+        Arrays.fill(jpeg, i + 5, i + 9, (byte) 0);
+        break;
+      }
+    }
+
+    RandomAccessInputStream in = openStream(jpeg);
+    try {
+      JPEGRestartIndex index = new JPEGRestartIndex(in, SIZE_X, SIZE_Y);
+      assertEquals(SIZE_X, index.getWidth());
+      assertEquals(SIZE_Y, index.getHeight());
+      checkRegion(index, in, expected, 900, 500, 101, 101);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testTrailingData() throws Exception {
+    byte[] jpeg = createJPEG(6);
+    byte[] expected = decode(jpeg);
+
+    // the stream is followed by another image, as in a multi-plane TIFF
+    byte[] next = createJPEG(3);
+    byte[] data = new byte[jpeg.length + next.length];
+    System.arraycopy(jpeg, 0, data, 0, jpeg.length);
+    System.arraycopy(next, 0, data, jpeg.length, next.length);
+
+    RandomAccessInputStream in = openStream(data);
+    try {
+      JPEGRestartIndex index = new JPEGRestartIndex(in, 0, 0);
+      checkRegion(index, in, expected, 0, 0, SIZE_X, SIZE_Y);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testNoRestartMarkers() throws Exception {
+    RandomAccessInputStream in = openStream(createJPEG(0));
+    try {
+      new JPEGRestartIndex(in, 0, 0);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testUnalignedRestartInterval() throws Exception {
+    // 126 MCUs per row cannot be split into intervals of 5 MCUs
+    RandomAccessInputStream in = openStream(createJPEG(5));
+    try {
+      new JPEGRestartIndex(in, 0, 0);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testIntervalTooWide() throws Exception {
+    // a grayscale frame 8200 MCUs wide, with one restart interval per row;
+    // an interval would be wider than a frame header can record
+    int width = 8200 * 8;
+    byte[] jpeg = {
+      (byte) 0xff, (byte) 0xd8,
+      // SOF0: 8 bits, height 8, width 0, one component
+      (byte) 0xff, (byte) 0xc0, 0, 11, 8, 0, 8, 0, 0, 1, 1, 0x11, 0,
+      // DRI: 8200 MCUs
+      (byte) 0xff, (byte) 0xdd, 0, 4, (byte) (8200 >> 8), (byte) 8200,
+      // SOS: one component
+      (byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 63, 0,
+      0, 0, 0, 0,
+      (byte) 0xff, (byte) 0xd9
+    };
+
+    RandomAccessInputStream in = openStream(jpeg);
+    try {
+      new JPEGRestartIndex(in, width, 8);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private void checkRegion(JPEGRestartIndex index, RandomAccessInputStream in,
+    byte[] expected, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] region = index.openRegion(in, new byte[w * h * 3], x, y, w, h);
+    byte[] crop = new byte[region.length];
+    for (int row=0; row<h; row++) {
+      System.arraycopy(expected, ((y + row) * SIZE_X + x) * 3, crop,
+        row * w * 3, w * 3);
+    }
+    assertTrue("x=" + x + ", y=" + y + ", w=" + w + ", h=" + h,
+      Arrays.equals(crop, region));
+  }
+
+  /** Returns a stream positioned at the start of the given JPEG data. */
+  private RandomAccessInputStream openStream(byte[] jpeg) throws IOException {
+    byte[] data = new byte[PREFIX + jpeg.length];
+    System.arraycopy(jpeg, 0, data, PREFIX, jpeg.length);
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(new ByteArrayHandle(data));
+    in.seek(PREFIX);
+    return in;
+  }
+
+  private byte[] decode(byte[] jpeg) throws FormatException {
+    CodecOptions options = new CodecOptions();
+    options.interleaved = true;
+    options.littleEndian = false;
+    return new JPEGCodec().decompress(jpeg, options);
+  }
+
+  /**
+   * Creates an RGB JPEG without chroma subsampling, so that each MCU is
+   * 8x8 pixels, and with the given restart interval (0 for none).
+   */
+  private byte[] createJPEG(int restartInterval) throws IOException {
+    BufferedImage image =
+      new BufferedImage(SIZE_X, SIZE_Y, BufferedImage.TYPE_3BYTE_BGR);
+    Random random = new Random(0);
+    for (int y=0; y<SIZE_Y; y++) {
+      for (int x=0; x<SIZE_X; x++) {
+        int noise = random.nextInt(32);
+        image.setRGB(x, y, ((x / 4 + noise) & 0xff) << 16 |
+          ((y / 3) & 0xff) << 8 | ((x + y + noise) & 0xff));
+      }
+    }
+
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    IIOMetadata metadata = writer.getDefaultImageMetadata(
+      new ImageTypeSpecifier(image), param);
+    IIOMetadataNode root =
+      (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+    NodeList components = root.getElementsByTagName("componentSpec");
+    for (int i=0; i<components.getLength(); i++) {
+      IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+      component.setAttribute("HsamplingFactor", "1");
+      component.setAttribute("VsamplingFactor", "1");
+    }
+    if (restartInterval > 0) {
+      IIOMetadataNode markers =
+        (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+      IIOMetadataNode dri = new IIOMetadataNode("dri");
+      dri.setAttribute("interval", String.valueOf(restartInterval));
+      markers.insertBefore(dri, markers.getFirstChild());
+    }
+    metadata.setFromTree(METADATA_FORMAT, root);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+    try {
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, metadata), param);
+    }
+    finally {
+      out.close();
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+
+}
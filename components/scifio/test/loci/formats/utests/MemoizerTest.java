@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import loci.common.Location;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for restoring reader state with a {@link Memoizer}.
+ */
+public class MemoizerTest {
+
+  private static final String FAKE_FILE =
+    "test&pixelType=uint8&sizeX=16&sizeY=16.fake";
+
+  private static final int SIZE_X = 48;
+  private static final int SIZE_Y = 32;
+  private static final int PLANES = 3;
+
+  private File directory;
+
+  private File file;
+
+  private byte[][] pixels;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    directory = File.createTempFile("memo", "");
+    directory.delete();
+    directory.mkdir();
+    file = new File(directory, "memo.tif");
+
+    IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+    MetadataTools.populateMetadata(metadata, 0, "memo", false, "XYZCT",
+      "uint8", SIZE_X, SIZE_Y, PLANES, 1, 1, 1);
+    TiffWriter writer = new TiffWriter();
+    writer.setMetadataRetrieve(metadata);
+    writer.setCompression(TiffWriter.COMPRESSION_LZW);
+    writer.setId(file.getAbsolutePath());
+    pixels = new byte[PLANES][SIZE_X * SIZE_Y];
+    for (int p=0; p<PLANES; p++) {
+      for (int i=0; i<pixels[p].length; i++) {
+        pixels[p][i] = (byte) (i + p * 7);
+      }
+      writer.saveBytes(p, pixels[p]);
+    }
+    writer.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  private Memoizer openReader(IMetadata store) throws Exception {
+    Memoizer reader =
+      new Memoizer(new ImageReader(), directory.getAbsolutePath());
+    if (store != null) reader.setMetadataStore(store);
+    reader.setId(file.getAbsolutePath());
+    return reader;
+  }
+
+  @Test
+  public void testStateRestored() throws Exception {
+    Memoizer reader = openReader(MetadataTools.createOMEXMLMetadata());
+    assertFalse(reader.isLoadedFromMemo());
+    assertTrue(reader.isSavedToMemo());
+    assertTrue(reader.getMemoFile(file.getAbsolutePath()).exists());
+    reader.close();
+
+    IMetadata store = MetadataTools.createOMEXMLMetadata();
+    reader = openReader(store);
+    try {
+      assertTrue(reader.isLoadedFromMemo());
+      assertFalse(reader.isSavedToMemo());
+      assertEquals(SIZE_X, reader.getSizeX());
+      assertEquals(SIZE_Y, reader.getSizeY());
+      assertEquals(PLANES, reader.getImageCount());
+      assertEquals(SIZE_X, store.getPixelsSizeX(0).getValue().intValue());
+      for (int p=0; p<PLANES; p++) {
+        assertTrue(Arrays.equals(pixels[p], reader.openBytes(p)));
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testStaleMemo() throws Exception {
+    openReader(null).close();
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+
+    Memoizer reader = openReader(null);
+    try {
+      assertFalse(reader.isLoadedFromMemo());
+      assertTrue(reader.isSavedToMemo());
+      assertTrue(Arrays.equals(pixels[1], reader.openBytes(1)));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testDisallowedClassRejected() throws Exception {
+    Memoizer reader = openReader(null);
+    File memo = reader.getMemoFile(file.getAbsolutePath());
+    reader.close();
+
+    // copy the memo's header, then replace its contents with an object of
+    // a class that memos never contain
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(memo));
+    String signature = in.readUTF();
+    int version = in.readInt();
+    String readerClass = in.readUTF();
+    String settings = in.readUTF();
+    int fileCount = in.readInt();
+    String[] files = new String[fileCount];
+    long[][] stamps = new long[fileCount][2];
+    for (int i=0; i<fileCount; i++) {
+      files[i] = in.readUTF();
+      stamps[i][0] = in.readLong();
+      stamps[i][1] = in.readLong();
+    }
+    in.close();
+
+    ObjectOutputStream out =
+      new ObjectOutputStream(new FileOutputStream(memo));
+    out.writeUTF(signature);
+    out.writeInt(version);
+    out.writeUTF(readerClass);
+    out.writeUTF(settings);
+    out.writeInt(fileCount);
+    for (int i=0; i<fileCount; i++) {
+      out.writeUTF(files[i]);
+      out.writeLong(stamps[i][0]);
+      out.writeLong(stamps[i][1]);
+    }
+    out.writeObject(new Date());
+    out.close();
+
+    reader = openReader(null);
+    try {
+      assertFalse(reader.isLoadedFromMemo());
+      assertTrue(reader.isSavedToMemo());
+      assertTrue(Arrays.equals(pixels[2], reader.openBytes(2)));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testNoMemoForMissingFile() throws Exception {
+    Location.mapId(FAKE_FILE, FAKE_FILE);
+    Memoizer reader =
+      new Memoizer(new ImageReader(), directory.getAbsolutePath());
+    reader.setId(FAKE_FILE);
+    try {
+      assertFalse(reader.isLoadedFromMemo());
+      assertFalse(reader.isSavedToMemo());
+      assertEquals(16, reader.getSizeX());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import loci.common.Location;
+import loci.formats.FileMinMaxCache;
+import loci.formats.MinMaxCalculator;
+import loci.formats.MinMaxStatistics;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for saving {@link MinMaxCalculator} statistics to a
+ * {@link FileMinMaxCache}.
+ */
+public class MinMaxCacheTest {
+
+  private static final String TEST_FILE =
+    "test&pixelType=uint16&sizeX=24&sizeY=16&sizeC=2&sizeZ=3&series=2.fake";
+
+  private File directory;
+
+  private FileMinMaxCache cache;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Location.mapId(TEST_FILE, TEST_FILE);
+    directory = File.createTempFile("minmax", "");
+    directory.delete();
+    directory.mkdir();
+    cache = new FileMinMaxCache(directory.getAbsolutePath());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  private MinMaxCalculator openReader() throws Exception {
+    MinMaxCalculator reader = new MinMaxCalculator();
+    reader.setMinMaxCache(cache);
+    reader.setId(TEST_FILE);
+    return reader;
+  }
+
+  private void readPlanes(MinMaxCalculator reader, int start, int end)
+    throws Exception
+  {
+    for (int no=start; no<end; no++) {
+      reader.openBytes(no);
+    }
+  }
+
+  @Test
+  public void testStatisticsReloaded() throws Exception {
+    MinMaxCalculator reader = openReader();
+    readPlanes(reader, 0, reader.getImageCount());
+    assertTrue(reader.isMinMaxPopulated());
+    Double min = reader.getChannelGlobalMinimum(1);
+    Double max = reader.getChannelGlobalMaximum(1);
+    long[] histogram = reader.getChannelHistogram(1);
+    reader.close();
+
+    reader = openReader();
+    assertTrue(reader.isMinMaxPopulated());
+    assertEquals(min, reader.getChannelGlobalMinimum(1));
+    assertEquals(max, reader.getChannelGlobalMaximum(1));
+    assertTrue(Arrays.equals(histogram, reader.getChannelHistogram(1)));
+    reader.setSeries(1);
+    assertFalse(reader.isMinMaxPopulated());
+    reader.close();
+  }
+
+  @Test
+  public void testIncrementalStatistics() throws Exception {
+    MinMaxCalculator reader = openReader();
+    readPlanes(reader, 0, 2);
+    reader.close();
+
+    reader = openReader();
+    assertNotNull(reader.getPlaneMinimum(1));
+    assertNull(reader.getPlaneMinimum(2));
+    assertFalse(reader.isMinMaxPopulated());
+    readPlanes(reader, 2, reader.getImageCount());
+    assertTrue(reader.isMinMaxPopulated());
+    Double min = reader.getChannelGlobalMinimum(0);
+    Double max = reader.getChannelGlobalMaximum(0);
+    reader.close();
+
+    MinMaxCalculator uncached = new MinMaxCalculator();
+    uncached.setId(TEST_FILE);
+    readPlanes(uncached, 0, uncached.getImageCount());
+    assertEquals(uncached.getChannelGlobalMinimum(0), min);
+    assertEquals(uncached.getChannelGlobalMaximum(0), max);
+    uncached.close();
+  }
+
+  @Test
+  public void testPlanesReadOutOfOrder() throws Exception {
+    MinMaxCalculator reader = openReader();
+    int last = reader.getImageCount() - 1;
+    readPlanes(reader, last, last + 1);
+    assertFalse(reader.isMinMaxPopulated());
+    assertNull(reader.getChannelGlobalMinimum(0));
+    reader.close();
+
+    reader = openReader();
+    assertNotNull(reader.getPlaneMinimum(last));
+    assertFalse(reader.isMinMaxPopulated());
+    readPlanes(reader, 0, last);
+    assertTrue(reader.isMinMaxPopulated());
+    reader.close();
+  }
+
+  @Test
+  public void testPartialReads() throws Exception {
+    MinMaxCalculator reader = openReader();
+    int w = reader.getSizeX() / 2;
+    int h = reader.getSizeY() / 2;
+    for (int no=0; no<reader.getImageCount(); no++) {
+      reader.openBytes(no, 0, 0, w, h);
+    }
+    assertFalse(reader.isMinMaxPopulated());
+    assertNull(reader.getChannelGlobalMinimum(0));
+    reader.close();
+
+    // sub-images are not saved, and do not prevent full planes being read
+    reader = openReader();
+    assertNull(reader.getPlaneMinimum(0));
+    reader.openBytes(0, 0, 0, w, h);
+    readPlanes(reader, 0, reader.getImageCount());
+    assertTrue(reader.isMinMaxPopulated());
+    Double min = reader.getChannelGlobalMinimum(1);
+    Double max = reader.getChannelGlobalMaximum(1);
+    reader.close();
+
+    MinMaxCalculator uncached = new MinMaxCalculator();
+    uncached.setId(TEST_FILE);
+    readPlanes(uncached, 0, uncached.getImageCount());
+    assertEquals(uncached.getChannelGlobalMinimum(1), min);
+    assertEquals(uncached.getChannelGlobalMaximum(1), max);
+    uncached.close();
+  }
+
+  @Test
+  public void testIncompatibleStatisticsIgnored() throws Exception {
+    MinMaxStatistics stats = new MinMaxStatistics();
+    stats.minMaxDone = new int[] {6};
+    stats.chanMin = new double[][] {{0, 0}};
+    stats.chanMax = new double[][] {{1, 1}};
+    stats.planeMin = new double[][] {new double[6]};
+    stats.planeMax = new double[][] {new double[6]};
+    cache.save(TEST_FILE, stats);
+
+    MinMaxCalculator reader = openReader();
+    assertNull(cache.load(TEST_FILE, reader));
+    assertEquals(0, reader.getSeries());
+    assertFalse(reader.isMinMaxPopulated());
+    assertNull(reader.getChannelKnownMinimum(0));
+    reader.close();
+  }
+
+  @Test
+  public void testCorruptStatisticsIgnored() throws Exception {
+    MinMaxCalculator reader = openReader();
+    readPlanes(reader, 0, reader.getImageCount());
+    reader.close();
+
+    // overwrite the length of the first series' channel minima
+    File sidecar = cache.getCacheFile(TEST_FILE);
+    String path = new Location(TEST_FILE).getAbsolutePath();
+    RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+    try {
+      raf.seek(raf.readUnsignedShort() + 6);
+      raf.seek(raf.getFilePointer() + 2 + path.length() + 24);
+      raf.writeInt(Integer.MAX_VALUE);
+    }
+    finally {
+      raf.close();
+    }
+
+    reader = openReader();
+    assertNull(cache.load(TEST_FILE, reader));
+    assertFalse(reader.isMinMaxPopulated());
+    assertNull(reader.getChannelKnownMinimum(0));
+    reader.close();
+  }
+
+}
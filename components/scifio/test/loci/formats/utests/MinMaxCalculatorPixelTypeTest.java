@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.common.DataTools;
+import loci.common.Location;
+import loci.formats.FormatTools;
+import loci.formats.MinMaxCalculator;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the minima, maxima and histograms computed by
+ * {@link MinMaxCalculator} for each pixel type, byte order and channel
+ * layout against values decoded with {@link DataTools}.
+ */
+public class MinMaxCalculatorPixelTypeTest {
+
+  private static final String[] PIXEL_TYPES = {
+    "int8", "uint8", "int16", "uint16", "int32", "uint32", "float", "double"
+  };
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    List<Object[]> layouts = new ArrayList<Object[]>();
+    for (String pixelType : PIXEL_TYPES) {
+      for (boolean little : new boolean[] {true, false}) {
+        for (boolean interleaved : new boolean[] {true, false}) {
+          layouts.add(new Object[] {pixelType, little, interleaved});
+        }
+      }
+    }
+    return layouts.toArray(new Object[0][]);
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testMinMax(String pixelType, boolean little,
+    boolean interleaved) throws Exception
+  {
+    String id = "test&pixelType=" + pixelType + "&sizeX=37&sizeY=23" +
+      "&sizeC=3&rgb=3&sizeZ=2&little=" + little + "&interleaved=" +
+      interleaved + ".fake";
+    Location.mapId(id, id);
+    MinMaxCalculator reader = new MinMaxCalculator();
+    reader.setId(id);
+    try {
+      int type = reader.getPixelType();
+      int bpp = FormatTools.getBytesPerPixel(type);
+      boolean signed = FormatTools.isSigned(type);
+      boolean floating = type == FormatTools.FLOAT ||
+        type == FormatTools.DOUBLE;
+      int sizeC = reader.getSizeC();
+      double[] min = new double[sizeC];
+      double[] max = new double[sizeC];
+      long[][] histogram = new long[sizeC][MinMaxCalculator.HISTOGRAM_BINS];
+      for (int c=0; c<sizeC; c++) {
+        min[c] = Double.POSITIVE_INFINITY;
+        max[c] = Double.NEGATIVE_INFINITY;
+      }
+
+      int pixels = reader.getSizeX() * reader.getSizeY();
+      for (int no=0; no<reader.getImageCount(); no++) {
+        Object plane = DataTools.makeDataArray(reader.openBytes(no), bpp,
+          floating, little);
+        for (int c=0; c<sizeC; c++) {
+          for (int i=0; i<pixels; i++) {
+            int index = interleaved ? i * sizeC + c : c * pixels + i;
+            double value = getValue(plane, index, signed);
+            if (value < min[c]) min[c] = value;
+            if (value > max[c]) max[c] = value;
+            if (!floating) {
+              double typeMin = signed ? -Math.pow(2, bpp * 8 - 1) : 0;
+              int bin = (int) ((value - typeMin) / Math.pow(2, bpp * 8 - 8));
+              histogram[c][bin]++;
+            }
+          }
+        }
+      }
+
+      for (int c=0; c<sizeC; c++) {
+        assertEquals(min[c], reader.getChannelGlobalMinimum(c));
+        assertEquals(max[c], reader.getChannelGlobalMaximum(c));
+        long[] h = reader.getChannelHistogram(c);
+        if (floating) {
+          assertNull(h);
+        }
+        else {
+          for (int bin=0; bin<histogram[c].length; bin++) {
+            assertEquals(histogram[c][bin], h[bin]);
+          }
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  private double getValue(Object array, int index, boolean signed) {
+    if (array instanceof byte[]) {
+      byte v = ((byte[]) array)[index];
+      return signed ? v : v & 0xff;
+    }
+    if (array instanceof short[]) {
+      short v = ((short[]) array)[index];
+      return signed ? v : v & 0xffff;
+    }
+    if (array instanceof int[]) {
+      int v = ((int[]) array)[index];
+      return signed ? v : v & 0xffffffffL;
+    }
+    if (array instanceof float[]) return ((float[]) array)[index];
+    return ((double[]) array)[index];
+  }
+
+}
@@ -138,6 +138,27 @@ public class MinMaxCalculatorTest {
     channelGlobalMinMax[1] = maximum;
   }
 
+  /**
+   * Checks the values computed from sub-images of the first plane, which
+   * must not be reported as global values.
+   */
+  private void assertPartialMinMax(double minimum, double maximum)
+    throws Exception
+  {
+    Double[] min = minMaxCalculator.getPlaneMinimum(0);
+    Double[] max = minMaxCalculator.getPlaneMaximum(0);
+    assertFalse(minMaxCalculator.isMinMaxPopulated());
+    assertNull(minMaxCalculator.getChannelGlobalMinimum(0));
+    assertNull(minMaxCalculator.getChannelGlobalMaximum(0));
+    assertNotNull(min);
+    assertNotNull(max);
+    assertEquals(minimum, min[0]);
+    assertEquals(maximum, max[0]);
+    assertEquals(minimum, minMaxCalculator.getChannelKnownMinimum(0));
+    assertEquals(maximum, minMaxCalculator.getChannelKnownMaximum(0));
+    assertEquals(0, minMaxStore.seriesGlobalMinimaMaxima.size());
+  }
+
   @Test
   public void testValidOpenBytes() throws Exception {
     byte[] a = new byte[planeSize / 2];
@@ -177,7 +198,7 @@ public class MinMaxCalculatorTest {
     byte[] buf = new byte[planeSize / 2];
     int halfway = sizeY / 2;
     minMaxCalculator.openBytes(0, buf, 0, 0, sizeX, halfway);
-    assertMinMax(-1.0, 1.0);
+    assertPartialMinMax(-1.0, 1.0);
   }
 
   @Test
@@ -185,7 +206,7 @@ public class MinMaxCalculatorTest {
     byte[] buf = new byte[planeSize / 2];
     int halfway = sizeY / 2;
     minMaxCalculator.openBytes(0, buf, 0, halfway, sizeX, halfway);
-    assertMinMax(-2.0, 2.0);
+    assertPartialMinMax(-2.0, 2.0);
   }
 
   @Test
@@ -194,7 +215,9 @@ public class MinMaxCalculatorTest {
     int halfway = sizeY / 2;
     minMaxCalculator.openBytes(0, buf, 0, 0, sizeX, halfway);
     minMaxCalculator.openBytes(0, buf, 0, halfway, sizeX, halfway);
-    assertMinMax(-2.0, 2.0);
+    assertPartialMinMax(-2.0, 2.0);
+    minMaxCalculator.openBytes(0);
+    assertMinMax(-2.0, 101.0);
   }
 
   @Test
@@ -203,7 +226,9 @@ public class MinMaxCalculatorTest {
     int halfway = sizeY / 2;
     minMaxCalculator.openBytes(0, buf, 0, halfway, sizeX, halfway);
     minMaxCalculator.openBytes(0, buf, 0, 0, sizeX, halfway);
-    assertMinMax(-2.0, 2.0);
+    assertPartialMinMax(-2.0, 2.0);
+    minMaxCalculator.openBytes(0);
+    assertMinMax(-2.0, 101.0);
   }
 
   /**
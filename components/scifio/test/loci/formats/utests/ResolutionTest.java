@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+
+import loci.common.Location;
+import loci.formats.ChannelSeparator;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ThumbnailScaler;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for selecting resolution levels with
+ * {@link IFormatReader#setResolution(int)}.
+ */
+public class ResolutionTest {
+
+  private static final String TEST_FILE =
+    "pyramid&pixelType=uint8&sizeX=1024&sizeY=512&sizeZ=2&series=2" +
+    "&resolutions=4.fake";
+
+  private IFormatReader reader;
+
+  @DataProvider(name = "readers")
+  public Object[][] createReaders() {
+    return new Object[][] {
+      {new FakeReader()},
+      {new ImageReader()},
+      {new ChannelSeparator()}
+    };
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (reader != null) reader.close();
+  }
+
+  private void open(IFormatReader r) throws Exception {
+    Location.mapId(TEST_FILE, TEST_FILE);
+    reader = r;
+    reader.setId(TEST_FILE);
+  }
+
+  @Test(dataProvider = "readers")
+  public void testResolutionLevels(IFormatReader r) throws Exception {
+    open(r);
+    assertEquals(8, reader.getSeriesCount());
+    for (int s=0; s<2; s++) {
+      reader.setSeries(s * 4);
+      assertEquals(4, reader.getResolutionCount());
+      assertEquals(0, reader.getResolution());
+      for (int res=0; res<4; res++) {
+        reader.setResolution(res);
+        assertEquals(s * 4 + res, reader.getSeries());
+        assertEquals(res, reader.getResolution());
+        assertEquals(4, reader.getResolutionCount());
+        assertEquals(1024 >> res, reader.getSizeX());
+        assertEquals(512 >> res, reader.getSizeY());
+        assertEquals(2, reader.getImageCount());
+        assertEquals((1024 >> res) * (512 >> res),
+          reader.openBytes(1).length);
+      }
+    }
+  }
+
+  @Test(dataProvider = "readers",
+    expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidResolution(IFormatReader r) throws Exception {
+    open(r);
+    reader.setResolution(4);
+  }
+
+  @Test
+  public void testSingleResolution() throws Exception {
+    open(new FakeReader());
+    reader.close();
+    String id = "single&sizeX=64&sizeY=64&series=3.fake";
+    Location.mapId(id, id);
+    reader.setId(id);
+    for (int s=0; s<reader.getSeriesCount(); s++) {
+      reader.setSeries(s);
+      assertEquals(1, reader.getResolutionCount());
+      assertEquals(0, reader.getResolution());
+    }
+  }
+
+  @Test
+  public void testThumbnailFromResolution() throws Exception {
+    open(new FakeReader());
+    byte[] thumb = reader.openThumbBytes(1);
+    assertEquals(0, reader.getResolution());
+
+    // the smallest level that is at least as large as the thumbnail
+    int sizeX = reader.getThumbSizeX();
+    int sizeY = reader.getThumbSizeY();
+    reader.setResolution(3);
+    assertEquals(sizeX, reader.getSizeX());
+    assertEquals(sizeY, reader.getSizeY());
+    byte[] expected = ThumbnailScaler.openThumbBytes(reader, 1, sizeX, sizeY,
+      ThumbnailScaler.getDefaultMethod(reader));
+    assertTrue(Arrays.equals(expected, thumb));
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ReaderWrapper;
+import loci.formats.ThumbnailCache;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for saving and reusing thumbnails with a
+ * {@link ThumbnailCache}.
+ */
+public class ThumbnailCacheTest {
+
+  private static final String[] FAKE_FILES = {
+    "a&pixelType=uint8&sizeX=256&sizeY=128&series=2.fake",
+    "b&pixelType=uint16&sizeX=64&sizeY=64&sizeZ=5.fake",
+    "c&pixelType=uint8&sizeX=128&sizeY=128&sizeC=3&rgb=3.fake"
+  };
+
+  private File directory;
+
+  private File dataDir;
+
+  private File cacheDir;
+
+  /** Reader wrapper that counts the thumbnails it computes. */
+  public static class CountingReader extends ReaderWrapper {
+    public int thumbCount;
+
+    public CountingReader() { super(); }
+
+    public CountingReader(IFormatReader r) { super(r); }
+
+    public byte[] openThumbBytes(int no) throws FormatException, IOException {
+      thumbCount++;
+      return super.openThumbBytes(no);
+    }
+  }
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    directory = File.createTempFile("thumbs", "");
+    directory.delete();
+    directory.mkdir();
+    dataDir = new File(directory, "data");
+    dataDir.mkdir();
+    cacheDir = new File(directory, "cache");
+    for (String name : FAKE_FILES) {
+      new File(dataDir, name).createNewFile();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (File dir : new File[] {dataDir, cacheDir}) {
+      File[] files = dir.listFiles();
+      if (files == null) continue;
+      for (File f : files) {
+        f.delete();
+      }
+      dir.delete();
+    }
+    directory.delete();
+  }
+
+  private ThumbnailCache openReader(CountingReader counter, String name,
+    long maxBytes) throws FormatException, IOException
+  {
+    ThumbnailCache reader =
+      new ThumbnailCache(counter, cacheDir.getAbsolutePath(), maxBytes);
+    reader.setId(new File(dataDir, name).getAbsolutePath());
+    return reader;
+  }
+
+  @Test
+  public void testThumbnailReused() throws Exception {
+    CountingReader counter = new CountingReader(new ImageReader());
+    ThumbnailCache reader =
+      openReader(counter, FAKE_FILES[0], ThumbnailCache.DEFAULT_MAX_BYTES);
+    byte[] thumb = reader.openThumbBytes(0);
+    assertEquals(1, counter.thumbCount);
+    assertTrue(reader.getThumbnailFile(0).exists());
+    assertTrue(Arrays.equals(thumb, reader.openThumbBytes(0)));
+    assertEquals(1, counter.thumbCount);
+
+    // each series has its own thumbnail
+    reader.setSeries(1);
+    assertFalse(reader.getThumbnailFile(0).exists());
+    reader.openThumbBytes(0);
+    assertEquals(2, counter.thumbCount);
+    reader.close();
+
+    counter = new CountingReader(new ImageReader());
+    reader =
+      openReader(counter, FAKE_FILES[0], ThumbnailCache.DEFAULT_MAX_BYTES);
+    assertTrue(Arrays.equals(thumb, reader.openThumbBytes(0)));
+    assertEquals(0, counter.thumbCount);
+    reader.close();
+  }
+
+  @Test
+  public void testModifiedFileMisses() throws Exception {
+    CountingReader counter = new CountingReader(new ImageReader());
+    ThumbnailCache reader =
+      openReader(counter, FAKE_FILES[1], ThumbnailCache.DEFAULT_MAX_BYTES);
+    reader.openThumbBytes(0);
+    File oldThumb = reader.getThumbnailFile(0);
+    reader.close();
+
+    File file = new File(dataDir, FAKE_FILES[1]);
+    file.setLastModified(file.lastModified() - 60000);
+
+    reader =
+      openReader(counter, FAKE_FILES[1], ThumbnailCache.DEFAULT_MAX_BYTES);
+    assertFalse(oldThumb.equals(reader.getThumbnailFile(0)));
+    reader.openThumbBytes(0);
+    assertEquals(2, counter.thumbCount);
+    reader.close();
+  }
+
+  @Test
+  public void testByteBudget() throws Exception {
+    CountingReader counter = new CountingReader(new ImageReader());
+    long maxBytes = 1024 * 80;
+    ThumbnailCache reader = openReader(counter, FAKE_FILES[1], maxBytes);
+    for (int i=0; i<reader.getImageCount(); i++) {
+      reader.openThumbBytes(i);
+      assertTrue(cacheSize() <= maxBytes);
+    }
+    // the most recently saved thumbnail is always kept
+    assertTrue(reader.getThumbnailFile(reader.getImageCount() - 1).exists());
+    assertTrue(cacheDir.listFiles().length < reader.getImageCount());
+    reader.close();
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    CountingReader counter = new CountingReader(new ImageReader());
+    ThumbnailCache reader = new ThumbnailCache(counter,
+      cacheDir.getAbsolutePath(), ThumbnailCache.DEFAULT_MAX_BYTES);
+    assertEquals(4, reader.prefetch(dataDir.getAbsolutePath()));
+    assertEquals(0, reader.prefetch(dataDir.getAbsolutePath()));
+    assertEquals(0, counter.thumbCount);
+
+    for (String name : FAKE_FILES) {
+      reader.setId(new File(dataDir, name).getAbsolutePath());
+      for (int s=0; s<reader.getSeriesCount(); s++) {
+        reader.setSeries(s);
+        reader.openThumbBytes(reader.getIndex(reader.getSizeZ() / 2, 0,
+          reader.getSizeT() / 2));
+      }
+    }
+    assertEquals(0, counter.thumbCount);
+    reader.close();
+  }
+
+  private long cacheSize() {
+    long size = 0;
+    for (File f : cacheDir.listFiles()) {
+      size += f.length();
+    }
+    return size;
+  }
+
+}
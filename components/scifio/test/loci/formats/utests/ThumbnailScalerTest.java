@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.DataTools;
+import loci.common.Location;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
+import loci.formats.ThumbnailScaler;
+import loci.formats.in.FakeReader;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the thumbnails computed by {@link ThumbnailScaler} for each pixel
+ * type, byte order and channel layout against values decoded with
+ * {@link DataTools}.
+ */
+public class ThumbnailScalerTest {
+
+  private static final String[] PIXEL_TYPES = {
+    "int8", "uint8", "int16", "uint16", "int32", "uint32", "float", "double"
+  };
+
+  private static final int SIZE_X = 64;
+  private static final int SIZE_Y = 32;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    List<Object[]> layouts = new ArrayList<Object[]>();
+    for (String pixelType : PIXEL_TYPES) {
+      for (boolean little : new boolean[] {true, false}) {
+        for (boolean interleaved : new boolean[] {true, false}) {
+          layouts.add(new Object[] {pixelType, little, interleaved});
+        }
+      }
+    }
+    return layouts.toArray(new Object[0][]);
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testAreaAveraging(String pixelType, boolean little,
+    boolean interleaved) throws Exception
+  {
+    IFormatReader reader = openReader(pixelType, little, interleaved);
+    try {
+      int tx = SIZE_X / 2, ty = SIZE_Y / 2;
+      byte[] thumb = ThumbnailScaler.openThumbBytes(reader, 0, tx, ty,
+        ThumbnailScaler.AREA_AVERAGING);
+      Object expected = decode(reader, reader.openBytes(0));
+      Object actual = decode(reader, thumb);
+
+      int c = reader.getRGBChannelCount();
+      boolean floating = FormatTools.isFloatingPoint(reader.getPixelType());
+      for (int ch=0; ch<c; ch++) {
+        for (int y=0; y<ty; y++) {
+          for (int x=0; x<tx; x++) {
+            double sum = 0;
+            for (int dy=0; dy<2; dy++) {
+              for (int dx=0; dx<2; dx++) {
+                int i = index(x * 2 + dx, y * 2 + dy, ch, c, SIZE_X, SIZE_Y,
+                  interleaved);
+                sum += getValue(expected, i, reader.getPixelType());
+              }
+            }
+            double avg = sum / 4;
+            if (floating && actual instanceof float[]) avg = (float) avg;
+            else if (!floating) avg = Math.round(avg);
+            double value = getValue(actual,
+              index(x, y, ch, c, tx, ty, interleaved), reader.getPixelType());
+            assertEquals("x=" + x + ", y=" + y + ", c=" + ch, avg, value);
+          }
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testNearestNeighbor(String pixelType, boolean little,
+    boolean interleaved) throws Exception
+  {
+    IFormatReader reader = openReader(pixelType, little, interleaved);
+    try {
+      int tx = SIZE_X / 4, ty = SIZE_Y / 4;
+      byte[] thumb = ThumbnailScaler.openThumbBytes(reader, 0, tx, ty,
+        ThumbnailScaler.NEAREST_NEIGHBOR);
+      Object expected = decode(reader, reader.openBytes(0));
+      Object actual = decode(reader, thumb);
+
+      int c = reader.getRGBChannelCount();
+      for (int ch=0; ch<c; ch++) {
+        for (int y=0; y<ty; y++) {
+          for (int x=0; x<tx; x++) {
+            int src = index(x * 4 + 1, y * 4 + 1, ch, c, SIZE_X, SIZE_Y,
+              interleaved);
+            int dest = index(x, y, ch, c, tx, ty, interleaved);
+            assertEquals(getValue(expected, src, reader.getPixelType()),
+              getValue(actual, dest, reader.getPixelType()));
+          }
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testTilesMatchWholePlane() throws Exception {
+    String id = "thumb&pixelType=uint16&sizeX=100&sizeY=77.fake";
+    Location.mapId(id, id);
+    IFormatReader reader = new FakeReader();
+    reader.setId(id);
+    IFormatReader tiled = new TiledReader(reader, 7, 5);
+    try {
+      for (int method=0; method<2; method++) {
+        byte[] whole = ThumbnailScaler.openThumbBytes(reader, 0, 128, 98,
+          method);
+        byte[] tiles = ThumbnailScaler.openThumbBytes(tiled, 0, 128, 98,
+          method);
+        assertTrue("method " + method, Arrays.equals(whole, tiles));
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testOpenThumbBytesLength(String pixelType, boolean little,
+    boolean interleaved) throws Exception
+  {
+    IFormatReader reader = openReader(pixelType, little, interleaved);
+    try {
+      byte[] thumb = reader.openThumbBytes(0);
+      assertEquals(reader.getThumbSizeX() * reader.getThumbSizeY() *
+        reader.getRGBChannelCount() *
+        FormatTools.getBytesPerPixel(reader.getPixelType()), thumb.length);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testLargePlaneSampled() throws Exception {
+    String id = "thumb&pixelType=uint8&sizeX=4096&sizeY=2048.fake";
+    Location.mapId(id, id);
+    IFormatReader reader = new FakeReader();
+    reader.setId(id);
+    try {
+      int tx = reader.getThumbSizeX();
+      int ty = reader.getThumbSizeY();
+      assertEquals(ThumbnailScaler.NEAREST_NEIGHBOR,
+        ThumbnailScaler.getDefaultMethod(reader));
+      assertEquals(ThumbnailScaler.AREA_AVERAGING,
+        ThumbnailScaler.getDefaultMethod(reader, 1024, 512));
+      byte[] expected = ThumbnailScaler.openThumbBytes(reader, 0, tx, ty,
+        ThumbnailScaler.NEAREST_NEIGHBOR);
+      assertTrue(Arrays.equals(expected, reader.openThumbBytes(0)));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private IFormatReader openReader(String pixelType, boolean little,
+    boolean interleaved) throws Exception
+  {
+    String id = "thumb&pixelType=" + pixelType + "&sizeX=" + SIZE_X +
+      "&sizeY=" + SIZE_Y + "&sizeC=3&rgb=3&little=" + little +
+      "&interleaved=" + interleaved + ".fake";
+    Location.mapId(id, id);
+    IFormatReader reader = new FakeReader();
+    reader.setId(id);
+    return reader;
+  }
+
+  private int index(int x, int y, int ch, int c, int w, int h,
+    boolean interleaved)
+  {
+    if (interleaved) return (y * w + x) * c + ch;
+    return (ch * h + y) * w + x;
+  }
+
+  private Object decode(IFormatReader reader, byte[] b) {
+    int type = reader.getPixelType();
+    return DataTools.makeDataArray(b, FormatTools.getBytesPerPixel(type),
+      FormatTools.isFloatingPoint(type), reader.isLittleEndian());
+  }
+
+  private double getValue(Object array, int index, int pixelType) {
+    boolean signed = FormatTools.isSigned(pixelType);
+    if (array instanceof byte[]) {
+      byte v = ((byte[]) array)[index];
+      return signed ? v : v & 0xff;
+    }
+    if (array instanceof short[]) {
+      short v = ((short[]) array)[index];
+      return signed ? v : v & 0xffff;
+    }
+    if (array instanceof int[]) {
+      int v = ((int[]) array)[index];
+      return signed ? v : v & 0xffffffffL;
+    }
+    if (array instanceof float[]) return ((float[]) array)[index];
+    return ((double[]) array)[index];
+  }
+
+  // -- Helper classes --
+
+  /** Reports a small optimal tile size, to force reading in many tiles. */
+  private static class TiledReader extends ReaderWrapper {
+    private int tileWidth, tileHeight;
+
+    TiledReader(IFormatReader r, int tileWidth, int tileHeight) {
+      super(r);
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+    }
+
+    public int getOptimalTileWidth() { return tileWidth; }
+
+    public int getOptimalTileHeight() { return tileHeight; }
+  }
+
+}
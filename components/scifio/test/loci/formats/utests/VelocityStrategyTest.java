@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.formats.cache.CacheEvent;
+import loci.formats.cache.CacheException;
+import loci.formats.cache.CacheListener;
+import loci.formats.cache.VelocityStrategy;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.formats.cache.VelocityStrategy}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/bio-formats/test/loci/formats/utests/VelocityStrategyTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/bio-formats/test/loci/formats/utests/VelocityStrategyTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class VelocityStrategyTest {
+
+  private static final int[] LENGTHS = {2, 30};
+
+  private VelocityStrategy strategy;
+
+  private List<CacheEvent> events;
+
+  @BeforeMethod
+  public void setUp() {
+    strategy = new VelocityStrategy(LENGTHS);
+    events = new ArrayList<CacheEvent>();
+    strategy.addCacheListener(new CacheListener() {
+      public void cacheUpdated(CacheEvent e) {
+        events.add(e);
+      }
+    });
+  }
+
+  @Test
+  public void testForwardPlayback() throws CacheException {
+    for (int t=0; t<=3; t++) {
+      strategy.getLoadList(new int[] {0, t});
+    }
+    assertEquals(1, strategy.getActiveAxis());
+    assertEquals(1, strategy.getStep());
+
+    int[][] loadList = strategy.getLoadList(new int[] {0, 3});
+    assertEquals(4, loadList.length);
+    for (int i=0; i<loadList.length; i++) {
+      assertEquals(0, loadList[i][0]);
+      assertEquals(3 + i, loadList[i][1]);
+    }
+
+    assertEquals(2, strategy.getHitCount());
+    assertEquals(1, strategy.getMissCount());
+    assertEquals(0, strategy.getWasteCount());
+    assertEquals(3, events.size());
+    assertEquals(CacheEvent.PREFETCH_MISS, events.get(0).getType());
+    assertEquals(CacheEvent.PREFETCH_HIT, events.get(1).getType());
+    assertEquals(CacheEvent.PREFETCH_HIT, events.get(2).getType());
+  }
+
+  @Test
+  public void testFastPlaybackReachesFurther() throws CacheException {
+    strategy.setRange(1, 1);
+    for (int t=0; t<=12; t+=4) {
+      strategy.getLoadList(new int[] {1, t});
+    }
+    assertEquals(4, strategy.getStep());
+
+    int[][] loadList = strategy.getLoadList(new int[] {1, 12});
+    assertEquals(12, loadList[0][1]);
+    assertEquals(16, loadList[1][1]);
+    assertEquals(20, loadList[2][1]);
+    assertEquals(24, loadList[3][1]);
+    assertEquals(2, strategy.getHitCount());
+    assertEquals(1, strategy.getMissCount());
+  }
+
+  @Test
+  public void testReversalWastesPredictions() throws CacheException {
+    for (int t=10; t<=13; t++) {
+      strategy.getLoadList(new int[] {0, t});
+    }
+    strategy.getLoadList(new int[] {0, 12});
+
+    assertEquals(-1, strategy.getStep());
+    assertEquals(3, strategy.getWasteCount());
+    assertEquals(2, strategy.getMissCount());
+    int wasted = 0;
+    for (CacheEvent e : events) {
+      if (e.getType() == CacheEvent.PREFETCH_WASTED) {
+        assertTrue(e.getIndex() > 13 * LENGTHS[0]);
+        wasted++;
+      }
+    }
+    assertEquals(3, wasted);
+  }
+
+  @Test
+  public void testJumpResetsPrediction() throws CacheException {
+    strategy.setMaxLookahead(4);
+    strategy.getLoadList(new int[] {0, 0});
+    strategy.getLoadList(new int[] {0, 1});
+    strategy.getLoadList(new int[] {0, 9});
+    assertEquals(-1, strategy.getActiveAxis());
+    assertEquals(1, strategy.getLoadList(new int[] {0, 9}).length);
+  }
+
+  @Test
+  public void testMoveAcrossAxesResetsPrediction() throws CacheException {
+    strategy.getLoadList(new int[] {0, 0});
+    strategy.getLoadList(new int[] {0, 1});
+    strategy.getLoadList(new int[] {1, 2});
+    assertEquals(-1, strategy.getActiveAxis());
+    assertEquals(0, strategy.getStep());
+  }
+
+  @Test
+  public void testResetCounters() throws CacheException {
+    strategy.getLoadList(new int[] {0, 0});
+    strategy.getLoadList(new int[] {0, 5});
+    assertEquals(1, strategy.getMissCount());
+    strategy.resetCounters();
+    assertEquals(0, strategy.getHitCount());
+    assertEquals(0, strategy.getMissCount());
+    assertEquals(0, strategy.getWasteCount());
+  }
+
+}
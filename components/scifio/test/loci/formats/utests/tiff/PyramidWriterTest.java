@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.RandomAccessInputStream;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.ThumbnailScaler;
+import loci.formats.in.MinimalTiffReader;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests writing reduced resolution levels as SubIFDs with
+ * {@link TiffWriter#setResolutionCount(int)}.
+ *
+ * <dl><dt><b>Source code:</b></dt>
+ * <dd><a href="http://trac.openmicroscopy.org.uk/ome/browser/bioformats.git/components/scifio/test/loci/formats/utests/tiff/PyramidWriterTest.java">Trac</a>,
+ * <a href="http://git.openmicroscopy.org/?p=bioformats.git;a=blob;f=components/scifio/test/loci/formats/utests/tiff/PyramidWriterTest.java;hb=HEAD">Gitweb</a></dd></dl>
+ */
+public class PyramidWriterTest {
+
+  private static final int SIZE_X = 600;
+  private static final int SIZE_Y = 520;
+  private static final int SIZE_Z = 2;
+  private static final int TILE_SIZE = 256;
+
+  private File target;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    target = File.createTempFile("PyramidWriterTest", ".ome.tiff");
+    target.delete();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    target.delete();
+  }
+
+  @Test
+  public void testTiledPyramid() throws Exception {
+    int bpp = FormatTools.getBytesPerPixel(FormatTools.UINT16);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    OMETiffWriter writer = new OMETiffWriter();
+    writer.setMetadataRetrieve(createMetadata(PixelType.UINT16, 1));
+    writer.setCompressionExecutor(executor);
+    writer.setResolutionCount(3);
+    writer.setId(target.getAbsolutePath());
+    writer.setCompression(TiffWriter.COMPRESSION_LZW);
+    try {
+      for (int no=0; no<SIZE_Z; no++) {
+        byte[] plane = createPlane(no, 1, bpp);
+        IFD ifd = new IFD();
+        ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+        ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+        for (int y=0; y<SIZE_Y; y+=TILE_SIZE) {
+          for (int x=0; x<SIZE_X; x+=TILE_SIZE) {
+            int w = Math.min(TILE_SIZE, SIZE_X - x);
+            int h = Math.min(TILE_SIZE, SIZE_Y - y);
+            byte[] tile = crop(plane, x, y, w, h, bpp);
+            writer.saveBytes(no, tile, ifd, x, y, w, h);
+          }
+        }
+      }
+    }
+    finally {
+      writer.close();
+      executor.shutdown();
+    }
+
+    checkPyramid(FormatTools.UINT16, 1, 3);
+  }
+
+  @Test
+  public void testStripPyramid() throws Exception {
+    TiffWriter writer = new TiffWriter();
+    writer.setMetadataRetrieve(createMetadata(PixelType.UINT8, 3));
+    writer.setInterleaved(true);
+    writer.setWriteSequentially(true);
+    writer.setResolutionCount(2);
+    writer.setId(target.getAbsolutePath());
+    try {
+      for (int no=0; no<SIZE_Z; no++) {
+        writer.saveBytes(no, createPlane(no, 3, 1));
+      }
+    }
+    finally {
+      writer.close();
+    }
+
+    checkPyramid(FormatTools.UINT8, 3, 2);
+  }
+
+  // -- Helper methods --
+
+  private OMEXMLMetadata createMetadata(PixelType type, int samples)
+    throws Exception
+  {
+    ServiceFactory sf = new ServiceFactory();
+    OMEXMLService service = sf.getInstance(OMEXMLService.class);
+    OMEXMLMetadata ms = service.createOMEXMLMetadata();
+    ms.setImageID("Image:0", 0);
+    ms.setPixelsID("Pixels:0", 0);
+    ms.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+    ms.setPixelsSizeX(new PositiveInteger(SIZE_X), 0);
+    ms.setPixelsSizeY(new PositiveInteger(SIZE_Y), 0);
+    ms.setPixelsSizeZ(new PositiveInteger(SIZE_Z), 0);
+    ms.setPixelsSizeC(new PositiveInteger(samples), 0);
+    ms.setPixelsSizeT(new PositiveInteger(1), 0);
+    ms.setPixelsType(type, 0);
+    ms.setPixelsBinDataBigEndian(false, 0, 0);
+    ms.setChannelID("Channel:0:0", 0, 0);
+    ms.setChannelSamplesPerPixel(new PositiveInteger(samples), 0, 0);
+    return ms;
+  }
+
+  /** Creates an interleaved plane with a different gradient per plane. */
+  private byte[] createPlane(int no, int channels, int bpp) {
+    byte[] plane = new byte[SIZE_X * SIZE_Y * channels * bpp];
+    for (int i=0; i<SIZE_X * SIZE_Y * channels; i++) {
+      int pixel = i / channels;
+      int value = (pixel % SIZE_X) * 3 + (pixel / SIZE_X) * 5 +
+        (i % channels) * 40 + no * 7;
+      for (int b=0; b<bpp; b++) {
+        plane[i * bpp + b] = (byte) (value >> (8 * b));
+      }
+    }
+    return plane;
+  }
+
+  private byte[] crop(byte[] plane, int x, int y, int w, int h, int bpp) {
+    byte[] tile = new byte[w * h * bpp];
+    for (int row=0; row<h; row++) {
+      System.arraycopy(plane, ((y + row) * SIZE_X + x) * bpp, tile,
+        row * w * bpp, w * bpp);
+    }
+    return tile;
+  }
+
+  /** Separates the channels of an interleaved image. */
+  private byte[] toPlanar(byte[] image, int channels, int bpp) {
+    byte[] planar = new byte[image.length];
+    int pixels = image.length / (channels * bpp);
+    for (int i=0; i<pixels; i++) {
+      for (int c=0; c<channels; c++) {
+        System.arraycopy(image, (i * channels + c) * bpp, planar,
+          (c * pixels + i) * bpp, bpp);
+      }
+    }
+    return planar;
+  }
+
+  /**
+   * Checks that each plane has the expected reduced resolution levels,
+   * and that the planes are still read as a single series.  Samples are
+   * read with the channels separated.
+   */
+  private void checkPyramid(int pixelType, int channels, int levels)
+    throws Exception
+  {
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(target.getAbsolutePath());
+    try {
+      TiffParser parser = new TiffParser(in);
+      long[] offsets = parser.getIFDOffsets();
+      assertEquals(SIZE_Z, offsets.length);
+
+      for (int no=0; no<SIZE_Z; no++) {
+        IFD ifd = parser.getIFD(offsets[no]);
+        long[] subIFDs = ifd.getIFDLongArray(IFD.SUB_IFD);
+        assertEquals(levels - 1, subIFDs.length);
+
+        byte[] expected = createPlane(no, channels, bpp);
+        int sizeX = SIZE_X, sizeY = SIZE_Y;
+        for (int level=1; level<levels; level++) {
+          expected = ThumbnailScaler.halve(expected, sizeX, sizeY, channels,
+            pixelType, true, true, ThumbnailScaler.AREA_AVERAGING);
+          sizeX = (sizeX + 1) / 2;
+          sizeY = (sizeY + 1) / 2;
+
+          IFD sub = parser.getIFD(subIFDs[level - 1]);
+          parser.fillInIFD(sub);
+          assertEquals(1, sub.getIFDIntValue(IFD.NEW_SUBFILE_TYPE));
+          assertEquals(sizeX, sub.getImageWidth());
+          assertEquals(sizeY, sub.getImageLength());
+          assertTrue(sub.isTiled());
+          byte[] samples = new byte[expected.length];
+          parser.getSamples(sub, samples);
+          assertTrue("level " + level + " of plane " + no,
+            Arrays.equals(toPlanar(expected, channels, bpp), samples));
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    MinimalTiffReader reader = new MinimalTiffReader();
+    try {
+      reader.setId(target.getAbsolutePath());
+      assertEquals(SIZE_Z, reader.getImageCount());
+      assertEquals(SIZE_X, reader.getSizeX());
+      for (int no=0; no<SIZE_Z; no++) {
+        byte[] plane = createPlane(no, channels, bpp);
+        assertTrue(Arrays.equals(toPlanar(plane, channels, bpp),
+          reader.openBytes(no)));
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that decoding tiles in parallel with
+ * {@link TiffParser#setDecodeExecutor} produces the same pixels as decoding
+ * them serially.
+ */
+public class TiffParserParallelDecodeTest {
+
+  private static final int IMAGE_WIDTH = 192;
+
+  private static final int IMAGE_LENGTH = 128;
+
+  private static final int TILE_SIZE = 64;
+
+  private ExecutorService executor;
+
+  private IFD ifd;
+
+  private byte[] data;
+
+  private ByteArrayHandle savedData;
+
+  @BeforeClass
+  public void setUpExecutor() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterClass
+  public void tearDownExecutor() {
+    executor.shutdown();
+  }
+
+  @BeforeMethod
+  public void setUp() {
+    ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+    ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+    ifd.put(IFD.BITS_PER_SAMPLE, new int[] {16});
+    ifd.put(IFD.SAMPLES_PER_PIXEL, 1);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * 2];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 13);
+    }
+  }
+
+  @Test
+  public void testLZW() throws FormatException, IOException {
+    ifd.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+    save();
+    assertRegion(0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertRegion(30, 20, 120, 90);
+  }
+
+  @Test
+  public void testDEFLATE() throws FormatException, IOException {
+    ifd.put(IFD.COMPRESSION, TiffCompression.DEFLATE.getCode());
+    save();
+    assertRegion(0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertRegion(65, 40, 70, 80);
+  }
+
+  @Test
+  public void testUNCOMPRESSED() throws FormatException, IOException {
+    ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+    save();
+    assertRegion(0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+    assertRegion(1, 1, 190, 126);
+  }
+
+  @Test
+  public void testStatelessCodecs() {
+    assertTrue(TiffCompression.LZW.isStateless());
+    assertTrue(TiffCompression.DEFLATE.isStateless());
+    assertTrue(TiffCompression.UNCOMPRESSED.isStateless());
+
+    // tiles using these codecs are always decoded serially
+    assertFalse(TiffCompression.LURAWAVE.isStateless());
+    assertFalse(TiffCompression.THUNDERSCAN.isStateless());
+  }
+
+  // -- Helper methods --
+
+  private void save() throws FormatException, IOException {
+    savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+  }
+
+  private void assertRegion(int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    byte[] serial = readRegion(null, x, y, w, h);
+    byte[] parallel = readRegion(executor, x, y, w, h);
+    for (int row=0; row<h; row++) {
+      for (int col=0; col<w * 2; col++) {
+        int index = row * w * 2 + col;
+        byte expected = data[(row + y) * IMAGE_WIDTH * 2 + x * 2 + col];
+        assertEquals(expected, serial[index]);
+        assertEquals(expected, parallel[index]);
+      }
+    }
+  }
+
+  private byte[] readRegion(ExecutorService decodeExecutor, int x, int y,
+    int w, int h) throws FormatException, IOException
+  {
+    RandomAccessInputStream in = new RandomAccessInputStream(savedData);
+    TiffParser parser = new TiffParser(in);
+    parser.setDecodeExecutor(decodeExecutor);
+    byte[] plane = new byte[w * h * 2];
+    parser.getSamples(ifd, plane, x, y, w, h);
+    in.close();
+    return plane;
+  }
+
+}
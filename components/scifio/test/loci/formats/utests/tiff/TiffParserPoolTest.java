@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+
+import java.io.IOException;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Location;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffParserPool;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link TiffParserPool} reuse and eviction.
+ */
+public class TiffParserPoolTest {
+
+  private static final String[] FILES =
+    {"pool-a.tif", "pool-b.tif", "pool-c.tif"};
+
+  private TiffParserPool pool;
+
+  @BeforeMethod
+  public void setUp() {
+    for (String file : FILES) {
+      Location.mapFile(file, new ByteArrayHandle(new byte[8]));
+    }
+    pool = new TiffParserPool(2);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    pool.closeAll();
+    for (String file : FILES) {
+      Location.mapFile(file, null);
+    }
+  }
+
+  @Test
+  public void testReuse() throws IOException {
+    TiffParser parser = pool.acquire(FILES[0]);
+    pool.release(FILES[0], parser);
+    assertEquals(1, pool.getOpenCount());
+    assertSame(parser, pool.acquire(FILES[0]));
+    assertEquals(0, pool.getOpenCount());
+  }
+
+  @Test
+  public void testConcurrentCheckout() throws IOException {
+    TiffParser first = pool.acquire(FILES[0]);
+    TiffParser second = pool.acquire(FILES[0]);
+    assertNotSame(first, second);
+    pool.release(FILES[0], first);
+    pool.release(FILES[0], second);
+
+    // both parsers are kept, and the most recently released is reused first
+    assertEquals(2, pool.getOpenCount());
+    assertSame(second, pool.acquire(FILES[0]));
+    assertSame(first, pool.acquire(FILES[0]));
+    assertEquals(0, pool.getOpenCount());
+  }
+
+  @Test
+  public void testIdleParsersPerFileBounded() throws IOException {
+    TiffParser first = pool.acquire(FILES[0]);
+    TiffParser second = pool.acquire(FILES[0]);
+    TiffParser third = pool.acquire(FILES[0]);
+    pool.release(FILES[0], first);
+    pool.release(FILES[0], second);
+    pool.release(FILES[0], third);
+
+    // the oldest idle parser for the file is closed
+    assertEquals(2, pool.getOpenCount());
+    assertSame(third, pool.acquire(FILES[0]));
+    assertSame(second, pool.acquire(FILES[0]));
+    assertNotSame(first, pool.acquire(FILES[0]));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() throws IOException {
+    TiffParser a = pool.acquire(FILES[0]);
+    TiffParser b = pool.acquire(FILES[1]);
+    pool.release(FILES[0], a);
+    pool.release(FILES[1], b);
+    assertSame(a, pool.acquire(FILES[0]));
+    pool.release(FILES[0], a);
+
+    // opening a third file closes the least recently used idle parser
+    TiffParser c = pool.acquire(FILES[2]);
+    assertEquals(1, pool.getOpenCount());
+    pool.release(FILES[2], c);
+    assertEquals(2, pool.getOpenCount());
+    assertSame(a, pool.acquire(FILES[0]));
+    assertSame(c, pool.acquire(FILES[2]));
+    assertNotSame(b, pool.acquire(FILES[1]));
+  }
+
+  @Test
+  public void testCheckedOutParsersCounted() throws IOException {
+    TiffParser a = pool.acquire(FILES[0]);
+    TiffParser b = pool.acquire(FILES[1]);
+
+    // past the maximum, parsers are closed as soon as they are released
+    TiffParser c = pool.acquire(FILES[2]);
+    pool.release(FILES[2], c);
+    assertEquals(0, pool.getOpenCount());
+    pool.release(FILES[0], a);
+    assertEquals(1, pool.getOpenCount());
+    pool.release(FILES[1], b);
+    assertEquals(2, pool.getOpenCount());
+    assertNotSame(c, pool.acquire(FILES[2]));
+    assertEquals(1, pool.getOpenCount());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    pool.setMaxOpenFiles(0);
+    TiffParser parser = pool.acquire(FILES[0]);
+    pool.release(FILES[0], parser);
+    assertEquals(0, pool.getOpenCount());
+    assertNotSame(parser, pool.acquire(FILES[0]));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNegativeMaximum() {
+    pool.setMaxOpenFiles(-1);
+  }
+
+}
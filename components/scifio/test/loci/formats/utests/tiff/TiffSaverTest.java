@@ -41,12 +41,16 @@ import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import loci.common.ByteArrayHandle;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffParser;
 import loci.formats.tiff.TiffSaver;
 
@@ -170,4 +174,169 @@ public class TiffSaverTest {
     assertTrue("new comment".equals(tiffParser.getComment()));
   }
 
+  @Test
+  public void testWriteImageEdgeTiles() throws FormatException, IOException {
+    byte[] plane = makePlane(100 * 70 * 2);
+    IFD tiled = makeImageIFD(100, 70, 1);
+    tiled.put(IFD.TILE_WIDTH, 32);
+    tiled.put(IFD.TILE_LENGTH, 48);
+    tiffSaver.writeImage(plane, tiled, 0, FormatTools.UINT16, true);
+
+    byte[] samples = new byte[plane.length];
+    tiffParser.getSamples(tiled, samples);
+    for (int i=0; i<plane.length; i++) {
+      assertEquals(plane[i], samples[i]);
+    }
+  }
+
+  @Test
+  public void testWriteImagePlanarStrips() throws FormatException, IOException
+  {
+    byte[] plane = makePlane(50 * 33 * 3);
+    IFD planar = makeImageIFD(50, 33, 2);
+    planar.put(IFD.ROWS_PER_STRIP, new long[] {8});
+    tiffSaver.writeImage(plane, planar, 0, FormatTools.UINT8, true);
+
+    byte[] samples = new byte[plane.length];
+    tiffParser.getSamples(planar, samples);
+    for (int i=0; i<plane.length; i++) {
+      assertEquals(plane[i], samples[i]);
+    }
+  }
+
+  @Test
+  public void testWriteImageInterleavedTiles()
+    throws FormatException, IOException
+  {
+    int pixels = 40 * 40;
+    byte[] plane = makePlane(pixels * 3);
+    IFD interleaved = makeImageIFD(40, 40, 1);
+    interleaved.put(IFD.TILE_WIDTH, 16);
+    interleaved.put(IFD.TILE_LENGTH, 16);
+    tiffSaver.writeImage(plane, interleaved, 0, FormatTools.UINT8, true);
+
+    // interleaved samples are unpacked into separate channels
+    byte[] samples = new byte[plane.length];
+    tiffParser.getSamples(interleaved, samples);
+    for (int i=0; i<pixels; i++) {
+      for (int c=0; c<3; c++) {
+        assertEquals(plane[i * 3 + c], samples[c * pixels + i]);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteImageParallelCompression()
+    throws FormatException, IOException
+  {
+    byte[] plane = makePlane(130 * 90 * 2);
+    IFD tiled = makeImageIFD(130, 90, 1);
+    tiled.put(IFD.TILE_WIDTH, 32);
+    tiled.put(IFD.TILE_LENGTH, 32);
+    tiled.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      tiffSaver.setCompressionExecutor(executor);
+      tiffSaver.writeImage(plane, tiled, 0, FormatTools.UINT16, true);
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    byte[] samples = new byte[plane.length];
+    tiffParser.getSamples(tiled, samples);
+    for (int i=0; i<plane.length; i++) {
+      assertEquals(plane[i], samples[i]);
+    }
+  }
+
+  @Test
+  public void testWriteManyImages() throws FormatException, IOException {
+    int planes = 20;
+    byte[][] data = new byte[planes][];
+    useEmptyFile();
+    tiffSaver.setLittleEndian(true);
+    tiffSaver.writeHeader();
+    for (int no=0; no<planes; no++) {
+      data[no] = makePlane(16 * 8);
+      data[no][0] = (byte) no;
+      IFD plane = makeImageIFD(16, 8, 1);
+      out.seek(out.length());
+      tiffSaver.writeImage(data[no], plane, no, FormatTools.UINT8,
+        no == planes - 1);
+    }
+
+    long[] offsets = tiffParser.getIFDOffsets();
+    assertEquals(planes, offsets.length);
+    for (int no=0; no<planes; no++) {
+      byte[] samples = new byte[data[no].length];
+      tiffParser.getSamples(tiffParser.getIFD(offsets[no]), samples);
+      for (int i=0; i<samples.length; i++) {
+        assertEquals(data[no][i], samples[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteTilesOutOfOrder() throws FormatException, IOException
+  {
+    byte[][] data = {makePlane(64 * 32), makePlane(64 * 32)};
+    data[1][0] = (byte) 0xff;
+    useEmptyFile();
+    tiffSaver.setLittleEndian(true);
+    tiffSaver.writeHeader();
+    byte[] tile = new byte[32 * 32];
+    for (int x=0; x<64; x+=32) {
+      for (int no=0; no<data.length; no++) {
+        for (int row=0; row<32; row++) {
+          System.arraycopy(data[no], row * 64 + x, tile, row * 32, 32);
+        }
+        IFD plane = makeImageIFD(64, 32, 1);
+        plane.put(IFD.TILE_WIDTH, 32);
+        plane.put(IFD.TILE_LENGTH, 32);
+        out.seek(out.length());
+        tiffSaver.writeImage(tile, plane, no, FormatTools.UINT8, x, 0, 32, 32,
+          no == data.length - 1);
+      }
+    }
+
+    long[] offsets = tiffParser.getIFDOffsets();
+    assertEquals(data.length, offsets.length);
+    for (int no=0; no<data.length; no++) {
+      byte[] samples = new byte[data[no].length];
+      tiffParser.getSamples(tiffParser.getIFD(offsets[no]), samples);
+      for (int i=0; i<samples.length; i++) {
+        assertEquals(data[no][i], samples[i]);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  private void useEmptyFile() throws IOException {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    out = new RandomAccessOutputStream(handle);
+    in = new RandomAccessInputStream(handle);
+    tiffSaver = new TiffSaver(out, handle);
+    tiffParser = new TiffParser(in);
+  }
+
+  private IFD makeImageIFD(int width, int height, int planarConfig) {
+    IFD imageIFD = new IFD();
+    imageIFD.put(IFD.IMAGE_WIDTH, width);
+    imageIFD.put(IFD.IMAGE_LENGTH, height);
+    imageIFD.put(IFD.PLANAR_CONFIGURATION, planarConfig);
+    imageIFD.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    tiffSaver.setLittleEndian(true);
+    return imageIFD;
+  }
+
+  private byte[] makePlane(int length) {
+    byte[] plane = new byte[length];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (i * 3 + i / 256);
+    }
+    return plane;
+  }
+
 }
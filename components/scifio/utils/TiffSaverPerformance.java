@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * OME SCIFIO package for reading and converting scientific file formats.
+ * %%
+ * Copyright (C) 2005 - 2012 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+/**
+ * A benchmark for assembling strips and tiles in
+ * {@link TiffSaver#writeImage}.  Uncompressed planes are written to memory,
+ * so that the timings are dominated by strip and tile assembly.
+ *
+ * Usage: java TiffSaverPerformance [width height channels planes]
+ */
+public class TiffSaverPerformance {
+
+  public static void main(String[] args) throws Exception {
+    int width = 2048, height = 2048, channels = 3, planes = 8;
+    if (args.length >= 4) {
+      width = Integer.parseInt(args[0]);
+      height = Integer.parseInt(args[1]);
+      channels = Integer.parseInt(args[2]);
+      planes = Integer.parseInt(args[3]);
+    }
+
+    byte[] plane = new byte[width * height * channels * 2];
+    for (int i=0; i<plane.length; i++) plane[i] = (byte) i;
+
+    for (int pass=0; pass<3; pass++) {
+      System.out.println();
+      System.out.println("--== Pass " + (pass + 1) + " ==--");
+      benchmark("interleaved, strips", plane, width, height, channels,
+        planes, 1, 0);
+      benchmark("planar, strips", plane, width, height, channels,
+        planes, 2, 0);
+      benchmark("interleaved, 256x256 tiles", plane, width, height, channels,
+        planes, 1, 256);
+      benchmark("planar, 256x256 tiles", plane, width, height, channels,
+        planes, 2, 256);
+    }
+  }
+
+  private static void benchmark(String label, byte[] plane, int width,
+    int height, int channels, int planes, int planarConfig, int tileSize)
+    throws Exception
+  {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setWritingSequentially(true);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+
+    long start = System.currentTimeMillis();
+    for (int no=0; no<planes; no++) {
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, width);
+      ifd.put(IFD.IMAGE_LENGTH, height);
+      ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+      ifd.put(IFD.PLANAR_CONFIGURATION, planarConfig);
+      ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+      if (tileSize > 0) {
+        ifd.put(IFD.TILE_WIDTH, tileSize);
+        ifd.put(IFD.TILE_LENGTH, tileSize);
+      }
+      else ifd.put(IFD.ROWS_PER_STRIP, new long[] {1});
+      saver.writeImage(plane, ifd, no, FormatTools.UINT16,
+        no == planes - 1);
+    }
+    long time = System.currentTimeMillis() - start;
+    out.close();
+
+    double mb = (double) plane.length * planes / (1024 * 1024);
+    System.out.println(label + ": " + time + " ms (" +
+      (int) (mb * 1000 / Math.max(time, 1)) + " MB/s)");
+  }
+
+}